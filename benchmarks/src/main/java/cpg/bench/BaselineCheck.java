@@ -0,0 +1,118 @@
+package cpg.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares a JMH JSON result ({@code -rf json}) with the stored baseline and
+ * exits non-zero on a regression: throughput down, p99 sample time up, or
+ * normalized allocation ({@code -prof gc}) up by more than the tolerance
+ * (default 10%, {@code -Dtolerance=0.2} for 20%).
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar cpg.bench.BaselineCheck target/jmh-result.json baseline/jmh-baseline.json [--update]
+ * </pre>
+ *
+ * When the baseline file does not exist, or with {@code --update}, the result
+ * is stored as the new baseline instead. The baseline is not committed:
+ * scores only compare between runs on the same machine.
+ */
+public final class BaselineCheck {
+
+	private static final String ALLOCATION = "\u00b7gc.alloc.rate.norm";
+
+	private BaselineCheck() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: BaselineCheck <result.json> <baseline.json> [--update]");
+			System.exit(2);
+		}
+		File result = new File(args[0]);
+		File baseline = new File(args[1]);
+		double tolerance = Double.parseDouble(System.getProperty("tolerance", "0.10"));
+
+		if (!baseline.exists() || (args.length > 2 && "--update".equals(args[2]))) {
+			if (baseline.getParentFile() != null) {
+				baseline.getParentFile().mkdirs();
+			}
+			Files.copy(result.toPath(), baseline.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			System.out.println("Stored " + result + " as the new baseline " + baseline);
+			return;
+		}
+
+		ObjectMapper mapper = new ObjectMapper();
+		Map<String, JsonNode> current = index(mapper.readTree(result));
+		Map<String, JsonNode> previous = index(mapper.readTree(baseline));
+
+		int regressions = 0;
+		for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+			JsonNode base = previous.get(entry.getKey());
+			if (base == null) {
+				System.out.println("NEW        " + entry.getKey());
+				continue;
+			}
+			JsonNode now = entry.getValue();
+			String mode = now.path("mode").asText();
+			if ("thrpt".equals(mode)) {
+				regressions += compare(entry.getKey(), "throughput", score(base), score(now), tolerance, false);
+			} else if ("sample".equals(mode)) {
+				regressions += compare(entry.getKey(), "p99", p99(base), p99(now), tolerance, true);
+			}
+			JsonNode allocBase = base.path("secondaryMetrics").path(ALLOCATION).path("score");
+			JsonNode allocNow = now.path("secondaryMetrics").path(ALLOCATION).path("score");
+			if (allocBase.isNumber() && allocNow.isNumber()) {
+				regressions += compare(entry.getKey(), "alloc B/op", allocBase.asDouble(), allocNow.asDouble(),
+						tolerance, true);
+			}
+		}
+
+		System.out.println(regressions == 0 ? "No regressions against " + baseline
+				: regressions + " regression(s) against " + baseline);
+		System.exit(regressions == 0 ? 0 : 1);
+	}
+
+	private static int compare(String key, String metric, double base, double now, double tolerance,
+			boolean lowerIsBetter) {
+		double change = base == 0.0 ? 0.0 : (now - base) / base;
+		boolean regressed = lowerIsBetter ? change > tolerance : change < -tolerance;
+		System.out.println(String.format("%-10s %s %s %.3f -> %.3f (%+.1f%%)", regressed ? "REGRESSED" : "ok", key,
+				metric, base, now, change * 100));
+		return regressed ? 1 : 0;
+	}
+
+	private static double score(JsonNode run) {
+		return run.path("primaryMetric").path("score").asDouble();
+	}
+
+	private static double p99(JsonNode run) {
+		return run.path("primaryMetric").path("scorePercentiles").path("99.0").asDouble();
+	}
+
+	/**
+	 * Keys each run by benchmark, mode and sorted parameters.
+	 */
+	private static Map<String, JsonNode> index(JsonNode runs) {
+		Map<String, JsonNode> index = new LinkedHashMap<String, JsonNode>();
+		for (JsonNode run : runs) {
+			Map<String, String> params = new TreeMap<String, String>();
+			Iterator<Map.Entry<String, JsonNode>> fields = run.path("params").fields();
+			while (fields.hasNext()) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				params.put(field.getKey(), field.getValue().asText());
+			}
+			index.put(run.path("benchmark").asText() + " [" + run.path("mode").asText() + "] " + params, run);
+		}
+		return index;
+	}
+}
@@ -0,0 +1,82 @@
+package cpg.bench;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazon.speech.slu.Intent;
+import com.amazon.speech.slu.Slot;
+import com.amazon.speech.speechlet.IntentRequest;
+import com.amazon.speech.speechlet.Session;
+import com.amazon.speech.speechlet.SpeechletException;
+import com.amazon.speech.speechlet.SpeechletResponse;
+
+import cpg.CpgSpeechlet;
+import cpg.LocalDatabase;
+
+/**
+ * {@link CpgSpeechlet#onIntent} for every intent the skill handles, with all
+ * three slots filled. Metric intents are answered from the aggregate cube or
+ * the result cache once warmed, so this measures dispatch and rendering.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntentDispatchBenchmark {
+
+	@Param({ "TotalTradeSpend", "TotalGrossProfit", "TotalROI", "TotalMetrics", "BestPromotions",
+			"PromotionsPerformance", "HearMore", "DontHearMore", "AMAZON.HelpIntent", "AMAZON.StopIntent",
+			"AMAZON.CancelIntent", "Unknown" })
+	public String intentName;
+
+	@Param({ "20000" })
+	public int rows;
+
+	private CpgSpeechlet speechlet;
+
+	private IntentRequest request;
+
+	private Session session;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		System.setProperty("cpg.local.rows", String.valueOf(rows));
+		LocalDatabase.startForSkill();
+
+		speechlet = new CpgSpeechlet();
+		speechlet.warmUp();
+
+		Map<String, Slot> slots = new HashMap<String, Slot>();
+		slots.put("YEARNO", Slot.builder().withName("YEARNO").withValue("2016").build());
+		slots.put("BRAND", Slot.builder().withName("BRAND").withValue("CESAR").build());
+		slots.put("CUSTOMER", Slot.builder().withName("CUSTOMER").withValue("TARGET").build());
+
+		request = IntentRequest.builder().withRequestId("EdwRequestId.bench").withTimestamp(new Date())
+				.withIntent(Intent.builder().withName(intentName).withSlots(slots).build()).build();
+		session = Session.builder().withSessionId("SessionId.bench").withIsNew(false)
+				.withAttributes(Collections.<String, Object> emptyMap()).build();
+	}
+
+	@Benchmark
+	public SpeechletResponse onIntent() throws SpeechletException {
+		return speechlet.onIntent(request, session);
+	}
+}
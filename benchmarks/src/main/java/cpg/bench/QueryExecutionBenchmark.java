@@ -0,0 +1,68 @@
+package cpg.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cpg.ConnectionUtil;
+import cpg.LocalDatabase;
+import cpg.Metric;
+import cpg.MetricFilter;
+
+/**
+ * Query execution through {@link ConnectionUtil} against the embedded
+ * database, bypassing the cube and the result cache: a plain statement and the
+ * cached prepared statement for the same metric.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryExecutionBenchmark {
+
+	@Param({ "20000" })
+	public int rows;
+
+	@Param({ "TOTAL_TRADE_SPEND", "TOTAL_GROSS_PROFIT", "TOTAL_ROI" })
+	public Metric metric;
+
+	private ConnectionUtil connUtil;
+
+	private MetricFilter filter;
+
+	private String literalSql;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		System.setProperty("cpg.local.rows", String.valueOf(rows));
+		LocalDatabase.startForSkill();
+		connUtil = new ConnectionUtil();
+		filter = MetricFilter.of("2016", "CESAR", "TARGET");
+		literalSql = "select " + metric.getSelectExpression() + " from [dbo].[VIEW_TABLEAU_PEA_DEMO]"
+				+ " where [PromotionStartDate] >= '2016-01-01' and [PromotionStartDate] < '2017-01-01'"
+				+ " and ProdLevel4Name = 'CESAR' and CustCustomerName = 'TARGET'";
+	}
+
+	@Benchmark
+	public String executeQuery() {
+		return connUtil.executeQuery(literalSql);
+	}
+
+	@Benchmark
+	public String executeMetricQuery() {
+		return connUtil.executeMetricQuery(metric, filter);
+	}
+}
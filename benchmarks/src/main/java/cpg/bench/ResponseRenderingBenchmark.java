@@ -0,0 +1,102 @@
+package cpg.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazon.speech.speechlet.SpeechletResponse;
+import com.amazon.speech.ui.OutputSpeech;
+import com.amazon.speech.ui.PlainTextOutputSpeech;
+import com.amazon.speech.ui.Reprompt;
+import com.amazon.speech.ui.SimpleCard;
+import com.amazon.speech.ui.SsmlOutputSpeech;
+
+import cpg.SpeechTemplate;
+
+/**
+ * SSML and card construction for a metric answer: the original string
+ * concatenation next to compiled {@link SpeechTemplate}s with the patterns
+ * of the speechlet's metric answer. Keep the patterns in step with
+ * {@code CpgSpeechlet}; the speechlet itself is measured end to end by
+ * {@link IntentDispatchBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseRenderingBenchmark {
+
+	private static final SpeechTemplate FILTER_SPEECH = SpeechTemplate
+			.ssml("[ year {0,cardinal}][ brand {1}][ customer {2}]");
+
+	private static final SpeechTemplate FILTER_CARD = SpeechTemplate.text("[ year {0}][ brand {1}][ customer {2}]");
+
+	private static final SpeechTemplate METRIC_TITLE = SpeechTemplate.text("{0} ::");
+
+	private static final SpeechTemplate METRIC_SPEECH = SpeechTemplate
+			.ssml("<speak>The {0}[ for{1,ssml}] is <break time=\"0.2s\" /> {2,cardinal}</speak>");
+
+	private static final SpeechTemplate METRIC_CARD = SpeechTemplate.text("The {0}[ for{1}] is {2}");
+
+	private static final String HEAR_MORE = "<speak> Would you like to hear more ? Please say yes or no</speak>";
+
+	private final Reprompt sharedReprompt = reprompt(ssml(HEAR_MORE));
+
+	private final String value = "203090661";
+
+	private static SsmlOutputSpeech ssml(String text) {
+		SsmlOutputSpeech speech = new SsmlOutputSpeech();
+		speech.setSsml(text);
+		return speech;
+	}
+
+	private static Reprompt reprompt(OutputSpeech speech) {
+		Reprompt reprompt = new Reprompt();
+		reprompt.setOutputSpeech(speech);
+		return reprompt;
+	}
+
+	@Benchmark
+	public SpeechletResponse metricAnswer() {
+		SimpleCard card = new SimpleCard();
+		card.setTitle("Total Trade Spend ::");
+
+		String speechOut = "year <say-as interpret-as=\"cardinal\">2016</say-as> brand CESAR customer TARGET";
+		String finalSpeechOut = "The Total Trade Spend for " + speechOut
+				+ " is <break time=\"0.2s\" /> <say-as interpret-as=\"cardinal\"> " + value + "</say-as>";
+		card.setContent("The Total Trade Spend for  year 2016 brand CESAR customer TARGET is " + value);
+
+		return SpeechletResponse.newAskResponse(ssml("<speak>" + finalSpeechOut + "</speak>"), reprompt(ssml(HEAR_MORE)),
+				card);
+	}
+
+	@Benchmark
+	public SpeechletResponse templatedMetricAnswer() {
+		String speechOut = FILTER_SPEECH.render("2016", "CESAR", "TARGET");
+		String cardOut = FILTER_CARD.render("2016", "CESAR", "TARGET");
+
+		SimpleCard card = new SimpleCard();
+		card.setTitle(METRIC_TITLE.render("Total Trade Spend"));
+		card.setContent(METRIC_CARD.render("Total Trade Spend", cardOut, value));
+
+		return SpeechletResponse.newAskResponse(ssml(METRIC_SPEECH.render("Total Trade Spend", speechOut, value)),
+				sharedReprompt, card);
+	}
+
+	@Benchmark
+	public SpeechletResponse plainAsk() {
+		PlainTextOutputSpeech speech = new PlainTextOutputSpeech();
+		speech.setText("Waiting for your query!");
+		return SpeechletResponse.newAskResponse(speech, reprompt(ssml("<speak>Here are few more samples</speak>")));
+	}
+}
@@ -0,0 +1,144 @@
+package cpg;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Admission control in front of the speechlet servlet of {@link SkillServer}.
+ *
+ * <p>
+ * At most {@code cpg.server.maxConcurrent} requests are handled at once; a
+ * request that finds no free slot within {@code cpg.server.admissionWaitMillis}
+ * is answered with 503 and {@code Retry-After} so that the load balancer can
+ * send it to another instance while it is still inside Alexa's timeout. The
+ * same happens right away while more than
+ * {@code cpg.server.maxConnectionWaiters} threads are queued for a pooled
+ * connection: admitting more work would only lengthen that queue. While the
+ * server drains for shutdown every request is refused.
+ */
+public class AdmissionFilter implements Filter {
+
+	private final int maxConcurrent;
+
+	private final long waitMillis;
+
+	private final int maxConnectionWaiters;
+
+	private final Semaphore slots;
+
+	private final AtomicLong admitted = new AtomicLong();
+
+	private final AtomicLong rejectedBusy = new AtomicLong();
+
+	private final AtomicLong rejectedSaturated = new AtomicLong();
+
+	private volatile boolean draining;
+
+	public AdmissionFilter() {
+		this(SkillConfig.getInt("cpg.server.maxConcurrent", 32), SkillConfig.getLong("cpg.server.admissionWaitMillis",
+				100), SkillConfig.getInt("cpg.server.maxConnectionWaiters", SkillConfig.getInt("cpg.pool.maxSize", 4)));
+	}
+
+	public AdmissionFilter(int maxConcurrent, long waitMillis, int maxConnectionWaiters) {
+		if (maxConcurrent < 1) {
+			throw new IllegalArgumentException("maxConcurrent must be at least 1");
+		}
+		this.maxConcurrent = maxConcurrent;
+		this.waitMillis = waitMillis;
+		this.maxConnectionWaiters = maxConnectionWaiters;
+		this.slots = new Semaphore(maxConcurrent, true);
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		if (draining) {
+			reject(response, "Shutting down");
+			return;
+		}
+		if (ConnectionUtil.getConnectionWaiters() > maxConnectionWaiters) {
+			rejectedSaturated.incrementAndGet();
+			reject(response, "Database busy");
+			return;
+		}
+		boolean acquired;
+		try {
+			acquired = slots.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			acquired = false;
+		}
+		if (!acquired) {
+			rejectedBusy.incrementAndGet();
+			reject(response, "Server busy");
+			return;
+		}
+		try {
+			admitted.incrementAndGet();
+			chain.doFilter(request, response);
+		} finally {
+			slots.release();
+		}
+	}
+
+	private static void reject(ServletResponse response, String reason) throws IOException {
+		HttpServletResponse http = (HttpServletResponse) response;
+		http.setHeader("Retry-After", "1");
+		http.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, reason);
+	}
+
+	/**
+	 * Refuses every further request.
+	 */
+	public void drain() {
+		draining = true;
+	}
+
+	public boolean isDraining() {
+		return draining;
+	}
+
+	/**
+	 * Waits until no admitted request is running any more.
+	 *
+	 * @return true if the last one finished within {@code timeoutMillis}
+	 */
+	public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+		if (!slots.tryAcquire(maxConcurrent, timeoutMillis, TimeUnit.MILLISECONDS)) {
+			return false;
+		}
+		slots.release(maxConcurrent);
+		return true;
+	}
+
+	/**
+	 * @return the number of requests being handled right now
+	 */
+	public int getInFlight() {
+		return maxConcurrent - slots.availablePermits();
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	@Override
+	public String toString() {
+		return "inFlight=" + getInFlight() + "/" + maxConcurrent + ", admitted=" + admitted.get() + ", rejectedBusy="
+				+ rejectedBusy.get() + ", rejectedSaturated=" + rejectedSaturated.get();
+	}
+}
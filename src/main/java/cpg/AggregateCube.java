@@ -0,0 +1,341 @@
+package cpg;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory copy of the trade spend and gross profit sums of
+ * {@code [dbo].[VIEW_TABLEAU_PEA_DEMO]} at (year, brand, customer) grain.
+ *
+ * <p>
+ * Dimensions are dictionary encoded: each distinct year, brand and customer
+ * is stored once in a sorted dictionary and cells refer to it by index. The
+ * cells themselves are parallel primitive columns, so answering a metric for
+ * any combination of the {@code YEARNO}/{@code BRAND}/{@code CUSTOMER} slots
+ * is a scan over a few {@code int}/{@code double} columns without boxing or
+ * hashing. Columns are primitive buffers: heap arrays for a cube loaded from
+ * the database, or views of a memory-mapped {@link CubeSnapshot} file. A
+ * dimension that is null in the view gets the code -1, which no filter
+ * matches, just like {@code = ?} never matches NULL on the server.
+ *
+ * <p>
+ * Instances are immutable and safe to share between threads.
+ */
+public final class AggregateCube {
+
+	static final String LOAD_SQL = "select YEAR([PromotionStartDate]), ProdLevel4Name, CustCustomerName, "
+			+ "sum(TotalTradeSpendSellOut), sum(GrossProfitSellOut) from " + MetricQuery.VIEW
+			+ " group by YEAR([PromotionStartDate]), ProdLevel4Name, CustCustomerName";
+
+	private static final int NO_MATCH = -2;
+
+	private final int[] years;
+
+	private final String[] brands;
+
+	private final String[] customers;
+
+	private final IntBuffer cellYear;
+
+	private final IntBuffer cellBrand;
+
+	private final IntBuffer cellCustomer;
+
+	private final DoubleBuffer tradeSpend;
+
+	private final DoubleBuffer grossProfit;
+
+	private final int size;
+
+	private final long loadedAt;
+
+	AggregateCube(int[] years, String[] brands, String[] customers, int[] cellYear, int[] cellBrand,
+			int[] cellCustomer, double[] tradeSpend, double[] grossProfit, long loadedAt) {
+		this(years, brands, customers, IntBuffer.wrap(cellYear), IntBuffer.wrap(cellBrand),
+				IntBuffer.wrap(cellCustomer), DoubleBuffer.wrap(tradeSpend), DoubleBuffer.wrap(grossProfit),
+				loadedAt);
+	}
+
+	AggregateCube(int[] years, String[] brands, String[] customers, IntBuffer cellYear, IntBuffer cellBrand,
+			IntBuffer cellCustomer, DoubleBuffer tradeSpend, DoubleBuffer grossProfit, long loadedAt) {
+		this.years = years;
+		this.brands = brands;
+		this.customers = customers;
+		this.cellYear = cellYear;
+		this.cellBrand = cellBrand;
+		this.cellCustomer = cellCustomer;
+		this.tradeSpend = tradeSpend;
+		this.grossProfit = grossProfit;
+		this.size = tradeSpend.limit();
+		this.loadedAt = loadedAt;
+	}
+
+	/**
+	 * Loads the cube with a single grouped scan of the view.
+	 */
+	public static AggregateCube load(ConnectionUtil connUtil) throws SQLException {
+		final Builder builder = new Builder();
+		connUtil.executeQuery(LOAD_SQL, new RowHandler() {
+			@Override
+			public void handleRow(ResultSet rs) throws SQLException {
+				int year = rs.getInt(1);
+				if (rs.wasNull()) {
+					year = Integer.MIN_VALUE;
+				}
+				builder.add(year, rs.getString(2), rs.getString(3), rs.getDouble(4), rs.getDouble(5));
+			}
+		});
+		return builder.build();
+	}
+
+	/**
+	 * Copies the cube with amounts added to existing cells; the dictionaries
+	 * and cells are shared, the amount columns copied.
+	 *
+	 * @param cells
+	 *            indexes of the cells to change
+	 * @param spendDeltas
+	 *            trade spend to add to each cell
+	 * @param profitDeltas
+	 *            gross profit to add to each cell
+	 */
+	AggregateCube withDeltas(int[] cells, double[] spendDeltas, double[] profitDeltas, long loadedAt) {
+		double[] spend = new double[size];
+		double[] profit = new double[size];
+		tradeSpend().get(spend);
+		grossProfit().get(profit);
+		for (int i = 0; i < cells.length; i++) {
+			spend[cells[i]] += spendDeltas[i];
+			profit[cells[i]] += profitDeltas[i];
+		}
+		return new AggregateCube(years, brands, customers, cellYear, cellBrand, cellCustomer,
+				DoubleBuffer.wrap(spend), DoubleBuffer.wrap(profit), loadedAt);
+	}
+
+	/**
+	 * Computes a metric for a filter.
+	 *
+	 * @return the metric value, or NaN when no cell matches the filter (the
+	 *         server would return NULL) or the metric is undefined
+	 */
+	public double value(Metric metric, MetricFilter filter) {
+		int y = filter.getYear() == null ? -1 : code(filter.getYear().intValue());
+		int b = filter.getBrand() == null ? -1 : code(brands, filter.getBrand());
+		int c = filter.getCustomer() == null ? -1 : code(customers, filter.getCustomer());
+		if (y == NO_MATCH || b == NO_MATCH || c == NO_MATCH) {
+			return Double.NaN;
+		}
+
+		double spend = 0.0;
+		double profit = 0.0;
+		boolean matched = false;
+		for (int i = 0; i < size; i++) {
+			if ((y < 0 || cellYear.get(i) == y) && (b < 0 || cellBrand.get(i) == b)
+					&& (c < 0 || cellCustomer.get(i) == c)) {
+				spend += tradeSpend.get(i);
+				profit += grossProfit.get(i);
+				matched = true;
+			}
+		}
+		return matched ? metric.compute(spend, profit) : Double.NaN;
+	}
+
+	/**
+	 * Sums trade spend and gross profit per brand or customer over the cells
+	 * matching a filter, in one pass over the columns.
+	 *
+	 * @param dimension
+	 *            {@link MetricFilter#BRAND} or {@link MetricFilter#CUSTOMER}
+	 * @return trade spend and gross profit arrays indexed like
+	 *         {@link #names(int)}; the trade spend of a name without any
+	 *         matching cell is NaN
+	 */
+	double[][] sumsBy(int dimension, MetricFilter filter) {
+		IntBuffer group = dimension == MetricFilter.BRAND ? cellBrand : cellCustomer;
+		double[] spend = new double[names(dimension).length];
+		double[] profit = new double[spend.length];
+		Arrays.fill(spend, Double.NaN);
+
+		int y = filter.getYear() == null ? -1 : code(filter.getYear().intValue());
+		int b = filter.getBrand() == null ? -1 : code(brands, filter.getBrand());
+		int c = filter.getCustomer() == null ? -1 : code(customers, filter.getCustomer());
+		if (y == NO_MATCH || b == NO_MATCH || c == NO_MATCH) {
+			return new double[][] { spend, profit };
+		}
+
+		for (int i = 0; i < size; i++) {
+			int g = group.get(i);
+			if (g >= 0 && (y < 0 || cellYear.get(i) == y) && (b < 0 || cellBrand.get(i) == b)
+					&& (c < 0 || cellCustomer.get(i) == c)) {
+				spend[g] = Double.isNaN(spend[g]) ? tradeSpend.get(i) : spend[g] + tradeSpend.get(i);
+				profit[g] += grossProfit.get(i);
+			}
+		}
+		return new double[][] { spend, profit };
+	}
+
+	/**
+	 * @return the sorted brand or customer dictionary
+	 */
+	String[] names(int dimension) {
+		if (dimension == MetricFilter.BRAND) {
+			return brands;
+		} else if (dimension == MetricFilter.CUSTOMER) {
+			return customers;
+		}
+		throw new IllegalArgumentException("the cube does not rank by dimension " + dimension);
+	}
+
+	private int code(int year) {
+		int idx = Arrays.binarySearch(years, year);
+		return idx < 0 ? NO_MATCH : idx;
+	}
+
+	private static int code(String[] dictionary, String value) {
+		int idx = Arrays.binarySearch(dictionary, value);
+		return idx < 0 ? NO_MATCH : idx;
+	}
+
+	/**
+	 * @return the number of (year, brand, customer) cells
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the {@link System#currentTimeMillis()} at which the data was read
+	 */
+	public long getLoadedAt() {
+		return loadedAt;
+	}
+
+	int[] years() {
+		return years;
+	}
+
+	String[] brands() {
+		return brands;
+	}
+
+	String[] customers() {
+		return customers;
+	}
+
+	IntBuffer cellYear() {
+		return cellYear.duplicate();
+	}
+
+	IntBuffer cellBrand() {
+		return cellBrand.duplicate();
+	}
+
+	IntBuffer cellCustomer() {
+		return cellCustomer.duplicate();
+	}
+
+	DoubleBuffer tradeSpend() {
+		return tradeSpend.duplicate();
+	}
+
+	DoubleBuffer grossProfit() {
+		return grossProfit.duplicate();
+	}
+
+	/**
+	 * Collects grouped rows and dictionary encodes them into a cube.
+	 */
+	static final class Builder {
+
+		private int size;
+
+		private int[] rowYear = new int[1024];
+
+		private String[] rowBrand = new String[1024];
+
+		private String[] rowCustomer = new String[1024];
+
+		private double[] rowSpend = new double[1024];
+
+		private double[] rowProfit = new double[1024];
+
+		void add(int year, String brand, String customer, double spend, double profit) {
+			if (size == rowYear.length) {
+				int capacity = size * 2;
+				rowYear = Arrays.copyOf(rowYear, capacity);
+				rowBrand = Arrays.copyOf(rowBrand, capacity);
+				rowCustomer = Arrays.copyOf(rowCustomer, capacity);
+				rowSpend = Arrays.copyOf(rowSpend, capacity);
+				rowProfit = Arrays.copyOf(rowProfit, capacity);
+			}
+			rowYear[size] = year;
+			rowBrand[size] = MetricFilter.normalize(brand);
+			rowCustomer[size] = MetricFilter.normalize(customer);
+			rowSpend[size] = spend;
+			rowProfit[size] = profit;
+			size++;
+		}
+
+		AggregateCube build() {
+			return build(System.currentTimeMillis());
+		}
+
+		AggregateCube build(long loadedAt) {
+			int[] years = distinctYears();
+			String[] brands = dictionary(rowBrand);
+			String[] customers = dictionary(rowCustomer);
+			Map<String, Integer> brandCodes = codes(brands);
+			Map<String, Integer> customerCodes = codes(customers);
+
+			int[] cellYear = new int[size];
+			int[] cellBrand = new int[size];
+			int[] cellCustomer = new int[size];
+			for (int i = 0; i < size; i++) {
+				cellYear[i] = rowYear[i] == Integer.MIN_VALUE ? -1 : Arrays.binarySearch(years, rowYear[i]);
+				cellBrand[i] = rowBrand[i] == null ? -1 : brandCodes.get(rowBrand[i]).intValue();
+				cellCustomer[i] = rowCustomer[i] == null ? -1 : customerCodes.get(rowCustomer[i]).intValue();
+			}
+			return new AggregateCube(years, brands, customers, cellYear, cellBrand, cellCustomer,
+					Arrays.copyOf(rowSpend, size), Arrays.copyOf(rowProfit, size), loadedAt);
+		}
+
+		private int[] distinctYears() {
+			int[] sorted = Arrays.copyOf(rowYear, size);
+			Arrays.sort(sorted);
+			int n = 0;
+			for (int i = 0; i < sorted.length; i++) {
+				if (sorted[i] != Integer.MIN_VALUE && (n == 0 || sorted[n - 1] != sorted[i])) {
+					sorted[n++] = sorted[i];
+				}
+			}
+			return Arrays.copyOf(sorted, n);
+		}
+
+		private String[] dictionary(String[] values) {
+			Set<String> seen = new HashSet<String>();
+			for (int i = 0; i < size; i++) {
+				if (values[i] != null) {
+					seen.add(values[i]);
+				}
+			}
+			String[] dictionary = seen.toArray(new String[seen.size()]);
+			Arrays.sort(dictionary);
+			return dictionary;
+		}
+
+		private static Map<String, Integer> codes(String[] dictionary) {
+			Map<String, Integer> codes = new HashMap<String, Integer>(dictionary.length * 2);
+			for (int i = 0; i < dictionary.length; i++) {
+				codes.put(dictionary[i], i);
+			}
+			return codes;
+		}
+	}
+}
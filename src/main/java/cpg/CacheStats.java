@@ -0,0 +1,72 @@
+package cpg;
+
+/**
+ * Point-in-time counters of a {@link ResultCache}.
+ */
+public final class CacheStats {
+
+	private final int size;
+
+	private final long hits;
+
+	private final long staleHits;
+
+	private final long misses;
+
+	private final long evictions;
+
+	private final long refreshes;
+
+	private final long refreshFailures;
+
+	CacheStats(int size, long hits, long staleHits, long misses, long evictions, long refreshes,
+			long refreshFailures) {
+		this.size = size;
+		this.hits = hits;
+		this.staleHits = staleHits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.refreshes = refreshes;
+		this.refreshFailures = refreshFailures;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getStaleHits() {
+		return staleHits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	public long getRefreshes() {
+		return refreshes;
+	}
+
+	public long getRefreshFailures() {
+		return refreshFailures;
+	}
+
+	public double getHitRatio() {
+		long lookups = hits + staleHits + misses;
+		return lookups == 0 ? 0.0 : (double) (hits + staleHits) / lookups;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("size=%d hits=%d staleHits=%d misses=%d evictions=%d refreshes=%d "
+				+ "refreshFailures=%d hitRatio=%.3f", size, hits, staleHits, misses, evictions, refreshes,
+				refreshFailures, getHitRatio());
+	}
+}
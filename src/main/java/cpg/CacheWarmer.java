@@ -0,0 +1,235 @@
+package cpg;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fills the {@link ResultCache} with every metric for every combination of
+ * the {@code YEARNO}/{@code BRAND}/{@code CUSTOMER} slots from one scan of the
+ * view, instead of one narrow query per utterance.
+ *
+ * <p>
+ * On SQL Server the scan is a single {@code GROUP BY GROUPING SETS} query
+ * over all eight subsets of (year, brand, customer); {@code GROUPING()} tells
+ * a rolled up dimension from a NULL in the data. Databases without grouping
+ * sets, such as the {@link LocalDatabase}, are scanned at the finest grain and
+ * rolled up in memory. Set {@code cpg.warmer.groupingSets} to force either
+ * way.
+ *
+ * <p>
+ * A sum the server returns as NULL, because every value in it is NULL, is
+ * cached as no data, like the metric query would answer.
+ *
+ * <p>
+ * When there are more combinations than the cache holds, the coarsest ones,
+ * which the most utterances ask about, are kept. The warm runs every
+ * {@code cpg.warmer.intervalMillis} on a background thread.
+ */
+public class CacheWarmer {
+	private static final Logger log = LoggerFactory.getLogger(CacheWarmer.class);
+
+	private static final String DIMENSIONS = "YEAR([PromotionStartDate]), ProdLevel4Name, CustCustomerName";
+
+	static final String GROUPING_SETS_SQL = "select " + DIMENSIONS
+			+ ", sum(TotalTradeSpendSellOut), sum(GrossProfitSellOut), GROUPING(YEAR([PromotionStartDate])),"
+			+ " GROUPING(ProdLevel4Name), GROUPING(CustCustomerName) from " + MetricQuery.VIEW
+			+ " group by GROUPING SETS ((" + DIMENSIONS + "), (YEAR([PromotionStartDate]), ProdLevel4Name),"
+			+ " (YEAR([PromotionStartDate]), CustCustomerName), (ProdLevel4Name, CustCustomerName),"
+			+ " (YEAR([PromotionStartDate])), (ProdLevel4Name), (CustCustomerName), ())";
+
+	private final ConnectionUtil connUtil;
+
+	private final ResultCache<QueryResult> resultCache;
+
+	private ScheduledExecutorService scheduler;
+
+	public CacheWarmer(ConnectionUtil connUtil, ResultCache<QueryResult> resultCache) {
+		this.connUtil = connUtil;
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * Warms the cache now and then every {@code cpg.warmer.intervalMillis}
+	 * (default 15 minutes) on a daemon thread.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cpg-cache-warmer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long interval = SkillConfig.getLong("cpg.warmer.intervalMillis", TimeUnit.MINUTES.toMillis(15));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					warm();
+				} catch (SQLException e) {
+					log.warn("Cache warm failed, keeping the cached answers: {}", e.getMessage());
+				} catch (RuntimeException e) {
+					log.warn("Cache warm failed", e);
+				}
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Scans the view once and caches every metric for every filter
+	 * combination that has data.
+	 *
+	 * @return the number of cache entries written
+	 */
+	public int warm() throws SQLException {
+		long start = System.currentTimeMillis();
+		boolean groupingSets = useGroupingSets();
+		Map<MetricFilter, double[]> sums = groupingSets ? loadGroupingSets() : loadAndRollUp();
+
+		List<Map.Entry<MetricFilter, double[]>> entries = new ArrayList<Map.Entry<MetricFilter, double[]>>(
+				sums.entrySet());
+		// finest first, so the coarse filters are written last and survive eviction
+		Collections.sort(entries, new Comparator<Map.Entry<MetricFilter, double[]>>() {
+			@Override
+			public int compare(Map.Entry<MetricFilter, double[]> a, Map.Entry<MetricFilter, double[]> b) {
+				return Integer.bitCount(b.getKey().mask()) - Integer.bitCount(a.getKey().mask());
+			}
+		});
+		Metric[] metrics = Metric.values();
+		int capacity = resultCache.getMaxEntries() / metrics.length;
+		int first = Math.max(0, entries.size() - capacity);
+
+		int written = 0;
+		for (int i = first; i < entries.size(); i++) {
+			MetricFilter filter = entries.get(i).getKey();
+			double[] sum = entries.get(i).getValue();
+			for (Metric metric : metrics) {
+				double value = metric.compute(sum[0], sum[1]);
+				resultCache.put(new MetricKey(metric, filter),
+						Double.isNaN(value) ? QueryResult.noData() : QueryResult.ok(metric.format(value)));
+				written++;
+			}
+		}
+
+		log.info("Warmed {} cached answers for {} of {} filters ({}) in {} ms", written, entries.size() - first,
+				entries.size(), groupingSets ? "grouping sets" : "in-memory rollup",
+				System.currentTimeMillis() - start);
+		return written;
+	}
+
+	private boolean useGroupingSets() throws SQLException {
+		String setting = SkillConfig.get("cpg.warmer.groupingSets", "auto");
+		if (!"auto".equalsIgnoreCase(setting)) {
+			return Boolean.parseBoolean(setting);
+		}
+		return connUtil.getDatabaseProductName().toLowerCase(Locale.ROOT).contains("sql server");
+	}
+
+	/**
+	 * One row per filter combination, aggregated on the server.
+	 */
+	private Map<MetricFilter, double[]> loadGroupingSets() throws SQLException {
+		final Map<MetricFilter, double[]> sums = new HashMap<MetricFilter, double[]>();
+		connUtil.executeQuery(GROUPING_SETS_SQL, new RowHandler() {
+			@Override
+			public void handleRow(ResultSet rs) throws SQLException {
+				int year = rs.getInt(1);
+				Integer y = rs.wasNull() ? null : Integer.valueOf(year);
+				String brand = rs.getString(2);
+				String customer = rs.getString(3);
+				boolean yearGrouped = rs.getInt(6) == 0;
+				boolean brandGrouped = rs.getInt(7) == 0;
+				boolean customerGrouped = rs.getInt(8) == 0;
+				// a NULL in a grouped column is data no "= ?" filter can ask for
+				if ((yearGrouped && y == null) || (brandGrouped && brand == null)
+						|| (customerGrouped && customer == null)) {
+					return;
+				}
+				add(sums, MetricFilter.valueOf(yearGrouped ? y : null, brandGrouped ? brand : null,
+						customerGrouped ? customer : null), sum(rs, 4), sum(rs, 5));
+			}
+		});
+		return sums;
+	}
+
+	/**
+	 * Finest grain from the server, each row added to the eight filters it
+	 * contributes to.
+	 */
+	private Map<MetricFilter, double[]> loadAndRollUp() throws SQLException {
+		final Map<MetricFilter, double[]> sums = new HashMap<MetricFilter, double[]>();
+		connUtil.executeQuery(AggregateCube.LOAD_SQL, new RowHandler() {
+			@Override
+			public void handleRow(ResultSet rs) throws SQLException {
+				int year = rs.getInt(1);
+				Integer y = rs.wasNull() ? null : Integer.valueOf(year);
+				String brand = rs.getString(2);
+				String customer = rs.getString(3);
+				double spend = sum(rs, 4);
+				double profit = sum(rs, 5);
+				for (int mask = 0; mask < 8; mask++) {
+					boolean withYear = (mask & MetricFilter.YEAR) != 0;
+					boolean withBrand = (mask & MetricFilter.BRAND) != 0;
+					boolean withCustomer = (mask & MetricFilter.CUSTOMER) != 0;
+					if ((withYear && y == null) || (withBrand && brand == null) || (withCustomer && customer == null)) {
+						continue;
+					}
+					add(sums, MetricFilter.valueOf(withYear ? y : null, withBrand ? brand : null,
+							withCustomer ? customer : null), spend, profit);
+				}
+			}
+		});
+		return sums;
+	}
+
+	/**
+	 * @return a sum column, NaN for NULL
+	 */
+	private static double sum(ResultSet rs, int column) throws SQLException {
+		double value = rs.getDouble(column);
+		return rs.wasNull() ? Double.NaN : value;
+	}
+
+	/**
+	 * Adds to the sums of a filter the way SQL's {@code sum} does: NULLs
+	 * (NaN) are skipped, and a sum stays NULL until a value is added.
+	 */
+	private static void add(Map<MetricFilter, double[]> sums, MetricFilter filter, double spend, double profit) {
+		double[] sum = sums.get(filter);
+		if (sum == null) {
+			sum = new double[] { Double.NaN, Double.NaN };
+			sums.put(filter, sum);
+		}
+		sum[0] = plus(sum[0], spend);
+		sum[1] = plus(sum[1], profit);
+	}
+
+	private static double plus(double sum, double value) {
+		return Double.isNaN(value) ? sum : Double.isNaN(sum) ? value : sum + value;
+	}
+}
@@ -0,0 +1,232 @@
+package cpg;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calls to a struggling dependency so that requests fail fast instead
+ * of queueing up behind it.
+ *
+ * <p>
+ * While closed, the outcome of the last {@code cpg.breaker.windowSize} calls
+ * is kept; a call that fails or takes longer than
+ * {@code cpg.breaker.slowCallMillis} counts as a failure. Once at least
+ * {@code cpg.breaker.minimumCalls} calls were seen and
+ * {@code cpg.breaker.failureRatePercent} of them failed, the breaker opens
+ * and rejects every call for {@code cpg.breaker.openMillis}. After that a
+ * single trial call is let through: its success closes the breaker, its
+ * failure opens it again. Outcomes of calls permitted before the breaker
+ * opened are ignored until it is closed again, so a late answer cannot stand
+ * in for the trial's.
+ *
+ * <p>
+ * Callers must report the outcome of every call {@link #tryAcquire()}
+ * permitted to its {@link Permit}, or {@link Permit#release()} it if they
+ * did not make the call.
+ */
+public class CircuitBreaker {
+	private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String name;
+
+	private final int minimumCalls;
+
+	private final int failureRatePercent;
+
+	private final long slowCallNanos;
+
+	private final long openNanos;
+
+	private final boolean[] failed;
+
+	private int next;
+
+	private int calls;
+
+	private int failures;
+
+	private State state = State.CLOSED;
+
+	private long openedAt;
+
+	private boolean trialInFlight;
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private final AtomicLong trips = new AtomicLong();
+
+	/** Shared by the calls permitted while closed, which are not trials. */
+	private final Permit closedPermit = new Permit(false);
+
+	/**
+	 * Creates a breaker configured from the {@code cpg.breaker.*} settings.
+	 */
+	public CircuitBreaker(String name) {
+		this(name, SkillConfig.getInt("cpg.breaker.windowSize", 20), SkillConfig.getInt("cpg.breaker.minimumCalls", 5),
+				SkillConfig.getInt("cpg.breaker.failureRatePercent", 50),
+				SkillConfig.getLong("cpg.breaker.slowCallMillis", 2000),
+				SkillConfig.getLong("cpg.breaker.openMillis", 30000));
+	}
+
+	public CircuitBreaker(String name, int windowSize, int minimumCalls, int failureRatePercent, long slowCallMillis,
+			long openMillis) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("windowSize must be at least 1");
+		}
+		this.name = name;
+		this.failed = new boolean[windowSize];
+		this.minimumCalls = Math.min(Math.max(minimumCalls, 1), windowSize);
+		this.failureRatePercent = failureRatePercent;
+		this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+	}
+
+	/**
+	 * @return the permit of a call that may proceed; null if it must fail
+	 *         fast
+	 */
+	public synchronized Permit tryAcquire() {
+		switch (state) {
+		case CLOSED:
+			return closedPermit;
+		case OPEN:
+			if (System.nanoTime() - openedAt >= openNanos) {
+				state = State.HALF_OPEN;
+				trialInFlight = true;
+				log.info("Circuit breaker {} half open, trying one call", name);
+				return new Permit(true);
+			}
+			break;
+		default:
+			if (!trialInFlight) {
+				trialInFlight = true;
+				return new Permit(true);
+			}
+			break;
+		}
+		rejected.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Permission for one call, to which its outcome is reported.
+	 */
+	public final class Permit {
+
+		private final boolean trial;
+
+		Permit(boolean trial) {
+			this.trial = trial;
+		}
+
+		/**
+		 * Reports a call that completed after {@code elapsedNanos}.
+		 */
+		public void onSuccess(long elapsedNanos) {
+			record(trial, elapsedNanos > slowCallNanos);
+		}
+
+		/**
+		 * Reports a call that failed or timed out.
+		 */
+		public void onFailure() {
+			record(trial, true);
+		}
+
+		/**
+		 * Gives back a permit that was not used after all, e.g. because no
+		 * connection was free; a trial call can then be made by the next
+		 * caller.
+		 */
+		public void release() {
+			if (trial) {
+				releaseTrial();
+			}
+		}
+	}
+
+	private synchronized void releaseTrial() {
+		if (state == State.HALF_OPEN) {
+			trialInFlight = false;
+		}
+	}
+
+	private synchronized void record(boolean trial, boolean failure) {
+		if (state == State.HALF_OPEN) {
+			if (!trial) {
+				// a call permitted before the breaker opened
+				return;
+			}
+			trialInFlight = false;
+			if (failure) {
+				log.warn("Circuit breaker {} trial call failed, open again", name);
+				open();
+			} else {
+				state = State.CLOSED;
+				log.info("Circuit breaker {} closed", name);
+			}
+			return;
+		}
+		if (state == State.OPEN || trial) {
+			// a call permitted before the breaker opened, or a trial already decided
+			return;
+		}
+
+		if (calls == failed.length) {
+			if (failed[next]) {
+				failures--;
+			}
+		} else {
+			calls++;
+		}
+		failed[next] = failure;
+		if (failure) {
+			failures++;
+		}
+		next = (next + 1) % failed.length;
+
+		if (calls >= minimumCalls && failures * 100 >= failureRatePercent * calls) {
+			log.warn("Circuit breaker {} open after {} of {} calls failed or were slow", name, failures, calls);
+			open();
+		}
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openedAt = System.nanoTime();
+		trips.incrementAndGet();
+		calls = 0;
+		failures = 0;
+		next = 0;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return how many calls were rejected while open
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return how many times the breaker opened
+	 */
+	public long getTrips() {
+		return trips.get();
+	}
+
+	@Override
+	public String toString() {
+		return name + " state=" + getState() + " trips=" + trips.get() + " rejected=" + rejected.get();
+	}
+}
@@ -0,0 +1,423 @@
+package cpg;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small bounded JDBC connection pool.
+ *
+ * <p>
+ * At most {@code maxSize} connections are borrowed at once; further borrowers
+ * wait up to {@code borrowTimeoutMillis}. Idle connections are reused most
+ * recently used first, and a connection that sat idle longer than
+ * {@code validateAfterIdleMillis} is checked with {@link Connection#isValid}
+ * before it is handed out. That matters on Lambda: a container that was frozen
+ * between invocations thaws with sockets the database closed long ago.
+ *
+ * <p>
+ * Connections are (re)created by a background maintenance thread that keeps
+ * {@code minIdle} connections ready, so a borrower only pays for a connect when
+ * the pool has nothing idle at all.
+ */
+public class ConnectionPool {
+	private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+
+	private final String url;
+
+	private final String username;
+
+	private final String password;
+
+	private final int maxSize;
+
+	private final int minIdle;
+
+	private final long borrowTimeoutMillis;
+
+	private final long validateAfterIdleNanos;
+
+	private final long maxLifetimeNanos;
+
+	private final int validationTimeoutSeconds;
+
+	private final int statementCacheSize;
+
+	private final Semaphore permits;
+
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+
+	private final AtomicInteger total = new AtomicInteger();
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	private final AtomicLong created = new AtomicLong();
+
+	private final AtomicLong destroyed = new AtomicLong();
+
+	private final AtomicLong borrows = new AtomicLong();
+
+	private final AtomicLong borrowTimeouts = new AtomicLong();
+
+	private final AtomicLong validationFailures = new AtomicLong();
+
+	private final AtomicLong leakedStatements = new AtomicLong();
+
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	private final AtomicBoolean replenishScheduled = new AtomicBoolean();
+
+	private final ScheduledExecutorService maintenance;
+
+	private volatile boolean closed;
+
+	/**
+	 * Creates a pool sized from the {@code cpg.pool.*} settings.
+	 */
+	public ConnectionPool(String url, String username, String password) {
+		this(url, username, password, SkillConfig.getInt("cpg.pool.maxSize", 4),
+				SkillConfig.getInt("cpg.pool.minIdle", 1), SkillConfig.getLong("cpg.pool.borrowTimeoutMillis", 2000),
+				SkillConfig.getLong("cpg.pool.validateAfterIdleMillis", 5000),
+				SkillConfig.getLong("cpg.pool.maxLifetimeMillis", TimeUnit.MINUTES.toMillis(30)));
+	}
+
+	public ConnectionPool(String url, String username, String password, int maxSize, int minIdle,
+			long borrowTimeoutMillis, long validateAfterIdleMillis, long maxLifetimeMillis) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be at least 1");
+		}
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.maxSize = maxSize;
+		this.minIdle = Math.min(Math.max(minIdle, 0), maxSize);
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.validateAfterIdleNanos = TimeUnit.MILLISECONDS.toNanos(validateAfterIdleMillis);
+		this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(maxLifetimeMillis);
+		this.validationTimeoutSeconds = SkillConfig.getInt("cpg.pool.validationTimeoutSeconds", 2);
+		this.statementCacheSize = SkillConfig.getInt("cpg.pool.statementCacheSize", 32);
+		this.permits = new Semaphore(maxSize, true);
+
+		maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cpg-pool-maintenance");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long interval = SkillConfig.getLong("cpg.pool.maintenanceIntervalMillis", 30000);
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				maintain();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Synchronously opens connections until {@code minIdle} are idle. Meant for
+	 * the container init phase, before any request is waiting.
+	 */
+	public void prewarm() {
+		replenish();
+	}
+
+	/**
+	 * Borrows a connection, waiting up to the borrow timeout for one to become
+	 * free. The caller must {@link PooledConnection#release() release} it.
+	 */
+	public PooledConnection borrow() throws SQLException {
+		return borrow(borrowTimeoutMillis);
+	}
+
+	/**
+	 * Borrows a connection, waiting at most {@code timeoutMillis}, but never
+	 * longer than the configured borrow timeout.
+	 */
+	public PooledConnection borrow(long timeoutMillis) throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+
+		long waitMillis = Math.max(0, Math.min(timeoutMillis, borrowTimeoutMillis));
+		long start = System.nanoTime();
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a pooled connection", e);
+		}
+
+		if (!acquired) {
+			recordWait(System.nanoTime() - start);
+			borrowTimeouts.incrementAndGet();
+			throw new SQLTimeoutException("Timed out after " + waitMillis
+					+ " ms waiting for a pooled connection");
+		}
+
+		try {
+			PooledConnection pc = takeIdle();
+			while (pc == null) {
+				if (reserveSlot()) {
+					pc = create();
+				} else {
+					// another thread is opening the last slot; wait for it to land
+					long remaining = waitMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+					if (remaining <= 0) {
+						borrowTimeouts.incrementAndGet();
+						throw new SQLTimeoutException("Timed out after " + waitMillis
+								+ " ms waiting for a pooled connection");
+					}
+					pc = idle.pollFirst(remaining, TimeUnit.MILLISECONDS);
+					if (pc != null && !isUsable(pc)) {
+						discard(pc);
+						pc = null;
+					}
+				}
+			}
+			recordWait(System.nanoTime() - start);
+			pc.setInUse(true);
+			active.incrementAndGet();
+			borrows.incrementAndGet();
+			return pc;
+		} catch (InterruptedException e) {
+			permits.release();
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a pooled connection", e);
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Borrows an idle connection without waiting and without opening one, for
+	 * background work that must not hold up requests: only while nobody waits
+	 * for a connection and more than {@code spare} would still be free.
+	 *
+	 * @return the connection, or null if there is none to spare
+	 */
+	public PooledConnection tryBorrow(int spare) {
+		if (closed || permits.hasQueuedThreads() || permits.availablePermits() <= spare || !permits.tryAcquire()) {
+			return null;
+		}
+		PooledConnection pc;
+		try {
+			pc = takeIdle();
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+		if (pc == null) {
+			permits.release();
+			return null;
+		}
+		pc.setInUse(true);
+		active.incrementAndGet();
+		borrows.incrementAndGet();
+		return pc;
+	}
+
+	/**
+	 * Returns a borrowed connection. Leaked statements are closed, and broken or
+	 * expired connections are discarded and replaced in the background.
+	 */
+	void release(PooledConnection pc) {
+		if (!pc.isInUse()) {
+			return;
+		}
+		pc.setInUse(false);
+
+		leakedStatements.addAndGet(pc.closeLeakedStatements());
+		active.decrementAndGet();
+
+		if (closed || pc.isBroken() || isExpired(pc)) {
+			discard(pc);
+			scheduleReplenish();
+		} else {
+			pc.touch();
+			idle.offerFirst(pc);
+		}
+		permits.release();
+	}
+
+	/**
+	 * @return an estimate of the number of threads waiting for a connection
+	 */
+	public int getWaiting() {
+		return permits.getQueueLength();
+	}
+
+	/**
+	 * @return a snapshot of the pool counters
+	 */
+	public PoolStats stats() {
+		return new PoolStats(maxSize, active.get(), idle.size(), created.get(), destroyed.get(), borrows.get(),
+				borrowTimeouts.get(), validationFailures.get(), leakedStatements.get(), totalWaitNanos.get(),
+				maxWaitNanos.get());
+	}
+
+	/**
+	 * Closes all idle connections and stops the maintenance thread. Borrowed
+	 * connections are closed as they are released.
+	 */
+	public void close() {
+		closed = true;
+		maintenance.shutdownNow();
+		PooledConnection pc;
+		while ((pc = idle.pollFirst()) != null) {
+			discard(pc);
+		}
+	}
+
+	private PooledConnection takeIdle() {
+		PooledConnection pc;
+		while ((pc = idle.pollFirst()) != null) {
+			if (isUsable(pc)) {
+				return pc;
+			}
+			discard(pc);
+			scheduleReplenish();
+		}
+		return null;
+	}
+
+	private boolean isUsable(PooledConnection pc) {
+		if (pc.isBroken() || isExpired(pc)) {
+			return false;
+		}
+		if (System.nanoTime() - pc.getLastUsedAt() < validateAfterIdleNanos) {
+			return true;
+		}
+		try {
+			if (pc.getConnection().isValid(validationTimeoutSeconds)) {
+				pc.touch();
+				return true;
+			}
+		} catch (SQLException e) {
+			log.warn("Connection validation failed: {}", e.getMessage());
+		}
+		validationFailures.incrementAndGet();
+		return false;
+	}
+
+	private boolean isExpired(PooledConnection pc) {
+		return System.nanoTime() - pc.getCreatedAt() > maxLifetimeNanos;
+	}
+
+	private boolean reserveSlot() {
+		while (true) {
+			int current = total.get();
+			if (current >= maxSize) {
+				return false;
+			}
+			if (total.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Opens a physical connection for a slot that has already been reserved.
+	 */
+	private PooledConnection create() throws SQLException {
+		try {
+			Connection con = DriverManager.getConnection(url, username, password);
+			created.incrementAndGet();
+			return new PooledConnection(this, con, statementCacheSize);
+		} catch (SQLException e) {
+			total.decrementAndGet();
+			throw e;
+		} catch (RuntimeException e) {
+			total.decrementAndGet();
+			throw e;
+		}
+	}
+
+	private void discard(PooledConnection pc) {
+		pc.closeQuietly();
+		total.decrementAndGet();
+		destroyed.incrementAndGet();
+	}
+
+	private void recordWait(long nanos) {
+		totalWaitNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxWaitNanos.get())) {
+			if (maxWaitNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	private void scheduleReplenish() {
+		if (closed || !replenishScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			maintenance.execute(new Runnable() {
+				@Override
+				public void run() {
+					replenishScheduled.set(false);
+					replenish();
+				}
+			});
+		} catch (RuntimeException e) {
+			replenishScheduled.set(false);
+		}
+	}
+
+	private void replenish() {
+		while (!closed && idle.size() < minIdle && reserveSlot()) {
+			try {
+				idle.offerLast(create());
+			} catch (SQLException e) {
+				log.warn("Could not open pooled connection: {}", e.getMessage());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Evicts idle connections that died or outlived their lifetime, then tops
+	 * the pool back up to {@code minIdle}.
+	 */
+	private void maintain() {
+		int n = idle.size();
+		for (int i = 0; i < n; i++) {
+			PooledConnection pc = idle.pollLast();
+			if (pc == null) {
+				break;
+			}
+			if (isUsable(pc)) {
+				idle.offerLast(pc);
+			} else {
+				discard(pc);
+			}
+		}
+		replenish();
+		if (log.isDebugEnabled()) {
+			log.debug("Connection pool {}", stats());
+		}
+	}
+}
@@ -1,77 +1,458 @@
 package cpg;
 
-import java.sql.Connection;
+import java.math.BigDecimal;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 
 public class ConnectionUtil {
+	private static final Logger log = LoggerFactory.getLogger(ConnectionUtil.class);
 
 	private static final String driver = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
- 
+
 	private static final String connectionURL = "jdbc:sqlserver://tablupeademo.cyrs41rq6kvj.us-east-1.rds.amazonaws.com:1433;databaseName=PEA_DEMO";
 
 	private static final String username = "musername";
 
 	private static final String password = "demo123456";
 
-	private Connection con = null;
+	// cpg.jdbc.* settings point the skill at another server, cpg.jdbc.replicas at several read endpoints;
+	// cpg.local=true starts the embedded LocalDatabase
 
-	
-	private  Connection getDBConnection() {
-		if (con == null) {
+	/**
+	 * One router, with a pool per read endpoint, per container. It lives in a
+	 * static so that warm Lambda invocations and concurrent speechlets share
+	 * the same connections.
+	 */
+	private static volatile ReplicaRouter router;
 
-			try {
-				Class.forName(driver);
-				
-				con = DriverManager.getConnection(connectionURL, username, password);
-			} catch (SQLException e) {
-				
-				e.printStackTrace();
-				
-			} catch (ClassNotFoundException e) {
-				
-				e.printStackTrace();
+	/**
+	 * Guards the request path to the first endpoint, shared like the router.
+	 */
+	private static final CircuitBreaker breaker = new CircuitBreaker("sqlserver");
+
+	/**
+	 * Sends metric queries to the smallest summary table that answers them.
+	 */
+	private static final QueryPlanner planner = new QueryPlanner();
+
+	/**
+	 * Statement timeout of queries that are not bound to a request, such as the
+	 * cube load and background refreshes.
+	 */
+	private static final int queryTimeoutSeconds = SkillConfig.getInt("cpg.jdbc.queryTimeoutSeconds", 30);
+
+	// how queryScalar reads the first column
+	private static final int SCALAR_LONG = 0;
+
+	private static final int SCALAR_DOUBLE = 1;
+
+	private static final int SCALAR_DECIMAL = 2;
+
+	private static ReplicaRouter getRouter() {
+		ReplicaRouter r = router;
+		if (r == null) {
+			synchronized (ConnectionUtil.class) {
+				r = router;
+				if (r == null) {
+					if (SkillConfig.getBoolean("cpg.local", false)) {
+						try {
+							LocalDatabase.startForSkill();
+						} catch (SQLException e) {
+							log.error("Could not start the local database", e);
+							// the cpg.jdbc.* settings would point at the remote server instead
+							throw new IllegalStateException("cpg.local is set but the local database did not start", e);
+						}
+					}
+					String driverClass = SkillConfig.get("cpg.jdbc.driver", driver);
+					try {
+						Class.forName(driverClass);
+					} catch (ClassNotFoundException e) {
+						log.error("JDBC driver {} is not on the classpath", driverClass);
+						throw new IllegalStateException("JDBC driver " + driverClass + " is not on the classpath", e);
+					}
+					// bound the connect so an unreachable server cannot eat the init phase
+					DriverManager.setLoginTimeout(SkillConfig.getInt("cpg.jdbc.loginTimeoutSeconds", 5));
+					String replicas = SkillConfig.get("cpg.jdbc.replicas", null);
+					String[] urls = replicas == null ? new String[] { SkillConfig.get("cpg.jdbc.url", connectionURL) }
+							: replicas.trim().split("\\s*,\\s*");
+					r = new ReplicaRouter(urls, SkillConfig.get("cpg.jdbc.username", username),
+							SkillConfig.get("cpg.jdbc.password", password), breaker);
+					router = r;
+				}
 			}
 		}
-		return con;
+		return r;
+	}
+
+	/**
+	 * @return the pool of the first read endpoint, which queries outside the
+	 *         request path use
+	 */
+	private static ConnectionPool getPool() {
+		return getRouter().getPrimaryPool();
 	}
 
-	
+
 	public ConnectionUtil(){
-		con = getDBConnection();
+		getRouter().prewarm();
+	}
+
+	/**
+	 * Loads the JDBC driver and creates the shared pool without opening any
+	 * connection, so the class loading cost is paid during container init.
+	 */
+	public static void initialize() {
+		getRouter();
 	}
-	
+
+	/**
+	 * Runs an ad-hoc single value query with the default statement timeout.
+	 * Only the first row is fetched; use {@link #queryLong},
+	 * {@link #queryDouble} or {@link #queryDecimal} to tell a missing value
+	 * from a zero.
+	 *
+	 * @return the first column of the first row, "0.0" if there is none or
+	 *         the query failed
+	 */
 	public  String executeQuery(String sql) {
 		String res = "0.0";
-	
-		try {
 
-			Statement stmt = con.createStatement();
-			ResultSet rs = stmt.executeQuery(sql);
+		PooledConnection pc = null;
+		try {
+			pc = getPool().borrow();
 
-			while (rs.next()) {
-				res = rs.getString(1);
+			try (Statement stmt = pc.createStatement()) {
+				stmt.setQueryTimeout(queryTimeoutSeconds);
+				stmt.setMaxRows(1);
+				ResultSet rs = stmt.executeQuery(sql);
+				if (rs.next()) {
+					res = rs.getString(1);
+				}
+			} catch (SQLException e) {
+				pc.checkFailure(e);
+				throw e;
 			}
 
 		} catch (SQLException e) {
 			e.printStackTrace();
+		} finally {
+			if (pc != null) {
+				pc.release();
+			}
 		}
-		
+
 		return res;
 	}
 
-	/*public  void closeConnection(){
-		if(con != null){
-			try {
-				con.close();
-			} catch (SQLException e) {
-				e.printStackTrace();
+	/**
+	 * Executes the parameterized query for a metric with the default statement
+	 * timeout.
+	 *
+	 * @return the metric value as returned by the server, "0.0" if there is
+	 *         none or the query failed
+	 */
+	public String executeMetricQuery(Metric metric, MetricFilter filter) {
+		QueryResult result = queryMetric(metric, filter, Deadline.after(queryTimeoutSeconds * 1000L));
+		return result.getStatus() == QueryResult.Status.OK ? result.getValue() : "0.0";
+	}
+
+	/**
+	 * Executes the parameterized query for a metric within a request's
+	 * deadline. The statement is taken from the borrowed connection's statement
+	 * cache and only re-bound with the filter values; its timeout is the time
+	 * left until the deadline. Calls are refused while the circuit breaker is
+	 * open, and every outcome is reported to it. The query reads the summary
+	 * table the {@link QueryPlanner} picks for the filter, or the view.
+	 */
+	public QueryResult queryMetric(Metric metric, MetricFilter filter, Deadline deadline) {
+		QueryPlanner.Plan plan = planMetric(filter.mask());
+		ScalarResult value = queryDecimal(plan.sql(metric, filter), deadline, plan.parameters(filter).toArray());
+		return value.isPresent() ? QueryResult.ok(value.getDecimal().toPlainString())
+				: QueryResult.failure(value.getStatus());
+	}
+
+	/**
+	 * @param columns
+	 *            the {@link MetricFilter} bits a query filters or groups by,
+	 *            or {@link QueryPlanner#UNCOVERED}
+	 * @return where the query reads from; the summary catalog is reloaded in
+	 *         the background when it is due
+	 */
+	public QueryPlanner.Plan planMetric(int columns) {
+		planner.refreshIfStale(this);
+		return planner.plan(columns);
+	}
+
+	/**
+	 * Reads the first column of the first row of a parameterized query as a
+	 * long, with the deadline, timeout and circuit breaker handling of
+	 * {@link #executeQuery(String, RowHandler, Deadline, Object...)}. At most
+	 * one row is fetched.
+	 */
+	public ScalarResult queryLong(String sql, Deadline deadline, Object... params) {
+		return queryScalar(sql, SCALAR_LONG, deadline, params);
+	}
+
+	/**
+	 * Like {@link #queryLong}, reading the value as a double.
+	 */
+	public ScalarResult queryDouble(String sql, Deadline deadline, Object... params) {
+		return queryScalar(sql, SCALAR_DOUBLE, deadline, params);
+	}
+
+	/**
+	 * Like {@link #queryLong}, reading the exact decimal value.
+	 */
+	public ScalarResult queryDecimal(String sql, Deadline deadline, Object... params) {
+		return queryScalar(sql, SCALAR_DECIMAL, deadline, params);
+	}
+
+	private ScalarResult queryScalar(String sql, final int type, Deadline deadline, Object... params) {
+		final ScalarResult[] value = { ScalarResult.absent() };
+		QueryResult.Status status = executeQuery(sql, 1, 1, new RowHandler() {
+			@Override
+			public void handleRow(ResultSet rs) throws SQLException {
+				switch (type) {
+				case SCALAR_LONG:
+					long l = rs.getLong(1);
+					value[0] = rs.wasNull() ? ScalarResult.nullValue() : ScalarResult.ofLong(l);
+					break;
+				case SCALAR_DOUBLE:
+					double d = rs.getDouble(1);
+					value[0] = rs.wasNull() ? ScalarResult.nullValue() : ScalarResult.ofDouble(d);
+					break;
+				default:
+					BigDecimal b = rs.getBigDecimal(1);
+					value[0] = b == null ? ScalarResult.nullValue() : ScalarResult.ofDecimal(b);
+				}
 			}
+		}, deadline, params);
+		return status == QueryResult.Status.OK ? value[0] : ScalarResult.failure(status);
+	}
+
+	/**
+	 * Streams the rows of a parameterized query to {@code handler} within a
+	 * request's deadline, with the same timeout and circuit breaker handling
+	 * as {@link #queryMetric}.
+	 *
+	 * @return {@code OK} once all rows were handled, otherwise {@code ERROR},
+	 *         {@code TIMEOUT} or {@code REJECTED}
+	 */
+	public QueryResult.Status executeQuery(String sql, RowHandler handler, Deadline deadline, Object... params) {
+		return executeQuery(sql, 0, 0, handler, deadline, params);
+	}
+
+	/**
+	 * Like {@link #executeQuery(String, RowHandler, Deadline, Object...)},
+	 * fetching {@code fetchSize} rows per round trip, so a large result is
+	 * streamed through the forward-only, read-only cursor instead of being
+	 * buffered. 0 leaves the driver default.
+	 */
+	public QueryResult.Status executeQuery(String sql, int fetchSize, RowHandler handler, Deadline deadline,
+			Object... params) {
+		return executeQuery(sql, fetchSize, 0, handler, deadline, params);
+	}
+
+	/**
+	 * Streams a numeric query to {@code handler} without materializing a
+	 * String or a boxed number per column: each row is read into one reused
+	 * {@code double[]}.
+	 *
+	 * @see #executeQuery(String, int, RowHandler, Deadline, Object...)
+	 */
+	public QueryResult.Status executeNumericQuery(String sql, int fetchSize, final NumericRowHandler handler,
+			Deadline deadline, Object... params) {
+		return executeQuery(sql, fetchSize, 0, new RowHandler() {
+			private double[] columns;
+
+			@Override
+			public void handleRow(ResultSet rs) throws SQLException {
+				if (columns == null) {
+					columns = new double[rs.getMetaData().getColumnCount()];
+				}
+				for (int i = 0; i < columns.length; i++) {
+					double value = rs.getDouble(i + 1);
+					columns[i] = rs.wasNull() ? Double.NaN : value;
+				}
+				handler.handleRow(columns);
+			}
+		}, deadline, params);
+	}
+
+	/**
+	 * Like {@link #executeQuery(String, int, RowHandler, Deadline, Object...)},
+	 * letting the driver stop after {@code maxRows} rows; 0 means no limit.
+	 * Both settings are applied on every call since the statement is shared
+	 * through the connection's statement cache.
+	 */
+	public QueryResult.Status executeQuery(String sql, int fetchSize, int maxRows, RowHandler handler,
+			Deadline deadline, Object... params) {
+		long start = System.nanoTime();
+		QueryResult.Status status = QueryResult.Status.ERROR;
+		try {
+			status = runQuery(sql, fetchSize, maxRows, handler, deadline, params);
+			return status;
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			deadline.recordQuery(status, elapsed);
+			Telemetry.shared().recordQuery(status, elapsed);
 		}
-	}*/
-	
-	
+	}
+
+	private QueryResult.Status runQuery(String sql, int fetchSize, int maxRows, RowHandler handler,
+			Deadline deadline, Object... params) {
+		if (deadline.isExpired()) {
+			return QueryResult.Status.TIMEOUT;
+		}
+		return getRouter().execute(sql, fetchSize, maxRows, handler, deadline, params);
+	}
+
+	/**
+	 * JDBC timeouts are whole seconds; round up so a short budget still gets
+	 * one second rather than zero, which means no timeout at all.
+	 */
+	static int timeoutSeconds(Deadline deadline) {
+		return (int) Math.max(1, (deadline.remainingMillis() + 999) / 1000);
+	}
+
+	static boolean isTimeout(SQLException e) {
+		// HY008 is "operation canceled", which SQL Server reports for a query timeout
+		return e instanceof SQLTimeoutException || "HY008".equals(e.getSQLState());
+	}
+
+	/**
+	 * Streams the rows of a parameterized query to {@code handler}. Unlike the
+	 * single value methods, failures are reported to the caller.
+	 */
+	public void executeQuery(String sql, RowHandler handler, Object... params) throws SQLException {
+		streamQuery(sql, 0, queryTimeoutSeconds, handler, params);
+	}
+
+	/**
+	 * Like {@link #executeQuery(String, RowHandler, Object...)} for batch
+	 * jobs reading large results: {@code fetchSize} rows are fetched per round
+	 * trip and the statement may run for {@code timeoutSeconds}, 0 for no
+	 * limit. Like the other failure-reporting methods, it bypasses the circuit
+	 * breaker, whose latency budget is the one of a spoken answer.
+	 */
+	public void streamQuery(String sql, int fetchSize, int timeoutSeconds, RowHandler handler, Object... params)
+			throws SQLException {
+		PooledConnection pc = getPool().borrow();
+		try {
+			PreparedStatement ps = pc.prepareStatement(sql);
+			ps.setQueryTimeout(timeoutSeconds);
+			ps.setFetchSize(fetchSize);
+			ps.setMaxRows(0);
+			for (int i = 0; i < params.length; i++) {
+				ps.setObject(i + 1, params[i]);
+			}
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					handler.handleRow(rs);
+				}
+			}
+		} catch (SQLException e) {
+			pc.checkFailure(e);
+			throw e;
+		} finally {
+			pc.release();
+		}
+	}
+
+	/**
+	 * Runs a parameterized statement that changes data or schema, such as the
+	 * {@link SummaryTables} refresh, on the first endpoint. The statement is
+	 * not cached and may run for {@code timeoutSeconds}, 0 for no limit.
+	 *
+	 * @return the update count
+	 */
+	public int executeUpdate(String sql, int timeoutSeconds, Object... params) throws SQLException {
+		PooledConnection pc = getPool().borrow();
+		try (PreparedStatement ps = pc.getConnection().prepareStatement(sql)) {
+			ps.setQueryTimeout(timeoutSeconds);
+			for (int i = 0; i < params.length; i++) {
+				ps.setObject(i + 1, params[i]);
+			}
+			return ps.executeUpdate();
+		} catch (SQLException e) {
+			pc.checkFailure(e);
+			throw e;
+		} finally {
+			pc.release();
+		}
+	}
+
+	/**
+	 * @return the product name the driver reports, e.g. "Microsoft SQL Server"
+	 */
+	public String getDatabaseProductName() throws SQLException {
+		PooledConnection pc = getPool().borrow();
+		try {
+			return pc.getConnection().getMetaData().getDatabaseProductName();
+		} catch (SQLException e) {
+			pc.checkFailure(e);
+			throw e;
+		} finally {
+			pc.release();
+		}
+	}
+
+	/**
+	 * @return the current counters of the shared connection pool
+	 */
+	public PoolStats getPoolStats() {
+		return getPool().stats();
+	}
+
+	/**
+	 * @return the number of threads waiting for a pooled connection, 0 before
+	 *         the pool exists; a measure of how saturated the database is
+	 */
+	public static int getConnectionWaiters() {
+		ReplicaRouter r = router;
+		return r == null ? 0 : r.getWaiting();
+	}
+
+	/**
+	 * @return the circuit breaker around metric queries to the first endpoint
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * @return the planner choosing between the summary tables and the view
+	 */
+	public QueryPlanner getQueryPlanner() {
+		return planner;
+	}
+
+	/**
+	 * @return the router spreading request queries over the read endpoints
+	 */
+	public ReplicaRouter getReplicaRouter() {
+		return getRouter();
+	}
+
+	/**
+	 * Closes the shared pools, e.g. on JVM shutdown of a long running host.
+	 */
+	public static void closePool() {
+		synchronized (ConnectionUtil.class) {
+			if (router != null) {
+				router.close();
+				router = null;
+			}
+		}
+	}
+
+
 }
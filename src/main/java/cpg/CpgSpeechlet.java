@@ -9,7 +9,11 @@
  */
 package cpg;
 
+import java.util.List;
+import java.util.Map;
+
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,10 +28,8 @@ import com.amazon.speech.speechlet.SpeechletException;
 import com.amazon.speech.speechlet.SpeechletResponse;
 import com.amazon.speech.ui.Card;
 import com.amazon.speech.ui.OutputSpeech;
-import com.amazon.speech.ui.PlainTextOutputSpeech;
 import com.amazon.speech.ui.Reprompt;
 import com.amazon.speech.ui.SimpleCard;
-import com.amazon.speech.ui.SsmlOutputSpeech;
 
 public class CpgSpeechlet implements Speechlet {
 	private static final Logger log = LoggerFactory.getLogger(CpgSpeechlet.class);
@@ -42,83 +44,310 @@ public class CpgSpeechlet implements Speechlet {
 
 	private static final String SLOT_CUSTOMER = "CUSTOMER";
 
-	private ConnectionUtil connUtil;
+	private static final String SLOT_CATEGORY = "CATEGORY";
+
+	private static final String SLOT_COUNT = "COUNT";
+
+	private static final String SLOT_METRIC = "METRIC";
+
+	/**
+	 * Response templates, compiled once. The filter fragments are rendered
+	 * first and passed to the answer templates as SSML or card text.
+	 */
+
+	private static final SpeechTemplate FILTER_SPEECH = SpeechTemplate
+			.ssml("[ year {0,cardinal}][ brand {1}][ customer {2}]");
+
+	private static final SpeechTemplate FILTER_CARD = SpeechTemplate.text("[ year {0}][ brand {1}][ customer {2}]");
+
+	private static final SpeechTemplate METRIC_TITLE = SpeechTemplate.text("{0} ::");
+
+	private static final SpeechTemplate METRIC_SPEECH = SpeechTemplate
+			.ssml("<speak>The {0}[ for{1,ssml}] is <break time=\"0.2s\" /> {2,cardinal}</speak>");
+
+	private static final SpeechTemplate METRIC_CARD = SpeechTemplate.text("The {0}[ for{1}] is {2}");
+
+	private static final SpeechTemplate METRIC_SUBJECT_SPEECH = SpeechTemplate.ssml("the {0}[ for{1,ssml}]");
+
+	private static final SpeechTemplate METRIC_SUBJECT_CARD = SpeechTemplate.text("The {0}[ for{1}]");
+
+	private static final SpeechTemplate TOTALS_VALUE_SPEECH = SpeechTemplate
+			.ssml(" <break time=\"0.2s\" /> the {0} is {1,cardinal}");
+
+	private static final SpeechTemplate TOTALS_VALUE_CARD = SpeechTemplate.text("\n{0} : {1}");
+
+	private static final SpeechTemplate TOTALS_NO_DATA_SPEECH = SpeechTemplate
+			.ssml(" <break time=\"0.2s\" /> there is no data for the {0}");
+
+	private static final SpeechTemplate TOTALS_NO_DATA_CARD = SpeechTemplate.text("\n{0} : no data");
+
+	private static final SpeechTemplate TOTALS_MISSING_SPEECH = SpeechTemplate
+			.ssml("[ <break time=\"0.2s\" /> I could not get the {0} right now, please ask again in a moment]");
+
+	private static final SpeechTemplate TOTALS_MISSING_CARD = SpeechTemplate.text("[\nNot available right now : {0}]");
+
+	private static final SpeechTemplate RANKING_HEADING = SpeechTemplate.text("{0} {1,cardinal} {2} by {3}");
+
+	private static final SpeechTemplate RANKING_FILTER_SPEECH = SpeechTemplate
+			.ssml("[ for year {0,cardinal}][ at {1}]");
+
+	private static final SpeechTemplate RANKING_FILTER_CARD = SpeechTemplate.text("[ year {0}][ customer {1}]");
+
+	private static final SpeechTemplate RANKING_TITLE = SpeechTemplate.text(":: {0}{1} ::");
+
+	private static final SpeechTemplate RANKING_SUBJECT = SpeechTemplate.ssml("the {0}{1,ssml}");
+
+	private static final SpeechTemplate RANKING_ONLY_SPEECH = SpeechTemplate
+			.ssml("Only {0,cardinal} {1} have data{2,ssml}. <break time=\"0.2s\" /> ");
+
+	private static final SpeechTemplate RANKING_INTRO_SPEECH = SpeechTemplate.ssml("The {0}{1,ssml} are");
+
+	private static final SpeechTemplate RANKING_ENTRY_SPEECH = SpeechTemplate
+			.ssml(" <break time=\"0.3s\" /> number {0}, {1} with {2,cardinal}");
+
+	private static final SpeechTemplate RANKING_ENTRY_CARD = SpeechTemplate.text("{0}. {1} : {2}\n");
+
+	private static final SpeechTemplate BEST_FILTER_SPEECH = SpeechTemplate.ssml("[ for year {0,cardinal}]");
+
+	private static final SpeechTemplate BEST_FILTER_CARD = SpeechTemplate.text("[ for year {0}]");
+
+	private static final SpeechTemplate BEST_TITLE = SpeechTemplate.text(":: Best Promotion{0} ::");
+
+	private static final SpeechTemplate BEST_SPEECH = SpeechTemplate.ssml("<speak>The best promotion{0,ssml} is {1}"
+			+ " <break time=\"0.2s\" /> with a Total ROI of {2,cardinal}</speak>");
+
+	private static final SpeechTemplate BEST_CARD = SpeechTemplate.text("{0} : Total ROI {1}");
+
+	private static final SpeechTemplate BEST_SUBJECT_SPEECH = SpeechTemplate.ssml("the best promotion{0,ssml}");
+
+	private static final SpeechTemplate BEST_SUBJECT_CARD = SpeechTemplate.text("The best promotion{0}");
+
+	private static final SpeechTemplate PERFORMANCE_TITLE = SpeechTemplate
+			.text(":: Promotions Performance[ for{0}] ::");
+
+	private static final SpeechTemplate PERFORMANCE_SPEECH = SpeechTemplate.ssml("<speak>[For{0,ssml}, ]"
+			+ "{1,cardinal} out of {2,cardinal} Promotions did not perform well <break time=\"0.2s\" /> and "
+			+ "{3,cardinal} beat the ROI target of {4,cardinal} percent</speak>");
+
+	private static final SpeechTemplate PERFORMANCE_CARD = SpeechTemplate
+			.text("{0} out of {1} Promotions did not perform well (ROI below {2,cardinal}% or a loss).\n"
+					+ "{3} beat the ROI target of {4,cardinal}%.\nMedian ROI: {5}");
+
+	private static final SpeechTemplate PERFORMANCE_SUBJECT = SpeechTemplate
+			.ssml("the promotions performance[ for{0,ssml}]");
+
+	private static final SpeechTemplate NO_DATA_SPEECH = SpeechTemplate
+			.ssml("<speak>There is no promotion data for {0,ssml}</speak>");
+
+	private static final SpeechTemplate UNAVAILABLE_SPEECH = SpeechTemplate.ssml(
+			"<speak>I could not get {0,ssml} right now. <break time=\"0.2s\" /> Please ask again in a moment</speak>");
+
+	private static final SpeechTemplate NO_DATA_CARD = SpeechTemplate.text("{0} : no data");
+
+	private static final SpeechTemplate UNAVAILABLE_CARD = SpeechTemplate
+			.text("{0} is not available right now ({1})");
+
+	private static final SpeechTemplate UNKNOWN_INTENT = SpeechTemplate
+			.text("I'm sorry I didn't understand that. Please try again, intent {0}");
+
+	/**
+	 * Reprompt shared by every answer.
+	 */
+	private static final Reprompt HEAR_MORE = Responses
+			.reprompt(Responses.ssml("<speak> Would you like to hear more ? Please say yes or no</speak>"));
+
+	private static final Reprompt UNKNOWN_REPROMPT = Responses.reprompt(Responses.ssml("<speak>"
+			+ "I'm sorry I didn't understand that. You can ask things like, "
+			+ "What are the top 5 promotions during year 2016 <break time=\"0.2s\" /> "
+			+ "bottom 5 promotions during year 2016 <break time=\"0.2s\" /> "
+			+ "What is Total ROI for Year 2016 <break time=\"0.2s\" /> "
+			+ "Which Promo Mechanics are Working Best <break time=\"0.2s\" /> "
+			+ "What is Total Gross Profit for Year 2016	</speak>"));
+
+	/**
+	 * Responses that never change, built once and shared by all requests.
+	 */
+
+	private static final SpeechletResponse LAUNCH = Responses.fixedAsk(
+			Responses.plainText("Hello there! Welcome to the CPG Analytics. How can i help you?"),
+			Responses.reprompt(Responses.ssml("<speak>Do you want me to wait! Please say yes or no!</speak>")));
+
+	private static final SpeechletResponse HELP = Responses.fixedAsk(Responses.ssml("<speak>"
+			+ "You can ask for the things like following <break time=\"0.2s\" />"
+			+ "What is the Total Trade Spend for Year 2016 <break time=\"0.2s\" />"
+			+ "What is the Total ROI for Target, <break time=\"0.2s\" />"
+			+ "What is the Total Gross Profit for MUSK <break time=\"0.2s\" /> " + " or you can say simply exit. "
+			+ "Now, what can I help you with?</speak>"),
+			Responses.reprompt(Responses.ssml("<speak>I'm sorry I didn't understand that. You can ask things like,"
+					+ "What is the Total Gross Profit for Neon <break time=\"0.2s\" /> "
+					+ " Or you can say exit. Now, what can I help you with?</speak>")));
+
+	private static final SpeechletResponse MORE_HELP = Responses.fixedAsk(
+			Responses.plainText("Waiting for your query!"),
+			Responses.reprompt(Responses.ssml("<speak>Here are few more samples, "
+					+ "What are the top 5 Brands during year 2016 <break time=\"0.2s\" /> "
+					+ "give me bottom 3  Products during year 2016 <break time=\"0.2s\" /> "
+					+ "Tell me top 3 promotions during year 2016 <break time=\"0.2s\" /> "
+					+ "Give me key time contributors for patient enrollment delays</speak>")));
+
+	private static final SpeechletResponse RANKING_HELP = Responses.fixedAsk(
+			Responses.ssml("<speak>I can rank brands, customers, products or promotions. "
+					+ "<break time=\"0.2s\" /> For example, say top 5 brands during year 2016</speak>"),
+			HEAR_MORE);
+
+	private static final SpeechletResponse DONT_HEAR_MORE = Responses
+			.fixedTell(Responses.plainText("Thanks,  Please do come again...."));
+
+	private static final SpeechletResponse STOP = Responses
+			.fixedTell(Responses.plainText("Bye,  Hope to see you soon!"));
+
+	private static final SpeechletResponse CANCEL = Responses.fixedTell(Responses.plainText("Goodbye! "));
+
+	/*
+	 * Created once, by warmUp or the first request. Requests run concurrently
+	 * when the skill is hosted by SkillServer, so the components are published
+	 * through volatile fields; performanceAnalyzer is written last and is the
+	 * one checked before taking the lock.
+	 */
+	private volatile ConnectionUtil connUtil;
+
+	private volatile MetricService metricService;
+
+	private volatile RankingEngine rankingEngine;
+
+	private volatile PromotionPerformanceAnalyzer performanceAnalyzer;
+
+	private final Telemetry telemetry = Telemetry.shared();
 
 	@Override
 	public void onSessionStarted(final SessionStartedRequest request, final Session session) throws SpeechletException {
 		log.info("onSessionStarted requestId={}, sessionId={}", request.getRequestId(), session.getSessionId());
 
 		initializeComponents();
+		if (!isPriming(session)) {
+			metricService.prefetch();
+		}
+	}
+
+	/**
+	 * @return whether the request is one of the synthetic ones the stream
+	 *         handler runs at startup to warm the request path
+	 */
+	private static boolean isPriming(Session session) {
+		return RequestEnvelopes.PRIMING_SESSION_ID.equals(session.getSessionId());
+	}
+
+	/**
+	 * Creates the connection pool, opens its first connection and maps or
+	 * starts loading the aggregate cube ahead of the first request. Called
+	 * from the container init phase.
+	 */
+	public void warmUp() {
+		initializeComponents();
 	}
 
 	private void initializeComponents() {
-		if (connUtil == null) {
-			connUtil = new ConnectionUtil();
+		if (performanceAnalyzer == null) {
+			synchronized (this) {
+				if (connUtil == null) {
+					connUtil = new ConnectionUtil();
+				}
+				if (metricService == null) {
+					metricService = new MetricService(connUtil);
+				}
+				if (rankingEngine == null) {
+					rankingEngine = new RankingEngine(connUtil, metricService);
+				}
+				if (performanceAnalyzer == null) {
+					performanceAnalyzer = new PromotionPerformanceAnalyzer(connUtil);
+				}
+			}
 		}
+		metricService.refreshCubeIfStale();
 	}
 
 	@Override
 	public SpeechletResponse onLaunch(final LaunchRequest request, final Session session) throws SpeechletException {
+		long start = System.nanoTime();
+
 		log.info("onLaunch requestId={}, sessionId={}", request.getRequestId(), session.getSessionId());
 
-		String speechOutput = "Hello there! Welcome to the CPG Analytics. How can i help you?";
+		initializeComponents();
+		if (isPriming(session)) {
+			return LAUNCH;
+		}
+		metricService.prefetch();
 
-		String repromptText = "Do you want me to wait! Please say yes or no!";
+		long elapsed = System.nanoTime() - start;
+		telemetry.recordRequest("LaunchRequest", Deadline.after(0), elapsed, elapsed, false);
+		telemetry.maybeFlush();
 
 		// Here we are prompting the user for input
-		return newAskResponse(speechOutput, false, "<speak>" + repromptText + "</speak>", true);
+		return LAUNCH;
 	}
 
 	@Override
 	public SpeechletResponse onIntent(final IntentRequest request, final Session session) throws SpeechletException {
 		log.info("onIntent requestId={}, sessionId={}", request.getRequestId(), session.getSessionId());
 
+		long start = System.nanoTime();
+
+		Deadline deadline = Deadline.forRequest();
+
 		initializeComponents();
 		
 		Intent intent = request.getIntent();
 		String intentName = (intent != null) ? intent.getName() : null;
 
+		long handlerStart = System.nanoTime();
+		boolean failed = true;
+		try {
+			SpeechletResponse response = dispatch(intentName, intent, session, deadline);
+			failed = false;
+			return response;
+		} finally {
+			if (!isPriming(session)) {
+				long end = System.nanoTime();
+				telemetry.recordRequest(intentName, deadline, end - start, end - handlerStart, failed);
+				telemetry.maybeFlush();
+			}
+		}
+	}
+
+	private SpeechletResponse dispatch(final String intentName, final Intent intent, final Session session,
+			final Deadline deadline) throws SpeechletException {
 		if ("TotalTradeSpend".equals(intentName)) {
-			return getTotalTradeSpendResponse(intent, session);
+			return getMetricResponse(Metric.TOTAL_TRADE_SPEND, intent, deadline);
 		} else if ("TotalGrossProfit".equals(intentName)) {
-			return getTotalGrossProfitResponse(intent, session);
+			return getMetricResponse(Metric.TOTAL_GROSS_PROFIT, intent, deadline);
 		} else if ("TotalROI".equals(intentName)) {
-			return getTotalROIResponse(intent, session);
+			return getMetricResponse(Metric.TOTAL_ROI, intent, deadline);
+		} else if ("TotalMetrics".equals(intentName)) {
+			return getTotalMetricsResponse(intent, session, deadline);
+		} else if ("Top".equals(intentName)) {
+			return getRankingResponse(intent, session, deadline, true);
+		} else if ("Bottom".equals(intentName)) {
+			return getRankingResponse(intent, session, deadline, false);
 		} else if ("BestPromotions".equals(intentName)) {
-			return getBestPromotionsResponse(intent, session);
+			return getBestPromotionsResponse(intent, session, deadline);
 		} else if ("PromotionsPerformance".equals(intentName)) {
-			return getPerfomanceResponse(intent, session);
+			return getPerfomanceResponse(intent, session, deadline);
 		} else if ("HearMore".equals(intentName)) {
-			return getMoreHelp();
+			return MORE_HELP;
 		} else if ("DontHearMore".equals(intentName)) {
-			PlainTextOutputSpeech output = new PlainTextOutputSpeech();
-			output.setText("Thanks,  Please do come again....");
-			return SpeechletResponse.newTellResponse(output);
+			return DONT_HEAR_MORE;
 		} else if ("AMAZON.HelpIntent".equals(intentName)) {
-			return getHelp();
+			return HELP;
 		} else if ("AMAZON.StopIntent".equals(intentName)) {
-			PlainTextOutputSpeech outputSpeech = new PlainTextOutputSpeech();
-			outputSpeech.setText("Bye,  Hope to see you soon!");
 			// connUtil.closeConnection();
-			return SpeechletResponse.newTellResponse(outputSpeech);
+			return STOP;
 		} else if ("AMAZON.CancelIntent".equals(intentName)) {
-			PlainTextOutputSpeech outputSpeech = new PlainTextOutputSpeech();
-			outputSpeech.setText("Goodbye! ");
 			// connUtil.closeConnection();
-			return SpeechletResponse.newTellResponse(outputSpeech);
+			return CANCEL;
 		} else {
 			// Reprompt the user.
-			String speechOutput = "I'm sorry I didn't understand that. Please try again, intent " + intentName;
-
-			String repromptText = "I'm sorry I didn't understand that. You can ask things like, "
-					+ "What are the top 5 promotions during year 2016 <break time=\"0.2s\" /> "
-					+ "bottom 5 promotions during year 2016 <break time=\"0.2s\" /> "
-					+ "What is Total ROI for Year 2016 <break time=\"0.2s\" /> "
-					+ "Which Promo Mechanics are Working Best <break time=\"0.2s\" /> "
-					+ "What is Total Gross Profit for Year 2016	";
-
-			return newAskResponse(speechOutput, false, "<speak>" + repromptText + "</speak>", true);
-
+			return SpeechletResponse.newAskResponse(Responses.plainText(UNKNOWN_INTENT.render(intentName)),
+					UNKNOWN_REPROMPT);
 		}
 	}
 
@@ -126,352 +355,372 @@ public class CpgSpeechlet implements Speechlet {
 	public void onSessionEnded(final SessionEndedRequest request, final Session session) throws SpeechletException {
 		log.info("onSessionEnded requestId={}, sessionId={}", request.getRequestId(), session.getSessionId());
 
+		if (connUtil != null) {
+			log.info("connection pool {}", connUtil.getPoolStats());
+			log.info("replicas {}", connUtil.getReplicaRouter());
+		}
+		if (metricService != null) {
+			log.info("result cache {}", metricService.getCacheStats());
+			log.info("prefetch {}", metricService.getPrefetcher());
+		}
+
 	}
 
 	/**
-	 * Creates Dynamic Query for Total Trade Spend based on year
-	 * 
-	 * @param year
-	 * 
-	 * @return String totalTradeSpend
+	 * Answers Total Trade Spend, Total Gross Profit or Total ROI for the
+	 * year/brand/customer from the aggregate cube, the result cache or the
+	 * parameterized query.
+	 *
+	 * @param metric
+	 *            the metric the intent asks for
+	 * @param intent
+	 *            the intent for the request
+	 * @param deadline
+	 *            the time budget of the request
+	 * @return SpeechletResponse spoken and visual response for the given intent
+	 * @throws SpeechletException
 	 * 
 	 */
-	private String executeTotalTradeSpendQuery(String year) {
+	private SpeechletResponse getMetricResponse(final Metric metric, final Intent intent, final Deadline deadline)
+			throws SpeechletException {
 
-		// base Query
-		String totalTradeSpendQuery = "select CONVERT(decimal(15), sum(TotalTradeSpendSellOut)) "
-				+ "as 'Total Trade Spend' , datepart(yyyy,[PromotionStartDate])  from  "
-				+ "[dbo].[VIEW_TABLEAU_PEA_DEMO] ";
+		String yearNo = slotValue(intent, SLOT_YEAR);
 
-		// if year is not empty add year in where condition
-		if (StringUtils.isNotEmpty(year)) {
-			totalTradeSpendQuery += "where datepart(yyyy,[PromotionStartDate])='2016' "
-					+ "group by datepart(yyyy,[PromotionStartDate])";
-		}
+		String brand = slotValue(intent, SLOT_BRAND);
 
-		// execute the query on server connection
-		String totalTradeSpend = connUtil.executeQuery(totalTradeSpendQuery);
+		String customer = slotValue(intent, SLOT_CUSTOMER);
 
-		return totalTradeSpend;
+		long fetchStart = System.nanoTime();
+		MetricFilter filter = MetricFilter.of(yearNo, brand, customer);
+		QueryResult result = metricService.result(metric, filter, deadline);
+		deadline.recordFetch(System.nanoTime() - fetchStart);
 
+		MetricFilter resolved = metricService.resolve(filter);
+		return renderMetricResponse(metric, yearNo, spokenName(brand, resolved, MetricFilter.BRAND),
+				spokenName(customer, resolved, MetricFilter.CUSTOMER), result);
 	}
 
 	/**
-	 * Creates Dynamic Query for Total Gross Profit based on brand
-	 * 
-	 * @param brand
-	 * 
-	 * @return String totalTradeSpend
-	 * 
+	 * Renders the answer for a single metric.
 	 */
+	private SpeechletResponse renderMetricResponse(Metric metric, String yearNo, String brand, String customer,
+			QueryResult result) {
 
-	private String executeTotalGrossProfitQuery(String brand) {
-
-		// base Query
-		String totalGrossProfitQuery = "select CONVERT(decimal(15), sum(GrossProfitSellOut)) as "
-				+ "'Total Gross Profit', ProdLevel4Name as 'Brand' from  [dbo].[VIEW_TABLEAU_PEA_DEMO] ";
+		String speechOut = FILTER_SPEECH.render(yearNo, brand, customer);
 
-		// if brand is not empty add brand in where condition
-		if (StringUtils.isNotEmpty(brand)) {
-			totalGrossProfitQuery += "where ProdLevel4Name ='" + brand + "' group by ProdLevel4Name";
-		}
+		String cardOut = FILTER_CARD.render(yearNo, brand, customer);
 
-		String totalGrossProfit = connUtil.executeQuery(totalGrossProfitQuery);
+		// Simple Display Card
+		SimpleCard card = new SimpleCard();
+		card.setTitle(METRIC_TITLE.render(metric.getDisplayName()));
 
-		return totalGrossProfit;
+		String finalSpeechOut;
 
-	}
+		if (result.getStatus() == QueryResult.Status.OK) {
+			finalSpeechOut = METRIC_SPEECH.render(metric.getDisplayName(), speechOut, result.getValue());
 
-	/**
-	 * Creates Dynamic Query for Total ROI based on customer
-	 * 
-	 * @param customer
-	 * 
-	 * @return String totalTradeSpend
-	 * 
-	 */
-	private String executeTotalROIQuery(String customer) {
-
-		// base Query
-		String totalROIQuery = "select CONVERT(decimal(4,1), sum(GrossProfitSellOut)/sum(TotalTradeSpendSellOut) * 100) "
-				+ "as 'Total ROI', CustCustomerName as 'Customer' from  [dbo].[VIEW_TABLEAU_PEA_DEMO] ";
+			card.setContent(METRIC_CARD.render(metric.getDisplayName(), cardOut, result.getValue()));
+		} else {
+			finalSpeechOut = unavailableSpeech(METRIC_SUBJECT_SPEECH.render(metric.getDisplayName(), speechOut),
+					result);
 
-		// if customer is not empty add customer in where condition
-		if (StringUtils.isNotEmpty(customer)) {
-			totalROIQuery += "where CustCustomerName ='" + customer + "' group by CustCustomerName";
+			card.setContent(unavailableCard(METRIC_SUBJECT_CARD.render(metric.getDisplayName(), cardOut), result));
 		}
 
-		System.out.println("Total ROI Query :: " + totalROIQuery);
-
-		String totalROI = connUtil.executeQuery(totalROIQuery);
-
-		return totalROI;
-
+		return Responses.ask(Responses.ssml(finalSpeechOut), HEAR_MORE, card);
 	}
 
 	/**
-	 * Creates a Dynamic Query for Total Trade Spend based on the
-	 * year/brand/customer, executes the Query and returns the result.
+	 * Answers Total Trade Spend, Total Gross Profit and Total ROI for the
+	 * year/brand/customer in one response. The three queries run concurrently;
+	 * a metric that misses the request deadline is answered from the cache or
+	 * reported as unavailable, so one slow query does not time out the whole
+	 * answer.
 	 *
 	 * @param intent
 	 *            the intent for the request
 	 * @param session
+	 * @param deadline
+	 *            the time budget of the request
 	 * @return SpeechletResponse spoken and visual response for the given intent
 	 * @throws SpeechletException
 	 * 
 	 */
-	private SpeechletResponse getTotalTradeSpendResponse(final Intent intent, final Session session)
-			throws SpeechletException {
+	private SpeechletResponse getTotalMetricsResponse(final Intent intent, final Session session,
+			final Deadline deadline) throws SpeechletException {
 
 		// Simple Display Card
 		SimpleCard card = new SimpleCard();
-		card.setTitle("Total Trade Spend ::");
-
-		String yearNo = intent.getSlot(SLOT_YEAR) != null ? intent.getSlot(SLOT_YEAR).getValue() : "";
-
-		String brand = intent.getSlot(SLOT_BRAND) != null ? intent.getSlot(SLOT_BRAND).getValue() : "";
-
-		String customer = intent.getSlot(SLOT_CUSTOMER) != null ? intent.getSlot(SLOT_CUSTOMER).getValue() : "";
-
-		String answer = "The Total Trade Spend for ";
-
-		String speechOut = "";
-
-		String finalSpeechOut = "";
-
-		String cardOut = "";
-
-		String finalCardOut = "";
-
-		if (StringUtils.isNotEmpty(yearNo)) {
-			speechOut += "year <say-as interpret-as=\"cardinal\">" + yearNo + "</say-as>";
-			cardOut += " year " + yearNo;
-		}
-
-		if (StringUtils.isNotEmpty(brand)) {
-			speechOut += " brand " + brand;
-			cardOut += " brand " + brand;
+		card.setTitle("Promotion Metrics :: ");
+
+		String yearNo = slotValue(intent, SLOT_YEAR);
+
+		String brand = slotValue(intent, SLOT_BRAND);
+
+		String customer = slotValue(intent, SLOT_CUSTOMER);
+
+		long fetchStart = System.nanoTime();
+		MetricFilter filter = MetricFilter.of(yearNo, brand, customer);
+		Map<Metric, QueryResult> values = metricService.values(Metric.values(), filter, deadline);
+		deadline.recordFetch(System.nanoTime() - fetchStart);
+
+		MetricFilter resolved = metricService.resolve(filter);
+		brand = spokenName(brand, resolved, MetricFilter.BRAND);
+		customer = spokenName(customer, resolved, MetricFilter.CUSTOMER);
+
+		String speechOut = FILTER_SPEECH.render(yearNo, brand, customer);
+
+		String cardOut = FILTER_CARD.render(yearNo, brand, customer);
+
+		StringBuilder finalSpeechOut = new StringBuilder(256).append("<speak>")
+				.append(speechOut.isEmpty() ? "Overall" : "For").append(speechOut);
+		StringBuilder finalCardOut = new StringBuilder(128).append(cardOut.isEmpty() ? "Overall" : "For")
+				.append(cardOut);
+		String missing = "";
+		for (Metric metric : Metric.values()) {
+			QueryResult value = values.get(metric);
+			if (value.getStatus() == QueryResult.Status.NO_DATA) {
+				TOTALS_NO_DATA_SPEECH.renderTo(finalSpeechOut, metric.getDisplayName());
+				TOTALS_NO_DATA_CARD.renderTo(finalCardOut, metric.getDisplayName());
+			} else if (value.getStatus() != QueryResult.Status.OK) {
+				missing = missing.isEmpty() ? metric.getDisplayName() : missing + " and " + metric.getDisplayName();
+			} else {
+				TOTALS_VALUE_SPEECH.renderTo(finalSpeechOut, metric.getDisplayName(), value.getValue());
+				TOTALS_VALUE_CARD.renderTo(finalCardOut, metric.getDisplayName(), value.getValue());
+			}
 		}
+		TOTALS_MISSING_SPEECH.renderTo(finalSpeechOut, missing).append("</speak>");
+		TOTALS_MISSING_CARD.renderTo(finalCardOut, missing);
 
-		if (StringUtils.isNotEmpty(customer)) {
-			speechOut += " customer " + customer;
-			cardOut += " customer " + customer;
-		}
-
-		String totalTradeSpend = executeTotalTradeSpendQuery(yearNo); // "203090661"; 
-
-		finalSpeechOut = answer + speechOut + " is <break time=\"0.2s\" /> <say-as interpret-as=\"cardinal\"> "
-				+ totalTradeSpend + "</say-as>";
+		card.setContent(finalCardOut.toString());
 
-		finalCardOut = answer + cardOut + " is " + totalTradeSpend;
-
-		card.setContent(finalCardOut);
-
-		String repromptText = " Would you like to hear more ? Please say yes or no";
-
-		return newAskResponse("<speak>" + finalSpeechOut + "</speak>", true, "<speak>" + repromptText + "</speak>",
-				true, card);
+		return Responses.ask(Responses.ssml(finalSpeechOut.toString()), HEAR_MORE, card);
 	}
 
 	/**
-	 * Creates a Dynamic Query for Total Gross Profit based on the
-	 * year/brand/customer, executes the Query and returns the result
+	 * Ranks brands, customers, products or promotions by a metric for the
+	 * {@code Top} and {@code Bottom} intents, e.g. "top 5 brands during year
+	 * 2016". The metric defaults to Total ROI and the count to 5, and the
+	 * count is kept between 1 and {@code cpg.ranking.maxCount}.
 	 *
 	 * @param intent
 	 *            the intent for the request
 	 * @param session
+	 * @param deadline
+	 *            the time budget of the request
+	 * @param top
+	 *            true for the highest values, false for the lowest
 	 * @return SpeechletResponse spoken and visual response for the given intent
 	 * @throws SpeechletException
 	 * 
 	 */
-	private SpeechletResponse getTotalGrossProfitResponse(final Intent intent, final Session session)
-			throws SpeechletException {
+	private SpeechletResponse getRankingResponse(final Intent intent, final Session session, final Deadline deadline,
+			final boolean top) throws SpeechletException {
 
-		// Simple Display Card
-		SimpleCard card = new SimpleCard();
-		card.setTitle("Total Gross Profit :: ");
+		RankDimension dimension = RankDimension.fromSlot(slotValue(intent, SLOT_CATEGORY));
+		if (dimension == null) {
+			return RANKING_HELP;
+		}
 
-		String yearNo = intent.getSlot(SLOT_YEAR) != null ? intent.getSlot(SLOT_YEAR).getValue() : "";
+		Metric metric = Metric.fromSlot(slotValue(intent, SLOT_METRIC));
+		if (metric == null) {
+			metric = Metric.TOTAL_ROI;
+		}
 
-		String brand = intent.getSlot(SLOT_BRAND) != null ? intent.getSlot(SLOT_BRAND).getValue() : "";
+		// the heading names the count the ranking returns, e.g. 10 for "top 50"
+		int count = rankingEngine.clampCount(NumberUtils.toInt(slotValue(intent, SLOT_COUNT), 5));
 
-		String customer = intent.getSlot(SLOT_CUSTOMER) != null ? intent.getSlot(SLOT_CUSTOMER).getValue() : "";
+		String yearNo = slotValue(intent, SLOT_YEAR);
 
-		String answer = "The Total Gross Profit for ";
+		String customer = slotValue(intent, SLOT_CUSTOMER);
 
-		String speechOut = "";
+		String heading = RANKING_HEADING.render(top ? "top" : "bottom", count, dimension.getSpokenName(),
+				metric.getDisplayName());
 
-		String finalSpeechOut = "";
+		long fetchStart = System.nanoTime();
+		MetricFilter filter = MetricFilter.of(yearNo, null, customer);
+		Ranking ranking = rankingEngine.rank(dimension, metric, filter, count, top, deadline);
+		deadline.recordFetch(System.nanoTime() - fetchStart);
 
-		String cardOut = "";
+		customer = spokenName(customer, metricService.resolve(filter), MetricFilter.CUSTOMER);
 
-		String finalCardOut = "";
+		String speechOut = RANKING_FILTER_SPEECH.render(yearNo, customer);
 
-		if (StringUtils.isNotEmpty(yearNo)) {
-			speechOut += "year <say-as interpret-as=\"cardinal\">" + yearNo + "</say-as>";
-			cardOut += " year " + yearNo + " /n";
-		}
+		String cardOut = RANKING_FILTER_CARD.render(yearNo, customer);
+
+		// Simple Display Card
+		SimpleCard card = new SimpleCard();
+		card.setTitle(RANKING_TITLE.render(StringUtils.capitalize(heading), cardOut));
 
-		if (StringUtils.isNotEmpty(brand)) {
-			speechOut += " brand " + brand;
-			cardOut += " brand " + brand;
+		if (ranking.getStatus() != QueryResult.Status.OK) {
+			QueryResult result = QueryResult.failure(ranking.getStatus());
+			card.setContent(unavailableCard(StringUtils.capitalize(heading) + cardOut, result));
+			return Responses.ask(Responses.ssml(unavailableSpeech(RANKING_SUBJECT.render(heading, speechOut), result)),
+					HEAR_MORE, card);
 		}
 
-		if (StringUtils.isNotEmpty(customer)) {
-			speechOut += " customer " + customer;
-			cardOut += " customer " + customer;
+		List<Ranking.Entry> entries = ranking.getEntries();
+		StringBuilder finalSpeechOut = new StringBuilder(512).append("<speak>");
+		if (entries.size() < count) {
+			RANKING_ONLY_SPEECH.renderTo(finalSpeechOut, entries.size(), dimension.getSpokenName(), speechOut);
 		}
+		RANKING_INTRO_SPEECH.renderTo(finalSpeechOut, heading, speechOut);
+		StringBuilder finalCardOut = new StringBuilder(256);
+		for (int i = 0; i < entries.size(); i++) {
+			Ranking.Entry entry = entries.get(i);
+			RANKING_ENTRY_SPEECH.renderTo(finalSpeechOut, i + 1, entry.getName(), entry.getValue());
+			RANKING_ENTRY_CARD.renderTo(finalCardOut, i + 1, entry.getName(), entry.getValue());
+		}
+		finalSpeechOut.append("</speak>");
+
+		card.setContent(finalCardOut.toString());
 
-		String totalGrossProfit = executeTotalGrossProfitQuery(brand); // "2376586"; 
+		return Responses.ask(Responses.ssml(finalSpeechOut.toString()), HEAR_MORE, card);
+	}
 
-		finalSpeechOut = answer + speechOut + " is <break time=\"0.2s\" /> <say-as interpret-as=\"cardinal\"> "
-				+ totalGrossProfit + "</say-as>";
+	/**
+	 * Answers the best promotion by Total ROI, for the year in the
+	 * {@code YEARNO} slot if there is one.
+	 */
+	private SpeechletResponse getBestPromotionsResponse(final Intent intent, final Session session,
+			final Deadline deadline) throws SpeechletException {
 
-		finalCardOut = answer + cardOut + " is " + totalGrossProfit;
+		String yearNo = slotValue(intent, SLOT_YEAR);
 
-		card.setContent(finalCardOut);
+		String speechOut = BEST_FILTER_SPEECH.render(yearNo);
 
-		String repromptText = " Would you like to hear more ? Please say yes or no";
+		String cardOut = BEST_FILTER_CARD.render(yearNo);
 
-		return newAskResponse("<speak>" + finalSpeechOut + "</speak>", true, "<speak>" + repromptText + "</speak>",
-				true, card);
+		// Simple Display Card
+		SimpleCard card = new SimpleCard();
+		card.setTitle(BEST_TITLE.render(cardOut));
+
+		long fetchStart = System.nanoTime();
+		Ranking ranking = rankingEngine.rank(RankDimension.PROMOTION, Metric.TOTAL_ROI,
+				MetricFilter.of(yearNo, null, null), 1, true, deadline);
+		deadline.recordFetch(System.nanoTime() - fetchStart);
+
+		String answer;
+
+		if (ranking.getStatus() == QueryResult.Status.OK) {
+			Ranking.Entry best = ranking.getEntries().get(0);
+			answer = BEST_SPEECH.render(speechOut, best.getName(), best.getValue());
+			card.setContent(BEST_CARD.render(best.getName(), best.getValue()));
+		} else {
+			QueryResult result = QueryResult.failure(ranking.getStatus());
+			answer = unavailableSpeech(BEST_SUBJECT_SPEECH.render(speechOut), result);
+			card.setContent(unavailableCard(BEST_SUBJECT_CARD.render(cardOut), result));
+		}
+
+		return Responses.ask(Responses.ssml(answer), HEAR_MORE, card);
 	}
 
 	/**
-	 * Creates a Dynamic Query for Total ROI based on the year/brand/customer,
-	 * executes the Query and returns the result.
+	 * Counts the promotions for the year/brand/customer that did not perform
+	 * well, i.e. lost money or stayed below the minimum ROI, and the ones that
+	 * beat the ROI target.
 	 *
 	 * @param intent
 	 *            the intent for the request
 	 * @param session
+	 * @param deadline
+	 *            the time budget of the request
 	 * @return SpeechletResponse spoken and visual response for the given intent
 	 * @throws SpeechletException
 	 * 
 	 */
-	private SpeechletResponse getTotalROIResponse(final Intent intent, final Session session)
-			throws SpeechletException {
-
-		// Simple Display Card
-		SimpleCard card = new SimpleCard();
-		card.setTitle("Total Gross Profit :: ");
+	private SpeechletResponse getPerfomanceResponse(final Intent intent, final Session session,
+			final Deadline deadline) throws SpeechletException {
 
-		String yearNo = intent.getSlot(SLOT_YEAR) != null ? intent.getSlot(SLOT_YEAR).getValue() : "";
+		String yearNo = slotValue(intent, SLOT_YEAR);
 
-		String brand = intent.getSlot(SLOT_BRAND) != null ? intent.getSlot(SLOT_BRAND).getValue() : "";
+		String brand = slotValue(intent, SLOT_BRAND);
 
-		String customer = intent.getSlot(SLOT_CUSTOMER) != null ? intent.getSlot(SLOT_CUSTOMER).getValue() : "";
+		String customer = slotValue(intent, SLOT_CUSTOMER);
 
-		String answer = "The Total ROI for ";
+		long fetchStart = System.nanoTime();
+		MetricFilter filter = metricService.resolve(MetricFilter.of(yearNo, brand, customer));
+		PerformanceReport report = filter == null ? PerformanceReport.failed(QueryResult.Status.NO_DATA)
+				: performanceAnalyzer.analyze(filter, deadline);
+		deadline.recordFetch(System.nanoTime() - fetchStart);
 
-		String speechOut = "";
+		brand = spokenName(brand, filter, MetricFilter.BRAND);
+		customer = spokenName(customer, filter, MetricFilter.CUSTOMER);
 
-		String finalSpeechOut = "";
+		String speechOut = FILTER_SPEECH.render(yearNo, brand, customer);
 
-		String cardOut = "";
+		String cardOut = FILTER_CARD.render(yearNo, brand, customer);
 
-		String finalCardOut = "";
+		String speechOutput;
 
-		if (StringUtils.isNotEmpty(yearNo)) {
-			speechOut += "year <say-as interpret-as=\"cardinal\">" + yearNo + "</say-as>";
-			cardOut += " year " + yearNo + " /n";
-		}
+		String finalCardOut;
 
-		if (StringUtils.isNotEmpty(brand)) {
-			speechOut += " brand " + brand;
-			cardOut += " brand " + brand;
-		}
+		if (report.getStatus() == QueryResult.Status.OK) {
+			speechOutput = PERFORMANCE_SPEECH.render(speechOut, report.getUnderPerforming(), report.getPromotions(),
+					report.getOverPerforming(), performanceAnalyzer.getTargetRoi());
 
-		if (StringUtils.isNotEmpty(customer)) {
-			speechOut += " customer " + customer;
-			cardOut += " customer " + customer;
+			finalCardOut = PERFORMANCE_CARD.render(report.getUnderPerforming(), report.getPromotions(),
+					performanceAnalyzer.getMinRoi(), report.getOverPerforming(), performanceAnalyzer.getTargetRoi(),
+					PerformanceReport.bucketRange(report.getMedianRoiBucket()));
+		} else {
+			QueryResult result = QueryResult.failure(report.getStatus());
+			speechOutput = unavailableSpeech(PERFORMANCE_SUBJECT.render(speechOut), result);
+			finalCardOut = unavailableCard("Promotions performance", result);
 		}
 
-		String totalROI = executeTotalROIQuery(customer); // "260.3"; 
-
-		finalSpeechOut = answer + speechOut + " is <break time=\"0.2s\" /> <say-as interpret-as=\"cardinal\"> "
-				+ totalROI + "</say-as>";
-
-		finalCardOut = answer + cardOut + " is " + totalROI;
-
-		card.setContent(finalCardOut);
-
-		String repromptText = " Would you like to hear more ? Please say yes or no";
-
-		return newAskResponse("<speak>" + finalSpeechOut + "</speak>", true, "<speak>" + repromptText + "</speak>",
-				true, card);
-	}
-
-	private SpeechletResponse getBestPromotionsResponse(final Intent intent, final Session session)
-			throws SpeechletException {
-
-		// Simple Display Card
-		SimpleCard card = new SimpleCard();
-		card.setTitle(":: Best Promotion for year 2016 ::");
-
-		String answer = "<say-as interpret-as=\"digits\"> 316669  </say-as> KANTONG PINEAAPLE PRICE REDUCTION ";
-
-		String cardOut = "316669  KANTONG PINEAAPLE PRICE REDUCTION ";
-
-		card.setContent(cardOut);
-
-		String repromptText = " Would you like to hear more ? Please say yes or no";
-
-		return newAskResponse("<speak>" + answer + "</speak>", true, "<speak>" + repromptText + "</speak>", true, card);
-	}
-
-	private SpeechletResponse getPerfomanceResponse(final Intent intent, final Session session)
-			throws SpeechletException {
-
-		String speechOutput = " <say-as interpret-as=\"cardinal\"> 574 </say-as> out of "
-				+ "<say-as interpret-as=\"cardinal\"> 3450 </say-as> Promotions did not perform well";
-
-		String cardOut = "574 out of 3450 Promotions did not performed well.";
-
 		// Create the Simple card content.
 		SimpleCard card = new SimpleCard();
 
-		card.setTitle(":: Promotions Performance for year 2016 ::");
+		card.setTitle(PERFORMANCE_TITLE.render(cardOut));
 
-		card.setContent(cardOut);
-
-		String repromptText = " Would you like to hear more ? Please say yes or no";
+		card.setContent(finalCardOut);
 
-		return newAskResponse("<speak>" + speechOutput + "</speak>", true, repromptText, false, card);
+		return Responses.ask(Responses.ssml(speechOutput), HEAR_MORE, card);
 	}
 
 	/**
-	 * Instructs the user on how to interact with this skill.
+	 * @param resolved
+	 *            the filter as {@link MetricService#resolve} returned it
+	 * @param dimension
+	 *            {@link MetricFilter#BRAND} or {@link MetricFilter#CUSTOMER}
+	 * @return the name to speak and print for a brand or customer slot: the
+	 *         name it resolved to unless it is the slot value itself, so that
+	 *         a fuzzy match is not answered under the name the user said
 	 */
-	private SpeechletResponse getHelp() {
-
-		String speechOutput = "You can ask for the things like following <break time=\"0.2s\" />"
-				+ "What is the Total Trade Spend for Year 2016 <break time=\"0.2s\" />"
-				+ "What is the Total ROI for Target, <break time=\"0.2s\" />"
-				+ "What is the Total Gross Profit for MUSK <break time=\"0.2s\" /> " + " or you can say simply exit. "
-				+ "Now, what can I help you with?";
-
-		String repromptText = "I'm sorry I didn't understand that. You can ask things like,"
-				+ "What is the Total Gross Profit for Neon <break time=\"0.2s\" /> "
-				+ " Or you can say exit. Now, what can I help you with?";
-
-		return newAskResponse("<speak>" + speechOutput + "</speak>", true, "<speak>" + repromptText + "</speak>", true);
+	static String spokenName(String value, MetricFilter resolved, int dimension) {
+		if (resolved == null) {
+			return value;
+		}
+		String name = dimension == MetricFilter.BRAND ? resolved.getBrand() : resolved.getCustomer();
+		return name == null || name.equals(MetricFilter.normalize(value)) ? value : name;
 	}
 
 	/**
-	 * Provides more help on how to interact with this skill.
+	 * @return the value of the slot, "" if the intent does not have it
 	 */
-	private SpeechletResponse getMoreHelp() throws SpeechletException {
-
-		String speechOutput = "Waiting for your query!";
+	private static String slotValue(Intent intent, String name) {
+		return intent.getSlot(name) != null ? intent.getSlot(name).getValue() : "";
+	}
 
-		String repromptText = "Here are few more samples, "
-				+ "What are the top 5 Brands during year 2016 <break time=\"0.2s\" /> "
-				+ "give me bottom 3  Products during year 2016 <break time=\"0.2s\" /> "
-				+ "Tell me top 3 promotions during year 2016 <break time=\"0.2s\" /> "
-				+ "Give me key time contributors for patient enrollment delays";
+	/**
+	 * Speech for a metric the database did not answer with a value, so that a
+	 * failure is never read out as a number.
+	 * 
+	 * @param subject
+	 *            SSML fragment, e.g. "the Total ROI for year 2016"
+	 */
+	private static String unavailableSpeech(String subject, QueryResult result) {
+		if (result.getStatus() == QueryResult.Status.NO_DATA) {
+			return NO_DATA_SPEECH.render(subject);
+		}
+		return UNAVAILABLE_SPEECH.render(subject);
+	}
 
-		// Here we are prompting the user for input
-		return newAskResponse(speechOutput, false, "<speak>" + repromptText + "</speak>", true);
+	private static String unavailableCard(String subject, QueryResult result) {
+		if (result.getStatus() == QueryResult.Status.NO_DATA) {
+			return NO_DATA_CARD.render(subject);
+		}
+		return UNAVAILABLE_CARD.render(subject, result.getStatus());
 	}
 
 	/**
@@ -492,25 +741,10 @@ public class CpgSpeechlet implements Speechlet {
 	 */
 	private SpeechletResponse newAskResponse(String stringOutput, boolean isOutputSsml, String repromptText,
 			boolean isRepromptSsml, Card displayCard) {
-		OutputSpeech outputSpeech, repromptOutputSpeech;
-		if (isOutputSsml) {
-			outputSpeech = new SsmlOutputSpeech();
-			((SsmlOutputSpeech) outputSpeech).setSsml(stringOutput);
-		} else {
-			outputSpeech = new PlainTextOutputSpeech();
-			((PlainTextOutputSpeech) outputSpeech).setText(stringOutput);
-		}
-
-		if (isRepromptSsml) {
-			repromptOutputSpeech = new SsmlOutputSpeech();
-			((SsmlOutputSpeech) repromptOutputSpeech).setSsml(repromptText);
-		} else {
-			repromptOutputSpeech = new PlainTextOutputSpeech();
-			((PlainTextOutputSpeech) repromptOutputSpeech).setText(repromptText);
-		}
-		Reprompt reprompt = new Reprompt();
-		reprompt.setOutputSpeech(repromptOutputSpeech);
-		return SpeechletResponse.newAskResponse(outputSpeech, reprompt, displayCard);
+		OutputSpeech outputSpeech = isOutputSsml ? Responses.ssml(stringOutput) : Responses.plainText(stringOutput);
+		OutputSpeech repromptOutputSpeech = isRepromptSsml ? Responses.ssml(repromptText)
+				: Responses.plainText(repromptText);
+		return Responses.ask(outputSpeech, Responses.reprompt(repromptOutputSpeech), displayCard);
 	}
 
 	/**
@@ -529,24 +763,9 @@ public class CpgSpeechlet implements Speechlet {
 	 */
 	private SpeechletResponse newAskResponse(String stringOutput, boolean isOutputSsml, String repromptText,
 			boolean isRepromptSsml) {
-		OutputSpeech outputSpeech, repromptOutputSpeech;
-		if (isOutputSsml) {
-			outputSpeech = new SsmlOutputSpeech();
-			((SsmlOutputSpeech) outputSpeech).setSsml(stringOutput);
-		} else {
-			outputSpeech = new PlainTextOutputSpeech();
-			((PlainTextOutputSpeech) outputSpeech).setText(stringOutput);
-		}
-
-		if (isRepromptSsml) {
-			repromptOutputSpeech = new SsmlOutputSpeech();
-			((SsmlOutputSpeech) repromptOutputSpeech).setSsml(repromptText);
-		} else {
-			repromptOutputSpeech = new PlainTextOutputSpeech();
-			((PlainTextOutputSpeech) repromptOutputSpeech).setText(repromptText);
-		}
-		Reprompt reprompt = new Reprompt();
-		reprompt.setOutputSpeech(repromptOutputSpeech);
-		return SpeechletResponse.newAskResponse(outputSpeech, reprompt);
+		OutputSpeech outputSpeech = isOutputSsml ? Responses.ssml(stringOutput) : Responses.plainText(stringOutput);
+		OutputSpeech repromptOutputSpeech = isRepromptSsml ? Responses.ssml(repromptText)
+				: Responses.plainText(repromptText);
+		return SpeechletResponse.newAskResponse(outputSpeech, Responses.reprompt(repromptOutputSpeech));
 	}
 }
@@ -9,18 +9,65 @@
  */
 package cpg;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.amazon.speech.speechlet.lambda.SpeechletRequestStreamHandler;
 
 /**
  * This class is created by the Lambda environment when a request comes in. All calls will be
  * dispatched to the Speechlet passed into the super constructor.
+ *
+ * <p>
+ * Everything expensive happens while Lambda initializes the container, before the first
+ * request is waiting: the SDK, JSON and response classes are loaded, the JDBC driver is
+ * registered, the speechlet opens its first pooled connection and maps or starts loading the
+ * aggregate cube, and a launch/help/session-end exchange is run through the handler to warm the
+ * request path. The duration of each phase is logged as one {@code Startup} line.
  */
 public final class CpgSpeechletRequestStreamHandler extends SpeechletRequestStreamHandler {
+    private static final Logger log = LoggerFactory.getLogger(CpgSpeechletRequestStreamHandler.class);
+
     private static final Set<String> supportedApplicationIds;
 
+    /**
+     * Classes the first request would otherwise load: request/response JSON binding, the
+     * request verifiers and the output speech and card model.
+     */
+    private static final String[] PRELOAD_CLASSES = {
+            "com.fasterxml.jackson.databind.ObjectMapper",
+            "com.amazon.speech.json.SpeechletRequestEnvelope",
+            "com.amazon.speech.json.SpeechletResponseEnvelope",
+            "com.amazon.speech.speechlet.SpeechletRequestHandler",
+            "com.amazon.speech.speechlet.IntentRequest",
+            "com.amazon.speech.speechlet.LaunchRequest",
+            "com.amazon.speech.speechlet.SessionStartedRequest",
+            "com.amazon.speech.speechlet.SessionEndedRequest",
+            "com.amazon.speech.speechlet.verifier.ApplicationIdSpeechletRequestVerifier",
+            "com.amazon.speech.speechlet.verifier.ResponseSizeSpeechletResponseVerifier",
+            "com.amazon.speech.speechlet.verifier.OutputSpeechSpeechletResponseVerifier",
+            "com.amazon.speech.speechlet.verifier.CardSpeechletResponseVerifier",
+            "com.amazon.speech.ui.SsmlOutputSpeech",
+            "com.amazon.speech.ui.PlainTextOutputSpeech",
+            "com.amazon.speech.ui.SimpleCard",
+            "com.amazon.speech.ui.Reprompt",
+            "cpg.MetricQuery",
+            "cpg.AggregateCube",
+            "cpg.ResultCache" };
+
+    private static final CpgSpeechlet speechlet;
+
+    private static final StartupTimer startupTimer;
+
+    private static final AtomicBoolean primed = new AtomicBoolean();
+
     static {
         /*
          * This Id can be found on https://developer.amazon.com/edw/home.html#/ "Edit" the relevant
@@ -34,9 +81,66 @@ public final class CpgSpeechletRequestStreamHandler extends SpeechletRequestStre
         supportedApplicationIds = new HashSet<String>();
         //amzn1.echo-sdk-ams.app.[]
          supportedApplicationIds.add("amzn1.ask.skill.45fc3391-0000-44c8-b024-f76d041832e5");
+
+        startupTimer = new StartupTimer();
+
+        preloadClasses();
+        startupTimer.phase("classes");
+
+        ConnectionUtil.initialize();
+        startupTimer.phase("jdbcDriver");
+
+        speechlet = new CpgSpeechlet();
+        speechlet.warmUp();
+        startupTimer.phase("connectionAndCube");
     }
 
     public CpgSpeechletRequestStreamHandler() {
-        super(new CpgSpeechlet(), supportedApplicationIds);
+        super(speechlet, supportedApplicationIds);
+
+        if (primed.compareAndSet(false, true)) {
+            if (SkillConfig.getBoolean("cpg.startup.prime", true)) {
+                prime();
+                startupTimer.phase("priming");
+            }
+            log.info("Startup {}", startupTimer.report());
+        }
+    }
+
+    private static void preloadClasses() {
+        ClassLoader loader = CpgSpeechletRequestStreamHandler.class.getClassLoader();
+        for (String name : PRELOAD_CLASSES) {
+            try {
+                Class.forName(name, true, loader);
+            } catch (ClassNotFoundException e) {
+                log.debug("Preload class {} not found", name);
+            }
+        }
+    }
+
+    /**
+     * Runs requests that never touch the database through the full JSON, dispatch and response
+     * path once. They use {@link RequestEnvelopes#PRIMING_SESSION_ID}, so they neither show up in
+     * the telemetry nor start prefetching.
+     */
+    private void prime() {
+        String sessionId = RequestEnvelopes.PRIMING_SESSION_ID;
+        byte[][] requests = { RequestEnvelopes.launch(sessionId),
+                RequestEnvelopes.intent(sessionId, "AMAZON.HelpIntent", null),
+                RequestEnvelopes.sessionEnded(sessionId) };
+        for (byte[] request : requests) {
+            try {
+                handleRequest(new ByteArrayInputStream(request), new ByteArrayOutputStream(), null);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Startup priming request failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the phase timing report of this container's initialization
+     */
+    public static String getStartupReport() {
+        return startupTimer.report();
     }
 }
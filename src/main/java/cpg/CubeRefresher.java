@@ -0,0 +1,362 @@
+package cpg;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the {@link AggregateCube} current by re-reading only recent
+ * promotions.
+ *
+ * <p>
+ * Promotions that started long ago are settled and only recent ones still
+ * change, so the view is split at a watermark: {@code cpg.delta.windowDays}
+ * (default 90) days before the latest {@code PromotionStartDate}. A
+ * reconciliation reads both parts, builds a new cube from them and keeps
+ * the recent part's sums per cell. Every refresh after that groups only the
+ * rows on or after the watermark, new promotions included, and adds the
+ * difference to the previous sums to a copy of the cube. Its cost follows
+ * the number of rows in the window, not the length of the history, but also
+ * not the number of rows that changed: the view has no rowversion or change
+ * tracking column to read only those, and the old values of updated or
+ * deleted rows would be needed to take them out of the sums. A smaller
+ * window makes refreshes cheaper and leaves more changes to the
+ * reconciliation.
+ *
+ * <p>
+ * Changes to settled rows, and promotions that end up dated before the
+ * watermark, are only picked up by the next reconciliation. A
+ * reconciliation runs every {@code cpg.delta.reconcileMillis} (default 24
+ * hours), whenever the cube was not produced here (e.g. mapped from a
+ * snapshot) and with {@code cpg.delta.enabled=false}. It moves the watermark
+ * forward and logs how far the incrementally maintained cube had drifted.
+ * A cell whose recent rows are all deleted stays in the cube with its
+ * settled sums, or zero, until then.
+ */
+public class CubeRefresher {
+	private static final Logger log = LoggerFactory.getLogger(CubeRefresher.class);
+
+	static final String MAX_DATE_SQL = "select max([PromotionStartDate]) from " + MetricQuery.VIEW;
+
+	static final String SETTLED_SQL = "select YEAR([PromotionStartDate]), ProdLevel4Name, CustCustomerName, "
+			+ "sum(TotalTradeSpendSellOut), sum(GrossProfitSellOut) from " + MetricQuery.VIEW
+			+ " where [PromotionStartDate] < ? or [PromotionStartDate] is null"
+			+ " group by YEAR([PromotionStartDate]), ProdLevel4Name, CustCustomerName";
+
+	static final String RECENT_SQL = "select YEAR([PromotionStartDate]), ProdLevel4Name, CustCustomerName, "
+			+ "sum(TotalTradeSpendSellOut), sum(GrossProfitSellOut) from " + MetricQuery.VIEW
+			+ " where [PromotionStartDate] >= ?"
+			+ " group by YEAR([PromotionStartDate]), ProdLevel4Name, CustCustomerName";
+
+	/** Differences below this are rounding, not drift. */
+	private static final double DRIFT_TOLERANCE = 0.005;
+
+	private final ConnectionUtil connUtil;
+
+	private final boolean enabled;
+
+	private final int windowDays;
+
+	private final long reconcileMillis;
+
+	/** The cube the state below belongs to. */
+	private AggregateCube produced;
+
+	private Date watermark;
+
+	/** Sums of the rows on or after the watermark, as of {@link #produced}. */
+	private Map<Cell, double[]> recent;
+
+	/** Position of every cell of {@link #produced}. */
+	private Map<Cell, Integer> positions;
+
+	private long reconciledAt;
+
+	private long deltaRefreshes;
+
+	private long reconciliations;
+
+	private long lastChangedCells;
+
+	private double lastDrift;
+
+	public CubeRefresher(ConnectionUtil connUtil) {
+		this(connUtil, SkillConfig.getBoolean("cpg.delta.enabled", true), SkillConfig.getInt("cpg.delta.windowDays", 90),
+				SkillConfig.getLong("cpg.delta.reconcileMillis", TimeUnit.HOURS.toMillis(24)));
+	}
+
+	public CubeRefresher(ConnectionUtil connUtil, boolean enabled, int windowDays, long reconcileMillis) {
+		this.connUtil = connUtil;
+		this.enabled = enabled;
+		this.windowDays = windowDays;
+		this.reconcileMillis = reconcileMillis;
+	}
+
+	/**
+	 * Brings a cube up to date, by a delta refresh when possible and by a
+	 * reconciliation otherwise.
+	 *
+	 * @param current
+	 *            the cube being served, null if there is none
+	 * @return the refreshed cube; {@code current} is not modified
+	 */
+	public synchronized AggregateCube refresh(AggregateCube current) throws SQLException {
+		if (!enabled || current == null || current != produced
+				|| System.currentTimeMillis() - reconciledAt >= reconcileMillis) {
+			return reconcile(current);
+		}
+		return applyDelta(current);
+	}
+
+	/**
+	 * Reads the settled and the recent rows at a new watermark and builds the
+	 * cube from them.
+	 */
+	public synchronized AggregateCube reconcile(AggregateCube current) throws SQLException {
+		long start = System.currentTimeMillis();
+		final Date[] latest = { null };
+		connUtil.executeQuery(MAX_DATE_SQL, new RowHandler() {
+			@Override
+			public void handleRow(ResultSet rs) throws SQLException {
+				latest[0] = rs.getDate(1);
+			}
+		});
+		Date newWatermark = latest[0] == null ? new Date(start)
+				: Date.valueOf(latest[0].toLocalDate().minusDays(windowDays));
+
+		Map<Cell, double[]> cells = read(SETTLED_SQL, newWatermark);
+		Map<Cell, double[]> newRecent = read(RECENT_SQL, newWatermark);
+		for (Map.Entry<Cell, double[]> entry : newRecent.entrySet()) {
+			add(cells, entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+		}
+		AggregateCube cube = build(cells, start);
+		double drift = current == produced && current != null ? drift(current, cells) : 0.0;
+
+		produced = cube;
+		watermark = newWatermark;
+		recent = newRecent;
+		positions = positions(cube);
+		reconciledAt = start;
+		reconciliations++;
+		lastDrift = drift;
+		if (drift > DRIFT_TOLERANCE) {
+			log.info("Cube reconciled with watermark {}, {} cells, largest drift {}", watermark, cube.size(), drift);
+		} else {
+			log.debug("Cube reconciled with watermark {}, {} cells", watermark, cube.size());
+		}
+		return cube;
+	}
+
+	/**
+	 * Re-reads the rows on or after the watermark and applies the change
+	 * since the last refresh to a copy of the cube.
+	 */
+	private AggregateCube applyDelta(AggregateCube current) throws SQLException {
+		long start = System.currentTimeMillis();
+		Map<Cell, double[]> latest = read(RECENT_SQL, watermark);
+
+		Map<Cell, double[]> deltas = new HashMap<Cell, double[]>();
+		for (Map.Entry<Cell, double[]> entry : latest.entrySet()) {
+			double[] now = entry.getValue();
+			double[] before = recent.get(entry.getKey());
+			if (before == null) {
+				deltas.put(entry.getKey(), now.clone());
+			} else if (now[0] != before[0] || now[1] != before[1]) {
+				deltas.put(entry.getKey(), new double[] { now[0] - before[0], now[1] - before[1] });
+			}
+		}
+		for (Map.Entry<Cell, double[]> entry : recent.entrySet()) {
+			if (!latest.containsKey(entry.getKey())) {
+				double[] before = entry.getValue();
+				deltas.put(entry.getKey(), new double[] { -before[0], -before[1] });
+			}
+		}
+
+		AggregateCube cube;
+		if (positions.keySet().containsAll(deltas.keySet())) {
+			int[] cells = new int[deltas.size()];
+			double[] spend = new double[cells.length];
+			double[] profit = new double[cells.length];
+			int i = 0;
+			for (Map.Entry<Cell, double[]> entry : deltas.entrySet()) {
+				cells[i] = positions.get(entry.getKey()).intValue();
+				spend[i] = entry.getValue()[0];
+				profit[i] = entry.getValue()[1];
+				i++;
+			}
+			cube = current.withDeltas(cells, spend, profit, start);
+		} else {
+			// a new year, brand or customer combination: the cells change
+			Map<Cell, double[]> all = cells(current);
+			for (Map.Entry<Cell, double[]> entry : deltas.entrySet()) {
+				add(all, entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+			}
+			cube = build(all, start);
+			positions = positions(cube);
+		}
+
+		produced = cube;
+		recent = latest;
+		deltaRefreshes++;
+		lastChangedCells = deltas.size();
+		log.debug("Cube delta refresh: {} recent cells read, {} changed, in {} ms", latest.size(), deltas.size(),
+				System.currentTimeMillis() - start);
+		return cube;
+	}
+
+	private Map<Cell, double[]> read(String sql, Date watermark) throws SQLException {
+		final Map<Cell, double[]> cells = new HashMap<Cell, double[]>();
+		connUtil.executeQuery(sql, new RowHandler() {
+			@Override
+			public void handleRow(ResultSet rs) throws SQLException {
+				int year = rs.getInt(1);
+				if (rs.wasNull()) {
+					year = Integer.MIN_VALUE;
+				}
+				add(cells, new Cell(year, MetricFilter.normalize(rs.getString(2)),
+						MetricFilter.normalize(rs.getString(3))), rs.getDouble(4), rs.getDouble(5));
+			}
+		}, watermark);
+		return cells;
+	}
+
+	private static void add(Map<Cell, double[]> cells, Cell cell, double spend, double profit) {
+		double[] sums = cells.get(cell);
+		if (sums == null) {
+			cells.put(cell, new double[] { spend, profit });
+		} else {
+			sums[0] += spend;
+			sums[1] += profit;
+		}
+	}
+
+	private static AggregateCube build(Map<Cell, double[]> cells, long loadedAt) {
+		AggregateCube.Builder builder = new AggregateCube.Builder();
+		for (Map.Entry<Cell, double[]> entry : cells.entrySet()) {
+			Cell cell = entry.getKey();
+			builder.add(cell.year, cell.brand, cell.customer, entry.getValue()[0], entry.getValue()[1]);
+		}
+		return builder.build(loadedAt);
+	}
+
+	/**
+	 * @return the sums of every cell of a cube
+	 */
+	private static Map<Cell, double[]> cells(AggregateCube cube) {
+		Cell[] keys = keys(cube);
+		DoubleBuffer spend = cube.tradeSpend();
+		DoubleBuffer profit = cube.grossProfit();
+		Map<Cell, double[]> cells = new HashMap<Cell, double[]>(keys.length * 2);
+		for (int i = 0; i < keys.length; i++) {
+			add(cells, keys[i], spend.get(i), profit.get(i));
+		}
+		return cells;
+	}
+
+	private static Map<Cell, Integer> positions(AggregateCube cube) {
+		Cell[] keys = keys(cube);
+		Map<Cell, Integer> positions = new HashMap<Cell, Integer>(keys.length * 2);
+		for (int i = 0; i < keys.length; i++) {
+			positions.put(keys[i], i);
+		}
+		return positions;
+	}
+
+	/**
+	 * @return the decoded dimensions of each cell of a cube
+	 */
+	private static Cell[] keys(AggregateCube cube) {
+		int[] years = cube.years();
+		String[] brands = cube.brands();
+		String[] customers = cube.customers();
+		IntBuffer cellYear = cube.cellYear();
+		IntBuffer cellBrand = cube.cellBrand();
+		IntBuffer cellCustomer = cube.cellCustomer();
+		Cell[] keys = new Cell[cube.size()];
+		for (int i = 0; i < keys.length; i++) {
+			int y = cellYear.get(i);
+			int b = cellBrand.get(i);
+			int c = cellCustomer.get(i);
+			keys[i] = new Cell(y < 0 ? Integer.MIN_VALUE : years[y], b < 0 ? null : brands[b],
+					c < 0 ? null : customers[c]);
+		}
+		return keys;
+	}
+
+	/**
+	 * @return the largest difference of a trade spend or gross profit sum
+	 *         between a cube and the reconciled cells
+	 */
+	private static double drift(AggregateCube cube, Map<Cell, double[]> reconciled) {
+		Map<Cell, double[]> maintained = cells(cube);
+		double drift = 0.0;
+		for (Map.Entry<Cell, double[]> entry : reconciled.entrySet()) {
+			double[] before = maintained.remove(entry.getKey());
+			double[] after = entry.getValue();
+			drift = Math.max(drift, before == null ? Math.max(Math.abs(after[0]), Math.abs(after[1]))
+					: Math.max(Math.abs(after[0] - before[0]), Math.abs(after[1] - before[1])));
+		}
+		for (double[] gone : maintained.values()) {
+			drift = Math.max(drift, Math.max(Math.abs(gone[0]), Math.abs(gone[1])));
+		}
+		return drift;
+	}
+
+	public synchronized Date getWatermark() {
+		return watermark;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CubeRefresher[watermark=" + watermark + ", recentCells=" + (recent == null ? 0 : recent.size())
+				+ ", deltaRefreshes=" + deltaRefreshes + ", lastChangedCells=" + lastChangedCells
+				+ ", reconciliations=" + reconciliations + ", lastDrift=" + lastDrift + "]";
+	}
+
+	/**
+	 * A (year, brand, customer) cell; the year is {@link Integer#MIN_VALUE}
+	 * and the names null where the view has NULL.
+	 */
+	private static final class Cell {
+
+		final int year;
+
+		final String brand;
+
+		final String customer;
+
+		Cell(int year, String brand, String customer) {
+			this.year = year;
+			this.brand = brand;
+			this.customer = customer;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Cell)) {
+				return false;
+			}
+			Cell other = (Cell) o;
+			return year == other.year && (brand == null ? other.brand == null : brand.equals(other.brand))
+					&& (customer == null ? other.customer == null : customer.equals(other.customer));
+		}
+
+		@Override
+		public int hashCode() {
+			int h = year;
+			h = 31 * h + (brand == null ? 0 : brand.hashCode());
+			return 31 * h + (customer == null ? 0 : customer.hashCode());
+		}
+	}
+}
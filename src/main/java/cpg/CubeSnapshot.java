@@ -0,0 +1,298 @@
+package cpg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary snapshot of an {@link AggregateCube}, written by an offline job and
+ * memory mapped by the skill on cold start.
+ *
+ * <p>
+ * Layout, little endian:
+ *
+ * <pre>
+ *  0  int   magic "CPGS"
+ *  4  int   format version
+ *  8  long  time the data was read from the view
+ * 16  int   cells, years, brands, customers
+ * 32  int   dictionary offset, column offset
+ * 40  long  file length
+ * 48  long  CRC32 of everything after the header
+ * 56  long  reserved
+ * 64        year dictionary (int[]), brand and customer dictionaries
+ *           (length prefixed UTF-8), padded to 8 bytes
+ *           cellYear, cellBrand, cellCustomer (int[cells]), padded to 8 bytes
+ *           tradeSpend, grossProfit (double[cells])
+ * </pre>
+ *
+ * The cell columns of a mapped snapshot are read in place through buffer
+ * views; only the small dictionaries are decoded onto the heap. A newer
+ * snapshot is published by writing a temporary file and renaming it over the
+ * old one, so readers see either the old or the new file, never a partial one.
+ */
+public class CubeSnapshot {
+	private static final Logger log = LoggerFactory.getLogger(CubeSnapshot.class);
+
+	static final int MAGIC = 0x53475043;
+
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 64;
+
+	private final Path path;
+
+	private final long checkIntervalMillis;
+
+	private FileTime mappedModified;
+
+	private long lastCheck;
+
+	public CubeSnapshot(Path path) {
+		this.path = path;
+		this.checkIntervalMillis = SkillConfig.getLong("cpg.snapshot.checkIntervalMillis", 10000);
+	}
+
+	/**
+	 * @return the snapshot configured by {@code cpg.snapshot.path}, or null
+	 */
+	public static CubeSnapshot fromConfig() {
+		String location = SkillConfig.get("cpg.snapshot.path", null);
+		return location == null ? null : new CubeSnapshot(Paths.get(location));
+	}
+
+	/**
+	 * Maps the snapshot file if it appeared or was replaced since the last
+	 * call. Checks are throttled to {@code cpg.snapshot.checkIntervalMillis}.
+	 * A file that fails to map is skipped until it is modified again.
+	 *
+	 * @return the newly mapped cube, or null if nothing changed or the file is
+	 *         missing or invalid
+	 */
+	public synchronized AggregateCube openIfChanged() {
+		long now = System.currentTimeMillis();
+		if (mappedModified != null && now - lastCheck < checkIntervalMillis) {
+			return null;
+		}
+		lastCheck = now;
+		FileTime modified;
+		try {
+			if (!Files.isRegularFile(path)) {
+				return null;
+			}
+			modified = Files.getLastModifiedTime(path);
+		} catch (IOException e) {
+			log.warn("Could not check cube snapshot {}: {}", path, e.getMessage());
+			return null;
+		}
+		if (modified.equals(mappedModified)) {
+			return null;
+		}
+		// an invalid version is not mapped again, only a newer file is
+		mappedModified = modified;
+		try {
+			return open(path);
+		} catch (IOException e) {
+			log.warn("Could not map cube snapshot {}: {}", path, e.getMessage());
+		} catch (RuntimeException e) {
+			// header offsets and counts that do not fit the file
+			log.warn("Cube snapshot " + path + " is inconsistent", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Maps a snapshot file read-only and validates its header and checksum.
+	 */
+	public static AggregateCube open(Path path) throws IOException {
+		MappedByteBuffer map;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		map.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (map.limit() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+			throw new IOException(path + " is not a cube snapshot");
+		}
+		if (map.getInt(4) != VERSION) {
+			throw new IOException(path + " has unsupported snapshot version " + map.getInt(4));
+		}
+		if (map.getLong(40) != map.limit()) {
+			throw new IOException(path + " is truncated");
+		}
+		if (SkillConfig.getBoolean("cpg.snapshot.verifyChecksum", true) && map.getLong(48) != crc(map)) {
+			throw new IOException(path + " failed its checksum");
+		}
+
+		long loadedAt = map.getLong(8);
+		int cells = map.getInt(16);
+		int yearCount = map.getInt(20);
+		int brandCount = map.getInt(24);
+		int customerCount = map.getInt(28);
+
+		ByteBuffer dictionary = section(map, map.getInt(32));
+		int[] years = new int[yearCount];
+		for (int i = 0; i < yearCount; i++) {
+			years[i] = dictionary.getInt();
+		}
+		String[] brands = readStrings(dictionary, brandCount);
+		String[] customers = readStrings(dictionary, customerCount);
+
+		int offset = map.getInt(36);
+		IntBuffer cellYear = intColumn(map, offset, cells);
+		IntBuffer cellBrand = intColumn(map, offset += cells * 4, cells);
+		IntBuffer cellCustomer = intColumn(map, offset += cells * 4, cells);
+		offset = align(offset + cells * 4);
+		DoubleBuffer tradeSpend = doubleColumn(map, offset, cells);
+		DoubleBuffer grossProfit = doubleColumn(map, offset + cells * 8, cells);
+
+		return new AggregateCube(years, brands, customers, cellYear, cellBrand, cellCustomer, tradeSpend,
+				grossProfit, loadedAt);
+	}
+
+	/**
+	 * Writes a cube to {@code target}, replacing any existing file atomically.
+	 */
+	public static void write(AggregateCube cube, Path target) throws IOException {
+		byte[][] brands = encode(cube.brands());
+		byte[][] customers = encode(cube.customers());
+		int cells = cube.size();
+
+		int dictionaryOffset = HEADER_SIZE;
+		int dictionaryLength = cube.years().length * 4 + encodedLength(brands) + encodedLength(customers);
+		int columnOffset = align(dictionaryOffset + dictionaryLength);
+		int doubleOffset = align(columnOffset + cells * 12);
+		long length = doubleOffset + cells * 16L;
+
+		Path absolute = target.toAbsolutePath();
+		Path tmp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+
+			map.position(dictionaryOffset);
+			for (int year : cube.years()) {
+				map.putInt(year);
+			}
+			writeStrings(map, brands);
+			writeStrings(map, customers);
+
+			intColumn(map, columnOffset, cells).put(cube.cellYear());
+			intColumn(map, columnOffset + cells * 4, cells).put(cube.cellBrand());
+			intColumn(map, columnOffset + cells * 8, cells).put(cube.cellCustomer());
+			doubleColumn(map, doubleOffset, cells).put(cube.tradeSpend());
+			doubleColumn(map, doubleOffset + cells * 8, cells).put(cube.grossProfit());
+
+			map.putInt(0, MAGIC);
+			map.putInt(4, VERSION);
+			map.putLong(8, cube.getLoadedAt());
+			map.putInt(16, cells);
+			map.putInt(20, cube.years().length);
+			map.putInt(24, brands.length);
+			map.putInt(28, customers.length);
+			map.putInt(32, dictionaryOffset);
+			map.putInt(36, columnOffset);
+			map.putLong(40, length);
+			map.putLong(48, crc(map));
+			map.force();
+		}
+		Files.move(tmp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static long crc(ByteBuffer map) {
+		ByteBuffer body = map.duplicate();
+		body.position(HEADER_SIZE);
+		body.limit(map.limit());
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		return crc.getValue();
+	}
+
+	private static int align(int offset) {
+		return (offset + 7) & ~7;
+	}
+
+	private static ByteBuffer section(ByteBuffer map, int offset) {
+		ByteBuffer section = map.duplicate();
+		section.position(offset);
+		return section.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static IntBuffer intColumn(ByteBuffer map, int offset, int cells) {
+		IntBuffer column = section(map, offset).asIntBuffer();
+		column.limit(cells);
+		return column;
+	}
+
+	private static DoubleBuffer doubleColumn(ByteBuffer map, int offset, int cells) {
+		DoubleBuffer column = section(map, offset).asDoubleBuffer();
+		column.limit(cells);
+		return column;
+	}
+
+	private static byte[][] encode(String[] values) {
+		byte[][] encoded = new byte[values.length][];
+		for (int i = 0; i < values.length; i++) {
+			encoded[i] = values[i].getBytes(StandardCharsets.UTF_8);
+		}
+		return encoded;
+	}
+
+	private static int encodedLength(byte[][] values) {
+		int length = 0;
+		for (byte[] value : values) {
+			length += 4 + value.length;
+		}
+		return length;
+	}
+
+	private static void writeStrings(ByteBuffer buffer, byte[][] values) {
+		for (byte[] value : values) {
+			buffer.putInt(value.length);
+			buffer.put(value);
+		}
+	}
+
+	private static String[] readStrings(ByteBuffer buffer, int count) {
+		String[] values = new String[count];
+		for (int i = 0; i < count; i++) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			values[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return values;
+	}
+
+	/**
+	 * Offline job: loads the cube from the view and writes a snapshot to the
+	 * path given as the first argument (default {@code cpg.snapshot.path}).
+	 */
+	public static void main(String[] args) throws Exception {
+		String location = args.length > 0 ? args[0] : SkillConfig.get("cpg.snapshot.path", "cpg-cube.snapshot");
+
+		long start = System.currentTimeMillis();
+		AggregateCube cube = AggregateCube.load(new ConnectionUtil());
+		write(cube, Paths.get(location));
+
+		System.out.println("Wrote " + cube.size() + " cells to " + location + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+
+		ConnectionUtil.closePool();
+	}
+}
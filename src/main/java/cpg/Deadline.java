@@ -0,0 +1,192 @@
+package cpg;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Time budget of a single request. Alexa drops a response that arrives too
+ * late, so work started on behalf of a request checks how much of the budget
+ * is left instead of using its own fixed timeouts.
+ *
+ * <p>
+ * Since it travels with every query of the request, the deadline also
+ * accounts for what the request spent: database time, query outcomes and
+ * cache lookups, including those of queries that run on pool threads. The
+ * counters are updated with field updaters, so accounting allocates nothing.
+ */
+public final class Deadline {
+
+	private static final AtomicLongFieldUpdater<Deadline> DB_NANOS = AtomicLongFieldUpdater.newUpdater(Deadline.class,
+			"dbNanos");
+
+	private static final AtomicLongFieldUpdater<Deadline> FETCH_NANOS = AtomicLongFieldUpdater
+			.newUpdater(Deadline.class, "fetchNanos");
+
+	private static final AtomicIntegerFieldUpdater<Deadline> QUERIES = AtomicIntegerFieldUpdater
+			.newUpdater(Deadline.class, "queries");
+
+	private static final AtomicIntegerFieldUpdater<Deadline> QUERY_ERRORS = AtomicIntegerFieldUpdater
+			.newUpdater(Deadline.class, "queryErrors");
+
+	private static final AtomicIntegerFieldUpdater<Deadline> QUERY_TIMEOUTS = AtomicIntegerFieldUpdater
+			.newUpdater(Deadline.class, "queryTimeouts");
+
+	private static final AtomicIntegerFieldUpdater<Deadline> QUERY_REJECTIONS = AtomicIntegerFieldUpdater
+			.newUpdater(Deadline.class, "queryRejections");
+
+	private static final AtomicIntegerFieldUpdater<Deadline> CACHE_HITS = AtomicIntegerFieldUpdater
+			.newUpdater(Deadline.class, "cacheHits");
+
+	private static final AtomicIntegerFieldUpdater<Deadline> CACHE_MISSES = AtomicIntegerFieldUpdater
+			.newUpdater(Deadline.class, "cacheMisses");
+
+	private final long deadlineNanos;
+
+	private final boolean background;
+
+	private volatile long dbNanos;
+
+	private volatile long fetchNanos;
+
+	private volatile int queries;
+
+	private volatile int queryErrors;
+
+	private volatile int queryTimeouts;
+
+	private volatile int queryRejections;
+
+	private volatile int cacheHits;
+
+	private volatile int cacheMisses;
+
+	private Deadline(long deadlineNanos, boolean background) {
+		this.deadlineNanos = deadlineNanos;
+		this.background = background;
+	}
+
+	/**
+	 * @return a deadline {@code millis} from now
+	 */
+	public static Deadline after(long millis) {
+		return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), false);
+	}
+
+	/**
+	 * @return a deadline {@code millis} from now for speculative work that no
+	 *         request waits for; its queries only run on a connection the pool
+	 *         can spare and are rejected otherwise
+	 */
+	public static Deadline background(long millis) {
+		return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), true);
+	}
+
+	/**
+	 * @return a deadline {@code cpg.request.budgetMillis} (default 2500) from
+	 *         now
+	 */
+	public static Deadline forRequest() {
+		return after(SkillConfig.getLong("cpg.request.budgetMillis", 2500));
+	}
+
+	/**
+	 * @return the milliseconds left, never negative
+	 */
+	public long remainingMillis() {
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(remainingNanos()));
+	}
+
+	public long remainingNanos() {
+		return Math.max(0, deadlineNanos - System.nanoTime());
+	}
+
+	public boolean isExpired() {
+		return deadlineNanos - System.nanoTime() <= 0;
+	}
+
+	public boolean isBackground() {
+		return background;
+	}
+
+	/**
+	 * Accounts for one database query made on behalf of the request.
+	 *
+	 * @param nanos
+	 *            time spent borrowing, executing and reading, 0 if the query
+	 *            was not attempted
+	 */
+	void recordQuery(QueryResult.Status status, long nanos) {
+		DB_NANOS.addAndGet(this, nanos);
+		switch (status) {
+		case ERROR:
+			QUERY_ERRORS.incrementAndGet(this);
+			break;
+		case TIMEOUT:
+			QUERY_TIMEOUTS.incrementAndGet(this);
+			break;
+		case REJECTED:
+			QUERY_REJECTIONS.incrementAndGet(this);
+			return;
+		default:
+		}
+		QUERIES.incrementAndGet(this);
+	}
+
+	/**
+	 * Accounts for a metric lookup answered from the cube or the result cache
+	 * ({@code hit}) or loaded from the database.
+	 */
+	void recordLookup(boolean hit) {
+		(hit ? CACHE_HITS : CACHE_MISSES).incrementAndGet(this);
+	}
+
+	/**
+	 * Accounts for wall clock time the request waited for its data, whatever
+	 * the source.
+	 */
+	void recordFetch(long nanos) {
+		FETCH_NANOS.addAndGet(this, nanos);
+	}
+
+	/**
+	 * @return database time summed over all queries; concurrent queries can
+	 *         add up to more than the request took
+	 */
+	long getDbNanos() {
+		return dbNanos;
+	}
+
+	long getFetchNanos() {
+		return fetchNanos;
+	}
+
+	int getQueries() {
+		return queries;
+	}
+
+	int getQueryErrors() {
+		return queryErrors;
+	}
+
+	int getQueryTimeouts() {
+		return queryTimeouts;
+	}
+
+	int getQueryRejections() {
+		return queryRejections;
+	}
+
+	int getCacheHits() {
+		return cacheHits;
+	}
+
+	int getCacheMisses() {
+		return cacheMisses;
+	}
+
+	@Override
+	public String toString() {
+		return "Deadline[remainingMs=" + remainingMillis() + "]";
+	}
+}
@@ -0,0 +1,150 @@
+package cpg;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear microsecond buckets: every
+ * power of two is split into 8 buckets, so a bucket is at most 12.5 % wide
+ * relative to its value. Recording is a handful of atomic increments and
+ * allocates nothing; values above about 12 days land in the last bucket.
+ *
+ * <p>
+ * {@link #drain()} takes a snapshot and resets the histogram. Recordings that
+ * race with it are counted in this or the next snapshot, never lost.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	private static final long MAX_MICROS = (1L << 40) - 1;
+
+	static final int BUCKETS = index(MAX_MICROS) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong sumMicros = new AtomicLong();
+
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	private final AtomicLong minMicros = new AtomicLong(Long.MAX_VALUE);
+
+	public void recordNanos(long nanos) {
+		long micros = Math.max(0, Math.min(nanos / 1000, MAX_MICROS));
+		counts.incrementAndGet(index(micros));
+		sumMicros.addAndGet(micros);
+		long max;
+		while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+			// retry
+		}
+		long min;
+		while (micros < (min = minMicros.get()) && !minMicros.compareAndSet(min, micros)) {
+			// retry
+		}
+	}
+
+	/**
+	 * @return what was recorded since the last drain, after which the
+	 *         histogram is empty
+	 */
+	public Snapshot drain() {
+		long[] drained = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			drained[i] = counts.getAndSet(i, 0);
+			count += drained[i];
+		}
+		return new Snapshot(drained, count, sumMicros.getAndSet(0), minMicros.getAndSet(Long.MAX_VALUE),
+				maxMicros.getAndSet(0));
+	}
+
+	static int index(long micros) {
+		if (micros < SUB_COUNT) {
+			return (int) micros;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	static long lowerBound(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int exp = index / SUB_COUNT + SUB_BITS - 1;
+		return (long) (SUB_COUNT + index % SUB_COUNT) << (exp - SUB_BITS);
+	}
+
+	static long width(int index) {
+		return index < SUB_COUNT ? 1 : 1L << (index / SUB_COUNT - 1);
+	}
+
+	/**
+	 * Counts of one drain of a {@link LatencyHistogram}, in microseconds.
+	 */
+	public static final class Snapshot {
+
+		private final long[] counts;
+
+		private final long count;
+
+		private final long sumMicros;
+
+		private final long minMicros;
+
+		private final long maxMicros;
+
+		Snapshot(long[] counts, long count, long sumMicros, long minMicros, long maxMicros) {
+			this.counts = counts;
+			this.count = count;
+			this.sumMicros = sumMicros;
+			this.minMicros = count == 0 ? 0 : Math.min(minMicros, maxMicros);
+			this.maxMicros = maxMicros;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getSumMicros() {
+			return sumMicros;
+		}
+
+		public long getMinMicros() {
+			return minMicros;
+		}
+
+		public long getMaxMicros() {
+			return maxMicros;
+		}
+
+		/**
+		 * @return the number of values in bucket {@code index}
+		 */
+		long countAt(int index) {
+			return counts[index];
+		}
+
+		/**
+		 * @return the midpoint of the bucket holding the value at quantile
+		 *         {@code q}, e.g. 0.99; 0 when empty
+		 */
+		public long percentileMicros(double q) {
+			long rank = (long) Math.ceil(q * count);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0) {
+					return Math.min(midpoint(i), maxMicros);
+				}
+			}
+			return 0;
+		}
+
+		static long midpoint(int index) {
+			return lowerBound(index) + width(index) / 2;
+		}
+	}
+}
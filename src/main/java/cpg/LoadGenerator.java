@@ -0,0 +1,589 @@
+package cpg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Replays Alexa request envelopes against the skill and reports latency and
+ * throughput per intent.
+ *
+ * <p>
+ * The corpus is read from {@code cpg.load.corpus}, one envelope per line as
+ * recorded from the Alexa service (blank lines and lines starting with
+ * {@code #} are skipped), or synthesized: launches, every intent with a mix of
+ * year, brand, customer and ranking slots, and session ends, from
+ * {@code cpg.load.seed}. Each request is sent with a fresh request id and
+ * timestamp, so recorded envelopes pass the timestamp check.
+ *
+ * <p>
+ * Requests go to {@code cpg.load.target}: {@code in-process} (default) calls
+ * {@link CpgSpeechletRequestStreamHandler#handleRequest} in this JVM, a URL
+ * posts to a {@link SkillServer} started with request signature checks
+ * disabled. Load is either closed, {@code cpg.load.concurrency} workers each
+ * sending the next request as soon as the last one is answered, or open with
+ * {@code cpg.load.rate} requests per second regardless of how fast they are
+ * answered, up to {@code cpg.load.maxInFlight}; arrivals beyond that are
+ * counted as dropped. Open-model latency is measured from the time a request
+ * was due, not from when it could be sent.
+ *
+ * <p>
+ * Requests answered during the first {@code cpg.load.warmupSeconds} are not
+ * recorded; the run ends after {@code cpg.load.durationSeconds} more. The
+ * summary is printed, and the results are written as JSON to
+ * {@code cpg.load.output} (or printed) under {@code cpg.load.label}, so runs
+ * of different builds can be compared.
+ */
+public final class LoadGenerator {
+
+	private static final Pattern TIMESTAMP = Pattern.compile("\"timestamp\"\\s*:\\s*\"[^\"]*\"");
+
+	private static final Pattern REQUEST_ID = Pattern.compile("\"requestId\"\\s*:\\s*\"[^\"]*\"");
+
+	private static final String TOTAL = "Total";
+
+	private static final ThreadLocal<SimpleDateFormat> TIMESTAMP_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return format;
+		}
+	};
+
+	private final List<Request> corpus;
+
+	private final Target target;
+
+	private final String targetName;
+
+	private final int concurrency;
+
+	private final double rate;
+
+	private final int maxInFlight;
+
+	private final long warmupNanos;
+
+	private final long durationNanos;
+
+	private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile long measureStart;
+
+	private volatile long measureEnd;
+
+	/** Per intent, in name order, then the total; set when the run ends. */
+	private Map<String, Stats.Snapshot> results;
+
+	public LoadGenerator(List<Request> corpus, String targetName) throws IOException {
+		if (corpus.isEmpty()) {
+			throw new IllegalArgumentException("The request corpus is empty");
+		}
+		this.corpus = corpus;
+		this.targetName = targetName;
+		this.target = "in-process".equals(targetName) ? new InProcessTarget() : new HttpTarget(new URL(targetName));
+		this.concurrency = Math.max(1, SkillConfig.getInt("cpg.load.concurrency", 8));
+		this.rate = SkillConfig.getDouble("cpg.load.rate", 0);
+		this.maxInFlight = Math.max(1, SkillConfig.getInt("cpg.load.maxInFlight", 256));
+		this.warmupNanos = TimeUnit.SECONDS.toNanos(SkillConfig.getLong("cpg.load.warmupSeconds", 5));
+		this.durationNanos = TimeUnit.SECONDS.toNanos(SkillConfig.getLong("cpg.load.durationSeconds", 30));
+	}
+
+	public static void main(String[] args) throws Exception {
+		String corpusFile = SkillConfig.get("cpg.load.corpus", null);
+		List<Request> corpus = corpusFile != null ? readCorpus(corpusFile)
+				: synthesize(SkillConfig.getInt("cpg.load.corpusSize", 1000), SkillConfig.getLong("cpg.load.seed", 1));
+
+		LoadGenerator generator = new LoadGenerator(corpus, SkillConfig.get("cpg.load.target", "in-process"));
+		generator.run();
+
+		String json = generator.toJson(SkillConfig.get("cpg.load.label", "unlabelled"));
+		System.out.print(generator.summary());
+		String output = SkillConfig.get("cpg.load.output", null);
+		if (output != null) {
+			try (Writer writer = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+				writer.write(json);
+				writer.write('\n');
+			}
+			System.out.println("Results written to " + output);
+		} else {
+			System.out.println(json);
+		}
+		if (generator.target instanceof InProcessTarget) {
+			ConnectionUtil.closePool();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the warmup and the measured period with the configured load model.
+	 */
+	public void run() throws InterruptedException {
+		long start = System.nanoTime();
+		measureStart = start + warmupNanos;
+		measureEnd = measureStart + durationNanos;
+		if (rate > 0) {
+			runOpen(start);
+		} else {
+			runClosed();
+		}
+
+		Map<String, Stats.Snapshot> snapshots = new TreeMap<String, Stats.Snapshot>();
+		for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+			if (!TOTAL.equals(entry.getKey())) {
+				snapshots.put(entry.getKey(), entry.getValue().snapshot());
+			}
+		}
+		results = new LinkedHashMap<String, Stats.Snapshot>(snapshots);
+		results.put(TOTAL, stats(TOTAL).snapshot());
+	}
+
+	private void runClosed() throws InterruptedException {
+		final AtomicInteger next = new AtomicInteger();
+		Thread[] workers = new Thread[concurrency];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (System.nanoTime() < measureEnd) {
+						Request request = corpus.get((next.getAndIncrement() & Integer.MAX_VALUE) % corpus.size());
+						execute(request, System.nanoTime());
+					}
+				}
+			}, "cpg-load-" + i);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+	private void runOpen(long start) throws InterruptedException {
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cpg-load-" + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		for (long i = 0;; i++) {
+			final long due = start + (long) (i * intervalNanos);
+			if (due >= measureEnd) {
+				break;
+			}
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			if (!inFlight.tryAcquire()) {
+				if (due >= measureStart) {
+					dropped.incrementAndGet();
+				}
+				continue;
+			}
+			final Request request = corpus.get((int) (i % corpus.size()));
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						execute(request, due);
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	private void execute(Request request, long startNanos) {
+		Outcome outcome;
+		try {
+			outcome = target.send(request.prepare());
+		} catch (IOException | RuntimeException e) {
+			outcome = Outcome.ERROR;
+		}
+		long end = System.nanoTime();
+		if (end < measureStart || end > measureEnd) {
+			return;
+		}
+		long latency = end - startNanos;
+		stats(request.getName()).record(outcome, latency);
+		stats(TOTAL).record(outcome, latency);
+	}
+
+	private Stats stats(String name) {
+		Stats s = stats.get(name);
+		if (s == null) {
+			Stats created = new Stats();
+			s = stats.putIfAbsent(name, created);
+			if (s == null) {
+				s = created;
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * @return the results of the finished run as a JSON object
+	 */
+	public String toJson(String label) {
+		double seconds = durationNanos / 1e9;
+
+		StringBuilder json = new StringBuilder(2048);
+		json.append("{\"label\":\"").append(StringEscapeUtils.escapeJson(label)).append("\",\"finishedAt\":\"")
+				.append(TIMESTAMP_FORMAT.get().format(new Date())).append("\",\"javaVersion\":\"")
+				.append(StringEscapeUtils.escapeJson(System.getProperty("java.version"))).append("\",\"target\":\"")
+				.append(StringEscapeUtils.escapeJson(targetName)).append("\",\"model\":\"")
+				.append(rate > 0 ? "open" : "closed").append("\",\"concurrency\":").append(rate > 0 ? 0 : concurrency)
+				.append(",\"rate\":").append(rate).append(",\"warmupSeconds\":").append(warmupNanos / 1e9)
+				.append(",\"durationSeconds\":").append(seconds).append(",\"corpusSize\":").append(corpus.size())
+				.append(",\"dropped\":").append(dropped.get()).append(",\"total\":");
+		appendStats(json, results.get(TOTAL), seconds);
+		json.append(",\"intents\":{");
+		boolean first = true;
+		for (Map.Entry<String, Stats.Snapshot> entry : results.entrySet()) {
+			if (TOTAL.equals(entry.getKey())) {
+				continue;
+			}
+			json.append(first ? "" : ",").append('"').append(StringEscapeUtils.escapeJson(entry.getKey()))
+					.append("\":");
+			appendStats(json, entry.getValue(), seconds);
+			first = false;
+		}
+		return json.append("}}").toString();
+	}
+
+	/**
+	 * @return a table of the results, one line per intent
+	 */
+	public String summary() {
+		double seconds = durationNanos / 1e9;
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("%-24s %8s %7s %7s %9s %9s %9s %9s %9s%n", "intent", "requests", "errors",
+				"503s", "req/s", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+		for (Map.Entry<String, Stats.Snapshot> row : results.entrySet()) {
+			Stats.Snapshot s = row.getValue();
+			out.append(String.format("%-24s %8d %7d %7d %9.1f %9.2f %9.2f %9.2f %9.2f%n", row.getKey(), s.requests,
+					s.errors, s.rejected, s.requests / seconds, millis(s.latency.percentileMicros(0.50)),
+					millis(s.latency.percentileMicros(0.95)), millis(s.latency.percentileMicros(0.99)),
+					millis(s.latency.getMaxMicros())));
+		}
+		if (dropped.get() > 0) {
+			out.append("dropped ").append(dropped.get()).append(" arrivals over maxInFlight\n");
+		}
+		return out.toString();
+	}
+
+	private static void appendStats(StringBuilder json, Stats.Snapshot s, double seconds) {
+		LatencyHistogram.Snapshot latency = s.latency;
+		json.append("{\"requests\":").append(s.requests).append(",\"ok\":").append(s.ok).append(",\"errors\":")
+				.append(s.errors).append(",\"rejected\":").append(s.rejected).append(",\"throughput\":")
+				.append(round(s.requests / seconds)).append(",\"meanMillis\":")
+				.append(round(latency.getCount() == 0 ? 0 : millis(latency.getSumMicros()) / latency.getCount()))
+				.append(",\"p50Millis\":").append(round(millis(latency.percentileMicros(0.50))))
+				.append(",\"p95Millis\":").append(round(millis(latency.percentileMicros(0.95))))
+				.append(",\"p99Millis\":").append(round(millis(latency.percentileMicros(0.99))))
+				.append(",\"maxMillis\":").append(round(millis(latency.getMaxMicros()))).append('}');
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 1000) / 1000.0;
+	}
+
+	/**
+	 * Reads recorded envelopes, one per line.
+	 */
+	public static List<Request> readCorpus(String file) throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		List<Request> corpus = new ArrayList<Request>();
+		for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			JsonNode request = mapper.readTree(line).path("request");
+			String name = request.path("type").isTextual() ? request.path("type").textValue() : "Unknown";
+			if ("IntentRequest".equals(name) && request.path("intent").path("name").isTextual()) {
+				name = request.path("intent").path("name").textValue();
+			}
+			corpus.add(new Request(name, line));
+		}
+		return corpus;
+	}
+
+	/**
+	 * Builds a corpus with roughly the intent mix of real sessions: mostly
+	 * metric questions with zero to three filters, then rankings, promotion
+	 * analysis, launches and the fixed intents. The order is shuffled with
+	 * the same seed.
+	 */
+	public static List<Request> synthesize(int size, long seed) {
+		Random random = new Random(seed);
+		int firstYear = SkillConfig.getInt("cpg.local.firstYear", 2013);
+		int years = SkillConfig.getInt("cpg.local.years", 5);
+		String[] metrics = { "TotalTradeSpend", "TotalGrossProfit", "TotalROI", "TotalMetrics" };
+		String[] categories = { "Brands", "Customers", "Products", "Promotions" };
+		String[] fixed = { "AMAZON.HelpIntent", "HearMore", "DontHearMore", "AMAZON.StopIntent" };
+
+		List<Request> corpus = new ArrayList<Request>(size);
+		for (int i = 0; i < size; i++) {
+			String sessionId = "SessionId.load-" + i;
+			String year = String.valueOf(firstYear + random.nextInt(Math.max(1, years)));
+			Map<String, String> slots = new LinkedHashMap<String, String>();
+			int pick = random.nextInt(100);
+			String name;
+			byte[] envelope;
+			if (pick < 50) {
+				name = metrics[random.nextInt(metrics.length)];
+				if (random.nextInt(10) < 7) {
+					slots.put("YEARNO", year);
+				}
+				if (random.nextInt(10) < 4) {
+					slots.put("BRAND", PromotionDataGenerator.BRANDS[random.nextInt(PromotionDataGenerator.BRANDS.length)]);
+				}
+				if (random.nextInt(10) < 3) {
+					slots.put("CUSTOMER",
+							PromotionDataGenerator.CUSTOMERS[random.nextInt(PromotionDataGenerator.CUSTOMERS.length)]);
+				}
+				envelope = RequestEnvelopes.intent(sessionId, name, slots);
+			} else if (pick < 65) {
+				name = random.nextBoolean() ? "Top" : "Bottom";
+				slots.put("CATEGORY", categories[random.nextInt(categories.length)]);
+				slots.put("COUNT", String.valueOf(3 + random.nextInt(3)));
+				if (random.nextBoolean()) {
+					slots.put("YEARNO", year);
+				}
+				envelope = RequestEnvelopes.intent(sessionId, name, slots);
+			} else if (pick < 75) {
+				name = "PromotionsPerformance";
+				slots.put("YEARNO", year);
+				if (random.nextInt(10) < 3) {
+					slots.put("BRAND", PromotionDataGenerator.BRANDS[random.nextInt(PromotionDataGenerator.BRANDS.length)]);
+				}
+				envelope = RequestEnvelopes.intent(sessionId, name, slots);
+			} else if (pick < 80) {
+				name = "BestPromotions";
+				slots.put("YEARNO", year);
+				envelope = RequestEnvelopes.intent(sessionId, name, slots);
+			} else if (pick < 89) {
+				name = "LaunchRequest";
+				envelope = RequestEnvelopes.launch(sessionId);
+			} else if (pick < 96) {
+				name = fixed[random.nextInt(fixed.length)];
+				envelope = RequestEnvelopes.intent(sessionId, name, null);
+			} else {
+				name = "SessionEndedRequest";
+				envelope = RequestEnvelopes.sessionEnded(sessionId);
+			}
+			corpus.add(new Request(name, new String(envelope, StandardCharsets.UTF_8)));
+		}
+		Collections.shuffle(corpus, random);
+		return corpus;
+	}
+
+	/**
+	 * One envelope of the corpus.
+	 */
+	public static final class Request {
+
+		private final String name;
+
+		private final String json;
+
+		public Request(String name, String json) {
+			this.name = name;
+			this.json = json;
+		}
+
+		/**
+		 * @return the intent name, or the request type without an intent
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the envelope with a new request id and the current time
+		 */
+		byte[] prepare() {
+			String now = TIMESTAMP_FORMAT.get().format(new Date());
+			String fresh = TIMESTAMP.matcher(json).replaceFirst("\"timestamp\":\"" + now + "\"");
+			return REQUEST_ID.matcher(fresh).replaceFirst("\"requestId\":\"EdwRequestId." + UUID.randomUUID() + "\"")
+					.getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	enum Outcome {
+		OK, ERROR, REJECTED
+	}
+
+	private interface Target {
+		Outcome send(byte[] envelope) throws IOException;
+	}
+
+	/**
+	 * Calls the Lambda handler directly; one handler per worker thread, as
+	 * Lambda runs one request per container at a time.
+	 */
+	private static final class InProcessTarget implements Target {
+
+		private final ThreadLocal<CpgSpeechletRequestStreamHandler> handlers = new ThreadLocal<CpgSpeechletRequestStreamHandler>() {
+			@Override
+			protected CpgSpeechletRequestStreamHandler initialValue() {
+				return new CpgSpeechletRequestStreamHandler();
+			}
+		};
+
+		@Override
+		public Outcome send(byte[] envelope) throws IOException {
+			handlers.get().handleRequest(new ByteArrayInputStream(envelope), new ByteArrayOutputStream(512), null);
+			return Outcome.OK;
+		}
+	}
+
+	/**
+	 * Posts to a {@link SkillServer}. Connections are kept alive by
+	 * {@link HttpURLConnection} as long as every response is read to the end.
+	 */
+	private static final class HttpTarget implements Target {
+
+		private final URL url;
+
+		HttpTarget(URL url) {
+			this.url = url;
+		}
+
+		@Override
+		public Outcome send(byte[] envelope) throws IOException {
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+			connection.setFixedLengthStreamingMode(envelope.length);
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(envelope);
+			}
+			int status = connection.getResponseCode();
+			InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (in != null) {
+				try {
+					byte[] buffer = new byte[4096];
+					while (in.read(buffer) >= 0) {
+						// drain so the connection can be reused
+					}
+				} finally {
+					in.close();
+				}
+			}
+			if (status == HttpURLConnection.HTTP_OK) {
+				return Outcome.OK;
+			}
+			return status == HttpURLConnection.HTTP_UNAVAILABLE ? Outcome.REJECTED : Outcome.ERROR;
+		}
+	}
+
+	/**
+	 * Latencies and outcomes of one intent.
+	 */
+	private static final class Stats {
+
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		final LongAdder ok = new LongAdder();
+
+		final LongAdder errors = new LongAdder();
+
+		final LongAdder rejected = new LongAdder();
+
+		void record(Outcome outcome, long nanos) {
+			latency.recordNanos(nanos);
+			switch (outcome) {
+			case OK:
+				ok.increment();
+				break;
+			case REJECTED:
+				rejected.increment();
+				break;
+			default:
+				errors.increment();
+			}
+		}
+
+		/**
+		 * Drains the histogram; call once at the end of a run.
+		 */
+		Snapshot snapshot() {
+			return new Snapshot(latency.drain(), ok.sum(), errors.sum(), rejected.sum());
+		}
+
+		static final class Snapshot {
+
+			final LatencyHistogram.Snapshot latency;
+
+			final long requests;
+
+			final long ok;
+
+			final long errors;
+
+			final long rejected;
+
+			Snapshot(LatencyHistogram.Snapshot latency, long ok, long errors, long rejected) {
+				this.latency = latency;
+				this.ok = ok;
+				this.errors = errors;
+				this.rejected = rejected;
+				this.requests = ok + errors + rejected;
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package cpg;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Embedded stand-in for the SQL Server database, for running, benchmarking
+ * and load testing the skill offline.
+ *
+ * <p>
+ * An H2 database in SQL Server compatibility mode holds a
+ * {@code [dbo].[VIEW_TABLEAU_PEA_DEMO]} table with the columns the skill
+ * queries and ranks by, filled by {@link PromotionDataGenerator}.
+ * Identifiers and string comparisons are case insensitive, like the
+ * server's default collation. By default the database is in memory; set
+ * {@code cpg.local.path} to keep it in a file, which is needed beyond a few
+ * million rows and lets other processes attach to it while it is open.
+ *
+ * <p>
+ * With {@code cpg.local=true} the skill starts it on first use and points
+ * the {@code cpg.jdbc.*} settings at it. H2 is a provided dependency, so
+ * local runs need it on the classpath (e.g.
+ * {@code mvn exec:java -Dexec.classpathScope=compile}).
+ */
+public final class LocalDatabase {
+	private static final Logger log = LoggerFactory.getLogger(LocalDatabase.class);
+
+	static final String DRIVER = "org.h2.Driver";
+
+	private static final String OPTIONS = ";MODE=MSSQLServer;DATABASE_TO_UPPER=FALSE;"
+			+ "CASE_INSENSITIVE_IDENTIFIERS=TRUE;IGNORECASE=TRUE";
+
+	static final String USER = "sa";
+
+	static final String PASSWORD = "local";
+
+	private static String skillUrl;
+
+	private LocalDatabase() {
+	}
+
+	/**
+	 * @return the URL of a named in-memory database that lives until the JVM
+	 *         exits
+	 */
+	public static String memoryUrl(String name) {
+		return "jdbc:h2:mem:" + name + OPTIONS + ";DB_CLOSE_DELAY=-1";
+	}
+
+	/**
+	 * @return the URL of a file database at {@code path} (without extension)
+	 *         that other processes can attach to
+	 */
+	public static String fileUrl(String path) {
+		return "jdbc:h2:file:" + path + OPTIONS + ";AUTO_SERVER=TRUE";
+	}
+
+	/**
+	 * Starts the database for the skill from the {@code cpg.local.*} settings
+	 * and points {@code cpg.jdbc.*} at it. Generates {@code cpg.local.rows} rows
+	 * (default 100000) if the table is empty. With {@code cpg.local.replicas}
+	 * above 1, as many databases with the same rows stand in for read
+	 * replicas in {@code cpg.jdbc.replicas}. Repeated calls are no-ops.
+	 *
+	 * @return the JDBC URL of the first database
+	 */
+	public static synchronized String startForSkill() throws SQLException {
+		if (skillUrl == null) {
+			String path = SkillConfig.get("cpg.local.path", null);
+			String url = path == null ? memoryUrl("cpg") : fileUrl(path);
+			long rows = SkillConfig.getLong("cpg.local.rows", 100000);
+			start(url, rows, new PromotionDataGenerator());
+			StringBuilder replicas = new StringBuilder(url);
+			for (int i = 1; i < SkillConfig.getInt("cpg.local.replicas", 1); i++) {
+				String replica = path == null ? memoryUrl("cpg-replica-" + i) : fileUrl(path + "-replica-" + i);
+				start(replica, rows, new PromotionDataGenerator());
+				replicas.append(',').append(replica);
+			}
+
+			System.setProperty("cpg.jdbc.driver", DRIVER);
+			System.setProperty("cpg.jdbc.url", url);
+			if (replicas.length() > url.length()) {
+				System.setProperty("cpg.jdbc.replicas", replicas.toString());
+			}
+			System.setProperty("cpg.jdbc.username", USER);
+			System.setProperty("cpg.jdbc.password", PASSWORD);
+			skillUrl = url;
+		}
+		return skillUrl;
+	}
+
+	/**
+	 * Creates the schema at {@code url} if needed and fills an empty table with
+	 * {@code rows} generated rows.
+	 */
+	public static void start(String url, long rows, PromotionDataGenerator generator) throws SQLException {
+		try {
+			Class.forName(DRIVER);
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("H2 is not on the classpath; local mode needs com.h2database:h2", e);
+		}
+
+		try (Connection con = DriverManager.getConnection(url, USER, PASSWORD)) {
+			createSchema(con);
+			long existing = rowCount(con);
+			if (existing == 0 && rows > 0) {
+				long start = System.currentTimeMillis();
+				generator.insertInto(con, rows, 5000);
+				log.info("Generated {} promotion rows into {} in {} ms", rows, url,
+						System.currentTimeMillis() - start);
+			} else {
+				log.info("Using {} existing promotion rows in {}", existing, url);
+			}
+		}
+	}
+
+	static void createSchema(Connection con) throws SQLException {
+		try (Statement ddl = con.createStatement()) {
+			ddl.execute("create schema if not exists [dbo]");
+			ddl.execute("create table if not exists " + MetricQuery.VIEW + " ([PromotionStartDate] date, "
+					+ "TotalTradeSpendSellOut decimal(18,2), GrossProfitSellOut decimal(18,2), "
+					+ "ProdLevel4Name varchar(100), CustCustomerName varchar(100), ProdLevel5Name varchar(100), "
+					+ "PromotionName varchar(200))");
+			// file databases created before the ranking columns existed
+			ddl.execute("alter table " + MetricQuery.VIEW + " add column if not exists ProdLevel5Name varchar(100)");
+			ddl.execute("alter table " + MetricQuery.VIEW + " add column if not exists PromotionName varchar(200)");
+		}
+	}
+
+	static long rowCount(Connection con) throws SQLException {
+		try (Statement stmt = con.createStatement();
+				ResultSet rs = stmt.executeQuery("select count(*) from " + MetricQuery.VIEW)) {
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+
+	/**
+	 * Creates or fills a file database for load tests and benchmarks.
+	 *
+	 * <pre>
+	 * LocalDatabase &lt;path&gt; &lt;rows&gt;
+	 * </pre>
+	 *
+	 * Seed, skew and dimension counts come from the {@code cpg.local.*}
+	 * settings.
+	 */
+	public static void main(String[] args) throws SQLException {
+		if (args.length < 2) {
+			System.err.println("usage: LocalDatabase <path> <rows>");
+			System.exit(2);
+		}
+		start(fileUrl(args[0]), Long.parseLong(args[1]), new PromotionDataGenerator());
+	}
+}
@@ -0,0 +1,91 @@
+package cpg;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Locale;
+
+/**
+ * The aggregate metrics the skill can answer, with the SQL expression that
+ * computes each of them over {@code [dbo].[VIEW_TABLEAU_PEA_DEMO]}.
+ */
+public enum Metric {
+
+	TOTAL_TRADE_SPEND("Total Trade Spend", "CAST(sum(TotalTradeSpendSellOut) AS decimal(15,0))", 0),
+
+	TOTAL_GROSS_PROFIT("Total Gross Profit", "CAST(sum(GrossProfitSellOut) AS decimal(15,0))", 0),
+
+	TOTAL_ROI("Total ROI",
+			"CAST(sum(GrossProfitSellOut) / NULLIF(sum(TotalTradeSpendSellOut), 0) * 100 AS decimal(10,1))", 1);
+
+	private final String displayName;
+
+	private final String selectExpression;
+
+	private final int scale;
+
+	private Metric(String displayName, String selectExpression, int scale) {
+		this.displayName = displayName;
+		this.selectExpression = selectExpression;
+		this.scale = scale;
+	}
+
+	/**
+	 * @return the name used in speech and card output, e.g. "Total ROI"
+	 */
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	/**
+	 * @return the aggregate SQL expression computing this metric
+	 */
+	public String getSelectExpression() {
+		return selectExpression;
+	}
+
+	/**
+	 * Computes this metric from the two base sums, the way
+	 * {@link #getSelectExpression()} does on the server.
+	 *
+	 * @return the metric value, NaN if it is undefined (ROI without spend)
+	 */
+	public double compute(double tradeSpend, double grossProfit) {
+		switch (this) {
+		case TOTAL_TRADE_SPEND:
+			return tradeSpend;
+		case TOTAL_GROSS_PROFIT:
+			return grossProfit;
+		default:
+			return tradeSpend == 0.0 ? Double.NaN : grossProfit / tradeSpend * 100;
+		}
+	}
+
+	/**
+	 * Formats a value with the scale the server casts this metric to, so
+	 * answers computed in memory read exactly like the ones from SQL.
+	 */
+	public String format(double value) {
+		return new BigDecimal(value).setScale(scale, RoundingMode.HALF_UP).toPlainString();
+	}
+
+	/**
+	 * Maps a {@code METRIC} slot value such as "ROI", "gross profit" or
+	 * "trade spend" to a metric.
+	 *
+	 * @return the metric, or null if the value names none
+	 */
+	public static Metric fromSlot(String value) {
+		if (value == null) {
+			return null;
+		}
+		String v = value.toLowerCase(Locale.ROOT);
+		if (v.contains("roi") || v.contains("return")) {
+			return TOTAL_ROI;
+		} else if (v.contains("profit")) {
+			return TOTAL_GROSS_PROFIT;
+		} else if (v.contains("spend")) {
+			return TOTAL_TRADE_SPEND;
+		}
+		return null;
+	}
+}
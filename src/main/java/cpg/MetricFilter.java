@@ -0,0 +1,125 @@
+package cpg;
+
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The year/brand/customer filter of a metric request, normalized from the
+ * {@code YEARNO}, {@code BRAND} and {@code CUSTOMER} slot values. Brand and
+ * customer are trimmed and upper-cased (the view is queried with a case
+ * insensitive collation), an empty or non-numeric year counts as absent. A
+ * year outside {@link #MIN_YEAR}..{@link #MAX_YEAR}, which no date in the
+ * view has, makes a filter that {@link #matchesNothing() matches nothing}.
+ * Instances are immutable and usable as map keys.
+ */
+public final class MetricFilter {
+
+	public static final int YEAR = 1;
+
+	public static final int BRAND = 2;
+
+	public static final int CUSTOMER = 4;
+
+	public static final int MIN_YEAR = 1900;
+
+	/** The last year whose following January 1st is a valid SQL Server date. */
+	public static final int MAX_YEAR = 9998;
+
+	public static final MetricFilter ALL = new MetricFilter(null, null, null, false);
+
+	private final Integer year;
+
+	private final String brand;
+
+	private final String customer;
+
+	private final boolean matchesNothing;
+
+	private MetricFilter(Integer year, String brand, String customer, boolean matchesNothing) {
+		this.year = year;
+		this.brand = brand;
+		this.customer = customer;
+		this.matchesNothing = matchesNothing;
+	}
+
+	/**
+	 * Builds a filter from raw slot values, any of which may be null or empty.
+	 */
+	public static MetricFilter of(String year, String brand, String customer) {
+		Integer y = null;
+		if (StringUtils.isNotBlank(year)) {
+			try {
+				y = Integer.valueOf(year.trim());
+			} catch (NumberFormatException e) {
+				y = null;
+			}
+		}
+		return valueOf(y, brand, customer);
+	}
+
+	public static MetricFilter valueOf(Integer year, String brand, String customer) {
+		boolean outOfRange = year != null && (year.intValue() < MIN_YEAR || year.intValue() > MAX_YEAR);
+		return new MetricFilter(outOfRange ? null : year, normalize(brand), normalize(customer), outOfRange);
+	}
+
+	static String normalize(String value) {
+		return StringUtils.isBlank(value) ? null : value.trim().toUpperCase(Locale.ROOT);
+	}
+
+	public Integer getYear() {
+		return year;
+	}
+
+	public String getBrand() {
+		return brand;
+	}
+
+	public String getCustomer() {
+		return customer;
+	}
+
+	/**
+	 * @return true if the year is out of range, so that no row can match and
+	 *         the filter must not be queried
+	 */
+	public boolean matchesNothing() {
+		return matchesNothing;
+	}
+
+	/**
+	 * @return which filters are set, as a combination of {@link #YEAR},
+	 *         {@link #BRAND} and {@link #CUSTOMER}
+	 */
+	public int mask() {
+		return (year != null ? YEAR : 0) | (brand != null ? BRAND : 0) | (customer != null ? CUSTOMER : 0);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof MetricFilter)) {
+			return false;
+		}
+		MetricFilter other = (MetricFilter) o;
+		return (year == null ? other.year == null : year.equals(other.year))
+				&& (brand == null ? other.brand == null : brand.equals(other.brand))
+				&& (customer == null ? other.customer == null : customer.equals(other.customer))
+				&& matchesNothing == other.matchesNothing;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = year == null ? 0 : year.intValue();
+		h = 31 * h + (brand == null ? 0 : brand.hashCode());
+		h = 31 * h + (customer == null ? 0 : customer.hashCode());
+		return matchesNothing ? ~h : h;
+	}
+
+	@Override
+	public String toString() {
+		return (matchesNothing ? "year=out of range" : "year=" + year) + " brand=" + brand + " customer=" + customer;
+	}
+}
@@ -0,0 +1,47 @@
+package cpg;
+
+/**
+ * Identifies one metric answer: a metric together with its normalized
+ * year/brand/customer filter.
+ */
+public final class MetricKey {
+
+	private final Metric metric;
+
+	private final MetricFilter filter;
+
+	public MetricKey(Metric metric, MetricFilter filter) {
+		this.metric = metric;
+		this.filter = filter;
+	}
+
+	public Metric getMetric() {
+		return metric;
+	}
+
+	public MetricFilter getFilter() {
+		return filter;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof MetricKey)) {
+			return false;
+		}
+		MetricKey other = (MetricKey) o;
+		return metric == other.metric && filter.equals(other.filter);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * metric.hashCode() + filter.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return metric + " " + filter;
+	}
+}
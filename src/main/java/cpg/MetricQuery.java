@@ -0,0 +1,112 @@
+package cpg;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parameterized SQL for the metric queries. There is one template per metric
+ * and combination of filters, built once, so that every brand, customer or
+ * year reuses the same prepared statement and the same server side plan
+ * instead of compiling a new ad-hoc statement per slot value.
+ *
+ * <p>
+ * The year filter is a half-open date range on {@code PromotionStartDate}
+ * rather than {@code datepart(yyyy, ...)}, which lets the server seek on the
+ * column instead of evaluating the function for every row.
+ */
+public final class MetricQuery {
+
+	static final String VIEW = "[dbo].[VIEW_TABLEAU_PEA_DEMO]";
+
+	private static final String[][] TEMPLATES = new String[Metric.values().length][8];
+
+	static {
+		for (Metric metric : Metric.values()) {
+			for (int mask = 0; mask < 8; mask++) {
+				TEMPLATES[metric.ordinal()][mask] = "select " + metric.getSelectExpression() + " from " + VIEW
+						+ whereClause(mask);
+			}
+		}
+	}
+
+	private MetricQuery() {
+	}
+
+	/**
+	 * @return the parameterized SQL for the metric restricted by the filters
+	 *         present in {@code filter}
+	 */
+	public static String sql(Metric metric, MetricFilter filter) {
+		return TEMPLATES[metric.ordinal()][filter.mask()];
+	}
+
+	/**
+	 * Builds the where clause for a filter mask, with one placeholder per
+	 * bound value in the order {@link #bind} sets them.
+	 */
+	static String whereClause(int mask) {
+		StringBuilder where = new StringBuilder();
+		if ((mask & MetricFilter.YEAR) != 0) {
+			where.append(" where [PromotionStartDate] >= ? and [PromotionStartDate] < ?");
+		}
+		if ((mask & MetricFilter.BRAND) != 0) {
+			where.append(where.length() == 0 ? " where " : " and ").append("ProdLevel4Name = ?");
+		}
+		if ((mask & MetricFilter.CUSTOMER) != 0) {
+			where.append(where.length() == 0 ? " where " : " and ").append("CustCustomerName = ?");
+		}
+		return where.toString();
+	}
+
+	/**
+	 * Binds the filter values to a statement prepared from {@link #sql}.
+	 *
+	 * @return the next free parameter index
+	 */
+	public static int bind(PreparedStatement ps, MetricFilter filter) throws SQLException {
+		return bind(ps, filter, 1);
+	}
+
+	static int bind(PreparedStatement ps, MetricFilter filter, int index) throws SQLException {
+		if (filter.getYear() != null) {
+			int year = filter.getYear().intValue();
+			ps.setDate(index++, yearStart(year));
+			ps.setDate(index++, yearStart(year + 1));
+		}
+		if (filter.getBrand() != null) {
+			ps.setString(index++, filter.getBrand());
+		}
+		if (filter.getCustomer() != null) {
+			ps.setString(index++, filter.getCustomer());
+		}
+		return index;
+	}
+
+	/**
+	 * @return the filter values in the order {@link #bind} sets them, for
+	 *         statements that bind their own parameters first
+	 */
+	static List<Object> parameters(MetricFilter filter) {
+		List<Object> parameters = new ArrayList<Object>(4);
+		if (filter.getYear() != null) {
+			int year = filter.getYear().intValue();
+			parameters.add(yearStart(year));
+			parameters.add(yearStart(year + 1));
+		}
+		if (filter.getBrand() != null) {
+			parameters.add(filter.getBrand());
+		}
+		if (filter.getCustomer() != null) {
+			parameters.add(filter.getCustomer());
+		}
+		return parameters;
+	}
+
+	static Date yearStart(int year) {
+		return Date.valueOf(LocalDate.of(year, 1, 1));
+	}
+}
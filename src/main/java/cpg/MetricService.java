@@ -0,0 +1,526 @@
+package cpg;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers metric requests for the speechlet. Values come from the in-memory
+ * {@link AggregateCube} when it is loaded and otherwise from the
+ * parameterized query on {@link ConnectionUtil}, behind a {@link ResultCache}.
+ *
+ * <p>
+ * When a {@link CubeSnapshot} is configured, a cold container maps it
+ * synchronously, which takes milliseconds, and picks up a replaced snapshot
+ * file on later requests. Otherwise, or when the snapshot is older than
+ * {@code cpg.cube.maxAgeMillis}, the cube is loaded from the database in the
+ * background while requests are served from the database. Once loaded, a
+ * {@link CubeRefresher} keeps it current by re-reading only recent
+ * promotions.
+ *
+ * <p>
+ * Several metrics for one request are queried concurrently on a bounded
+ * executor, on virtual threads where the JVM has them, see
+ * {@link #values(Metric[], MetricFilter, Deadline)}.
+ *
+ * <p>
+ * Without the cube, a {@link CacheWarmer} fills the result cache for every
+ * filter combination with one scan per refresh window. With the cube it is
+ * off by default: the cube answers every such filter in memory already, and
+ * the warm would scan the view again every 15 minutes for nothing. Set
+ * {@code cpg.warmer.enabled} to run it anyway, e.g. while the cube loads. Queries that reach the database
+ * read the smallest covering {@link SummaryTables summary table}, which
+ * {@code cpg.summary.refresh} keeps current from this process.
+ *
+ * <p>
+ * With {@code cpg.dynamo.enabled}, a result cache miss asks the
+ * {@link SharedResultCache} before the database, and database answers are
+ * shared there for the other containers.
+ */
+public class MetricService {
+	private static final Logger log = LoggerFactory.getLogger(MetricService.class);
+
+	private final ConnectionUtil connUtil;
+
+	private final long cubeMaxAgeMillis;
+
+	private final boolean cubeEnabled;
+
+	private final AtomicBoolean cubeLoading = new AtomicBoolean();
+
+	private final ExecutorService loader;
+
+	private final CubeSnapshot snapshot;
+
+	private final CubeRefresher refresher;
+
+	private final ThreadPoolExecutor queryExecutor;
+
+	private final ResultCache<QueryResult> resultCache = new ResultCache<QueryResult>();
+
+	private final long refreshTimeoutMillis;
+
+	private final CacheWarmer warmer;
+
+	private final SummaryTables summaries;
+
+	private final Prefetcher prefetcher;
+
+	private final SharedResultCache sharedCache;
+
+	/**
+	 * Background refreshes are not bound to a request and get their own
+	 * budget.
+	 */
+	private final ResultCache.Loader<QueryResult> refreshLoader = new ResultCache.Loader<QueryResult>() {
+		@Override
+		public QueryResult load(MetricKey key) throws UnansweredException {
+			return loadAnswer(key, Deadline.after(refreshTimeoutMillis), true);
+		}
+	};
+
+	private volatile AggregateCube cube;
+
+	/**
+	 * Brand and customer dictionaries, and the cube they were taken from if
+	 * any; replaced together.
+	 */
+	private volatile Dictionaries dictionaries;
+
+	private final AtomicBoolean dictionariesLoading = new AtomicBoolean();
+
+	private final long dictionaryMaxAgeMillis;
+
+	public MetricService(ConnectionUtil connUtil) {
+		this.connUtil = connUtil;
+		this.cubeEnabled = SkillConfig.getBoolean("cpg.cube.enabled", true);
+		this.cubeMaxAgeMillis = SkillConfig.getLong("cpg.cube.maxAgeMillis", 60 * 60 * 1000L);
+		this.snapshot = cubeEnabled ? CubeSnapshot.fromConfig() : null;
+		this.refresher = new CubeRefresher(connUtil);
+		this.refreshTimeoutMillis = SkillConfig.getLong("cpg.cache.refreshTimeoutMillis", 10000);
+		this.dictionaryMaxAgeMillis = SkillConfig.getLong("cpg.dictionary.maxAgeMillis", 60 * 60 * 1000L);
+		this.loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cpg-cube-loader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.queryExecutor = newQueryExecutor();
+		this.warmer = new CacheWarmer(connUtil, resultCache);
+		this.prefetcher = new Prefetcher(connUtil, resultCache);
+		this.sharedCache = SharedResultCache.fromConfig();
+		if (SkillConfig.getBoolean("cpg.warmer.enabled", !cubeEnabled)) {
+			warmer.start();
+		}
+		this.summaries = new SummaryTables(connUtil);
+		if (SkillConfig.getBoolean("cpg.summary.refresh", false)) {
+			summaries.start();
+		}
+	}
+
+	/**
+	 * Fixed number of workers ({@code cpg.metrics.maxConcurrency}) behind a
+	 * bounded queue ({@code cpg.metrics.queueSize}), so a burst of combined
+	 * requests cannot pile up unbounded work behind the connection pool.
+	 */
+	private static ThreadPoolExecutor newQueryExecutor() {
+		int threads = SkillConfig.getInt("cpg.metrics.maxConcurrency", 8);
+		ThreadFactory factory = VirtualThreads.factory("cpg-metric-");
+		if (factory == null) {
+			factory = new ThreadFactory() {
+				private int count;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "cpg-metric-" + count++);
+					t.setDaemon(true);
+					return t;
+				}
+			};
+		}
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(SkillConfig.getInt("cpg.metrics.queueSize", 32)), factory);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Maps a new or replaced snapshot file, then starts loading the cube in the
+	 * background if it is still missing or stale.
+	 */
+	public void refreshCubeIfStale() {
+		if (snapshot != null) {
+			AggregateCube mapped = snapshot.openIfChanged();
+			if (mapped != null) {
+				AggregateCube previous = cube;
+				if (previous == null || mapped.getLoadedAt() >= previous.getLoadedAt()) {
+					cube = mapped;
+					log.info("Aggregate cube mapped from snapshot with {} cells", mapped.size());
+				}
+			}
+		}
+
+		AggregateCube current = cube;
+		if (!cubeEnabled
+				|| (current != null && System.currentTimeMillis() - current.getLoadedAt() < cubeMaxAgeMillis)) {
+			return;
+		}
+		if (!cubeLoading.compareAndSet(false, true)) {
+			return;
+		}
+		loader.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long start = System.currentTimeMillis();
+					AggregateCube loaded = refresher.refresh(cube);
+					cube = loaded;
+					log.info("Aggregate cube refreshed with {} cells in {} ms, {}", loaded.size(),
+							System.currentTimeMillis() - start, refresher);
+				} catch (SQLException e) {
+					log.warn("Aggregate cube load failed, answering from the database: {}", e.getMessage());
+				} finally {
+					cubeLoading.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Resolves the brand and customer of a filter to the names in the view,
+	 * see {@link SlotDictionary}. Until the dictionaries are available the
+	 * filter is returned as it is.
+	 *
+	 * @return the filter with the resolved names, or null if the brand or
+	 *         customer is not in the view or the year is out of range, and
+	 *         nothing can match
+	 */
+	public MetricFilter resolve(MetricFilter filter) {
+		if (filter.matchesNothing()) {
+			return null;
+		}
+		if (filter.getBrand() == null && filter.getCustomer() == null) {
+			return filter;
+		}
+		Dictionaries current = dictionaries();
+		if (current == null) {
+			return filter;
+		}
+		String brand = filter.getBrand();
+		if (brand != null) {
+			int id = current.brands.resolve(brand);
+			if (id == SlotDictionary.NOT_FOUND) {
+				log.debug("Unknown brand {}", brand);
+				return null;
+			}
+			brand = current.brands.name(id);
+		}
+		String customer = filter.getCustomer();
+		if (customer != null) {
+			int id = current.customers.resolve(customer);
+			if (id == SlotDictionary.NOT_FOUND) {
+				log.debug("Unknown customer {}", customer);
+				return null;
+			}
+			customer = current.customers.name(id);
+		}
+		return MetricFilter.valueOf(filter.getYear(), brand, customer);
+	}
+
+	/**
+	 * @return the dictionaries of the current cube; without a cube, the ones
+	 *         loaded from the view, starting a load when they are missing or
+	 *         older than {@code cpg.dictionary.maxAgeMillis}
+	 */
+	private Dictionaries dictionaries() {
+		Dictionaries current = dictionaries;
+		AggregateCube currentCube = cube;
+		if (currentCube != null) {
+			if (current == null || current.cube != currentCube) {
+				current = new Dictionaries(SlotDictionary.of(currentCube.brands()),
+						SlotDictionary.of(currentCube.customers()), currentCube, System.currentTimeMillis());
+				dictionaries = current;
+			}
+			return current;
+		}
+		if ((current == null || System.currentTimeMillis() - current.loadedAt >= dictionaryMaxAgeMillis)
+				&& dictionariesLoading.compareAndSet(false, true)) {
+			loader.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						long start = System.currentTimeMillis();
+						dictionaries = new Dictionaries(SlotDictionary.load(connUtil, "ProdLevel4Name"),
+								SlotDictionary.load(connUtil, "CustCustomerName"), null, start);
+						log.info("Slot dictionaries loaded in {} ms", System.currentTimeMillis() - start);
+					} catch (SQLException e) {
+						log.warn("Slot dictionary load failed, filters are not resolved: {}", e.getMessage());
+					} finally {
+						dictionariesLoading.set(false);
+					}
+				}
+			});
+		}
+		return current;
+	}
+
+	private static final class Dictionaries {
+
+		final SlotDictionary brands;
+
+		final SlotDictionary customers;
+
+		final AggregateCube cube;
+
+		final long loadedAt;
+
+		Dictionaries(SlotDictionary brands, SlotDictionary customers, AggregateCube cube, long loadedAt) {
+			this.brands = brands;
+			this.customers = customers;
+			this.cube = cube;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	/**
+	 * Starts loading the answers users ask for most into the result cache,
+	 * e.g. when a session starts; nothing to do while the cube answers.
+	 */
+	public void prefetch() {
+		if (cube == null) {
+			prefetcher.prefetch();
+		}
+	}
+
+	/**
+	 * Answers a metric within a request's deadline. When the database cannot
+	 * answer, the last cached value is used regardless of its age; only
+	 * without one is the failure returned. A brand or customer that is not
+	 * in the view is answered with no data right away, see
+	 * {@link #resolve(MetricFilter)}.
+	 */
+	public QueryResult result(Metric metric, MetricFilter filter, Deadline deadline) {
+		MetricFilter resolved = resolve(filter);
+		if (resolved == null) {
+			deadline.recordLookup(true);
+			return QueryResult.noData();
+		}
+		return result(metric, resolved, deadline, true);
+	}
+
+	/**
+	 * @param askShared
+	 *            false if the shared cache was already asked for this request
+	 */
+	private QueryResult result(Metric metric, MetricFilter filter, final Deadline deadline, final boolean askShared) {
+		AggregateCube current = cube;
+		if (current != null) {
+			deadline.recordLookup(true);
+			double value = current.value(metric, filter);
+			return Double.isNaN(value) ? QueryResult.noData() : QueryResult.ok(metric.format(value));
+		}
+
+		MetricKey key = new MetricKey(metric, filter);
+		prefetcher.record(key);
+		final boolean[] loaded = { false };
+		try {
+			return resultCache.get(key, new ResultCache.Loader<QueryResult>() {
+				@Override
+				public QueryResult load(MetricKey key) throws UnansweredException {
+					loaded[0] = true;
+					// a request is waiting for the database now; speculative work yields
+					prefetcher.cancel();
+					return loadAnswer(key, deadline, askShared);
+				}
+			}, refreshLoader);
+		} catch (UnansweredException e) {
+			return cachedOr(key, e.result);
+		} catch (Exception e) {
+			log.warn("Metric lookup failed for {} {}: {}", metric, filter, e.getMessage());
+			return cachedOr(key, QueryResult.error());
+		} finally {
+			deadline.recordLookup(!loaded[0]);
+		}
+	}
+
+	/**
+	 * Loads an answer the result cache does not have fresh: from the shared
+	 * cache if another container has it, otherwise from the database, sharing
+	 * the answer.
+	 */
+	private QueryResult loadAnswer(MetricKey key, Deadline deadline, boolean askShared) throws UnansweredException {
+		if (sharedCache != null && askShared) {
+			QueryResult shared = sharedCache.get(key, deadline);
+			if (shared != null) {
+				return shared;
+			}
+		}
+		QueryResult result = answered(connUtil.queryMetric(key.getMetric(), key.getFilter(), deadline));
+		if (sharedCache != null) {
+			sharedCache.putAsync(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Fills the result cache from the shared cache for the metrics it does
+	 * not have fresh, with one batched lookup instead of one per metric.
+	 *
+	 * @return true if the shared cache was asked
+	 */
+	private boolean loadShared(Metric[] metrics, MetricFilter filter, Deadline deadline) {
+		List<MetricKey> missing = new ArrayList<MetricKey>(metrics.length);
+		for (Metric metric : metrics) {
+			MetricKey key = new MetricKey(metric, filter);
+			if (!resultCache.isFresh(key)) {
+				missing.add(key);
+			}
+		}
+		if (missing.size() < 2) {
+			// a single miss is looked up on the way to the database
+			return false;
+		}
+		for (Map.Entry<MetricKey, QueryResult> entry : sharedCache.getAll(missing, deadline).entrySet()) {
+			resultCache.put(entry.getKey(), entry.getValue());
+		}
+		return true;
+	}
+
+	/**
+	 * Answers several metrics for one filter within a deadline. From the cube
+	 * they are computed in place; otherwise the queries run concurrently.
+	 * A metric whose query fails, is rejected or does not finish before the
+	 * deadline is answered with the last cached value regardless of its age,
+	 * or with the failure when there is none. Queries still running at the
+	 * deadline are not interrupted, so their results land in the cache for the
+	 * next request. The filter is resolved like for
+	 * {@link #result(Metric, MetricFilter, Deadline)}.
+	 *
+	 * @return the results by metric, in {@link Metric} order
+	 */
+	public Map<Metric, QueryResult> values(Metric[] metrics, MetricFilter requested, final Deadline deadline) {
+		Map<Metric, QueryResult> values = new EnumMap<Metric, QueryResult>(Metric.class);
+		final MetricFilter filter = resolve(requested);
+		if (filter == null) {
+			for (Metric metric : metrics) {
+				deadline.recordLookup(true);
+				values.put(metric, QueryResult.noData());
+			}
+			return values;
+		}
+		if (cube != null) {
+			for (Metric metric : metrics) {
+				values.put(metric, result(metric, filter, deadline, true));
+			}
+			return values;
+		}
+		final boolean askShared = sharedCache != null && !loadShared(metrics, filter, deadline);
+
+		Map<Metric, Future<QueryResult>> pending = new EnumMap<Metric, Future<QueryResult>>(Metric.class);
+		for (final Metric metric : metrics) {
+			try {
+				pending.put(metric, queryExecutor.submit(new Callable<QueryResult>() {
+					@Override
+					public QueryResult call() {
+						return result(metric, filter, deadline, askShared);
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				log.warn("Metric executor saturated, answering {} from the cache", metric);
+				values.put(metric, cachedOr(new MetricKey(metric, filter), QueryResult.rejected()));
+			}
+		}
+
+		for (Map.Entry<Metric, Future<QueryResult>> entry : pending.entrySet()) {
+			Metric metric = entry.getKey();
+			Future<QueryResult> future = entry.getValue();
+			MetricKey key = new MetricKey(metric, filter);
+			try {
+				values.put(metric, future.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS));
+			} catch (TimeoutException e) {
+				future.cancel(false);
+				log.warn("{} missed the request deadline for {}", metric, filter);
+				values.put(metric, cachedOr(key, QueryResult.timeout()));
+			} catch (ExecutionException e) {
+				log.warn("Metric query failed for {} {}: {}", metric, filter, e.getCause().getMessage());
+				values.put(metric, cachedOr(key, QueryResult.error()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				future.cancel(false);
+				values.put(metric, cachedOr(key, QueryResult.timeout()));
+			}
+		}
+		return values;
+	}
+
+	private QueryResult cachedOr(MetricKey key, QueryResult failure) {
+		QueryResult cached = resultCache.peek(key);
+		return cached != null ? cached : failure;
+	}
+
+	/**
+	 * Only answers are cached; a failure is thrown so the cache keeps what it
+	 * had.
+	 */
+	private static QueryResult answered(QueryResult result) throws UnansweredException {
+		if (!result.isAnswered()) {
+			throw new UnansweredException(result);
+		}
+		return result;
+	}
+
+	private static final class UnansweredException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		final QueryResult result;
+
+		UnansweredException(QueryResult result) {
+			super("metric query " + result.getStatus());
+			this.result = result;
+		}
+	}
+
+	/**
+	 * @return the counters of the result cache in front of the database
+	 */
+	public CacheStats getCacheStats() {
+		return resultCache.stats();
+	}
+
+	/**
+	 * @return the shared cache, or null when it is disabled
+	 */
+	public SharedResultCache getSharedCache() {
+		return sharedCache;
+	}
+
+	public Prefetcher getPrefetcher() {
+		return prefetcher;
+	}
+
+	/**
+	 * @return the loaded cube, or null while it is not available
+	 */
+	public AggregateCube getCube() {
+		return cube;
+	}
+}
@@ -0,0 +1,11 @@
+package cpg;
+
+/**
+ * Receives the rows of a streamed numeric query as primitives. Every column
+ * is read with {@code getDouble}, SQL NULL becomes NaN, and the same array is
+ * passed for every row, so implementations must copy what they keep.
+ */
+public interface NumericRowHandler {
+
+	void handleRow(double[] columns);
+}
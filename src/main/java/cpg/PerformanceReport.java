@@ -0,0 +1,170 @@
+package cpg;
+
+/**
+ * Counters of a {@link PromotionPerformanceAnalyzer} run: how many promotions
+ * fell short of or beat the thresholds, plus a histogram of their ROI in
+ * {@link #BUCKET_WIDTH} percent buckets. Partial reports of parallel chunks
+ * are combined with {@link #merge(PerformanceReport)}; only the finished
+ * report is shared, and it is not modified afterwards.
+ */
+public final class PerformanceReport {
+
+	/** Width of a histogram bucket in ROI percent. */
+	public static final int BUCKET_WIDTH = 25;
+
+	/** Buckets up to 500 % ROI; the last one holds everything above. */
+	public static final int BUCKETS = 21;
+
+	private QueryResult.Status status = QueryResult.Status.OK;
+
+	private long promotions;
+
+	private long underPerforming;
+
+	private long overPerforming;
+
+	private long withoutSpend;
+
+	private double tradeSpend;
+
+	private double grossProfit;
+
+	private final long[] roiHistogram = new long[BUCKETS];
+
+	private long computedAt;
+
+	PerformanceReport() {
+	}
+
+	static PerformanceReport failed(QueryResult.Status status) {
+		PerformanceReport report = new PerformanceReport();
+		report.status = status;
+		return report;
+	}
+
+	void add(double spend, double profit, boolean under, boolean over) {
+		promotions++;
+		tradeSpend += spend;
+		grossProfit += profit;
+		if (under) {
+			underPerforming++;
+		}
+		if (over) {
+			overPerforming++;
+		}
+		if (spend == 0.0) {
+			withoutSpend++;
+		} else {
+			int bucket = (int) Math.floor(profit / spend * 100 / BUCKET_WIDTH);
+			roiHistogram[Math.max(0, Math.min(bucket, BUCKETS - 1))]++;
+		}
+	}
+
+	void merge(PerformanceReport other) {
+		promotions += other.promotions;
+		underPerforming += other.underPerforming;
+		overPerforming += other.overPerforming;
+		withoutSpend += other.withoutSpend;
+		tradeSpend += other.tradeSpend;
+		grossProfit += other.grossProfit;
+		for (int i = 0; i < BUCKETS; i++) {
+			roiHistogram[i] += other.roiHistogram[i];
+		}
+	}
+
+	void setComputedAt(long computedAt) {
+		this.computedAt = computedAt;
+	}
+
+	/**
+	 * @return {@code OK}, {@code NO_DATA} without promotions, or why the scan
+	 *         did not complete
+	 */
+	public QueryResult.Status getStatus() {
+		return status == QueryResult.Status.OK && promotions == 0 ? QueryResult.Status.NO_DATA : status;
+	}
+
+	public long getPromotions() {
+		return promotions;
+	}
+
+	public long getUnderPerforming() {
+		return underPerforming;
+	}
+
+	public long getOverPerforming() {
+		return overPerforming;
+	}
+
+	/**
+	 * @return promotions without trade spend, which have no ROI and are left
+	 *         out of the histogram
+	 */
+	public long getWithoutSpend() {
+		return withoutSpend;
+	}
+
+	/**
+	 * @return the ROI over all promotions, NaN without spend
+	 */
+	public double getTotalRoi() {
+		return Metric.TOTAL_ROI.compute(tradeSpend, grossProfit);
+	}
+
+	/**
+	 * @return a copy of the ROI histogram; bucket {@code i} counts promotions
+	 *         with an ROI from {@code i * BUCKET_WIDTH} up to
+	 *         {@code (i + 1) * BUCKET_WIDTH} percent, negative ROIs are in
+	 *         bucket 0
+	 */
+	public long[] getRoiHistogram() {
+		return roiHistogram.clone();
+	}
+
+	/**
+	 * @return the lower bound of the histogram bucket holding the median ROI,
+	 *         or -1 without any ROI
+	 */
+	public int getMedianRoiBucket() {
+		long ranked = promotions - withoutSpend;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += roiHistogram[i];
+			if (ranked > 0 && seen * 2 >= ranked) {
+				return i * BUCKET_WIDTH;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the ROI range of the histogram bucket starting at
+	 *         {@code lowerBound} for display, e.g. "25-50%", or "no data" for
+	 *         the -1 of {@link #getMedianRoiBucket()}
+	 */
+	public static String bucketRange(int lowerBound) {
+		if (lowerBound < 0) {
+			return "no data";
+		}
+		if (lowerBound == 0) {
+			return "below " + BUCKET_WIDTH + "%";
+		}
+		if (lowerBound >= (BUCKETS - 1) * BUCKET_WIDTH) {
+			return lowerBound + "% or more";
+		}
+		return lowerBound + "-" + (lowerBound + BUCKET_WIDTH) + "%";
+	}
+
+	/**
+	 * @return the {@link System#currentTimeMillis()} the scan finished at
+	 */
+	public long getComputedAt() {
+		return computedAt;
+	}
+
+	@Override
+	public String toString() {
+		return "status=" + getStatus() + " promotions=" + promotions + " under=" + underPerforming + " over="
+				+ overPerforming + " withoutSpend=" + withoutSpend + " medianRoiBucket=" + getMedianRoiBucket();
+	}
+}
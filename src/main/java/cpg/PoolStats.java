@@ -0,0 +1,98 @@
+package cpg;
+
+/**
+ * Point-in-time view of a {@link ConnectionPool}, used to size the pool for
+ * peak skill traffic.
+ */
+public final class PoolStats {
+
+	private final int maxSize;
+
+	private final int active;
+
+	private final int idle;
+
+	private final long created;
+
+	private final long destroyed;
+
+	private final long borrows;
+
+	private final long borrowTimeouts;
+
+	private final long validationFailures;
+
+	private final long leakedStatements;
+
+	private final long totalWaitNanos;
+
+	private final long maxWaitNanos;
+
+	PoolStats(int maxSize, int active, int idle, long created, long destroyed, long borrows, long borrowTimeouts,
+			long validationFailures, long leakedStatements, long totalWaitNanos, long maxWaitNanos) {
+		this.maxSize = maxSize;
+		this.active = active;
+		this.idle = idle;
+		this.created = created;
+		this.destroyed = destroyed;
+		this.borrows = borrows;
+		this.borrowTimeouts = borrowTimeouts;
+		this.validationFailures = validationFailures;
+		this.leakedStatements = leakedStatements;
+		this.totalWaitNanos = totalWaitNanos;
+		this.maxWaitNanos = maxWaitNanos;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getActive() {
+		return active;
+	}
+
+	public int getIdle() {
+		return idle;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public long getDestroyed() {
+		return destroyed;
+	}
+
+	public long getBorrows() {
+		return borrows;
+	}
+
+	public long getBorrowTimeouts() {
+		return borrowTimeouts;
+	}
+
+	public long getValidationFailures() {
+		return validationFailures;
+	}
+
+	public long getLeakedStatements() {
+		return leakedStatements;
+	}
+
+	public double getAverageWaitMillis() {
+		return borrows == 0 ? 0.0 : totalWaitNanos / 1e6 / borrows;
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"active=%d idle=%d max=%d created=%d destroyed=%d borrows=%d timeouts=%d "
+						+ "validationFailures=%d leakedStatements=%d avgWaitMs=%.3f maxWaitMs=%.3f",
+				active, idle, maxSize, created, destroyed, borrows, borrowTimeouts, validationFailures,
+				leakedStatements, getAverageWaitMillis(), getMaxWaitMillis());
+	}
+}
@@ -0,0 +1,200 @@
+package cpg;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A physical connection owned by a {@link ConnectionPool}. Keeps the
+ * bookkeeping the pool needs to decide whether the connection can be handed
+ * out again, and tracks the statements created through it so that anything a
+ * caller forgot to close is closed when the connection goes back to the pool.
+ *
+ * <p>
+ * Prepared statements are cached per connection, keyed by SQL text, so a
+ * parameterized query is prepared once and then only re-bound. The cache is
+ * bounded and evicts the least recently used statement.
+ */
+public class PooledConnection implements AutoCloseable {
+
+	private final ConnectionPool pool;
+
+	private final Connection connection;
+
+	private final long createdAt;
+
+	private long lastUsedAt;
+
+	private boolean broken;
+
+	private volatile boolean inUse;
+
+	private final List<Statement> openStatements = new ArrayList<Statement>();
+
+	private final Map<String, PreparedStatement> statementCache;
+
+	PooledConnection(ConnectionPool pool, Connection connection, final int statementCacheSize) {
+		this.pool = pool;
+		this.connection = connection;
+		this.createdAt = System.nanoTime();
+		this.lastUsedAt = createdAt;
+		this.statementCache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > statementCacheSize) {
+					closeStatement(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the underlying JDBC connection
+	 */
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Creates a statement that is closed automatically on release if the
+	 * caller leaks it.
+	 */
+	public Statement createStatement() throws SQLException {
+		return track(connection.createStatement());
+	}
+
+	/**
+	 * Returns the cached prepared statement for {@code sql}, preparing it on
+	 * first use. The statement belongs to the cache: callers close the result
+	 * sets they open on it, but never the statement itself.
+	 */
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		PreparedStatement ps = statementCache.get(sql);
+		if (ps == null || ps.isClosed()) {
+			ps = connection.prepareStatement(sql);
+			statementCache.put(sql, ps);
+		} else {
+			ps.clearParameters();
+		}
+		return ps;
+	}
+
+	int cachedStatementCount() {
+		return statementCache.size();
+	}
+
+	<T extends Statement> T track(T statement) {
+		openStatements.add(statement);
+		return statement;
+	}
+
+	/**
+	 * Marks the connection as unusable, so the pool discards it on release
+	 * instead of handing it out again.
+	 */
+	public void markBroken() {
+		broken = true;
+	}
+
+	/**
+	 * Inspects a failure raised while using this connection and marks the
+	 * connection broken when the SQL state says the link itself is gone
+	 * (class 08, connection exception).
+	 */
+	public void checkFailure(SQLException e) {
+		String state = e.getSQLState();
+		if (state != null && state.startsWith("08")) {
+			markBroken();
+		}
+	}
+
+	boolean isInUse() {
+		return inUse;
+	}
+
+	void setInUse(boolean inUse) {
+		this.inUse = inUse;
+	}
+
+	boolean isBroken() {
+		return broken;
+	}
+
+	long getCreatedAt() {
+		return createdAt;
+	}
+
+	long getLastUsedAt() {
+		return lastUsedAt;
+	}
+
+	void touch() {
+		lastUsedAt = System.nanoTime();
+	}
+
+	/**
+	 * Closes statements that were not closed by the borrower.
+	 *
+	 * @return the number of leaked statements that had to be closed
+	 */
+	int closeLeakedStatements() {
+		int leaked = 0;
+		for (Statement statement : openStatements) {
+			try {
+				if (!statement.isClosed()) {
+					statement.close();
+					leaked++;
+				}
+			} catch (SQLException e) {
+				markBroken();
+			}
+		}
+		openStatements.clear();
+		return leaked;
+	}
+
+	private void closeStatement(Statement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			markBroken();
+		}
+	}
+
+	void closeQuietly() {
+		closeLeakedStatements();
+		for (PreparedStatement ps : statementCache.values()) {
+			closeStatement(ps);
+		}
+		statementCache.clear();
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// the connection is being discarded anyway
+		}
+	}
+
+	/**
+	 * Returns this connection to its pool.
+	 */
+	public void release() {
+		pool.release(this);
+	}
+
+	/**
+	 * Same as {@link #release()}, so borrowers can use try-with-resources.
+	 */
+	@Override
+	public void close() {
+		release();
+	}
+}
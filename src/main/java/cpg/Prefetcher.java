@@ -0,0 +1,266 @@
+package cpg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the metric answers users ask for most into the {@link ResultCache}
+ * when a session starts, so that the first question of the session is
+ * already answered by the time it arrives.
+ *
+ * <p>
+ * Which answers to load is learned from the lookups of live requests: each
+ * one is counted, and the counts are halved every
+ * {@code cpg.prefetch.decayAfter} lookups so the ranking follows recent
+ * usage. Until anything was counted the unfiltered totals are loaded.
+ *
+ * <p>
+ * A prefetch runs on one background thread and loads at most
+ * {@code cpg.prefetch.maxKeys} answers that are not fresh in the cache, one
+ * query at a time and no more often than every
+ * {@code cpg.prefetch.minIntervalMillis}. Its queries use a
+ * {@link Deadline#background background deadline}: they only run on an idle
+ * connection while nobody waits for one, so they never delay a request. The
+ * prefetch stops at the first query the pool cannot spare a connection for,
+ * and when {@link #cancel()} is called, which a live cache miss does.
+ */
+public class Prefetcher {
+	private static final Logger log = LoggerFactory.getLogger(Prefetcher.class);
+
+	private final ConnectionUtil connUtil;
+
+	private final ResultCache<QueryResult> resultCache;
+
+	private final boolean enabled;
+
+	private final int maxKeys;
+
+	private final int maxTrackedKeys;
+
+	private final int decayAfter;
+
+	private final long minIntervalNanos;
+
+	private final long queryTimeoutMillis;
+
+	private final ConcurrentHashMap<MetricKey, AtomicLong> counts = new ConcurrentHashMap<MetricKey, AtomicLong>();
+
+	private final AtomicInteger sinceDecay = new AtomicInteger();
+
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	private final AtomicInteger generation = new AtomicInteger();
+
+	private final AtomicLong lastStart = new AtomicLong();
+
+	private final AtomicLong loaded = new AtomicLong();
+
+	private final AtomicLong cancelled = new AtomicLong();
+
+	private final ThreadPoolExecutor executor;
+
+	public Prefetcher(ConnectionUtil connUtil, ResultCache<QueryResult> resultCache) {
+		this.connUtil = connUtil;
+		this.resultCache = resultCache;
+		this.enabled = SkillConfig.getBoolean("cpg.prefetch.enabled", true);
+		this.maxKeys = SkillConfig.getInt("cpg.prefetch.maxKeys", 6);
+		this.maxTrackedKeys = SkillConfig.getInt("cpg.prefetch.maxTrackedKeys", 512);
+		this.decayAfter = Math.max(1, SkillConfig.getInt("cpg.prefetch.decayAfter", 1000));
+		this.minIntervalNanos = TimeUnit.MILLISECONDS
+				.toNanos(SkillConfig.getLong("cpg.prefetch.minIntervalMillis", 10000));
+		this.queryTimeoutMillis = SkillConfig.getLong("cpg.prefetch.queryTimeoutMillis", 3000);
+		this.lastStart.set(System.nanoTime() - minIntervalNanos);
+		this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "cpg-prefetch");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Counts a lookup made for a request.
+	 */
+	public void record(MetricKey key) {
+		if (!enabled) {
+			return;
+		}
+		AtomicLong count = counts.get(key);
+		if (count == null) {
+			if (counts.size() >= maxTrackedKeys) {
+				decay();
+				if (counts.size() >= maxTrackedKeys) {
+					return;
+				}
+			}
+			AtomicLong created = new AtomicLong();
+			count = counts.putIfAbsent(key, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+		if (sinceDecay.incrementAndGet() >= decayAfter) {
+			decay();
+		}
+	}
+
+	/**
+	 * Halves every count and forgets the keys that drop to zero.
+	 */
+	private synchronized void decay() {
+		sinceDecay.set(0);
+		for (Map.Entry<MetricKey, AtomicLong> entry : counts.entrySet()) {
+			long value;
+			do {
+				value = entry.getValue().get();
+			} while (!entry.getValue().compareAndSet(value, value / 2));
+			if (value / 2 == 0) {
+				counts.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Starts a prefetch in the background unless one is running or the last
+	 * one started less than {@code cpg.prefetch.minIntervalMillis} ago.
+	 *
+	 * @return true if a prefetch was started
+	 */
+	public boolean prefetch() {
+		long last = lastStart.get();
+		long now = System.nanoTime();
+		if (!enabled || now - last < minIntervalNanos || !lastStart.compareAndSet(last, now)) {
+			return false;
+		}
+		if (!running.compareAndSet(false, true)) {
+			return false;
+		}
+		final int started = generation.get();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						load(candidates(), started);
+					} finally {
+						running.set(false);
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			running.set(false);
+			return false;
+		}
+	}
+
+	/**
+	 * Stops a running prefetch after its current query.
+	 */
+	public void cancel() {
+		if (running.get()) {
+			generation.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the most asked keys that are not fresh in the cache, most
+	 *         asked first
+	 */
+	List<MetricKey> candidates() {
+		final Map<MetricKey, Long> snapshot = new HashMap<MetricKey, Long>();
+		for (Map.Entry<MetricKey, AtomicLong> entry : counts.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		List<MetricKey> keys = new ArrayList<MetricKey>(snapshot.keySet());
+		Collections.sort(keys, new Comparator<MetricKey>() {
+			@Override
+			public int compare(MetricKey a, MetricKey b) {
+				return Long.compare(snapshot.get(b), snapshot.get(a));
+			}
+		});
+		if (keys.isEmpty()) {
+			for (Metric metric : Metric.values()) {
+				keys.add(new MetricKey(metric, MetricFilter.ALL));
+			}
+		}
+
+		List<MetricKey> candidates = new ArrayList<MetricKey>(maxKeys);
+		for (MetricKey key : keys) {
+			if (candidates.size() >= maxKeys) {
+				break;
+			}
+			if (!resultCache.isFresh(key)) {
+				candidates.add(key);
+			}
+		}
+		return candidates;
+	}
+
+	private void load(List<MetricKey> keys, int started) {
+		int count = 0;
+		for (MetricKey key : keys) {
+			if (generation.get() != started) {
+				cancelled.incrementAndGet();
+				log.debug("Prefetch cancelled after {} of {} keys", count, keys.size());
+				return;
+			}
+			if (resultCache.isFresh(key)) {
+				continue;
+			}
+			QueryResult result = connUtil.queryMetric(key.getMetric(), key.getFilter(),
+					Deadline.background(queryTimeoutMillis));
+			if (result.getStatus() == QueryResult.Status.REJECTED) {
+				// no connection to spare, or the database is failing
+				log.debug("Prefetch stopped after {} of {} keys: {}", count, keys.size(), result.getStatus());
+				return;
+			}
+			if (result.isAnswered()) {
+				resultCache.put(key, result);
+				loaded.incrementAndGet();
+				count++;
+			}
+		}
+		log.debug("Prefetched {} of {} keys", count, keys.size());
+	}
+
+	/**
+	 * @return how many answers prefetches put into the cache
+	 */
+	public long getLoaded() {
+		return loaded.get();
+	}
+
+	/**
+	 * @return how many prefetches were cancelled before their last key
+	 */
+	public long getCancelled() {
+		return cancelled.get();
+	}
+
+	@Override
+	public String toString() {
+		return "Prefetcher[tracked=" + counts.size() + ", loaded=" + loaded.get() + ", cancelled=" + cancelled.get()
+				+ "]";
+	}
+}
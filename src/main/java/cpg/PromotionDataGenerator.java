@@ -0,0 +1,215 @@
+package cpg;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deterministic generator of synthetic promotion rows for the local stand-in
+ * of {@code VIEW_TABLEAU_PEA_DEMO}.
+ *
+ * <p>
+ * The same seed and row count always produce the same rows. Brands and
+ * customers are drawn from a Zipf distribution (exponent {@code skew}), so a
+ * handful of them dominate like in the real data; the first names are the
+ * ones from the {@code BRANDS}/{@code CUSTOMERS} slot types, further ones are
+ * synthetic. Each brand has its own return on spend, so ROI differs per brand.
+ * Every brand has {@code cpg.local.productsPerBrand} products, and the rows of
+ * one customer, product and month form a promotion with a numeric id and a
+ * mechanic. Rows are produced one at a time and never held in memory, which
+ * lets the generator scale from thousands to hundreds of millions of rows.
+ */
+public class PromotionDataGenerator {
+	private static final Logger log = LoggerFactory.getLogger(PromotionDataGenerator.class);
+
+	static final String[] BRANDS = { "VIVEL BAR", "BIFESTA", "GATSBY", "MUSK", "MARINE", "NEON", "DINSHAWS",
+			"HENNA", "HIMALAYA", "SLICE", "DELICIOUS MARG", "CREMICA MAYO", "BREEZE", "NATURALS", "VLCC", "TULSI",
+			"VOYAGE", "LOTUS", "ASSAM TEA", "CESAR", "ORBIT" };
+
+	static final String[] CUSTOMERS = { "TARGET", "DOLLAR GENERAL", "WALGREENS", "FAMILY DOLLAR", "CVS",
+			"RITE AID CORP", "MEIJER", "GIANT EAGLE", "K MART", "SHOP N SAVE", "FOOD LION INC", "GOLUB CORP",
+			"WAKEFERN FOOD CORP", "ALBERTSONS SO CAL", "SAFEWAY  PORTLAND", "SAFEWAY  HOUSTON", "SAFEWAY  DENVER",
+			"SAFEWAY  DALLAS", "SCHNUCK MARKETS INC", "RALEYS INC", "WINN DIXIE  JACKSONVILLE",
+			"WEGMANS FOOD MARKETS INC", "SHAWS SUPERMARKETS INC", "WINCO FOODS INC", "NYLESTATER BROS INC",
+			"TOPS PERSONAL CARE" };
+
+	static final String[] VARIANTS = { "ORIGINAL", "FRESH", "CLASSIC", "SENSITIVE", "GOLD", "LITE", "EXTRA",
+			"FAMILY PACK" };
+
+	static final String[] MECHANICS = { "PRICE REDUCTION", "BUY ONE GET ONE", "MULTI BUY", "FEATURE AD",
+			"DISPLAY", "COUPON" };
+
+	/**
+	 * Receives generated rows.
+	 */
+	public interface RowSink {
+
+		void row(LocalDate promotionStartDate, double tradeSpend, double grossProfit, String brand, String customer,
+				String product, String promotion) throws SQLException;
+	}
+
+	private final long seed;
+
+	private final String[] brands;
+
+	private final String[] customers;
+
+	private final double[] brandCdf;
+
+	private final double[] customerCdf;
+
+	private final double[] brandReturn;
+
+	private final int firstYear;
+
+	private final int years;
+
+	private final int productsPerBrand;
+
+	/**
+	 * Generator configured from {@code cpg.local.*} settings: seed, brand and
+	 * customer counts, first year, number of years, Zipf skew and products per
+	 * brand.
+	 */
+	public PromotionDataGenerator() {
+		this(SkillConfig.getLong("cpg.local.seed", 42), SkillConfig.getInt("cpg.local.brands", BRANDS.length),
+				SkillConfig.getInt("cpg.local.customers", CUSTOMERS.length),
+				SkillConfig.getInt("cpg.local.firstYear", 2013), SkillConfig.getInt("cpg.local.years", 5),
+				SkillConfig.getDouble("cpg.local.skew", 1.1), SkillConfig.getInt("cpg.local.productsPerBrand", 4));
+	}
+
+	public PromotionDataGenerator(long seed, int brandCount, int customerCount, int firstYear, int years,
+			double skew, int productsPerBrand) {
+		this.seed = seed;
+		this.brands = names(BRANDS, brandCount, "BRAND");
+		this.customers = names(CUSTOMERS, customerCount, "CUSTOMER");
+		this.brandCdf = zipfCdf(brands.length, skew);
+		this.customerCdf = zipfCdf(customers.length, skew);
+		this.firstYear = firstYear;
+		this.years = years;
+		this.productsPerBrand = Math.max(1, Math.min(productsPerBrand, VARIANTS.length));
+
+		SplittableRandom random = new SplittableRandom(seed ^ 0x5DEECE66DL);
+		brandReturn = new double[brands.length];
+		for (int i = 0; i < brandReturn.length; i++) {
+			brandReturn[i] = 0.6 + random.nextDouble() * 2.9;
+		}
+	}
+
+	/**
+	 * Produces {@code rows} rows in a fixed order.
+	 */
+	public void generate(long rows, RowSink sink) throws SQLException {
+		SplittableRandom random = new SplittableRandom(seed);
+		LocalDate start = LocalDate.of(firstYear, 1, 1);
+		int days = (int) (LocalDate.of(firstYear + years, 1, 1).toEpochDay() - start.toEpochDay());
+		for (long i = 0; i < rows; i++) {
+			int brand = pick(brandCdf, random.nextDouble());
+			int customer = pick(customerCdf, random.nextDouble());
+			int variant = random.nextInt(productsPerBrand);
+			LocalDate date = start.plusDays(random.nextInt(days));
+			double u = random.nextDouble();
+			double spend = round2(100 + u * u * u * 50000);
+			double profit = round2(spend * brandReturn[brand] * (0.5 + random.nextDouble()));
+			String product = brands[brand] + " " + VARIANTS[variant];
+			sink.row(date, spend, profit, brands[brand], customers[customer], product,
+					promotion(brand, variant, customer, date, product));
+		}
+	}
+
+	/**
+	 * Inserts {@code rows} generated rows into {@code [dbo].[VIEW_TABLEAU_PEA_DEMO]}
+	 * with batched inserts, committing every {@code batchSize} rows.
+	 */
+	public void insertInto(final Connection con, long rows, final int batchSize) throws SQLException {
+		boolean autoCommit = con.getAutoCommit();
+		con.setAutoCommit(false);
+		final long started = System.currentTimeMillis();
+		try (PreparedStatement insert = con.prepareStatement("insert into " + MetricQuery.VIEW
+				+ " ([PromotionStartDate], TotalTradeSpendSellOut, GrossProfitSellOut, ProdLevel4Name, "
+				+ "CustCustomerName, ProdLevel5Name, PromotionName) values (?, ?, ?, ?, ?, ?, ?)")) {
+			final long[] count = { 0 };
+			generate(rows, new RowSink() {
+				@Override
+				public void row(LocalDate date, double spend, double profit, String brand, String customer,
+						String product, String promotion) throws SQLException {
+					insert.setDate(1, Date.valueOf(date));
+					insert.setDouble(2, spend);
+					insert.setDouble(3, profit);
+					insert.setString(4, brand);
+					insert.setString(5, customer);
+					insert.setString(6, product);
+					insert.setString(7, promotion);
+					insert.addBatch();
+					if (++count[0] % batchSize == 0) {
+						insert.executeBatch();
+						con.commit();
+						if (count[0] % (batchSize * 200L) == 0) {
+							log.info("Generated {} rows in {} ms", count[0], System.currentTimeMillis() - started);
+						}
+					}
+				}
+			});
+			insert.executeBatch();
+			con.commit();
+		} finally {
+			con.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * One promotion per customer, product and month, e.g.
+	 * {@code "316669 VIVEL BAR FRESH PRICE REDUCTION"}.
+	 */
+	private String promotion(int brand, int variant, int customer, LocalDate date, String product) {
+		long month = (date.getYear() - firstYear) * 12L + date.getMonthValue() - 1;
+		long id = ((((long) brand * productsPerBrand + variant) * customers.length + customer) * years * 12 + month)
+				% 900000 + 100000;
+		return id + " " + product + " " + MECHANICS[(int) (id % MECHANICS.length)];
+	}
+
+	String[] getBrands() {
+		return brands;
+	}
+
+	String[] getCustomers() {
+		return customers;
+	}
+
+	private static String[] names(String[] known, int count, String prefix) {
+		String[] names = Arrays.copyOf(known, Math.max(count, 1));
+		for (int i = known.length; i < names.length; i++) {
+			names[i] = String.format("%s %05d", prefix, i);
+		}
+		return names;
+	}
+
+	private static double[] zipfCdf(int n, double skew) {
+		double[] cdf = new double[n];
+		double total = 0.0;
+		for (int i = 0; i < n; i++) {
+			total += 1.0 / Math.pow(i + 1, skew);
+			cdf[i] = total;
+		}
+		for (int i = 0; i < n; i++) {
+			cdf[i] /= total;
+		}
+		return cdf;
+	}
+
+	private static int pick(double[] cdf, double u) {
+		int idx = Arrays.binarySearch(cdf, u);
+		return Math.min(idx < 0 ? -idx - 1 : idx, cdf.length - 1);
+	}
+
+	private static double round2(double value) {
+		return Math.round(value * 100) / 100.0;
+	}
+}
@@ -0,0 +1,227 @@
+package cpg;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Classifies every promotion matching a filter as under-performing, on
+ * target or over-performing.
+ *
+ * <p>
+ * A promotion under-performs when its gross profit is below
+ * {@code cpg.performance.minProfit} (default 0) or its ROI is below
+ * {@code cpg.performance.minRoi} (default 100 %), and over-performs when its
+ * ROI reaches {@code cpg.performance.targetRoi} (default 200 %).
+ *
+ * <p>
+ * The server sums each promotion and the rows are streamed through a
+ * forward-only cursor {@code cpg.performance.fetchSize} rows at a time. They
+ * are copied into fixed size primitive chunks that are classified on the
+ * fork-join pool while the next chunk is read; at most two chunks per core
+ * are in flight and finished chunks are reused. Only counters and a small
+ * ROI histogram are kept, so memory stays the same however many promotions
+ * there are. Reports of the last {@code cpg.performance.maxReports} filters
+ * are cached for {@code cpg.performance.ttlMillis}.
+ */
+public class PromotionPerformanceAnalyzer {
+	private static final Logger log = LoggerFactory.getLogger(PromotionPerformanceAnalyzer.class);
+
+	static final int CHUNK_SIZE = 8192;
+
+	private static final int SPLIT_THRESHOLD = 1024;
+
+	private final ConnectionUtil connUtil;
+
+	private final ForkJoinPool pool;
+
+	private final int maxInFlight;
+
+	private final double minRoi;
+
+	private final double minProfit;
+
+	private final double targetRoi;
+
+	private final int fetchSize;
+
+	/** Keyed by the ROI the promotions are classified on, per filter. */
+	private final ResultCache<PerformanceReport> reports;
+
+	public PromotionPerformanceAnalyzer(ConnectionUtil connUtil) {
+		this.connUtil = connUtil;
+		this.pool = ForkJoinPool.commonPool();
+		this.maxInFlight = Math.max(2, pool.getParallelism() * 2);
+		this.minRoi = SkillConfig.getDouble("cpg.performance.minRoi", 100);
+		this.minProfit = SkillConfig.getDouble("cpg.performance.minProfit", 0);
+		this.targetRoi = SkillConfig.getDouble("cpg.performance.targetRoi", 200);
+		this.fetchSize = SkillConfig.getInt("cpg.performance.fetchSize", 2000);
+		long ttlMillis = SkillConfig.getLong("cpg.performance.ttlMillis", 60 * 60 * 1000L);
+		// stale reports are only read back when a scan fails, never refreshed in the background
+		this.reports = new ResultCache<PerformanceReport>(SkillConfig.getInt("cpg.performance.maxReports", 100),
+				ttlMillis, Long.MAX_VALUE);
+	}
+
+	public double getMinRoi() {
+		return minRoi;
+	}
+
+	public double getTargetRoi() {
+		return targetRoi;
+	}
+
+	/**
+	 * Returns the cached report for {@code filter} if it is younger than the
+	 * TTL, otherwise scans the promotions within {@code deadline}. When the
+	 * scan fails or times out the previous report is returned regardless of
+	 * its age, if there is one.
+	 */
+	public PerformanceReport analyze(MetricFilter filter, Deadline deadline) {
+		MetricKey key = new MetricKey(Metric.TOTAL_ROI, filter);
+		PerformanceReport cached = reports.peek(key);
+		if (cached != null && reports.isFresh(key)) {
+			return cached;
+		}
+
+		PerformanceReport report = scan(filter, deadline);
+		QueryResult.Status status = report.getStatus();
+		if (status == QueryResult.Status.OK || status == QueryResult.Status.NO_DATA) {
+			reports.put(key, report);
+			return report;
+		}
+		return cached != null ? cached : report;
+	}
+
+	/**
+	 * Streams and classifies the promotions matching {@code filter}.
+	 */
+	PerformanceReport scan(MetricFilter filter, Deadline deadline) {
+		long start = System.currentTimeMillis();
+		final PerformanceReport total = new PerformanceReport();
+		final Deque<Classify> inFlight = new ArrayDeque<Classify>();
+		final Deque<Chunk> free = new ArrayDeque<Chunk>();
+		final Chunk[] current = { new Chunk() };
+
+		QueryResult.Status status = connUtil.executeNumericQuery(sql(filter.mask()), fetchSize,
+				new NumericRowHandler() {
+					@Override
+					public void handleRow(double[] columns) {
+						Chunk chunk = current[0];
+						// a promotion without any spend or profit figures sums to NULL
+						chunk.spend[chunk.size] = Double.isNaN(columns[0]) ? 0.0 : columns[0];
+						chunk.profit[chunk.size] = Double.isNaN(columns[1]) ? 0.0 : columns[1];
+						if (++chunk.size == CHUNK_SIZE) {
+							submit(chunk, inFlight);
+							while (inFlight.size() >= maxInFlight) {
+								free.add(complete(inFlight.poll(), total));
+							}
+							current[0] = free.isEmpty() ? new Chunk() : free.poll().reset();
+						}
+					}
+				}, deadline, MetricQuery.parameters(filter).toArray());
+
+		if (current[0].size > 0) {
+			submit(current[0], inFlight);
+		}
+		while (!inFlight.isEmpty()) {
+			complete(inFlight.poll(), total);
+		}
+
+		if (status != QueryResult.Status.OK) {
+			log.warn("Promotion performance scan for {} ended with {}", filter, status);
+			return PerformanceReport.failed(status);
+		}
+		total.setComputedAt(System.currentTimeMillis());
+		log.info("Classified {} promotions for {} in {} ms", total.getPromotions(), filter,
+				total.getComputedAt() - start);
+		return total;
+	}
+
+	/**
+	 * Adds one promotion to {@code report}. A promotion without spend has no
+	 * ROI, so it only under-performs on a loss.
+	 */
+	void classify(PerformanceReport report, double spend, double profit) {
+		double roi = spend == 0.0 ? Double.NaN : profit / spend * 100;
+		boolean under = profit < minProfit || roi < minRoi;
+		boolean over = !under && roi >= targetRoi;
+		report.add(spend, profit, under, over);
+	}
+
+	private void submit(Chunk chunk, Deque<Classify> inFlight) {
+		Classify task = new Classify(chunk, 0, chunk.size);
+		pool.execute(task);
+		inFlight.add(task);
+	}
+
+	private static Chunk complete(Classify task, PerformanceReport total) {
+		total.merge(task.join());
+		return task.chunk;
+	}
+
+	static String sql(int mask) {
+		String where = MetricQuery.whereClause(mask);
+		String column = RankDimension.PROMOTION.getColumn();
+		return "select sum(TotalTradeSpendSellOut), sum(GrossProfitSellOut) from " + MetricQuery.VIEW + where
+				+ (where.isEmpty() ? " where " : " and ") + column + " is not null group by " + column;
+	}
+
+	/**
+	 * Trade spend and gross profit of up to {@link #CHUNK_SIZE} promotions.
+	 */
+	private static final class Chunk {
+
+		final double[] spend = new double[CHUNK_SIZE];
+
+		final double[] profit = new double[CHUNK_SIZE];
+
+		int size;
+
+		Chunk reset() {
+			size = 0;
+			return this;
+		}
+	}
+
+	/**
+	 * Classifies a range of a chunk, splitting it in halves down to
+	 * {@link #SPLIT_THRESHOLD} promotions.
+	 */
+	private final class Classify extends RecursiveTask<PerformanceReport> {
+		private static final long serialVersionUID = 1L;
+
+		final Chunk chunk;
+
+		private final int from;
+
+		private final int to;
+
+		Classify(Chunk chunk, int from, int to) {
+			this.chunk = chunk;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected PerformanceReport compute() {
+			if (to - from > SPLIT_THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				ForkJoinTask<PerformanceReport> left = new Classify(chunk, from, mid).fork();
+				PerformanceReport report = new Classify(chunk, mid, to).compute();
+				report.merge(left.join());
+				return report;
+			}
+
+			PerformanceReport report = new PerformanceReport();
+			for (int i = from; i < to; i++) {
+				classify(report, chunk.spend[i], chunk.profit[i]);
+			}
+			return report;
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package cpg;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks where a query reads from: the smallest summary table maintained by
+ * {@link SummaryTables} whose grain has every column the query filters or
+ * groups by, or {@link MetricQuery#VIEW} if none does.
+ *
+ * <p>
+ * Columns are {@link MetricFilter} mask bits. A summary holds the sums of
+ * {@code TotalTradeSpendSellOut} and {@code GrossProfitSellOut} under the
+ * view's column names, so the metric expressions of {@link Metric} sum them
+ * up to the same values; only the year filter differs, an equality on
+ * {@code PromotionYear} instead of a date range.
+ *
+ * <p>
+ * The summaries come from the catalog table, which is read in the background
+ * every {@code cpg.summary.catalogMaxAgeMillis} (5 minutes); until then, and
+ * for summaries older than {@code cpg.summary.maxStalenessMillis} (two days),
+ * queries read the view. A missing catalog is looked for again only every
+ * {@code cpg.summary.absentRetryMillis} (an hour), and with
+ * {@code cpg.summary.enabled=false} it is never read.
+ */
+public final class QueryPlanner {
+	private static final Logger log = LoggerFactory.getLogger(QueryPlanner.class);
+
+	/** The column of a query no summary has, such as a product or promotion. */
+	public static final int UNCOVERED = 8;
+
+	/** The plan of a query the view answers. */
+	public static final Plan VIEW = new Plan(MetricQuery.VIEW, -1, 0);
+
+	private final boolean enabled;
+
+	private final long catalogMaxAgeMillis;
+
+	private final long absentRetryMillis;
+
+	private final long maxStalenessMillis;
+
+	/** Usable summaries, smallest first. */
+	private volatile List<Plan> summaries = Collections.emptyList();
+
+	private volatile long nextLoadAt;
+
+	private final AtomicBoolean loading = new AtomicBoolean();
+
+	private final Executor loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "cpg-summary-catalog");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public QueryPlanner() {
+		this(SkillConfig.getBoolean("cpg.summary.enabled", true),
+				SkillConfig.getLong("cpg.summary.catalogMaxAgeMillis", 5 * 60 * 1000L),
+				SkillConfig.getLong("cpg.summary.absentRetryMillis", 60 * 60 * 1000L),
+				SkillConfig.getLong("cpg.summary.maxStalenessMillis", 48 * 60 * 60 * 1000L));
+	}
+
+	QueryPlanner(boolean enabled, long catalogMaxAgeMillis, long absentRetryMillis, long maxStalenessMillis) {
+		this.enabled = enabled;
+		this.catalogMaxAgeMillis = catalogMaxAgeMillis;
+		this.absentRetryMillis = absentRetryMillis;
+		this.maxStalenessMillis = maxStalenessMillis;
+	}
+
+	/**
+	 * @param columns
+	 *            the columns the query filters or groups by
+	 * @return the smallest summary having them, or {@link #VIEW}
+	 */
+	public Plan plan(int columns) {
+		long now = System.currentTimeMillis();
+		for (Plan summary : summaries) {
+			if ((summary.grain & columns) == columns && now - summary.refreshedAt <= maxStalenessMillis) {
+				return summary;
+			}
+		}
+		return VIEW;
+	}
+
+	/**
+	 * Reloads the catalog in the background once it is older than
+	 * {@code cpg.summary.catalogMaxAgeMillis}, or once the retry interval of a
+	 * missing catalog has passed.
+	 */
+	public void refreshIfStale(final ConnectionUtil connUtil) {
+		if (!enabled || System.currentTimeMillis() < nextLoadAt || !loading.compareAndSet(false, true)) {
+			return;
+		}
+		loader.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					load(connUtil);
+				} finally {
+					loading.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads the catalog now. A missing catalog leaves every query on the view,
+	 * while a catalog that was read before and fails now keeps its summaries
+	 * until the next attempt.
+	 */
+	public void load(ConnectionUtil connUtil) {
+		if (!enabled) {
+			return;
+		}
+		final List<Plan> loaded = new ArrayList<Plan>();
+		try {
+			connUtil.executeQuery(SummaryTables.CATALOG_SELECT_SQL, new RowHandler() {
+				@Override
+				public void handleRow(ResultSet rs) throws SQLException {
+					loaded.add(new Plan(rs.getString(2), rs.getInt(1), rs.getLong(4), rs.getLong(3)));
+				}
+			});
+		} catch (SQLException e) {
+			if (summaries.isEmpty()) {
+				log.debug("No summary catalog, queries read the view: {}", e.getMessage());
+				nextLoadAt = System.currentTimeMillis() + absentRetryMillis;
+			} else {
+				log.warn("Could not read the summary catalog, keeping {}: {}", summaries, e.getMessage());
+				nextLoadAt = System.currentTimeMillis() + catalogMaxAgeMillis;
+			}
+			return;
+		}
+		Collections.sort(loaded, new Comparator<Plan>() {
+			@Override
+			public int compare(Plan a, Plan b) {
+				return Long.compare(a.rows, b.rows);
+			}
+		});
+		summaries = Collections.unmodifiableList(loaded);
+		nextLoadAt = System.currentTimeMillis() + catalogMaxAgeMillis;
+		log.info("Summary tables {}", loaded);
+	}
+
+	/**
+	 * @return the summaries in use, smallest first
+	 */
+	public List<Plan> getSummaries() {
+		return summaries;
+	}
+
+	/**
+	 * Where a query reads from, and how it filters there.
+	 */
+	public static final class Plan {
+
+		private final String source;
+
+		private final int grain;
+
+		private final long refreshedAt;
+
+		private final long rows;
+
+		/** Metric SQL by metric and filter mask. */
+		private final String[][] templates = new String[Metric.values().length][8];
+
+		Plan(String source, int grain, long refreshedAt) {
+			this(source, grain, refreshedAt, 0);
+		}
+
+		Plan(String source, int grain, long refreshedAt, long rows) {
+			this.source = source;
+			this.grain = grain;
+			this.refreshedAt = refreshedAt;
+			this.rows = rows;
+			for (Metric metric : Metric.values()) {
+				for (int mask = 0; mask < 8; mask++) {
+					templates[metric.ordinal()][mask] = "select " + metric.getSelectExpression() + " from " + source
+							+ whereClause(mask);
+				}
+			}
+		}
+
+		/**
+		 * @return the view or summary table to read
+		 */
+		public String getSource() {
+			return source;
+		}
+
+		public boolean isSummary() {
+			return grain >= 0;
+		}
+
+		/**
+		 * @return the parameterized SQL for the metric restricted by the
+		 *         filters present in {@code filter}
+		 */
+		public String sql(Metric metric, MetricFilter filter) {
+			return templates[metric.ordinal()][filter.mask()];
+		}
+
+		/**
+		 * @see MetricQuery#whereClause(int)
+		 */
+		public String whereClause(int mask) {
+			if (!isSummary()) {
+				return MetricQuery.whereClause(mask);
+			}
+			StringBuilder where = new StringBuilder();
+			if ((mask & MetricFilter.YEAR) != 0) {
+				where.append(" where PromotionYear = ?");
+			}
+			if ((mask & MetricFilter.BRAND) != 0) {
+				where.append(where.length() == 0 ? " where " : " and ").append("ProdLevel4Name = ?");
+			}
+			if ((mask & MetricFilter.CUSTOMER) != 0) {
+				where.append(where.length() == 0 ? " where " : " and ").append("CustCustomerName = ?");
+			}
+			return where.toString();
+		}
+
+		/**
+		 * @return the values for the placeholders of {@link #whereClause}
+		 */
+		public List<Object> parameters(MetricFilter filter) {
+			if (!isSummary()) {
+				return MetricQuery.parameters(filter);
+			}
+			List<Object> parameters = new ArrayList<Object>(3);
+			if (filter.getYear() != null) {
+				parameters.add(filter.getYear());
+			}
+			if (filter.getBrand() != null) {
+				parameters.add(filter.getBrand());
+			}
+			if (filter.getCustomer() != null) {
+				parameters.add(filter.getCustomer());
+			}
+			return parameters;
+		}
+
+		@Override
+		public String toString() {
+			return isSummary() ? source + " (" + SummaryTables.grainName(grain) + ", " + rows + " rows)" : source;
+		}
+	}
+}
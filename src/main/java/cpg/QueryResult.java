@@ -0,0 +1,100 @@
+package cpg;
+
+/**
+ * Outcome of a metric query. Separates an answer, including the legitimate
+ * "no rows matched", from the cases where the database could not answer, so
+ * the speechlet never reads out a made up zero.
+ */
+public final class QueryResult {
+
+	public enum Status {
+		/** The query returned a value. */
+		OK,
+		/** The query ran but nothing matched the filter. */
+		NO_DATA,
+		/** The query failed. */
+		ERROR,
+		/** The query, or waiting for a connection, ran out of time. */
+		TIMEOUT,
+		/** The circuit breaker is open and the query was not attempted. */
+		REJECTED
+	}
+
+	private static final QueryResult NO_DATA = new QueryResult(Status.NO_DATA, null);
+
+	private static final QueryResult ERROR = new QueryResult(Status.ERROR, null);
+
+	private static final QueryResult TIMEOUT = new QueryResult(Status.TIMEOUT, null);
+
+	private static final QueryResult REJECTED = new QueryResult(Status.REJECTED, null);
+
+	private final Status status;
+
+	private final String value;
+
+	private QueryResult(Status status, String value) {
+		this.status = status;
+		this.value = value;
+	}
+
+	public static QueryResult ok(String value) {
+		return new QueryResult(Status.OK, value);
+	}
+
+	public static QueryResult noData() {
+		return NO_DATA;
+	}
+
+	public static QueryResult error() {
+		return ERROR;
+	}
+
+	public static QueryResult timeout() {
+		return TIMEOUT;
+	}
+
+	public static QueryResult rejected() {
+		return REJECTED;
+	}
+
+	/**
+	 * @return the shared result for a status other than {@code OK}
+	 */
+	static QueryResult failure(Status status) {
+		switch (status) {
+		case NO_DATA:
+			return NO_DATA;
+		case TIMEOUT:
+			return TIMEOUT;
+		case REJECTED:
+			return REJECTED;
+		case ERROR:
+			return ERROR;
+		default:
+			throw new IllegalArgumentException("OK needs a value");
+		}
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the formatted value, null unless the status is {@code OK}
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * @return true if the database answered, with or without data
+	 */
+	public boolean isAnswered() {
+		return status == Status.OK || status == Status.NO_DATA;
+	}
+
+	@Override
+	public String toString() {
+		return status == Status.OK ? value : status.name();
+	}
+}
@@ -2,70 +2,44 @@ package cpg;
 
 import cpg.ConnectionUtil;
 
-import org.apache.commons.lang3.StringUtils;
-
 public class QueryServiceTest {
 
 	private static ConnectionUtil util = null;
 
-	// Create Dynamic Query for Total Trade Spend for year
+	// Run the parameterized Total Trade Spend query for year
 	private static String executeTotalTradeSpendQuery(String year) {
 
-		// base Query
-		String totalTradeSpendQuery = "select CONVERT(decimal(15), sum(TotalTradeSpendSellOut)) "
-				+ "as 'Total Trade Spend' , datepart(yyyy,[PromotionStartDate])  from  "
-				+ "[dbo].[VIEW_TABLEAU_PEA_DEMO] "; 
-
-		// if year is not empty add year in where condition
-		if (StringUtils.isNotEmpty(year)) {
-			totalTradeSpendQuery += "where datepart(yyyy,[PromotionStartDate])='2016' "
-					+ "group by datepart(yyyy,[PromotionStartDate])";
-		}
+		MetricFilter filter = MetricFilter.of(year, null, null);
 
-		System.out.println("Total Trade Spend Query :: " + totalTradeSpendQuery);
+		System.out.println("Total Trade Spend Query :: " + MetricQuery.sql(Metric.TOTAL_TRADE_SPEND, filter));
 
-		String totalTradeSpend = util.executeQuery(totalTradeSpendQuery);
+		String totalTradeSpend = util.executeMetricQuery(Metric.TOTAL_TRADE_SPEND, filter);
 
 		return totalTradeSpend;
 
 	}
 
-	// Create Dynamic Query for Total Gross Profit based on brand
+	// Run the parameterized Total Gross Profit query for brand
 	private static String executeTotalGrossProfitQuery(String brand) {
 
-		// base Query
-		String totalGrossProfitQuery = "select CONVERT(decimal(15), sum(GrossProfitSellOut)) as "
-				+ "'Total Gross Profit', ProdLevel4Name as 'Brand' from  [dbo].[VIEW_TABLEAU_PEA_DEMO] ";
-
-		// if brand is not empty add brand in where condition
-		if (StringUtils.isNotEmpty(brand)) {
-			totalGrossProfitQuery += "where ProdLevel4Name ='" + brand + "' group by ProdLevel4Name";
-		}
+		MetricFilter filter = MetricFilter.of(null, brand, null);
 
-		System.out.println("Total Gross Profit Query :: " + totalGrossProfitQuery);
+		System.out.println("Total Gross Profit Query :: " + MetricQuery.sql(Metric.TOTAL_GROSS_PROFIT, filter));
 
-		String totalGrossProfit = util.executeQuery(totalGrossProfitQuery);
+		String totalGrossProfit = util.executeMetricQuery(Metric.TOTAL_GROSS_PROFIT, filter);
 
 		return totalGrossProfit;
 
 	}
 
-	// Create Dynamic Query for Total ROI based on customer
+	// Run the parameterized Total ROI query for customer
 	private static String executeTotalROIQuery(String customer) {
 
-		// base Query
-		String totalROIQuery = "select CONVERT(decimal(4,1), sum(GrossProfitSellOut)/sum(TotalTradeSpendSellOut) * 100) "
-				+ "as 'Total ROI', CustCustomerName as 'Customer' from  [dbo].[VIEW_TABLEAU_PEA_DEMO] ";
-
-
-		// if customer is not empty add customer in where condition
-		if (StringUtils.isNotEmpty(customer)) {
-			totalROIQuery += "where CustCustomerName ='" + customer + "' group by CustCustomerName";
-		}
+		MetricFilter filter = MetricFilter.of(null, null, customer);
 
-		System.out.println("Total ROI Query :: " + totalROIQuery);
+		System.out.println("Total ROI Query :: " + MetricQuery.sql(Metric.TOTAL_ROI, filter));
 
-		String totalROI = util.executeQuery(totalROIQuery);
+		String totalROI = util.executeMetricQuery(Metric.TOTAL_ROI, filter);
 
 		return totalROI;
 
@@ -0,0 +1,74 @@
+package cpg;
+
+import java.util.Locale;
+
+/**
+ * What the {@code Top}/{@code Bottom} intents rank, with the view column that
+ * names it. Brands and customers are the columns the metrics already filter
+ * on; the product and promotion columns are set with
+ * {@code cpg.ranking.productColumn} and {@code cpg.ranking.promotionColumn}.
+ */
+public enum RankDimension {
+
+	BRAND("brands", "ProdLevel4Name", MetricFilter.BRAND),
+
+	CUSTOMER("customers", "CustCustomerName", MetricFilter.CUSTOMER),
+
+	PRODUCT("products", SkillConfig.get("cpg.ranking.productColumn", "ProdLevel5Name"), 0),
+
+	PROMOTION("promotions", SkillConfig.get("cpg.ranking.promotionColumn", "PromotionName"), 0);
+
+	private final String spokenName;
+
+	private final String column;
+
+	private final int cubeDimension;
+
+	private RankDimension(String spokenName, String column, int cubeDimension) {
+		this.spokenName = spokenName;
+		this.column = column;
+		this.cubeDimension = cubeDimension;
+	}
+
+	/**
+	 * @return the plural used in speech, e.g. "brands"
+	 */
+	public String getSpokenName() {
+		return spokenName;
+	}
+
+	public String getColumn() {
+		return column;
+	}
+
+	/**
+	 * @return the {@link MetricFilter} bit of the dimension in the
+	 *         {@link AggregateCube}, 0 if the cube does not have it
+	 */
+	int getCubeDimension() {
+		return cubeDimension;
+	}
+
+	/**
+	 * Maps a {@code CATEGORY} slot value such as "Brands", "product" or
+	 * "promos" to a dimension.
+	 *
+	 * @return the dimension, or null if the value is not one
+	 */
+	public static RankDimension fromSlot(String value) {
+		if (value == null) {
+			return null;
+		}
+		String v = value.trim().toLowerCase(Locale.ROOT);
+		if (v.startsWith("brand")) {
+			return BRAND;
+		} else if (v.startsWith("customer") || v.startsWith("retailer") || v.startsWith("account")) {
+			return CUSTOMER;
+		} else if (v.startsWith("product") || v.startsWith("sku")) {
+			return PRODUCT;
+		} else if (v.startsWith("promo")) {
+			return PROMOTION;
+		}
+		return null;
+	}
+}
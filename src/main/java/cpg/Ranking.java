@@ -0,0 +1,70 @@
+package cpg;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Answer of a {@link RankingEngine}: the ranked names with their formatted
+ * metric values, best first for a top ranking and worst first for a bottom
+ * one.
+ */
+public final class Ranking {
+
+	/**
+	 * One ranked name.
+	 */
+	public static final class Entry {
+
+		private final String name;
+
+		private final String value;
+
+		Entry(String name, String value) {
+			this.name = name;
+			this.value = value;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return name + "=" + value;
+		}
+	}
+
+	private final QueryResult.Status status;
+
+	private final List<Entry> entries;
+
+	Ranking(QueryResult.Status status, List<Entry> entries) {
+		this.status = status;
+		this.entries = Collections.unmodifiableList(entries);
+	}
+
+	static Ranking failed(QueryResult.Status status) {
+		return new Ranking(status, Collections.<Entry> emptyList());
+	}
+
+	/**
+	 * @return {@code OK} with at least one entry, {@code NO_DATA}, or why the
+	 *         database did not answer
+	 */
+	public QueryResult.Status getStatus() {
+		return status;
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	@Override
+	public String toString() {
+		return status == QueryResult.Status.OK ? entries.toString() : status.name();
+	}
+}
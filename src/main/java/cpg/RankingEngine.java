@@ -0,0 +1,148 @@
+package cpg;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Answers the top or bottom K brands, customers, products or promotions by a
+ * metric, optionally filtered by year, brand and customer.
+ *
+ * <p>
+ * When the {@link AggregateCube} is loaded and has the dimension, the names
+ * are summed in one pass over the cube and the K best are selected with a
+ * heap bounded to K entries, so the ranking costs O(n log K) rather than a
+ * full sort. Otherwise the ranking is pushed down to the server as a
+ * {@code TOP (?) ... ORDER BY} query that returns only K rows, over a summary
+ * table when the {@link QueryPlanner} has one with the dimension.
+ */
+public class RankingEngine {
+
+	private final ConnectionUtil connUtil;
+
+	private final MetricService metricService;
+
+	private final int maxCount;
+
+	public RankingEngine(ConnectionUtil connUtil, MetricService metricService) {
+		this.connUtil = connUtil;
+		this.metricService = metricService;
+		this.maxCount = SkillConfig.getInt("cpg.ranking.maxCount", 10);
+	}
+
+	/**
+	 * @return how many names a ranking of {@code count} returns at most:
+	 *         {@code count} kept between 1 and {@code cpg.ranking.maxCount}
+	 */
+	public int clampCount(int count) {
+		return Math.max(1, Math.min(count, maxCount));
+	}
+
+	/**
+	 * Ranks {@code dimension} by {@code metric}. Names with a NULL or undefined
+	 * metric value, such as an ROI without trade spend, are not ranked. An
+	 * unknown brand or customer ranks nothing, without a query.
+	 *
+	 * @param count
+	 *            how many names to return, see {@link #clampCount(int)}
+	 * @param top
+	 *            true for the highest values, false for the lowest
+	 */
+	public Ranking rank(RankDimension dimension, Metric metric, MetricFilter filter, int count, boolean top,
+			Deadline deadline) {
+		int k = clampCount(count);
+		filter = metricService.resolve(filter);
+		if (filter == null) {
+			return Ranking.failed(QueryResult.Status.NO_DATA);
+		}
+		AggregateCube cube = metricService.getCube();
+		if (cube != null && dimension.getCubeDimension() != 0) {
+			return rankCube(cube, dimension.getCubeDimension(), metric, filter, k, top);
+		}
+		return rankQuery(dimension, metric, filter, k, top, deadline);
+	}
+
+	private static Ranking rankCube(AggregateCube cube, int dimension, Metric metric, MetricFilter filter, int k,
+			boolean top) {
+		double[][] sums = cube.sumsBy(dimension, filter);
+		final String[] names = cube.names(dimension);
+		final double[] values = new double[names.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = Double.isNaN(sums[0][i]) ? Double.NaN : metric.compute(sums[0][i], sums[1][i]);
+		}
+
+		Comparator<Integer> rankOrder = top ? new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int c = Double.compare(values[b], values[a]);
+				return c != 0 ? c : names[a].compareTo(names[b]);
+			}
+		} : new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int c = Double.compare(values[a], values[b]);
+				return c != 0 ? c : names[a].compareTo(names[b]);
+			}
+		};
+
+		// the head of the heap is the worst of the K kept so far
+		PriorityQueue<Integer> heap = new PriorityQueue<Integer>(k + 1, Collections.reverseOrder(rankOrder));
+		for (int i = 0; i < values.length; i++) {
+			if (Double.isNaN(values[i])) {
+				continue;
+			}
+			if (heap.size() < k) {
+				heap.add(i);
+			} else if (rankOrder.compare(i, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(i);
+			}
+		}
+
+		if (heap.isEmpty()) {
+			return Ranking.failed(QueryResult.Status.NO_DATA);
+		}
+		List<Ranking.Entry> entries = new ArrayList<Ranking.Entry>(heap.size());
+		while (!heap.isEmpty()) {
+			int i = heap.poll();
+			entries.add(0, new Ranking.Entry(names[i], metric.format(values[i])));
+		}
+		return new Ranking(QueryResult.Status.OK, entries);
+	}
+
+	private Ranking rankQuery(RankDimension dimension, Metric metric, MetricFilter filter, int k, boolean top,
+			Deadline deadline) {
+		final List<Ranking.Entry> entries = new ArrayList<Ranking.Entry>(k);
+		int grouped = dimension.getCubeDimension() != 0 ? dimension.getCubeDimension() : QueryPlanner.UNCOVERED;
+		QueryPlanner.Plan plan = connUtil.planMetric(filter.mask() | grouped);
+		List<Object> params = new ArrayList<Object>();
+		params.add(k);
+		params.addAll(plan.parameters(filter));
+
+		QueryResult.Status status = connUtil.executeQuery(sql(plan, dimension, metric, filter.mask(), top),
+				new RowHandler() {
+					@Override
+					public void handleRow(ResultSet rs) throws SQLException {
+						entries.add(new Ranking.Entry(rs.getString(1), rs.getString(2)));
+					}
+				}, deadline, params.toArray());
+
+		if (status != QueryResult.Status.OK) {
+			return Ranking.failed(status);
+		}
+		return entries.isEmpty() ? Ranking.failed(QueryResult.Status.NO_DATA)
+				: new Ranking(QueryResult.Status.OK, entries);
+	}
+
+	static String sql(QueryPlanner.Plan plan, RankDimension dimension, Metric metric, int mask, boolean top) {
+		String where = plan.whereClause(mask);
+		String column = dimension.getColumn();
+		return "select TOP (?) " + column + ", " + metric.getSelectExpression() + " from " + plan.getSource() + where
+				+ (where.isEmpty() ? " where " : " and ") + column + " is not null group by " + column + " having "
+				+ metric.getSelectExpression() + " is not null order by 2 " + (top ? "desc" : "asc") + ", 1";
+	}
+}
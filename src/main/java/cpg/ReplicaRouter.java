@@ -0,0 +1,746 @@
+package cpg;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads the request path's queries over the read endpoints in
+ * {@code cpg.jdbc.replicas}, each with its own {@link ConnectionPool} and
+ * {@link CircuitBreaker}.
+ *
+ * <p>
+ * Every replica keeps an exponentially weighted moving average (weight
+ * {@code cpg.replicas.ewmaAlpha}) of its query latency and of its error
+ * rate. A query goes to the replica with the lowest expected latency, that
+ * is the average latency times the queries in flight plus one, divided by
+ * the success rate. A replica not used for {@code cpg.replicas.probeMillis}
+ * gets the next query, so one that recovered from being slow is noticed.
+ * A failing replica is ejected by its breaker, which lets a trial query
+ * through once {@code cpg.breaker.openMillis} passed.
+ *
+ * <p>
+ * With more than one replica, a request query still running after the 95th
+ * percentile latency of its replica (at least
+ * {@code cpg.replicas.minHedgeMillis}) is hedged: the same query is sent to
+ * the next best replica. The first of the two to return a result set streams
+ * it to the caller's handler and the other statement is cancelled. Both run
+ * on worker threads (at most {@code cpg.replicas.maxThreads}), so a replica
+ * that does not notice the cancel cannot hold the caller up. Hedges
+ * are limited to {@code cpg.replicas.maxHedgePercent} of the queries, so a
+ * slow database as a whole does not get twice the load. A query that fails
+ * on its replica before any row was read is retried on another one. Background
+ * queries are neither hedged nor retried.
+ */
+public class ReplicaRouter {
+	private static final Logger log = LoggerFactory.getLogger(ReplicaRouter.class);
+
+	/** Samples a replica needs before its percentile is used. */
+	static final int MIN_SAMPLES = 20;
+
+	/** The latency a failed query counts with. */
+	private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** How long a caller waits for a hedge beyond the deadline. */
+	private static final long GRACE_MILLIS = 2000;
+
+	private final List<Replica> replicas;
+
+	private final double alpha;
+
+	private final long probeNanos;
+
+	private final long percentileWindowNanos;
+
+	private final long minHedgeNanos;
+
+	private final int maxHedgePercent;
+
+	private final int backgroundSpareConnections;
+
+	/**
+	 * Runs the attempts of hedged queries, so the caller does not depend on
+	 * the driver cancelling the slower one; null with a single replica or
+	 * hedging disabled.
+	 */
+	private final ThreadPoolExecutor workers;
+
+	private final AtomicLong queries = new AtomicLong();
+
+	private final AtomicLong hedges = new AtomicLong();
+
+	private final AtomicLong hedgesWon = new AtomicLong();
+
+	private final AtomicLong retries = new AtomicLong();
+
+	/**
+	 * Creates a pool per endpoint, sized from the {@code cpg.pool.*} settings,
+	 * and configures routing from the {@code cpg.replicas.*} settings.
+	 *
+	 * @param breaker
+	 *            the breaker of the first endpoint; the others get their own
+	 */
+	public ReplicaRouter(String[] urls, String username, String password, CircuitBreaker breaker) {
+		this(replicas(urls, username, password, breaker), SkillConfig.getDouble("cpg.replicas.ewmaAlpha", 0.2),
+				SkillConfig.getLong("cpg.replicas.probeMillis", 5000),
+				SkillConfig.getLong("cpg.replicas.percentileWindowMillis", 10000),
+				SkillConfig.getBoolean("cpg.replicas.hedge", true)
+						? SkillConfig.getLong("cpg.replicas.minHedgeMillis", 10) : -1,
+				SkillConfig.getInt("cpg.replicas.maxHedgePercent", 10),
+				SkillConfig.getInt("cpg.pool.backgroundSpare", 1));
+	}
+
+	/**
+	 * @param minHedgeMillis
+	 *            the least time before a query is hedged, negative to never
+	 *            hedge
+	 */
+	ReplicaRouter(List<Replica> replicas, double alpha, long probeMillis, long percentileWindowMillis,
+			long minHedgeMillis, int maxHedgePercent, int backgroundSpareConnections) {
+		if (replicas.isEmpty()) {
+			throw new IllegalArgumentException("no read endpoint");
+		}
+		this.replicas = Collections.unmodifiableList(new ArrayList<Replica>(replicas));
+		this.alpha = alpha;
+		this.probeNanos = TimeUnit.MILLISECONDS.toNanos(probeMillis);
+		this.percentileWindowNanos = TimeUnit.MILLISECONDS.toNanos(percentileWindowMillis);
+		this.minHedgeNanos = TimeUnit.MILLISECONDS.toNanos(minHedgeMillis);
+		this.maxHedgePercent = maxHedgePercent;
+		this.backgroundSpareConnections = backgroundSpareConnections;
+		if (replicas.size() > 1 && minHedgeMillis >= 0) {
+			workers = new ThreadPoolExecutor(0, SkillConfig.getInt("cpg.replicas.maxThreads", 64), 60,
+					TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "cpg-replica-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		} else {
+			workers = null;
+		}
+	}
+
+	private static List<Replica> replicas(String[] urls, String username, String password, CircuitBreaker breaker) {
+		List<Replica> replicas = new ArrayList<Replica>(urls.length);
+		for (int i = 0; i < urls.length; i++) {
+			replicas.add(new Replica(name(urls[i]), new ConnectionPool(urls[i], username, password),
+					i == 0 ? breaker : new CircuitBreaker("replica-" + i)));
+		}
+		return replicas;
+	}
+
+	/**
+	 * @return the URL without its properties, which may hold credentials
+	 */
+	static String name(String url) {
+		int semicolon = url.indexOf(';');
+		return semicolon < 0 ? url : url.substring(0, semicolon);
+	}
+
+	/**
+	 * Runs a query on the best replica, streaming its rows to
+	 * {@code handler}; see
+	 * {@link ConnectionUtil#executeQuery(String, int, int, RowHandler, Deadline, Object...)}.
+	 * Rows are only ever delivered from one replica, though not necessarily on
+	 * the calling thread, and never after this method returned.
+	 *
+	 * @return {@code OK} once all rows were handled, otherwise {@code ERROR},
+	 *         {@code TIMEOUT} or {@code REJECTED}
+	 */
+	public QueryResult.Status execute(String sql, int fetchSize, int maxRows, RowHandler handler, Deadline deadline,
+			Object... params) {
+		Query query = new Query(sql, fetchSize, maxRows, handler, deadline, params);
+		long n = queries.incrementAndGet();
+		Attempt first = choose(null, null);
+		if (first == null) {
+			return QueryResult.Status.REJECTED;
+		}
+		if (workers == null || deadline.isBackground()) {
+			return run(first, query);
+		}
+
+		long delay = first.replica.hedgeDelayNanos(minHedgeNanos);
+		Race race = new Race();
+		Attempt primary = new Attempt(first.replica, first.permit, race);
+		if (delay < 0 || delay >= deadline.remainingNanos() || hedges.get() * 100 >= maxHedgePercent * n
+				|| !race.start(primary, query)) {
+			first.status = run(first, query);
+			return retryOnFailure(first, query);
+		}
+		if (race.await(TimeUnit.NANOSECONDS.toMillis(delay) + 1)) {
+			return retryOnFailure(primary, query);
+		}
+
+		// a primary that already has its result set is only slow to stream it
+		Attempt second = race.winner.get() == null ? choose(first.replica, race) : null;
+		if (second != null) {
+			if (race.start(second, query)) {
+				hedges.incrementAndGet();
+			} else {
+				second.permit.release();
+			}
+		}
+		if (!race.await(deadline.remainingMillis() + GRACE_MILLIS)) {
+			race.abandon();
+			return QueryResult.Status.TIMEOUT;
+		}
+		Attempt winner = race.winner.get();
+		if (winner != null) {
+			if (winner != primary && winner.status == QueryResult.Status.OK) {
+				hedgesWon.incrementAndGet();
+			}
+			// no status if the handler threw on the worker
+			return winner.status == null ? QueryResult.Status.ERROR : winner.status;
+		}
+		// both failed before a result set
+		return primary.status == null ? QueryResult.Status.ERROR : primary.status;
+	}
+
+	/**
+	 * Sends a query that failed on its replica before any row was handled,
+	 * and not for lack of time, to the next best one.
+	 */
+	private QueryResult.Status retryOnFailure(Attempt failed, Query query) {
+		QueryResult.Status status = failed.status == null ? QueryResult.Status.ERROR : failed.status;
+		if (status != QueryResult.Status.ERROR || failed.handled || query.deadline.isExpired()) {
+			return status;
+		}
+		Attempt retry = choose(failed.replica, null);
+		if (retry == null) {
+			return status;
+		}
+		retries.incrementAndGet();
+		return run(retry, query);
+	}
+
+	/**
+	 * Picks the replica with the lowest expected latency whose breaker permits
+	 * a call. The caller must report to the attempt's permit.
+	 *
+	 * @return an attempt on the replica, or null if every one is ejected
+	 */
+	private Attempt choose(Replica exclude, Race race) {
+		long now = System.nanoTime();
+		Replica[] candidates = new Replica[replicas.size()];
+		double[] scores = new double[candidates.length];
+		int count = 0;
+		for (Replica replica : replicas) {
+			if (replica == exclude) {
+				continue;
+			}
+			double score = replica.score(now, probeNanos);
+			int i = count++;
+			// insertion sort, there are only a few replicas
+			while (i > 0 && scores[i - 1] > score) {
+				candidates[i] = candidates[i - 1];
+				scores[i] = scores[i - 1];
+				i--;
+			}
+			candidates[i] = replica;
+			scores[i] = score;
+		}
+		for (int i = 0; i < count; i++) {
+			CircuitBreaker.Permit permit = candidates[i].breaker.tryAcquire();
+			if (permit != null) {
+				candidates[i].lastChosenAt = now;
+				return new Attempt(candidates[i], permit, race);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Runs one attempt of a query on its replica, whose breaker permitted it.
+	 *
+	 * @return the status, null if another attempt of the race answered
+	 */
+	private QueryResult.Status run(Attempt attempt, Query query) {
+		Replica replica = attempt.replica;
+		PooledConnection pc = null;
+		if (query.deadline.isBackground()) {
+			pc = replica.pool.tryBorrow(backgroundSpareConnections);
+			if (pc == null) {
+				attempt.permit.release();
+				return QueryResult.Status.REJECTED;
+			}
+		}
+
+		long start = System.nanoTime();
+		replica.inFlight.incrementAndGet();
+		try {
+			if (pc == null) {
+				pc = replica.pool.borrow(query.deadline.remainingMillis());
+			}
+			try {
+				PreparedStatement ps = pc.prepareStatement(query.sql);
+				ps.setQueryTimeout(ConnectionUtil.timeoutSeconds(query.deadline));
+				ps.setFetchSize(query.fetchSize);
+				ps.setMaxRows(query.maxRows);
+				for (int i = 0; i < query.params.length; i++) {
+					ps.setObject(i + 1, query.params[i]);
+				}
+				if (!attempt.started(ps)) {
+					return lost(attempt, start);
+				}
+				try (ResultSet rs = ps.executeQuery()) {
+					if (attempt.race != null && !attempt.race.claim(attempt)) {
+						return lost(attempt, start);
+					}
+					while (rs.next()) {
+						// a caller giving up waits for the row in hand, then no more are handled
+						synchronized (attempt) {
+							if (attempt.cancelled) {
+								return lost(attempt, start);
+							}
+							attempt.handled = true;
+							query.handler.handleRow(rs);
+						}
+					}
+				}
+			} catch (SQLException e) {
+				pc.checkFailure(e);
+				throw e;
+			}
+
+			long elapsed = System.nanoTime() - start;
+			attempt.permit.onSuccess(elapsed);
+			replica.record(elapsed, true, alpha, percentileWindowNanos);
+			return QueryResult.Status.OK;
+		} catch (SQLException e) {
+			if (attempt.race != null && attempt.race.isLost(attempt)) {
+				return lost(attempt, start);
+			}
+			attempt.permit.onFailure();
+			replica.record(System.nanoTime() - start, false, alpha, percentileWindowNanos);
+			if (ConnectionUtil.isTimeout(e)) {
+				log.warn("Query timed out on {}: {}", replica.name, e.getMessage());
+				return QueryResult.Status.TIMEOUT;
+			}
+			log.warn("Query failed on {}: {}", replica.name, e.getMessage());
+			return QueryResult.Status.ERROR;
+		} catch (RuntimeException e) {
+			attempt.permit.onFailure();
+			replica.record(System.nanoTime() - start, false, alpha, percentileWindowNanos);
+			throw e;
+		} finally {
+			replica.inFlight.decrementAndGet();
+			attempt.released();
+			if (pc != null) {
+				pc.release();
+			}
+		}
+	}
+
+	/**
+	 * Accounts for an attempt that lost the race: it took at least as long as
+	 * the winner, which is what the averages learn from it.
+	 */
+	private QueryResult.Status lost(Attempt attempt, long start) {
+		long elapsed = System.nanoTime() - start;
+		attempt.permit.onSuccess(elapsed);
+		attempt.replica.record(elapsed, true, alpha, percentileWindowNanos);
+		return null;
+	}
+
+	/**
+	 * @return the read endpoints, the first being the one batch queries use
+	 */
+	public List<Replica> getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * @return the pool of the first endpoint
+	 */
+	public ConnectionPool getPrimaryPool() {
+		return replicas.get(0).pool;
+	}
+
+	/**
+	 * Opens {@code cpg.pool.minIdle} connections to every endpoint.
+	 */
+	public void prewarm() {
+		for (Replica replica : replicas) {
+			replica.pool.prewarm();
+		}
+	}
+
+	/**
+	 * @return the threads waiting for a connection to any endpoint
+	 */
+	public int getWaiting() {
+		int waiting = 0;
+		for (Replica replica : replicas) {
+			waiting += replica.pool.getWaiting();
+		}
+		return waiting;
+	}
+
+	public long getHedges() {
+		return hedges.get();
+	}
+
+	/**
+	 * @return the hedges that answered before the query they hedged
+	 */
+	public long getHedgesWon() {
+		return hedgesWon.get();
+	}
+
+	/**
+	 * @return the queries retried on another replica after a failure
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	public void close() {
+		if (workers != null) {
+			workers.shutdownNow();
+		}
+		for (Replica replica : replicas) {
+			replica.pool.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("queries=").append(queries.get()).append(" hedges=").append(hedges.get())
+				.append(" won=").append(hedgesWon.get()).append(" retries=").append(retries.get());
+		for (Replica replica : replicas) {
+			sb.append("\n  ").append(replica);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A read endpoint and what is known about its latency.
+	 */
+	public static final class Replica {
+
+		final String name;
+
+		final ConnectionPool pool;
+
+		final CircuitBreaker breaker;
+
+		final AtomicInteger inFlight = new AtomicInteger();
+
+		private final LatencyHistogram histogram = new LatencyHistogram();
+
+		private final AtomicLong queries = new AtomicLong();
+
+		private final AtomicLong errors = new AtomicLong();
+
+		private double latencyNanos;
+
+		private double errorRate;
+
+		private int samples;
+
+		private long windowStart = System.nanoTime();
+
+		private volatile long percentile95Nanos = -1;
+
+		volatile long lastChosenAt = System.nanoTime();
+
+		Replica(String name, ConnectionPool pool, CircuitBreaker breaker) {
+			this.name = name;
+			this.pool = pool;
+			this.breaker = breaker;
+		}
+
+		/**
+		 * @return the expected latency of a query sent now, 0 for a replica
+		 *         without samples or due for a probe
+		 */
+		synchronized double score(long now, long probeNanos) {
+			if (now - lastChosenAt > probeNanos) {
+				return 0;
+			}
+			return latencyNanos * (1 + inFlight.get()) / Math.max(0.05, 1 - errorRate);
+		}
+
+		synchronized void record(long nanos, boolean ok, double alpha, long windowNanos) {
+			queries.incrementAndGet();
+			if (ok) {
+				latencyNanos = latencyNanos == 0 ? nanos : latencyNanos + alpha * (nanos - latencyNanos);
+				histogram.recordNanos(nanos);
+				long now = System.nanoTime();
+				if (++samples >= MIN_SAMPLES && now - windowStart >= windowNanos) {
+					percentile95Nanos = histogram.drain().percentileMicros(0.95) * 1000;
+					samples = 0;
+					windowStart = now;
+				}
+			} else {
+				// a failure counts as a slow query, or a replica failing fast would look best
+				latencyNanos += alpha * (Math.max(nanos, FAILURE_PENALTY_NANOS) - latencyNanos);
+				errors.incrementAndGet();
+			}
+			errorRate += alpha * ((ok ? 0 : 1) - errorRate);
+		}
+
+		/**
+		 * @return when to hedge a query on this replica, -1 before the
+		 *         percentile is known
+		 */
+		long hedgeDelayNanos(long minNanos) {
+			long p95 = percentile95Nanos;
+			return p95 < 0 ? -1 : Math.max(p95, minNanos);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public ConnectionPool getPool() {
+			return pool;
+		}
+
+		public CircuitBreaker getCircuitBreaker() {
+			return breaker;
+		}
+
+		/**
+		 * @return the queries run on this replica, including failed ones
+		 */
+		public long getQueries() {
+			return queries.get();
+		}
+
+		/**
+		 * @return the 95th percentile latency in nanoseconds, -1 until known
+		 */
+		public long getPercentile95Nanos() {
+			return percentile95Nanos;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format("%s latency=%.2fms p95=%s errors=%.1f%% queries=%d failed=%d breaker=[%s]", name,
+					latencyNanos / 1e6,
+					percentile95Nanos < 0 ? "n/a" : String.format("%.2fms", percentile95Nanos / 1e6),
+					errorRate * 100, queries.get(), errors.get(), breaker);
+		}
+	}
+
+	private static final class Query {
+
+		final String sql;
+
+		final int fetchSize;
+
+		final int maxRows;
+
+		final RowHandler handler;
+
+		final Deadline deadline;
+
+		final Object[] params;
+
+		Query(String sql, int fetchSize, int maxRows, RowHandler handler, Deadline deadline, Object[] params) {
+			this.sql = sql;
+			this.fetchSize = fetchSize;
+			this.maxRows = maxRows;
+			this.handler = handler;
+			this.deadline = deadline;
+			this.params = params;
+		}
+	}
+
+	/**
+	 * One execution of a query on a replica.
+	 */
+	private static final class Attempt {
+
+		final Replica replica;
+
+		final CircuitBreaker.Permit permit;
+
+		final Race race;
+
+		/**
+		 * The running statement, guarded by the attempt's lock, which is also
+		 * held while a row is handled.
+		 */
+		private Statement statement;
+
+		volatile boolean cancelled;
+
+		/** Whether a row reached the handler. */
+		volatile boolean handled;
+
+		/** Null while running, and for an attempt that lost the race. */
+		volatile QueryResult.Status status;
+
+		volatile boolean finished;
+
+		Attempt(Replica replica, CircuitBreaker.Permit permit, Race race) {
+			this.replica = replica;
+			this.permit = permit;
+			this.race = race;
+		}
+
+		/**
+		 * @return false if the attempt was cancelled before its statement ran
+		 */
+		synchronized boolean started(Statement statement) {
+			this.statement = statement;
+			return !cancelled;
+		}
+
+		/**
+		 * Forgets the statement before its connection goes back to the pool,
+		 * where the cached statement runs other queries.
+		 */
+		synchronized void released() {
+			statement = null;
+		}
+
+		/**
+		 * Stops the attempt once the row being handled, if any, is done.
+		 */
+		void cancel() {
+			// set before taking the lock, so that a worker between rows stops
+			cancelled = true;
+			synchronized (this) {
+				if (statement != null && !finished) {
+					try {
+						statement.cancel();
+					} catch (SQLException e) {
+						log.debug("Could not cancel a hedged query: {}", e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The attempts of a hedged query, run by the workers: the first to get a
+	 * result set wins, streams the rows and cancels the other one.
+	 */
+	private final class Race {
+
+		private final List<Attempt> attempts = new ArrayList<Attempt>(2);
+
+		final AtomicReference<Attempt> winner = new AtomicReference<Attempt>();
+
+		private int running;
+
+		/**
+		 * @return false if the race already has a winner or no worker was
+		 *         free to run the attempt
+		 */
+		boolean start(final Attempt attempt, final Query query) {
+			synchronized (this) {
+				if (winner.get() != null) {
+					return false;
+				}
+				attempts.add(attempt);
+				running++;
+			}
+			try {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						QueryResult.Status status = null;
+						try {
+							status = ReplicaRouter.this.run(attempt, query);
+						} finally {
+							finish(attempt, status);
+						}
+					}
+				});
+				return true;
+			} catch (RejectedExecutionException e) {
+				synchronized (this) {
+					attempts.remove(attempt);
+					running--;
+				}
+				return false;
+			}
+		}
+
+		private synchronized void finish(Attempt attempt, QueryResult.Status status) {
+			attempt.status = status;
+			attempt.finished = true;
+			running--;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until the winner streamed its rows or every attempt failed.
+		 *
+		 * @return false if that did not happen within {@code millis}
+		 */
+		synchronized boolean await(long millis) {
+			long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+			while (true) {
+				Attempt w = winner.get();
+				if (w != null ? w.finished : running == 0) {
+					return true;
+				}
+				long remaining = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+
+		boolean claim(Attempt attempt) {
+			if (!winner.compareAndSet(null, attempt)) {
+				return false;
+			}
+			synchronized (this) {
+				for (Attempt other : attempts) {
+					if (other != attempt) {
+						other.cancel();
+					}
+				}
+			}
+			return true;
+		}
+
+		boolean isLost(Attempt attempt) {
+			Attempt w = winner.get();
+			return w != null && w != attempt;
+		}
+
+		/**
+		 * Stops every attempt, including a winner still streaming rows, for a
+		 * caller that gives up waiting. Returns once no row is being handled,
+		 * so the caller's handler is not used after the query returned.
+		 */
+		synchronized void abandon() {
+			winner.compareAndSet(null, new Attempt(null, null, null));
+			for (Attempt attempt : attempts) {
+				attempt.cancel();
+			}
+		}
+	}
+}
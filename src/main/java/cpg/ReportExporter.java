@@ -0,0 +1,692 @@
+package cpg;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batch export of the breakdowns the skill speaks, as files for analysts.
+ *
+ * <pre>
+ * ReportExporter &lt;directory&gt; [report ...]
+ * ReportExporter --dump &lt;file.cpgc&gt;
+ * </pre>
+ *
+ * A report is {@code rows} for the promotion rows of the view, or
+ * dimensions joined by {@code +} out of {@code year}, {@code brand},
+ * {@code customer}, {@code product} and {@code promotion}, e.g.
+ * {@code year+brand+customer} (the default) or {@code brand}. A breakdown
+ * has the Total Trade Spend, Total Gross Profit and Total ROI of every
+ * combination of its dimensions, computed by the same expressions the
+ * skill queries. {@code cpg.export.year}, {@code cpg.export.brand} and
+ * {@code cpg.export.customer} restrict every report like the slots do.
+ *
+ * <p>
+ * Each report is one query through {@link ConnectionUtil} fetching
+ * {@code cpg.export.fetchSize} rows per round trip (default 10000) for up to
+ * {@code cpg.export.timeoutSeconds} (an hour), whose rows are written to a
+ * {@link FileChannel} as they arrive, so the heap needed does not depend on
+ * the number of rows. {@code cpg.export.format}
+ * is {@code gzip} (default), a gzipped CSV file, or {@code columnar}, see
+ * {@link ColumnarWriter}; {@code --dump} prints a columnar file as CSV. A
+ * file is written under a temporary name and renamed when complete.
+ */
+public final class ReportExporter {
+	private static final Logger log = LoggerFactory.getLogger(ReportExporter.class);
+
+	static final String ROWS = "rows";
+
+	private final ConnectionUtil connUtil;
+
+	private final MetricFilter filter;
+
+	private final boolean columnar;
+
+	private final int fetchSize;
+
+	private final int timeoutSeconds;
+
+	private final int bufferBytes;
+
+	private final int rowGroupSize;
+
+	public ReportExporter(ConnectionUtil connUtil) {
+		this(connUtil, MetricFilter.of(SkillConfig.get("cpg.export.year", null),
+				SkillConfig.get("cpg.export.brand", null), SkillConfig.get("cpg.export.customer", null)),
+				"columnar".equals(SkillConfig.get("cpg.export.format", "gzip")));
+	}
+
+	public ReportExporter(ConnectionUtil connUtil, MetricFilter filter, boolean columnar) {
+		if (filter.matchesNothing()) {
+			throw new IllegalArgumentException("cpg.export.year must be between " + MetricFilter.MIN_YEAR + " and "
+					+ MetricFilter.MAX_YEAR);
+		}
+		this.connUtil = connUtil;
+		this.filter = filter;
+		this.columnar = columnar;
+		this.fetchSize = SkillConfig.getInt("cpg.export.fetchSize", 10000);
+		this.timeoutSeconds = SkillConfig.getInt("cpg.export.timeoutSeconds", 60 * 60);
+		this.bufferBytes = SkillConfig.getInt("cpg.export.bufferBytes", 256 * 1024);
+		this.rowGroupSize = SkillConfig.getInt("cpg.export.rowGroupSize", 65536);
+	}
+
+	/**
+	 * @return the SQL of a report restricted by the filters in {@code mask}
+	 * @throws IllegalArgumentException
+	 *             for an unknown report or dimension
+	 */
+	static String sql(String report, int mask) {
+		String where = MetricQuery.whereClause(mask);
+		if (ROWS.equals(report)) {
+			return "select [PromotionStartDate], ProdLevel4Name, CustCustomerName, "
+					+ RankDimension.PRODUCT.getColumn() + ", " + RankDimension.PROMOTION.getColumn()
+					+ ", TotalTradeSpendSellOut, GrossProfitSellOut from " + MetricQuery.VIEW + where;
+		}
+		StringBuilder dimensions = new StringBuilder();
+		StringBuilder labels = new StringBuilder();
+		for (String dimension : report.split("\\+")) {
+			String column;
+			if ("year".equals(dimension)) {
+				column = "YEAR([PromotionStartDate])";
+				labels.append(", YEAR([PromotionStartDate]) AS PromotionYear");
+			} else {
+				try {
+					column = RankDimension.valueOf(dimension.toUpperCase(Locale.ROOT)).getColumn();
+					labels.append(", ").append(column);
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("unknown dimension " + dimension + " in report " + report);
+				}
+			}
+			dimensions.append(dimensions.length() == 0 ? "" : ", ").append(column);
+		}
+		StringBuilder sql = new StringBuilder("select ").append(labels, 2, labels.length());
+		for (Metric metric : Metric.values()) {
+			sql.append(", ").append(metric.getSelectExpression()).append(" AS ").append(metric.name());
+		}
+		return sql.append(" from ").append(MetricQuery.VIEW).append(where).append(" group by ").append(dimensions)
+				.append(" order by ").append(dimensions).toString();
+	}
+
+	/**
+	 * Runs a report and writes it into {@code directory}.
+	 *
+	 * @return the number of rows written
+	 */
+	public long export(String report, Path directory) throws IOException, SQLException {
+		String sql = sql(report, filter.mask());
+		Path target = directory.resolve(report.replace('+', '-') + (columnar ? ".cpgc" : ".csv.gz")).toAbsolutePath();
+		Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+
+		long start = System.currentTimeMillis();
+		long rows;
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ReportWriter writer = columnar ? new ColumnarWriter(channel, bufferBytes, rowGroupSize)
+					: new CsvWriter(channel, bufferBytes);
+			final IOException[] failure = { null };
+			try {
+				connUtil.streamQuery(sql, fetchSize, timeoutSeconds, new RowHandler() {
+					private boolean started;
+
+					@Override
+					public void handleRow(ResultSet rs) throws SQLException {
+						try {
+							if (!started) {
+								writer.start(rs.getMetaData());
+								started = true;
+							}
+							writer.row(rs);
+						} catch (IOException e) {
+							failure[0] = e;
+							throw new SQLException("writing the report failed", e);
+						}
+					}
+				}, MetricQuery.parameters(filter).toArray());
+			} catch (SQLException e) {
+				if (failure[0] != null) {
+					throw failure[0];
+				}
+				throw e;
+			}
+			rows = writer.finish();
+			channel.force(false);
+		} catch (IOException | SQLException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		log.info("Exported {} rows of {} to {} in {} ms", rows, report, target, System.currentTimeMillis() - start);
+		return rows;
+	}
+
+	/**
+	 * Receives the rows of one report.
+	 */
+	interface ReportWriter {
+
+		/**
+		 * Called once before the first row, which is not called without rows.
+		 */
+		void start(ResultSetMetaData meta) throws SQLException, IOException;
+
+		void row(ResultSet rs) throws SQLException, IOException;
+
+		/**
+		 * Writes what is buffered, and the header if no row came.
+		 *
+		 * @return the number of rows written
+		 */
+		long finish() throws IOException;
+	}
+
+	/**
+	 * Gzipped CSV with a header line; strings are quoted when they need to
+	 * be.
+	 */
+	static final class CsvWriter implements ReportWriter {
+
+		private final GZIPOutputStream gzip;
+
+		private final Writer out;
+
+		private int columns;
+
+		private long rows;
+
+		CsvWriter(FileChannel channel, int bufferBytes) throws IOException {
+			this.gzip = new GZIPOutputStream(Channels.newOutputStream(channel), bufferBytes);
+			this.out = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void start(ResultSetMetaData meta) throws SQLException, IOException {
+			columns = meta.getColumnCount();
+			for (int i = 1; i <= columns; i++) {
+				if (i > 1) {
+					out.write(',');
+				}
+				writeField(out, meta.getColumnLabel(i));
+			}
+			out.write('\n');
+		}
+
+		@Override
+		public void row(ResultSet rs) throws SQLException, IOException {
+			for (int i = 1; i <= columns; i++) {
+				if (i > 1) {
+					out.write(',');
+				}
+				String value = rs.getString(i);
+				if (value != null) {
+					writeField(out, value);
+				}
+			}
+			out.write('\n');
+			rows++;
+		}
+
+		@Override
+		public long finish() throws IOException {
+			out.flush();
+			gzip.finish();
+			return rows;
+		}
+	}
+
+	static void writeField(Writer out, String value) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			out.write(value);
+			return;
+		}
+		out.write('"');
+		out.write(value.replace("\"", "\"\""));
+		out.write('"');
+	}
+
+	/**
+	 * Compact columnar file, little endian:
+	 *
+	 * <pre>
+	 * int magic "CPGC", int version, int column count,
+	 *   per column: byte type, int name length, name in UTF-8
+	 * row groups of up to cpg.export.rowGroupSize rows:
+	 *   int rows, per column: int length, column data
+	 * int -1, long total rows
+	 * </pre>
+	 *
+	 * Column data is {@code double}s for numbers (NaN for NULL), {@code int}s
+	 * for years and dates as epoch days ({@link Integer#MIN_VALUE} for NULL),
+	 * or for strings the row group's dictionary (int count, then int length
+	 * and UTF-8 bytes per value) followed by a code per row of 1, 2 or 4
+	 * bytes depending on the dictionary size, with the largest code for NULL.
+	 * Only one row group is held in memory.
+	 */
+	static final class ColumnarWriter implements ReportWriter {
+
+		static final int MAGIC = 0x43475043;
+
+		static final int VERSION = 1;
+
+		static final byte DOUBLE = 1;
+
+		static final byte INT = 2;
+
+		static final byte DATE = 3;
+
+		static final byte STRING = 4;
+
+		private final FileChannel channel;
+
+		private final ByteBuffer buffer;
+
+		private final int rowGroupSize;
+
+		private byte[] types;
+
+		private double[][] doubles;
+
+		private int[][] ints;
+
+		private String[][] strings;
+
+		private int rows;
+
+		private long total;
+
+		ColumnarWriter(FileChannel channel, int bufferBytes, int rowGroupSize) {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocateDirect(Math.max(bufferBytes, 64)).order(ByteOrder.LITTLE_ENDIAN);
+			this.rowGroupSize = rowGroupSize;
+		}
+
+		@Override
+		public void start(ResultSetMetaData meta) throws SQLException, IOException {
+			int columns = meta.getColumnCount();
+			types = new byte[columns];
+			doubles = new double[columns][];
+			ints = new int[columns][];
+			strings = new String[columns][];
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(columns);
+			for (int i = 0; i < columns; i++) {
+				types[i] = type(meta.getColumnType(i + 1));
+				if (types[i] == DOUBLE) {
+					doubles[i] = new double[rowGroupSize];
+				} else if (types[i] == STRING) {
+					strings[i] = new String[rowGroupSize];
+				} else {
+					ints[i] = new int[rowGroupSize];
+				}
+				byte[] name = meta.getColumnLabel(i + 1).getBytes(StandardCharsets.UTF_8);
+				ensure(5 + name.length);
+				buffer.put(types[i]).putInt(name.length).put(name);
+			}
+		}
+
+		private static byte type(int sqlType) {
+			switch (sqlType) {
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+			case Types.DOUBLE:
+			case Types.FLOAT:
+			case Types.REAL:
+			case Types.BIGINT:
+				return DOUBLE;
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return INT;
+			case Types.DATE:
+				return DATE;
+			default:
+				return STRING;
+			}
+		}
+
+		@Override
+		public void row(ResultSet rs) throws SQLException, IOException {
+			for (int i = 0; i < types.length; i++) {
+				switch (types[i]) {
+				case DOUBLE:
+					double d = rs.getDouble(i + 1);
+					doubles[i][rows] = rs.wasNull() ? Double.NaN : d;
+					break;
+				case INT:
+					int n = rs.getInt(i + 1);
+					ints[i][rows] = rs.wasNull() ? Integer.MIN_VALUE : n;
+					break;
+				case DATE:
+					Date date = rs.getDate(i + 1);
+					ints[i][rows] = date == null ? Integer.MIN_VALUE : (int) date.toLocalDate().toEpochDay();
+					break;
+				default:
+					strings[i][rows] = rs.getString(i + 1);
+				}
+			}
+			if (++rows == rowGroupSize) {
+				writeRowGroup();
+			}
+		}
+
+		private void writeRowGroup() throws IOException {
+			ensure(4);
+			buffer.putInt(rows);
+			for (int i = 0; i < types.length; i++) {
+				if (types[i] == DOUBLE) {
+					ensure(4);
+					buffer.putInt(rows * 8);
+					for (int r = 0; r < rows; r++) {
+						ensure(8);
+						buffer.putDouble(doubles[i][r]);
+					}
+				} else if (types[i] == STRING) {
+					writeStrings(strings[i]);
+				} else {
+					ensure(4);
+					buffer.putInt(rows * 4);
+					for (int r = 0; r < rows; r++) {
+						ensure(4);
+						buffer.putInt(ints[i][r]);
+					}
+				}
+			}
+			total += rows;
+			rows = 0;
+		}
+
+		private void writeStrings(String[] values) throws IOException {
+			Map<String, Integer> codes = new HashMap<String, Integer>();
+			List<byte[]> dictionary = new ArrayList<byte[]>();
+			int[] rowCodes = new int[rows];
+			int length = 4;
+			for (int r = 0; r < rows; r++) {
+				String value = values[r];
+				if (value == null) {
+					rowCodes[r] = -1;
+					continue;
+				}
+				Integer code = codes.get(value);
+				if (code == null) {
+					byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+					code = dictionary.size();
+					codes.put(value, code);
+					dictionary.add(bytes);
+					length += 4 + bytes.length;
+				}
+				rowCodes[r] = code.intValue();
+				values[r] = null;
+			}
+			int width = codeWidth(dictionary.size());
+			ensure(8);
+			buffer.putInt(length + rows * width).putInt(dictionary.size());
+			for (byte[] bytes : dictionary) {
+				ensure(4);
+				buffer.putInt(bytes.length);
+				put(bytes);
+			}
+			for (int r = 0; r < rows; r++) {
+				ensure(4);
+				int code = rowCodes[r];
+				if (width == 1) {
+					buffer.put((byte) code);
+				} else if (width == 2) {
+					buffer.putShort((short) code);
+				} else {
+					buffer.putInt(code);
+				}
+			}
+		}
+
+		/**
+		 * @return the bytes per code, leaving the largest code for NULL
+		 */
+		static int codeWidth(int dictionarySize) {
+			return dictionarySize < 0xFF ? 1 : dictionarySize < 0xFFFF ? 2 : 4;
+		}
+
+		private void put(byte[] bytes) throws IOException {
+			int offset = 0;
+			while (offset < bytes.length) {
+				ensure(1);
+				int chunk = Math.min(buffer.remaining(), bytes.length - offset);
+				buffer.put(bytes, offset, chunk);
+				offset += chunk;
+			}
+		}
+
+		/**
+		 * Writes the buffer out unless it has {@code bytes} to spare.
+		 */
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		@Override
+		public long finish() throws IOException {
+			if (types == null) {
+				buffer.putInt(MAGIC).putInt(VERSION).putInt(0);
+			} else if (rows > 0) {
+				writeRowGroup();
+			}
+			ensure(12);
+			buffer.putInt(-1).putLong(total);
+			flush();
+			return total;
+		}
+	}
+
+	/**
+	 * Prints a columnar file as CSV, one row group at a time.
+	 */
+	static void dump(Path file, PrintStream out) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ColumnarReader reader = new ColumnarReader(channel);
+			Writer csv = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			for (int i = 0; i < reader.names.length; i++) {
+				if (i > 0) {
+					csv.write(',');
+				}
+				writeField(csv, reader.names[i]);
+			}
+			csv.write('\n');
+			String[][] group;
+			while ((group = reader.nextRowGroup()) != null) {
+				for (int r = 0; r < group[0].length; r++) {
+					for (int i = 0; i < group.length; i++) {
+						if (i > 0) {
+							csv.write(',');
+						}
+						if (group[i][r] != null) {
+							writeField(csv, group[i][r]);
+						}
+					}
+					csv.write('\n');
+				}
+			}
+			csv.flush();
+		}
+	}
+
+	/**
+	 * Reads a file written by {@link ColumnarWriter} sequentially.
+	 */
+	static final class ColumnarReader {
+
+		private final FileChannel channel;
+
+		private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+		final byte[] types;
+
+		final String[] names;
+
+		ColumnarReader(FileChannel channel) throws IOException {
+			this.channel = channel;
+			buffer.limit(0);
+			if (readInt() != ColumnarWriter.MAGIC || readInt() != ColumnarWriter.VERSION) {
+				throw new IOException("not a columnar report");
+			}
+			int columns = readInt();
+			types = new byte[columns];
+			names = new String[columns];
+			for (int i = 0; i < columns; i++) {
+				need(1);
+				types[i] = buffer.get();
+				names[i] = new String(readBytes(readInt()), StandardCharsets.UTF_8);
+			}
+		}
+
+		/**
+		 * @return the values of the next row group by column, formatted as
+		 *         text, or null at the end
+		 */
+		String[][] nextRowGroup() throws IOException {
+			if (types.length == 0) {
+				return null;
+			}
+			int rows = readInt();
+			if (rows < 0) {
+				return null;
+			}
+			String[][] group = new String[types.length][rows];
+			for (int i = 0; i < types.length; i++) {
+				readInt();
+				if (types[i] == ColumnarWriter.DOUBLE) {
+					for (int r = 0; r < rows; r++) {
+						need(8);
+						double d = buffer.getDouble();
+						group[i][r] = Double.isNaN(d) ? null : format(d);
+					}
+				} else if (types[i] == ColumnarWriter.STRING) {
+					String[] dictionary = new String[readInt()];
+					for (int j = 0; j < dictionary.length; j++) {
+						dictionary[j] = new String(readBytes(readInt()), StandardCharsets.UTF_8);
+					}
+					int width = ColumnarWriter.codeWidth(dictionary.length);
+					for (int r = 0; r < rows; r++) {
+						need(width);
+						int code = width == 1 ? buffer.get() & 0xFF
+								: width == 2 ? buffer.getShort() & 0xFFFF : buffer.getInt();
+						group[i][r] = code < dictionary.length ? dictionary[code] : null;
+					}
+				} else {
+					for (int r = 0; r < rows; r++) {
+						int n = readInt();
+						group[i][r] = n == Integer.MIN_VALUE ? null
+								: types[i] == ColumnarWriter.DATE ? LocalDate.ofEpochDay(n).toString()
+										: Integer.toString(n);
+					}
+				}
+			}
+			return group;
+		}
+
+		/**
+		 * @return whole numbers without a fraction, like the database prints
+		 *         the rounded metrics
+		 */
+		static String format(double d) {
+			return d == Math.rint(d) && Math.abs(d) < 1e15 ? Long.toString((long) d)
+					: BigDecimal.valueOf(d).toPlainString();
+		}
+
+		private int readInt() throws IOException {
+			need(4);
+			return buffer.getInt();
+		}
+
+		private byte[] readBytes(int length) throws IOException {
+			byte[] bytes = new byte[length];
+			int offset = 0;
+			while (offset < length) {
+				need(1);
+				int chunk = Math.min(buffer.remaining(), length - offset);
+				buffer.get(bytes, offset, chunk);
+				offset += chunk;
+			}
+			return bytes;
+		}
+
+		private void need(int bytes) throws IOException {
+			if (buffer.remaining() >= bytes) {
+				return;
+			}
+			buffer.compact();
+			while (buffer.position() < bytes) {
+				if (channel.read(buffer) < 0) {
+					throw new IOException("columnar report truncated");
+				}
+			}
+			buffer.flip();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2 && "--dump".equals(args[0])) {
+			dump(Paths.get(args[1]), System.out);
+			return;
+		}
+		if (args.length < 1) {
+			System.err.println("usage: ReportExporter <directory> [report ...] | --dump <file.cpgc>");
+			System.exit(2);
+		}
+		Path directory = Paths.get(args[0]);
+		Files.createDirectories(directory);
+		List<String> reports = args.length > 1 ? Arrays.asList(args).subList(1, args.length)
+				: Arrays.asList("year+brand+customer");
+
+		ConnectionUtil.initialize();
+		ReportExporter exporter = new ReportExporter(new ConnectionUtil());
+		try {
+			for (String report : reports) {
+				long start = System.currentTimeMillis();
+				long rows = exporter.export(report, directory);
+				System.out.println(report + ": " + rows + " rows in " + (System.currentTimeMillis() - start) + " ms");
+			}
+		} finally {
+			ConnectionUtil.closePool();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package cpg;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+/**
+ * Builds Alexa request envelopes (JSON, version 1.0) for the skill, as the
+ * Alexa service would send them. Used to exercise
+ * {@link CpgSpeechletRequestStreamHandler} outside of Lambda: priming and
+ * class-list training at startup, benchmarks and load tests.
+ */
+public final class RequestEnvelopes {
+
+	public static final String APPLICATION_ID = "amzn1.ask.skill.45fc3391-0000-44c8-b024-f76d041832e5";
+
+	/**
+	 * Session of the startup priming requests. The speechlet neither records
+	 * telemetry nor prefetches for it.
+	 */
+	public static final String PRIMING_SESSION_ID = "SessionId.startup-priming";
+
+	private RequestEnvelopes() {
+	}
+
+	public static byte[] launch(String sessionId) {
+		return envelope(sessionId, true, "\"type\":\"LaunchRequest\"");
+	}
+
+	public static byte[] sessionEnded(String sessionId) {
+		return envelope(sessionId, false, "\"type\":\"SessionEndedRequest\",\"reason\":\"USER_INITIATED\"");
+	}
+
+	/**
+	 * @param slots
+	 *            slot name to value, may be null or contain null values
+	 */
+	public static byte[] intent(String sessionId, String intentName, Map<String, String> slots) {
+		StringBuilder request = new StringBuilder();
+		request.append("\"type\":\"IntentRequest\",\"intent\":{\"name\":\"").append(json(intentName))
+				.append("\",\"slots\":{");
+		if (slots != null) {
+			boolean first = true;
+			for (Map.Entry<String, String> slot : slots.entrySet()) {
+				if (!first) {
+					request.append(',');
+				}
+				first = false;
+				request.append('"').append(json(slot.getKey())).append("\":{\"name\":\"")
+						.append(json(slot.getKey())).append('"');
+				if (slot.getValue() != null) {
+					request.append(",\"value\":\"").append(json(slot.getValue())).append('"');
+				}
+				request.append('}');
+			}
+		}
+		request.append("}}");
+		return envelope(sessionId, false, request.toString());
+	}
+
+	private static byte[] envelope(String sessionId, boolean newSession, String request) {
+		String json = "{\"version\":\"1.0\",\"session\":{\"new\":" + newSession + ",\"sessionId\":\""
+				+ json(sessionId) + "\",\"application\":{\"applicationId\":\"" + APPLICATION_ID
+				+ "\"},\"attributes\":{},\"user\":{\"userId\":\"amzn1.ask.account.local\"}},\"request\":{"
+				+ request + ",\"requestId\":\"EdwRequestId." + UUID.randomUUID() + "\",\"timestamp\":\""
+				+ timestamp() + "\"}}";
+		return json.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String timestamp() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date());
+	}
+
+	private static String json(String value) {
+		return StringEscapeUtils.escapeJson(value);
+	}
+}
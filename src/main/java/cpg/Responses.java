@@ -0,0 +1,94 @@
+package cpg;
+
+import com.amazon.speech.speechlet.SpeechletResponse;
+import com.amazon.speech.ui.Card;
+import com.amazon.speech.ui.OutputSpeech;
+import com.amazon.speech.ui.PlainTextOutputSpeech;
+import com.amazon.speech.ui.Reprompt;
+import com.amazon.speech.ui.SsmlOutputSpeech;
+
+/**
+ * Builds speechlet responses. Responses whose text never changes are built
+ * once with {@link #fixedAsk} or {@link #fixedTell} and returned for every
+ * request; they refuse modification, so one handler cannot change what the
+ * next request is told.
+ */
+final class Responses {
+
+	private Responses() {
+	}
+
+	static OutputSpeech ssml(String ssml) {
+		SsmlOutputSpeech speech = new SsmlOutputSpeech();
+		speech.setSsml(ssml);
+		return speech;
+	}
+
+	static OutputSpeech plainText(String text) {
+		PlainTextOutputSpeech speech = new PlainTextOutputSpeech();
+		speech.setText(text);
+		return speech;
+	}
+
+	/**
+	 * @return a reprompt; keep it in a constant to share it between responses
+	 */
+	static Reprompt reprompt(OutputSpeech speech) {
+		Reprompt reprompt = new Reprompt();
+		reprompt.setOutputSpeech(speech);
+		return reprompt;
+	}
+
+	static SpeechletResponse ask(OutputSpeech speech, Reprompt reprompt, Card card) {
+		return SpeechletResponse.newAskResponse(speech, reprompt, card);
+	}
+
+	static SpeechletResponse fixedAsk(OutputSpeech speech, Reprompt reprompt) {
+		return new FixedResponse(speech, reprompt, null, false);
+	}
+
+	static SpeechletResponse fixedTell(OutputSpeech speech) {
+		return new FixedResponse(speech, null, null, true);
+	}
+
+	/**
+	 * A response that cannot be changed after construction.
+	 */
+	private static final class FixedResponse extends SpeechletResponse {
+
+		/**
+		 * Jackson serializes responses with NON_DEFAULT inclusion and
+		 * instantiates the class to find the default values.
+		 */
+		@SuppressWarnings("unused")
+		private FixedResponse() {
+		}
+
+		FixedResponse(OutputSpeech speech, Reprompt reprompt, Card card, boolean endSession) {
+			super.setOutputSpeech(speech);
+			super.setReprompt(reprompt);
+			super.setCard(card);
+			super.setShouldEndSession(endSession);
+		}
+
+		@Override
+		public void setOutputSpeech(OutputSpeech outputSpeech) {
+			throw new UnsupportedOperationException("Shared response");
+		}
+
+		@Override
+		public void setReprompt(Reprompt reprompt) {
+			throw new UnsupportedOperationException("Shared response");
+		}
+
+		@Override
+		public void setCard(Card card) {
+			throw new UnsupportedOperationException("Shared response");
+		}
+
+		@Override
+		public void setShouldEndSession(boolean shouldEndSession) {
+			throw new UnsupportedOperationException("Shared response");
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package cpg;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Size bounded cache of metric answers with a per-metric time to live.
+ *
+ * <p>
+ * Entries are evicted least recently used first once the cache holds
+ * {@code cpg.cache.maxEntries}. An entry older than its metric's TTL
+ * ({@code cpg.cache.ttlMillis.<METRIC>}) is still returned, and a refresh is
+ * queued on the single background refresh thread; concurrent requests for the
+ * same stale key queue only one refresh. Only entries older than
+ * {@code cpg.cache.maxStaleMillis} are treated as misses and reloaded on the
+ * caller's thread.
+ *
+ * @param <V>
+ *            the cached value type
+ */
+public class ResultCache<V> {
+	private static final Logger log = LoggerFactory.getLogger(ResultCache.class);
+
+	/**
+	 * Produces the value for a key on a miss or refresh.
+	 */
+	public interface Loader<V> {
+
+		V load(MetricKey key) throws Exception;
+	}
+
+	private static final class CachedValue<V> {
+
+		final V value;
+
+		final long loadedAt;
+
+		CachedValue(V value, long loadedAt) {
+			this.value = value;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	private final Map<MetricKey, CachedValue<V>> entries;
+
+	private final Map<Metric, Long> ttlMillis = new EnumMap<Metric, Long>(Metric.class);
+
+	private final int maxEntries;
+
+	private final long maxStaleMillis;
+
+	private final Set<MetricKey> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<MetricKey, Boolean>());
+
+	private final ThreadPoolExecutor refresher;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong staleHits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong refreshes = new AtomicLong();
+
+	private final AtomicLong refreshFailures = new AtomicLong();
+
+	public ResultCache() {
+		this(SkillConfig.getInt("cpg.cache.maxEntries", 1000));
+	}
+
+	public ResultCache(final int maxEntries) {
+		this(maxEntries, SkillConfig.getLong("cpg.cache.ttlMillis", TimeUnit.MINUTES.toMillis(15)),
+				SkillConfig.getLong("cpg.cache.maxStaleMillis", TimeUnit.HOURS.toMillis(24)));
+		for (Metric metric : Metric.values()) {
+			ttlMillis.put(metric, SkillConfig.getLong("cpg.cache.ttlMillis." + metric.name(), ttlMillis.get(metric)));
+		}
+	}
+
+	/**
+	 * Creates a cache with the same TTL for every metric, for values other
+	 * than metric answers that choose their own settings.
+	 */
+	public ResultCache(final int maxEntries, long ttlMillis, long maxStaleMillis) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<MetricKey, CachedValue<V>>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<MetricKey, CachedValue<V>> eldest) {
+				if (size() > maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+		for (Metric metric : Metric.values()) {
+			this.ttlMillis.put(metric, ttlMillis);
+		}
+		this.maxStaleMillis = maxStaleMillis;
+
+		this.refresher = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(SkillConfig.getInt("cpg.cache.refreshQueueSize", 64)),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "cpg-cache-refresh");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Returns the cached value for {@code key}, loading it with {@code loader}
+	 * on a miss. A stale value is returned as is and refreshed in the
+	 * background.
+	 */
+	public V get(MetricKey key, Loader<V> loader) throws Exception {
+		return get(key, loader, loader);
+	}
+
+	/**
+	 * Like {@link #get(MetricKey, Loader)}, but refreshes a stale value with
+	 * {@code refreshLoader}, e.g. because {@code loader} is bound to the
+	 * deadline of the calling request.
+	 */
+	public V get(MetricKey key, Loader<V> loader, Loader<V> refreshLoader) throws Exception {
+		CachedValue<V> entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+
+		long now = System.currentTimeMillis();
+		if (entry != null) {
+			long age = now - entry.loadedAt;
+			if (age < ttlMillis.get(key.getMetric())) {
+				hits.incrementAndGet();
+				return entry.value;
+			}
+			if (age < maxStaleMillis) {
+				staleHits.incrementAndGet();
+				scheduleRefresh(key, refreshLoader);
+				return entry.value;
+			}
+		}
+
+		misses.incrementAndGet();
+		V value = loader.load(key);
+		put(key, value);
+		return value;
+	}
+
+	/**
+	 * @return the cached value for {@code key} regardless of its age, or null
+	 */
+	public V peek(MetricKey key) {
+		synchronized (entries) {
+			CachedValue<V> entry = entries.get(key);
+			return entry == null ? null : entry.value;
+		}
+	}
+
+	/**
+	 * @return true if {@code key} is cached and younger than its metric's TTL
+	 */
+	public boolean isFresh(MetricKey key) {
+		CachedValue<V> entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		return entry != null && System.currentTimeMillis() - entry.loadedAt < ttlMillis.get(key.getMetric());
+	}
+
+	/**
+	 * Stores a value loaded elsewhere, e.g. by a warm-up, as fresh.
+	 */
+	public void put(MetricKey key, V value) {
+		if (value == null) {
+			return;
+		}
+		CachedValue<V> entry = new CachedValue<V>(value, System.currentTimeMillis());
+		synchronized (entries) {
+			entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * Drops every entry.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return the number of entries the cache holds before it evicts
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public CacheStats stats() {
+		int size;
+		synchronized (entries) {
+			size = entries.size();
+		}
+		return new CacheStats(size, hits.get(), staleHits.get(), misses.get(), evictions.get(), refreshes.get(),
+				refreshFailures.get());
+	}
+
+	private void scheduleRefresh(final MetricKey key, final Loader<V> loader) {
+		if (!refreshing.add(key)) {
+			return;
+		}
+		try {
+			refresher.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						put(key, loader.load(key));
+						refreshes.incrementAndGet();
+					} catch (Exception e) {
+						refreshFailures.incrementAndGet();
+						log.warn("Refresh of {} failed, keeping the stale value: {}", key, e.getMessage());
+					} finally {
+						refreshing.remove(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the refresh queue is full; a later request will try again
+			refreshing.remove(key);
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package cpg;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a streamed query one at a time. The result set is
+ * positioned on the current row; implementations read the columns they need
+ * and must not advance or close it.
+ */
+public interface RowHandler {
+
+	void handleRow(ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,172 @@
+package cpg;
+
+import java.math.BigDecimal;
+
+/**
+ * Typed outcome of a single value query such as
+ * {@link ConnectionUtil#queryLong}, {@link ConnectionUtil#queryDouble} or
+ * {@link ConnectionUtil#queryDecimal}.
+ *
+ * <p>
+ * The status is {@code OK} only when the first row had a value. An answered
+ * query without a value is {@code NO_DATA}, and {@link #isAbsent()} and
+ * {@link #isNull()} tell whether no row came back or the column was SQL
+ * NULL, as an aggregate over no rows is. Long and double values are kept as
+ * primitives; there is no default value that could be mistaken for data.
+ */
+public final class ScalarResult {
+
+	private static final ScalarResult ABSENT = new ScalarResult(QueryResult.Status.NO_DATA, false, 0L, 0.0, null);
+
+	private static final ScalarResult NULL = new ScalarResult(QueryResult.Status.NO_DATA, true, 0L, 0.0, null);
+
+	private static final ScalarResult ERROR = new ScalarResult(QueryResult.Status.ERROR, false, 0L, 0.0, null);
+
+	private static final ScalarResult TIMEOUT = new ScalarResult(QueryResult.Status.TIMEOUT, false, 0L, 0.0, null);
+
+	private static final ScalarResult REJECTED = new ScalarResult(QueryResult.Status.REJECTED, false, 0L, 0.0,
+			null);
+
+	private final QueryResult.Status status;
+
+	private final boolean rowFound;
+
+	private final long longValue;
+
+	private final double doubleValue;
+
+	private final BigDecimal decimalValue;
+
+	private ScalarResult(QueryResult.Status status, boolean rowFound, long longValue, double doubleValue,
+			BigDecimal decimalValue) {
+		this.status = status;
+		this.rowFound = rowFound;
+		this.longValue = longValue;
+		this.doubleValue = doubleValue;
+		this.decimalValue = decimalValue;
+	}
+
+	static ScalarResult ofLong(long value) {
+		return new ScalarResult(QueryResult.Status.OK, true, value, value, null);
+	}
+
+	static ScalarResult ofDouble(double value) {
+		return new ScalarResult(QueryResult.Status.OK, true, (long) value, value, null);
+	}
+
+	static ScalarResult ofDecimal(BigDecimal value) {
+		return new ScalarResult(QueryResult.Status.OK, true, value.longValue(), value.doubleValue(), value);
+	}
+
+	/**
+	 * @return the shared result for a query that returned no row
+	 */
+	static ScalarResult absent() {
+		return ABSENT;
+	}
+
+	/**
+	 * @return the shared result for a first column that was SQL NULL
+	 */
+	static ScalarResult nullValue() {
+		return NULL;
+	}
+
+	/**
+	 * @return the shared result for a status other than {@code OK} and
+	 *         {@code NO_DATA}
+	 */
+	static ScalarResult failure(QueryResult.Status status) {
+		switch (status) {
+		case TIMEOUT:
+			return TIMEOUT;
+		case REJECTED:
+			return REJECTED;
+		case ERROR:
+			return ERROR;
+		default:
+			throw new IllegalArgumentException(status + " is not a failure");
+		}
+	}
+
+	public QueryResult.Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true if the first row had a value
+	 */
+	public boolean isPresent() {
+		return status == QueryResult.Status.OK;
+	}
+
+	/**
+	 * @return true if the query was answered without any row
+	 */
+	public boolean isAbsent() {
+		return status == QueryResult.Status.NO_DATA && !rowFound;
+	}
+
+	/**
+	 * @return true if the query was answered and the value was SQL NULL
+	 */
+	public boolean isNull() {
+		return status == QueryResult.Status.NO_DATA && rowFound;
+	}
+
+	/**
+	 * @return the value as a long, truncated if it was read as a decimal or
+	 *         double
+	 * @throws IllegalStateException
+	 *             if there is no value
+	 */
+	public long getLong() {
+		checkPresent();
+		return longValue;
+	}
+
+	/**
+	 * @return the value as a double
+	 * @throws IllegalStateException
+	 *             if there is no value
+	 */
+	public double getDouble() {
+		checkPresent();
+		return doubleValue;
+	}
+
+	/**
+	 * @return the value as a double, {@code defaultValue} if there is none
+	 */
+	public double getDouble(double defaultValue) {
+		return isPresent() ? doubleValue : defaultValue;
+	}
+
+	/**
+	 * @return the exact value, null if there is none; a long or double value
+	 *         is converted
+	 */
+	public BigDecimal getDecimal() {
+		if (!isPresent()) {
+			return null;
+		}
+		if (decimalValue != null) {
+			return decimalValue;
+		}
+		return longValue == doubleValue ? BigDecimal.valueOf(longValue) : BigDecimal.valueOf(doubleValue);
+	}
+
+	private void checkPresent() {
+		if (!isPresent()) {
+			throw new IllegalStateException("No value: " + this);
+		}
+	}
+
+	@Override
+	public String toString() {
+		if (isPresent()) {
+			return getDecimal().toPlainString();
+		}
+		return isNull() ? "NULL" : status.name();
+	}
+}
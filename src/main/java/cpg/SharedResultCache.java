@@ -0,0 +1,480 @@
+package cpg;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+
+/**
+ * Second tier behind the {@link ResultCache}: metric answers shared by all
+ * containers through a DynamoDB table, so that a cold container, or one
+ * whose entry went stale, reads what another container already queried
+ * instead of asking SQL Server again.
+ *
+ * <p>
+ * One item per {@link MetricKey}:
+ * <ul>
+ * <li>{@code k} (S, hash key): metric, year, brand and customer</li>
+ * <li>{@code v} (B): the answer in a few bytes, see {@link #encode}</li>
+ * <li>{@code at} (N): when the answer was loaded, epoch millis</li>
+ * <li>{@code exp} (N): epoch seconds after which the item is dropped</li>
+ * </ul>
+ * Enable time to live on {@code exp} for the table, so DynamoDB deletes the
+ * expired items; since it does so lazily, reads also skip items older than
+ * {@code cpg.dynamo.maxAgeMillis} (default 5 minutes). The maximum age is
+ * kept below the result cache's time to live, so an answer taken over from
+ * here is never much older than one this container queried itself.
+ *
+ * <p>
+ * Lookups are eventually consistent and bounded by
+ * {@code cpg.dynamo.timeoutMillis} without retries; several metrics for one
+ * request are read with a single {@code BatchGetItem}. Answers are written
+ * back on one background thread behind a queue of
+ * {@code cpg.dynamo.writeQueueSize}, dropping writes when it is full. Any
+ * failure counts as a miss and the answer comes from the database, and a
+ * {@link CircuitBreaker} stops asking a table that keeps failing.
+ *
+ * <p>
+ * Settings: {@code cpg.dynamo.enabled} (false), {@code cpg.dynamo.table}
+ * ({@code cpg-result-cache}), {@code cpg.dynamo.region} and
+ * {@code cpg.dynamo.endpoint}, e.g. {@code http://localhost:8000} for
+ * DynamoDB Local.
+ */
+public class SharedResultCache {
+	private static final Logger log = LoggerFactory.getLogger(SharedResultCache.class);
+
+	static final String KEY = "k";
+
+	static final String VALUE = "v";
+
+	static final String LOADED_AT = "at";
+
+	static final String EXPIRES = "exp";
+
+	/** The most keys one {@code BatchGetItem} may ask for. */
+	private static final int MAX_BATCH = 100;
+
+	/** Separates the parts of a key; cannot occur in a slot value. */
+	private static final char SEPARATOR = '\u001f';
+
+	/** Scale byte of a value stored as text rather than a decimal. */
+	private static final byte TEXT = Byte.MIN_VALUE;
+
+	private final AmazonDynamoDB client;
+
+	private final String table;
+
+	private final long maxAgeMillis;
+
+	private final long timeoutMillis;
+
+	private final CircuitBreaker breaker;
+
+	private final ThreadPoolExecutor writer;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong errors = new AtomicLong();
+
+	private final AtomicLong writes = new AtomicLong();
+
+	private final AtomicLong droppedWrites = new AtomicLong();
+
+	public SharedResultCache(AmazonDynamoDB client, String table) {
+		this(client, table, SkillConfig.getLong("cpg.dynamo.maxAgeMillis", 5 * 60 * 1000L),
+				SkillConfig.getLong("cpg.dynamo.timeoutMillis", 100));
+	}
+
+	public SharedResultCache(AmazonDynamoDB client, String table, long maxAgeMillis, long timeoutMillis) {
+		this.client = client;
+		this.table = table;
+		this.maxAgeMillis = maxAgeMillis;
+		this.timeoutMillis = timeoutMillis;
+		this.breaker = new CircuitBreaker("dynamodb");
+		this.writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(SkillConfig.getInt("cpg.dynamo.writeQueueSize", 64)),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "cpg-dynamo-writer");
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.DiscardPolicy() {
+					@Override
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						droppedWrites.incrementAndGet();
+					}
+				});
+	}
+
+	/**
+	 * @return the shared cache configured by the {@code cpg.dynamo.*}
+	 *         settings, or null when it is disabled
+	 */
+	public static SharedResultCache fromConfig() {
+		if (!SkillConfig.getBoolean("cpg.dynamo.enabled", false)) {
+			return null;
+		}
+		int timeout = SkillConfig.getInt("cpg.dynamo.timeoutMillis", 100);
+		ClientConfiguration config = new ClientConfiguration();
+		config.setConnectionTimeout(timeout);
+		config.setSocketTimeout(timeout);
+		// a slow answer is no better than the database's
+		config.setMaxErrorRetry(0);
+		config.setMaxConnections(SkillConfig.getInt("cpg.dynamo.maxConnections", 16));
+
+		String endpoint = SkillConfig.get("cpg.dynamo.endpoint", null);
+		AmazonDynamoDBClient client;
+		if (endpoint != null) {
+			// DynamoDB Local accepts any credentials
+			client = new AmazonDynamoDBClient(new BasicAWSCredentials("local", "local"), config);
+			client.setEndpoint(endpoint);
+		} else {
+			client = new AmazonDynamoDBClient(new DefaultAWSCredentialsProviderChain(), config);
+			String region = SkillConfig.get("cpg.dynamo.region", System.getenv("AWS_REGION"));
+			if (region != null) {
+				client.setRegion(Region.getRegion(Regions.fromName(region)));
+			}
+		}
+		SharedResultCache cache = new SharedResultCache(client, SkillConfig.get("cpg.dynamo.table", "cpg-result-cache"));
+		log.info("Shared result cache on table {}{}", cache.table, endpoint == null ? "" : " at " + endpoint);
+		return cache;
+	}
+
+	/**
+	 * Creates the table unless it exists, e.g. on DynamoDB Local. Time to live
+	 * on {@code exp} has to be enabled separately.
+	 */
+	public void createTable(long readCapacity, long writeCapacity) {
+		try {
+			client.createTable(new CreateTableRequest()
+					.withTableName(table)
+					.withAttributeDefinitions(new AttributeDefinition(KEY, ScalarAttributeType.S))
+					.withKeySchema(new KeySchemaElement(KEY, KeyType.HASH))
+					.withProvisionedThroughput(new ProvisionedThroughput(readCapacity, writeCapacity)));
+		} catch (ResourceInUseException e) {
+			log.debug("Table {} exists", table);
+		}
+	}
+
+	/**
+	 * @return the shared answer, or null when there is none younger than the
+	 *         maximum age or the table did not answer in time
+	 */
+	public QueryResult get(MetricKey key, Deadline deadline) {
+		CircuitBreaker.Permit permit = deadline.remainingMillis() < timeoutMillis ? null : breaker.tryAcquire();
+		if (permit == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		long start = System.nanoTime();
+		try {
+			Map<String, AttributeValue> item = client.getItem(new GetItemRequest()
+					.withTableName(table)
+					.withKey(Collections.singletonMap(KEY, new AttributeValue(key(key))))
+					.withConsistentRead(false)).getItem();
+			permit.onSuccess(System.nanoTime() - start);
+			QueryResult result = item == null ? null : decode(item, System.currentTimeMillis());
+			(result == null ? misses : hits).incrementAndGet();
+			return result;
+		} catch (AmazonClientException e) {
+			permit.onFailure();
+			errors.incrementAndGet();
+			misses.incrementAndGet();
+			log.debug("Shared cache lookup failed for {}: {}", key, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Looks up several keys with as few {@code BatchGetItem} calls as
+	 * possible. Keys DynamoDB leaves unprocessed are asked for again while
+	 * the deadline allows.
+	 *
+	 * @return the shared answers found, by key
+	 */
+	public Map<MetricKey, QueryResult> getAll(Collection<MetricKey> keys, Deadline deadline) {
+		Map<MetricKey, QueryResult> found = new HashMap<MetricKey, QueryResult>();
+		if (keys.isEmpty()) {
+			return found;
+		}
+		Map<String, MetricKey> byId = new LinkedHashMap<String, MetricKey>();
+		for (MetricKey key : keys) {
+			byId.put(key(key), key);
+		}
+		List<Map<String, AttributeValue>> remaining = new ArrayList<Map<String, AttributeValue>>(byId.size());
+		for (String id : byId.keySet()) {
+			remaining.add(Collections.singletonMap(KEY, new AttributeValue(id)));
+		}
+
+		long now = System.currentTimeMillis();
+		CircuitBreaker.Permit permit;
+		while (!remaining.isEmpty() && deadline.remainingMillis() >= timeoutMillis
+				&& (permit = breaker.tryAcquire()) != null) {
+			List<Map<String, AttributeValue>> batch = remaining.subList(0, Math.min(MAX_BATCH, remaining.size()));
+			Map<String, KeysAndAttributes> request = Collections.singletonMap(table,
+					new KeysAndAttributes().withKeys(new ArrayList<Map<String, AttributeValue>>(batch))
+							.withConsistentRead(false));
+			batch.clear();
+			long start = System.nanoTime();
+			BatchGetItemResult result;
+			try {
+				result = client.batchGetItem(new BatchGetItemRequest().withRequestItems(request));
+				permit.onSuccess(System.nanoTime() - start);
+			} catch (AmazonClientException e) {
+				permit.onFailure();
+				errors.incrementAndGet();
+				log.debug("Shared cache batch lookup of {} keys failed: {}", byId.size(), e.getMessage());
+				break;
+			}
+			List<Map<String, AttributeValue>> items = result.getResponses().get(table);
+			if (items != null) {
+				for (Map<String, AttributeValue> item : items) {
+					QueryResult value = decode(item, now);
+					MetricKey key = byId.get(item.get(KEY).getS());
+					if (value != null && key != null) {
+						found.put(key, value);
+					}
+				}
+			}
+			KeysAndAttributes unprocessed = result.getUnprocessedKeys() == null ? null
+					: result.getUnprocessedKeys().get(table);
+			if (unprocessed != null && unprocessed.getKeys() != null) {
+				remaining.addAll(unprocessed.getKeys());
+			}
+		}
+		hits.addAndGet(found.size());
+		misses.addAndGet(byId.size() - found.size());
+		return found;
+	}
+
+	/**
+	 * Shares an answer in the background. Failures are not cached.
+	 */
+	public void putAsync(final MetricKey key, final QueryResult result) {
+		if (!result.isAnswered()) {
+			return;
+		}
+		final long loadedAt = System.currentTimeMillis();
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				put(key, result, loadedAt);
+			}
+		});
+	}
+
+	/**
+	 * Shares an answer loaded at {@code loadedAt}.
+	 *
+	 * @return true if it was written
+	 */
+	public boolean put(MetricKey key, QueryResult result, long loadedAt) {
+		if (!result.isAnswered()) {
+			return false;
+		}
+		CircuitBreaker.Permit permit = breaker.tryAcquire();
+		if (permit == null) {
+			return false;
+		}
+		Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+		item.put(KEY, new AttributeValue(key(key)));
+		item.put(VALUE, new AttributeValue().withB(ByteBuffer.wrap(encode(result))));
+		item.put(LOADED_AT, new AttributeValue().withN(Long.toString(loadedAt)));
+		item.put(EXPIRES, new AttributeValue().withN(Long.toString((loadedAt + maxAgeMillis) / 1000 + 1)));
+		long start = System.nanoTime();
+		try {
+			client.putItem(new PutItemRequest().withTableName(table).withItem(item));
+			permit.onSuccess(System.nanoTime() - start);
+			writes.incrementAndGet();
+			return true;
+		} catch (AmazonClientException e) {
+			permit.onFailure();
+			errors.incrementAndGet();
+			log.debug("Shared cache write failed for {}: {}", key, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @return the answer of an item, or null if it is expired or unreadable
+	 */
+	private QueryResult decode(Map<String, AttributeValue> item, long now) {
+		AttributeValue value = item.get(VALUE);
+		AttributeValue loadedAt = item.get(LOADED_AT);
+		if (value == null || value.getB() == null || loadedAt == null) {
+			return null;
+		}
+		try {
+			if (now - Long.parseLong(loadedAt.getN()) >= maxAgeMillis) {
+				return null;
+			}
+			ByteBuffer bytes = value.getB().duplicate();
+			byte[] encoded = new byte[bytes.remaining()];
+			bytes.get(encoded);
+			return decode(encoded);
+		} catch (IllegalArgumentException e) {
+			log.debug("Unreadable shared cache item {}: {}", item.get(KEY), e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the hash key of a metric key
+	 */
+	static String key(MetricKey key) {
+		MetricFilter filter = key.getFilter();
+		StringBuilder id = new StringBuilder(48).append(key.getMetric().name()).append(SEPARATOR);
+		if (filter.getYear() != null) {
+			id.append(filter.getYear().intValue());
+		}
+		id.append(SEPARATOR);
+		if (filter.getBrand() != null) {
+			id.append(filter.getBrand());
+		}
+		id.append(SEPARATOR);
+		if (filter.getCustomer() != null) {
+			id.append(filter.getCustomer());
+		}
+		return id.toString();
+	}
+
+	/**
+	 * Encodes an answer as its status byte, followed for {@code OK} by the
+	 * scale byte and the unscaled decimal as a zigzag varint: the formatted
+	 * metrics take 4 to 7 bytes instead of a string. A value that is not a
+	 * plain decimal follows a scale byte of {@link #TEXT} as UTF-8.
+	 */
+	static byte[] encode(QueryResult result) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(12);
+		out.write(result.getStatus().ordinal());
+		if (result.getStatus() != QueryResult.Status.OK) {
+			return out.toByteArray();
+		}
+		String value = result.getValue();
+		BigDecimal decimal = parsePlain(value);
+		if (decimal == null) {
+			out.write(TEXT);
+			byte[] text = value.getBytes(StandardCharsets.UTF_8);
+			out.write(text, 0, text.length);
+			return out.toByteArray();
+		}
+		out.write(decimal.scale());
+		long unscaled = decimal.unscaledValue().longValue();
+		long zigzag = (unscaled << 1) ^ (unscaled >> 63);
+		while ((zigzag & ~0x7FL) != 0) {
+			out.write((int) (zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		out.write((int) zigzag);
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the decimal if it is written back exactly as {@code value} and
+	 *         fits the encoding, null otherwise
+	 */
+	private static BigDecimal parsePlain(String value) {
+		BigDecimal decimal;
+		try {
+			decimal = new BigDecimal(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (decimal.scale() < 0 || decimal.scale() >= Byte.MAX_VALUE || decimal.unscaledValue().bitLength() > 63
+				|| !decimal.toPlainString().equals(value)) {
+			return null;
+		}
+		return decimal;
+	}
+
+	static QueryResult decode(byte[] bytes) {
+		if (bytes.length == 0 || bytes[0] < 0 || bytes[0] >= QueryResult.Status.values().length) {
+			throw new IllegalArgumentException("bad status");
+		}
+		QueryResult.Status status = QueryResult.Status.values()[bytes[0]];
+		if (status != QueryResult.Status.OK) {
+			return QueryResult.failure(status);
+		}
+		if (bytes.length < 2) {
+			throw new IllegalArgumentException("value missing");
+		}
+		if (bytes[1] == TEXT) {
+			return QueryResult.ok(new String(bytes, 2, bytes.length - 2, StandardCharsets.UTF_8));
+		}
+		long zigzag = 0;
+		int shift = 0;
+		for (int i = 2; i < bytes.length; i++, shift += 7) {
+			if (shift > 63) {
+				throw new IllegalArgumentException("varint too long");
+			}
+			zigzag |= (long) (bytes[i] & 0x7F) << shift;
+			if ((bytes[i] & 0x80) == 0) {
+				long unscaled = (zigzag >>> 1) ^ -(zigzag & 1);
+				return QueryResult.ok(BigDecimal.valueOf(unscaled, bytes[1]).toPlainString());
+			}
+		}
+		throw new IllegalArgumentException("varint truncated");
+	}
+
+	/**
+	 * Waits up to {@code timeoutMillis} for the queued writes.
+	 */
+	public void flush(long timeoutMillis) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeoutMillis;
+		while ((writer.getQueue().size() > 0 || writer.getActiveCount() > 0) && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	@Override
+	public String toString() {
+		return "SharedResultCache[table=" + table + ", hits=" + hits.get() + ", misses=" + misses.get() + ", errors="
+				+ errors.get() + ", writes=" + writes.get() + ", droppedWrites=" + droppedWrites.get() + ", "
+				+ breaker + "]";
+	}
+}
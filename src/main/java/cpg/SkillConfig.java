@@ -0,0 +1,56 @@
+package cpg;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Reads skill settings. A key such as {@code cpg.pool.maxSize} is looked up
+ * as a JVM system property first, then as an environment variable
+ * ({@code CPG_POOL_MAXSIZE}), and finally falls back to the given default.
+ * Lambda functions are configured through environment variables, local runs
+ * through {@code -D} flags.
+ */
+public final class SkillConfig {
+
+	private SkillConfig() {
+	}
+
+	public static String get(String key, String defaultValue) {
+		String value = System.getProperty(key);
+		if (StringUtils.isEmpty(value)) {
+			value = System.getenv(key.replace('.', '_').toUpperCase());
+		}
+		return StringUtils.isEmpty(value) ? defaultValue : value.trim();
+	}
+
+	public static int getInt(String key, int defaultValue) {
+		String value = get(key, null);
+		try {
+			return value == null ? defaultValue : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	public static long getLong(String key, long defaultValue) {
+		String value = get(key, null);
+		try {
+			return value == null ? defaultValue : Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	public static double getDouble(String key, double defaultValue) {
+		String value = get(key, null);
+		try {
+			return value == null ? defaultValue : Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = get(key, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+}
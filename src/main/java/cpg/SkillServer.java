@@ -0,0 +1,236 @@
+package cpg;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutorService;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.FilterMapping;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazon.speech.Sdk;
+import com.amazon.speech.speechlet.servlet.SpeechletServlet;
+
+/**
+ * Hosts the skill as a long running HTTP(S) endpoint instead of a Lambda
+ * function: no cold starts, and the connection pool, result cache and cube
+ * stay warm for the life of the process.
+ *
+ * <p>
+ * {@link CpgSpeechlet} is mounted with the SDK's {@link SpeechletServlet} at
+ * {@code cpg.server.path} (default {@code /}), which verifies the request
+ * signature and application id. Skill requests pass an {@link AdmissionFilter}
+ * first; a load balancer can probe {@code /health}, which turns 503 once the
+ * server drains.
+ *
+ * <p>
+ * Settings:
+ * <ul>
+ * <li>{@code cpg.server.port} (8080), {@code cpg.server.host}, and
+ * {@code cpg.server.keyStore} with {@code cpg.server.keyStorePassword} to
+ * terminate TLS here rather than at the load balancer</li>
+ * <li>{@code cpg.server.threadModel}: {@code bounded} (default), a
+ * {@link QueuedThreadPool} of {@code cpg.server.minThreads} to
+ * {@code cpg.server.maxThreads} threads behind a queue of
+ * {@code cpg.server.queueSize} jobs; or {@code virtual}, a virtual thread per
+ * task on Java 21 and later, where the admission filter alone bounds the
+ * concurrency</li>
+ * <li>{@code cpg.server.idleTimeoutMillis} for idle connections and
+ * {@code cpg.server.shutdownTimeoutMillis} for draining</li>
+ * </ul>
+ *
+ * <p>
+ * On shutdown, including SIGTERM, the server stops admitting requests, waits
+ * for those in flight, stops Jetty, flushes the telemetry and closes the
+ * connection pool.
+ */
+public class SkillServer {
+	private static final Logger log = LoggerFactory.getLogger(SkillServer.class);
+
+	private final CpgSpeechlet speechlet;
+
+	private final AdmissionFilter admission;
+
+	private final Server server;
+
+	private final ServerConnector connector;
+
+	private final long shutdownTimeoutMillis;
+
+	private boolean stopped;
+
+	public SkillServer() {
+		this(SkillConfig.getInt("cpg.server.port", 8080));
+	}
+
+	/**
+	 * @param port
+	 *            the port to listen on, 0 for any free one
+	 */
+	public SkillServer(int port) {
+		if (System.getProperty(Sdk.SUPPORTED_APPLICATION_IDS_SYSTEM_PROPERTY) == null) {
+			System.setProperty(Sdk.SUPPORTED_APPLICATION_IDS_SYSTEM_PROPERTY, RequestEnvelopes.APPLICATION_ID);
+		}
+		this.shutdownTimeoutMillis = SkillConfig.getLong("cpg.server.shutdownTimeoutMillis", 30000);
+		this.speechlet = new CpgSpeechlet();
+		this.admission = new AdmissionFilter();
+		this.server = new Server(newThreadPool());
+
+		String keyStore = SkillConfig.get("cpg.server.keyStore", null);
+		if (keyStore != null) {
+			SslContextFactory ssl = new SslContextFactory(keyStore);
+			ssl.setKeyStorePassword(SkillConfig.get("cpg.server.keyStorePassword", ""));
+			connector = new ServerConnector(server, ssl);
+		} else {
+			connector = new ServerConnector(server);
+		}
+		connector.setPort(port);
+		connector.setHost(SkillConfig.get("cpg.server.host", null));
+		connector.setIdleTimeout(SkillConfig.getLong("cpg.server.idleTimeoutMillis", 30000));
+		connector.setAcceptQueueSize(SkillConfig.getInt("cpg.server.acceptQueueSize", 128));
+		server.addConnector(connector);
+
+		SpeechletServlet servlet = new SpeechletServlet();
+		servlet.setSpeechlet(speechlet);
+		ServletHolder speechletHolder = new ServletHolder("speechlet", servlet);
+		ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+		context.addServlet(new ServletHolder(new HealthServlet(admission)), "/health");
+		context.addServlet(speechletHolder, SkillConfig.get("cpg.server.path", "/"));
+		// only skill requests are admission controlled, never the health check
+		FilterMapping mapping = new FilterMapping();
+		mapping.setFilterName("admission");
+		mapping.setServletName(speechletHolder.getName());
+		mapping.setDispatcherTypes(EnumSet.of(DispatcherType.REQUEST));
+		FilterHolder admissionHolder = new FilterHolder(admission);
+		admissionHolder.setName("admission");
+		context.getServletHandler().addFilter(admissionHolder, mapping);
+		server.setHandler(context);
+	}
+
+	private static ThreadPool newThreadPool() {
+		if ("virtual".equals(SkillConfig.get("cpg.server.threadModel", "bounded"))) {
+			ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("cpg-http-");
+			if (executor != null) {
+				return new ExecutorThreadPool(executor);
+			}
+			log.warn("Virtual threads are not available, using a bounded thread pool");
+		}
+		int maxThreads = SkillConfig.getInt("cpg.server.maxThreads", 64);
+		int queueSize = SkillConfig.getInt("cpg.server.queueSize", 256);
+		QueuedThreadPool pool = new QueuedThreadPool(maxThreads, SkillConfig.getInt("cpg.server.minThreads", 8),
+				60000, new BlockingArrayQueue<Runnable>(queueSize, 0, queueSize));
+		pool.setName("cpg-http");
+		return pool;
+	}
+
+	/**
+	 * Warms up the speechlet, as the Lambda handler does at init, then starts
+	 * listening.
+	 */
+	public void start() throws Exception {
+		StartupTimer timer = new StartupTimer();
+		ConnectionUtil.initialize();
+		speechlet.warmUp();
+		timer.phase("connectionAndCube");
+		server.start();
+		timer.phase("server");
+		log.info("Skill server listening on port {}, startup {}", connector.getLocalPort(), timer.report());
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() {
+		return connector.getLocalPort();
+	}
+
+	public AdmissionFilter getAdmission() {
+		return admission;
+	}
+
+	public void join() throws InterruptedException {
+		server.join();
+	}
+
+	/**
+	 * Stops admitting requests, waits up to {@code cpg.server.shutdownTimeoutMillis}
+	 * for those in flight, then stops the server and releases the shared
+	 * resources. Safe to call more than once.
+	 */
+	public synchronized void shutdown() {
+		if (stopped) {
+			return;
+		}
+		stopped = true;
+		log.info("Skill server draining, {}", admission);
+		admission.drain();
+		try {
+			if (!admission.awaitIdle(shutdownTimeoutMillis)) {
+				log.warn("{} requests still running after {} ms, stopping anyway", admission.getInFlight(),
+						shutdownTimeoutMillis);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			server.stop();
+		} catch (Exception e) {
+			log.warn("Skill server did not stop cleanly: {}", e.getMessage());
+		}
+		Telemetry.shared().flush();
+		ConnectionUtil.closePool();
+		log.info("Skill server stopped");
+	}
+
+	public static void main(String[] args) throws Exception {
+		final SkillServer server = new SkillServer();
+		Runtime.getRuntime().addShutdownHook(new Thread("cpg-shutdown") {
+			@Override
+			public void run() {
+				server.shutdown();
+			}
+		});
+		server.start();
+		server.join();
+	}
+
+	/**
+	 * Answers the load balancer's health check.
+	 */
+	private static final class HealthServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient AdmissionFilter admission;
+
+		HealthServlet(AdmissionFilter admission) {
+			this.admission = admission;
+		}
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			response.setContentType("text/plain");
+			if (admission.isDraining()) {
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				response.getWriter().print("DRAINING");
+			} else {
+				response.getWriter().print("OK");
+			}
+		}
+	}
+}
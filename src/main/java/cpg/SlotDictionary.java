@@ -0,0 +1,262 @@
+package cpg;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The distinct values of a {@code BRAND} or {@code CUSTOMER} column, for
+ * resolving slot values to the names the view actually holds before a query
+ * is made.
+ *
+ * <p>
+ * Names are normalized like {@link MetricFilter} does and kept in a sorted
+ * array; a name's id is its index, which for a dictionary taken from the
+ * {@link AggregateCube} is also the cube's code for it. A slot value is
+ * resolved, in this order, by
+ * <ol>
+ * <li>its normalized form;</li>
+ * <li>its letters and digits only, so "Kellogg's" finds {@code KELLOGGS};</li>
+ * <li>the only name it is the leading words of, so "rite aid" finds
+ * {@code RITE AID CORP};</li>
+ * <li>the name that sounds alike (Soundex) with the fewest edits, so "cesar"
+ * finds {@code CAESAR};</li>
+ * <li>the name within a few edits: one for up to four letters, two for up to
+ * eight and three beyond, and one more for a name that sounds alike.</li>
+ * </ol>
+ * A fuzzy match must be unique: if two names are equally close, the value
+ * is not resolved. An unresolved value is not in the view, so the question
+ * can be answered with "no data" without asking the database.
+ *
+ * <p>
+ * Instances are immutable and safe to share between threads.
+ */
+public final class SlotDictionary {
+
+	/** Returned by {@link #resolve(String)} for a value matching no name. */
+	public static final int NOT_FOUND = -1;
+
+	private static final int[] NO_IDS = new int[0];
+
+	private final String[] names;
+
+	private final String[] keys;
+
+	/** Letters and digits only to id; ambiguous keys are left out. */
+	private final Map<String, Integer> byKey;
+
+	private final Map<String, int[]> bySound;
+
+	private SlotDictionary(String[] names) {
+		this.names = names;
+		this.keys = new String[names.length];
+		this.byKey = new HashMap<String, Integer>(names.length * 2);
+		Set<String> ambiguous = new HashSet<String>();
+		Map<String, List<Integer>> sounds = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < names.length; i++) {
+			keys[i] = key(names[i]);
+			if (byKey.put(keys[i], i) != null) {
+				ambiguous.add(keys[i]);
+			}
+			String sound = soundex(keys[i]);
+			List<Integer> ids = sounds.get(sound);
+			if (ids == null) {
+				ids = new ArrayList<Integer>(2);
+				sounds.put(sound, ids);
+			}
+			ids.add(i);
+		}
+		byKey.keySet().removeAll(ambiguous);
+		this.bySound = new HashMap<String, int[]>(sounds.size() * 2);
+		for (Map.Entry<String, List<Integer>> entry : sounds.entrySet()) {
+			int[] ids = new int[entry.getValue().size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = entry.getValue().get(i).intValue();
+			}
+			bySound.put(entry.getKey(), ids);
+		}
+	}
+
+	/**
+	 * @param names
+	 *            the names, in any order and case; blanks and duplicates are
+	 *            dropped
+	 */
+	public static SlotDictionary of(String... names) {
+		Set<String> distinct = new HashSet<String>(names.length * 2);
+		for (String name : names) {
+			String normalized = MetricFilter.normalize(name);
+			if (normalized != null) {
+				distinct.add(normalized);
+			}
+		}
+		String[] sorted = distinct.toArray(new String[distinct.size()]);
+		Arrays.sort(sorted);
+		return new SlotDictionary(sorted);
+	}
+
+	/**
+	 * Loads the distinct values of a column of the view.
+	 *
+	 * @param column
+	 *            {@code ProdLevel4Name} or {@code CustCustomerName}
+	 */
+	public static SlotDictionary load(ConnectionUtil connUtil, String column) throws SQLException {
+		final List<String> names = new ArrayList<String>();
+		connUtil.executeQuery("select distinct " + column + " from " + MetricQuery.VIEW, new RowHandler() {
+			@Override
+			public void handleRow(ResultSet rs) throws SQLException {
+				names.add(rs.getString(1));
+			}
+		});
+		return of(names.toArray(new String[names.size()]));
+	}
+
+	/**
+	 * @return the id of the name a slot value stands for, or
+	 *         {@link #NOT_FOUND}
+	 */
+	public int resolve(String value) {
+		String normalized = MetricFilter.normalize(value);
+		if (normalized == null) {
+			return NOT_FOUND;
+		}
+		int id = Arrays.binarySearch(names, normalized);
+		if (id >= 0) {
+			return id;
+		}
+		String key = key(normalized);
+		if (key.isEmpty()) {
+			return NOT_FOUND;
+		}
+		Integer exact = byKey.get(key);
+		if (exact != null) {
+			return exact.intValue();
+		}
+		id = byLeadingWords(normalized);
+		if (id != NOT_FOUND) {
+			return id;
+		}
+
+		int maxEdits = key.length() <= 4 ? 1 : key.length() <= 8 ? 2 : 3;
+		int[] alike = bySound.get(soundex(key));
+		id = closest(key, alike == null ? NO_IDS : alike, maxEdits + 1);
+		if (id != NOT_FOUND) {
+			return id;
+		}
+		return closest(key, null, maxEdits);
+	}
+
+	/**
+	 * @return the only name starting with the given words, NOT_FOUND if there
+	 *         is none or more than one
+	 */
+	private int byLeadingWords(String normalized) {
+		String prefix = normalized + ' ';
+		int first = Arrays.binarySearch(names, prefix);
+		if (first < 0) {
+			first = -first - 1;
+		}
+		if (first >= names.length || !names[first].startsWith(prefix)) {
+			return NOT_FOUND;
+		}
+		return first + 1 < names.length && names[first + 1].startsWith(prefix) ? NOT_FOUND : first;
+	}
+
+	/**
+	 * @param candidates
+	 *            the ids to consider, null for all
+	 * @return the only candidate with the fewest edits to {@code key}, at
+	 *         most {@code maxEdits}; NOT_FOUND if there is none or a tie
+	 */
+	private int closest(String key, int[] candidates, int maxEdits) {
+		int count = candidates == null ? keys.length : candidates.length;
+		int best = NOT_FOUND;
+		int bestDistance = maxEdits;
+		boolean tie = false;
+		for (int i = 0; i < count; i++) {
+			int id = candidates == null ? i : candidates[i];
+			String candidate = keys[id];
+			if (Math.abs(candidate.length() - key.length()) > bestDistance) {
+				continue;
+			}
+			int distance = StringUtils.getLevenshteinDistance(key, candidate, bestDistance);
+			if (distance < 0) {
+				continue;
+			}
+			if (best == NOT_FOUND || distance < bestDistance) {
+				best = id;
+				bestDistance = distance;
+				tie = false;
+			} else if (distance == bestDistance) {
+				tie = true;
+			}
+		}
+		return tie ? NOT_FOUND : best;
+	}
+
+	/**
+	 * @return the name of an id
+	 */
+	public String name(int id) {
+		return names[id];
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * @return the letters and digits of a normalized name
+	 */
+	static String key(String normalized) {
+		StringBuilder key = new StringBuilder(normalized.length());
+		for (int i = 0; i < normalized.length(); i++) {
+			char c = normalized.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				key.append(c);
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * American Soundex of the letters A to Z in a key, e.g. {@code C260} for
+	 * both {@code CESAR} and {@code CAESAR}. Other characters are skipped.
+	 */
+	static String soundex(String key) {
+		char[] code = { '0', '0', '0', '0' };
+		int length = 0;
+		char last = 0;
+		for (int i = 0; i < key.length() && length < code.length; i++) {
+			char c = key.charAt(i);
+			if (c < 'A' || c > 'Z') {
+				continue;
+			}
+			char digit = "01230120022455012623010202".charAt(c - 'A');
+			if (length == 0) {
+				code[length++] = c;
+			} else if (digit != '0' && digit != last) {
+				code[length++] = digit;
+			}
+			// H and W do not separate letters of the same code, vowels do
+			if (c != 'H' && c != 'W') {
+				last = digit;
+			}
+		}
+		return length == 0 ? "" : new String(code);
+	}
+
+	@Override
+	public String toString() {
+		return "SlotDictionary[" + names.length + " names]";
+	}
+}
@@ -0,0 +1,296 @@
+package cpg;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A speech or card text compiled once into literal and argument segments, so
+ * that rendering a response is a single pass over the segments into a
+ * per-thread buffer instead of a chain of String concatenations.
+ *
+ * <p>
+ * Placeholders refer to the render arguments by position:
+ * <ul>
+ * <li>{@code {0}} text, XML escaped in an SSML template</li>
+ * <li>{@code {0,ssml}} a fragment that is already SSML, inserted as is</li>
+ * <li>{@code {0,cardinal}} a number; read out as a cardinal in an SSML
+ * template. Whole doubles lose the ".0" and no value is written in
+ * scientific notation</li>
+ * <li>{@code [...]} an optional section, rendered only if none of the
+ * arguments inside it is null or empty</li>
+ * </ul>
+ * The characters {@code {}[]} are reserved. Templates are immutable and
+ * thread-safe.
+ */
+public final class SpeechTemplate {
+
+	private static final int LITERAL = 0;
+
+	private static final int TEXT = 1;
+
+	private static final int RAW = 2;
+
+	private static final int CARDINAL = 3;
+
+	private static final int SECTION = 4;
+
+	private static final String SAY_CARDINAL = "<say-as interpret-as=\"cardinal\">";
+
+	private static final String SAY_END = "</say-as>";
+
+	/** Buffers that grew beyond this are dropped rather than kept per thread. */
+	private static final int MAX_RETAINED = 16 * 1024;
+
+	private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(512);
+		}
+	};
+
+	private final String pattern;
+
+	private final boolean ssml;
+
+	private final int[] kinds;
+
+	private final String[] literals;
+
+	/** The argument index, or for a section the segment after its end. */
+	private final int[] operands;
+
+	/** For a section, every argument it contains. */
+	private final int[][] sectionArgs;
+
+	private SpeechTemplate(String pattern, boolean ssml) {
+		this.pattern = pattern;
+		this.ssml = ssml;
+
+		List<Integer> kinds = new ArrayList<Integer>();
+		List<String> literals = new ArrayList<String>();
+		List<Integer> operands = new ArrayList<Integer>();
+		List<List<Integer>> sectionArgs = new ArrayList<List<Integer>>();
+		Deque<Integer> open = new ArrayDeque<Integer>();
+		StringBuilder literal = new StringBuilder();
+
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c != '{' && c != '[' && c != ']') {
+				if (c == '}') {
+					throw new IllegalArgumentException("Unbalanced } in template: " + pattern);
+				}
+				literal.append(c);
+				continue;
+			}
+			if (literal.length() > 0) {
+				add(kinds, literals, operands, sectionArgs, LITERAL, literal.toString(), 0);
+				literal.setLength(0);
+			}
+			if (c == '[') {
+				open.push(kinds.size());
+				add(kinds, literals, operands, sectionArgs, SECTION, null, 0);
+			} else if (c == ']') {
+				if (open.isEmpty()) {
+					throw new IllegalArgumentException("Unbalanced ] in template: " + pattern);
+				}
+				operands.set(open.pop(), kinds.size());
+			} else {
+				int end = pattern.indexOf('}', i);
+				if (end < 0) {
+					throw new IllegalArgumentException("Unbalanced { in template: " + pattern);
+				}
+				String[] spec = pattern.substring(i + 1, end).split(",", 2);
+				int kind = spec.length == 1 ? TEXT : kind(spec[1].trim(), pattern);
+				int arg;
+				try {
+					arg = Integer.parseInt(spec[0].trim());
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Bad placeholder in template: " + pattern);
+				}
+				add(kinds, literals, operands, sectionArgs, kind, null, arg);
+				for (int section : open) {
+					sectionArgs.get(section).add(arg);
+				}
+				i = end;
+			}
+		}
+		if (!open.isEmpty()) {
+			throw new IllegalArgumentException("Unbalanced [ in template: " + pattern);
+		}
+		if (literal.length() > 0) {
+			add(kinds, literals, operands, sectionArgs, LITERAL, literal.toString(), 0);
+		}
+
+		this.kinds = new int[kinds.size()];
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.operands = new int[kinds.size()];
+		this.sectionArgs = new int[kinds.size()][];
+		for (int i = 0; i < this.kinds.length; i++) {
+			this.kinds[i] = kinds.get(i);
+			this.operands[i] = operands.get(i);
+			List<Integer> args = sectionArgs.get(i);
+			this.sectionArgs[i] = new int[args.size()];
+			for (int j = 0; j < args.size(); j++) {
+				this.sectionArgs[i][j] = args.get(j);
+			}
+		}
+	}
+
+	/**
+	 * Compiles a template whose text arguments are XML escaped and whose
+	 * cardinals are wrapped in {@code say-as}.
+	 */
+	public static SpeechTemplate ssml(String pattern) {
+		return new SpeechTemplate(pattern, true);
+	}
+
+	/**
+	 * Compiles a template for plain text such as card content, with no
+	 * escaping.
+	 */
+	public static SpeechTemplate text(String pattern) {
+		return new SpeechTemplate(pattern, false);
+	}
+
+	/**
+	 * @return the rendered text, built in this thread's buffer
+	 */
+	public String render(Object... args) {
+		StringBuilder buffer = BUFFER.get();
+		buffer.setLength(0);
+		String result = renderTo(buffer, args).toString();
+		if (buffer.capacity() > MAX_RETAINED) {
+			BUFFER.remove();
+		}
+		return result;
+	}
+
+	/**
+	 * Appends the rendered text to {@code out}, e.g. to build a list.
+	 *
+	 * @return {@code out}
+	 */
+	public StringBuilder renderTo(StringBuilder out, Object... args) {
+		for (int i = 0; i < kinds.length; i++) {
+			switch (kinds[i]) {
+			case LITERAL:
+				out.append(literals[i]);
+				break;
+			case SECTION:
+				if (!present(sectionArgs[i], args)) {
+					i = operands[i] - 1;
+				}
+				break;
+			case RAW:
+				Object raw = arg(args, operands[i]);
+				if (raw != null) {
+					out.append(raw);
+				}
+				break;
+			case CARDINAL:
+				if (ssml) {
+					out.append(SAY_CARDINAL);
+				}
+				appendNumber(out, arg(args, operands[i]));
+				if (ssml) {
+					out.append(SAY_END);
+				}
+				break;
+			default:
+				appendText(out, arg(args, operands[i]));
+			}
+		}
+		return out;
+	}
+
+	private void appendNumber(StringBuilder out, Object value) {
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			out.append(((Number) value).longValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+				out.append((long) d);
+			} else if (Double.isNaN(d) || Double.isInfinite(d)) {
+				out.append(d);
+			} else {
+				out.append(BigDecimal.valueOf(d).toPlainString());
+			}
+		} else if (value instanceof BigDecimal) {
+			out.append(((BigDecimal) value).toPlainString());
+		} else {
+			appendText(out, value);
+		}
+	}
+
+	private void appendText(StringBuilder out, Object value) {
+		if (value == null) {
+			return;
+		}
+		CharSequence text = value instanceof CharSequence ? (CharSequence) value : value.toString();
+		if (!ssml) {
+			out.append(text);
+			return;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '&':
+				out.append("&amp;");
+				break;
+			case '<':
+				out.append("&lt;");
+				break;
+			case '>':
+				out.append("&gt;");
+				break;
+			case '"':
+				out.append("&quot;");
+				break;
+			case '\'':
+				out.append("&apos;");
+				break;
+			default:
+				out.append(c);
+			}
+		}
+	}
+
+	private static boolean present(int[] sectionArgs, Object[] args) {
+		for (int arg : sectionArgs) {
+			Object value = arg(args, arg);
+			if (value == null || (value instanceof CharSequence && ((CharSequence) value).length() == 0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Object arg(Object[] args, int index) {
+		return index < args.length ? args[index] : null;
+	}
+
+	private static int kind(String name, String pattern) {
+		if ("ssml".equals(name)) {
+			return RAW;
+		} else if ("cardinal".equals(name)) {
+			return CARDINAL;
+		}
+		throw new IllegalArgumentException("Unknown placeholder type " + name + " in template: " + pattern);
+	}
+
+	private static void add(List<Integer> kinds, List<String> literals, List<Integer> operands,
+			List<List<Integer>> sectionArgs, int kind, String literal, int operand) {
+		kinds.add(kind);
+		literals.add(literal);
+		operands.add(operand);
+		sectionArgs.add(new ArrayList<Integer>(0));
+	}
+
+	@Override
+	public String toString() {
+		return pattern;
+	}
+}
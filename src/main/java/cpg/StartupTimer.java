@@ -0,0 +1,63 @@
+package cpg;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the phases of container initialization so cold start can be
+ * tracked as a number. Call {@link #phase(String)} after each phase; the
+ * report lists every phase with its duration plus the JVM uptime at which
+ * initialization began and ended.
+ */
+public final class StartupTimer {
+
+	private final List<String> names = new ArrayList<String>();
+
+	private final List<Long> nanos = new ArrayList<Long>();
+
+	private final long jvmUptimeAtStart;
+
+	private final long start;
+
+	private long last;
+
+	public StartupTimer() {
+		jvmUptimeAtStart = ManagementFactory.getRuntimeMXBean().getUptime();
+		start = System.nanoTime();
+		last = start;
+	}
+
+	/**
+	 * Ends the current phase under the given name and starts the next one.
+	 */
+	public void phase(String name) {
+		long now = System.nanoTime();
+		names.add(name);
+		nanos.add(now - last);
+		last = now;
+	}
+
+	/**
+	 * @return milliseconds from construction to the end of the last phase
+	 */
+	public double totalMillis() {
+		return (last - start) / 1e6;
+	}
+
+	/**
+	 * @return a single line report, e.g.
+	 *         {@code jvmUptimeMs=412 classes=85.1 jdbcDriver=40.3 ... totalMs=912.4}
+	 */
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		report.append("jvmUptimeMs=").append(jvmUptimeAtStart);
+		for (int i = 0; i < names.size(); i++) {
+			report.append(' ').append(names.get(i)).append('=')
+					.append(String.format("%.1f", nanos.get(i) / 1e6));
+		}
+		report.append(String.format(" totalMs=%.1f", totalMillis()));
+		report.append(" loadedClasses=").append(ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+		return report.toString();
+	}
+}
@@ -0,0 +1,54 @@
+package cpg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Training run for the class-data-sharing archive. Initializes the handler
+ * like Lambda does and replays a representative mix of requests, so that
+ * running it with {@code -XX:DumpLoadedClassList} records every class a real
+ * container loads. The {@code appcds} Maven profile runs it and then dumps the
+ * archive; start the function with
+ * {@code -XX:SharedArchiveFile=cpg.jsa -Xshare:auto} to use it. Requires a JDK
+ * 10+ runtime; on Java 8 the flags are not available.
+ */
+public final class StartupTraining {
+
+	private StartupTraining() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+
+		CpgSpeechletRequestStreamHandler handler = new CpgSpeechletRequestStreamHandler();
+
+		Map<String, String> slots = new LinkedHashMap<String, String>();
+		slots.put("YEARNO", "2016");
+		slots.put("BRAND", "CESAR");
+		slots.put("CUSTOMER", "TARGET");
+
+		String[] intents = { "TotalTradeSpend", "TotalGrossProfit", "TotalROI", "TotalMetrics", "BestPromotions",
+				"PromotionsPerformance", "HearMore", "DontHearMore", "AMAZON.HelpIntent", "AMAZON.StopIntent",
+				"AMAZON.CancelIntent", "Unknown" };
+
+		for (int i = 0; i < iterations; i++) {
+			String sessionId = "SessionId.training-" + i;
+			run(handler, RequestEnvelopes.launch(sessionId));
+			for (String intent : intents) {
+				run(handler, RequestEnvelopes.intent(sessionId, intent, slots));
+			}
+			run(handler, RequestEnvelopes.intent(sessionId, "TotalROI", Collections.<String, String> emptyMap()));
+			run(handler, RequestEnvelopes.sessionEnded(sessionId));
+		}
+
+		System.out.println("Startup " + CpgSpeechletRequestStreamHandler.getStartupReport());
+		ConnectionUtil.closePool();
+	}
+
+	private static void run(CpgSpeechletRequestStreamHandler handler, byte[] request) throws Exception {
+		handler.handleRequest(new ByteArrayInputStream(request), new ByteArrayOutputStream(), null);
+	}
+}
@@ -0,0 +1,272 @@
+package cpg;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maintains summary tables of the view at the grains of
+ * {@code cpg.summary.grains}: combinations of year, brand and customer
+ * joined by '+', by default every combination from
+ * {@code year+brand+customer} down to a single dimension. Each table holds
+ * one row per grain value with the sums of {@code TotalTradeSpendSellOut}
+ * and {@code GrossProfitSellOut} and the number of promotion rows, which the
+ * {@link QueryPlanner} reads instead of the view.
+ *
+ * <p>
+ * Every grain has two tables that take turns: a refresh rebuilds the one not
+ * in use and then points the catalog table {@code [dbo].[CPG_SUMMARY_CATALOG]}
+ * at it, so queries never see a half filled summary. The replaced table is
+ * only dropped by the next refresh, which leaves queries planned from an
+ * older catalog {@code cpg.summary.refreshMillis} to finish; it must be well
+ * above {@code cpg.summary.catalogMaxAgeMillis}. Read replicas get the
+ * tables from replication like any other.
+ *
+ * <p>
+ * The refresh runs as a scheduled job ({@link #main}), or every
+ * {@code cpg.summary.refreshMillis} (default 6 hours) in the skill with
+ * {@code cpg.summary.refresh=true}; it needs DDL rights on {@code [dbo]}.
+ */
+public class SummaryTables {
+	private static final Logger log = LoggerFactory.getLogger(SummaryTables.class);
+
+	static final String CATALOG = "[dbo].[CPG_SUMMARY_CATALOG]";
+
+	static final String CATALOG_SELECT_SQL = "select Grain, TableName, SummaryRows, RefreshedAt from " + CATALOG;
+
+	private static final String DEFAULT_GRAINS = "year+brand+customer,year+brand,year+customer,brand+customer,"
+			+ "year,brand,customer";
+
+	private static final String[] NAMES = { "year", "brand", "customer" };
+
+	private static final int[] BITS = { MetricFilter.YEAR, MetricFilter.BRAND, MetricFilter.CUSTOMER };
+
+	/** The view expression of each summary column. */
+	private static final String[] EXPRESSIONS = { "YEAR([PromotionStartDate])", "ProdLevel4Name", "CustCustomerName" };
+
+	private static final String[] COLUMNS = { "PromotionYear int", "ProdLevel4Name varchar(100)",
+			"CustCustomerName varchar(100)" };
+
+	private final ConnectionUtil connUtil;
+
+	private final int[] grains;
+
+	private final int timeoutSeconds;
+
+	private ScheduledExecutorService scheduler;
+
+	public SummaryTables(ConnectionUtil connUtil) {
+		this(connUtil, parseGrains(SkillConfig.get("cpg.summary.grains", DEFAULT_GRAINS)),
+				SkillConfig.getInt("cpg.summary.timeoutSeconds", 600));
+	}
+
+	public SummaryTables(ConnectionUtil connUtil, int[] grains, int timeoutSeconds) {
+		this.connUtil = connUtil;
+		this.grains = grains.clone();
+		this.timeoutSeconds = timeoutSeconds;
+	}
+
+	/**
+	 * @return the {@link MetricFilter} bits of grains such as
+	 *         "year+brand,customer"
+	 */
+	static int[] parseGrains(String grains) {
+		String[] names = grains.trim().split("\\s*,\\s*");
+		int[] parsed = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			for (String dimension : names[i].toLowerCase(Locale.ROOT).split("\\s*\\+\\s*")) {
+				int d = indexOf(dimension);
+				if (d < 0) {
+					throw new IllegalArgumentException("Unknown summary dimension " + dimension + " in " + grains);
+				}
+				parsed[i] |= BITS[d];
+			}
+		}
+		return parsed;
+	}
+
+	private static int indexOf(String dimension) {
+		for (int d = 0; d < NAMES.length; d++) {
+			if (NAMES[d].equals(dimension)) {
+				return d;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return a grain as written in {@code cpg.summary.grains}
+	 */
+	static String grainName(int grain) {
+		StringBuilder name = new StringBuilder();
+		for (int d = 0; d < NAMES.length; d++) {
+			if ((grain & BITS[d]) != 0) {
+				name.append(name.length() == 0 ? "" : "+").append(NAMES[d]);
+			}
+		}
+		return name.toString();
+	}
+
+	static String tableName(int grain, int generation) {
+		return "[dbo].[CPG_SUMMARY_" + grainName(grain).replace('+', '_').toUpperCase(Locale.ROOT) + "_"
+				+ generation + "]";
+	}
+
+	/**
+	 * Refreshes now and then every {@code cpg.summary.refreshMillis} on a
+	 * daemon thread.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cpg-summary-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long interval = SkillConfig.getLong("cpg.summary.refreshMillis", TimeUnit.HOURS.toMillis(6));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (SQLException e) {
+					log.warn("Summary refresh failed, keeping the current tables: {}", e.getMessage());
+				} catch (RuntimeException e) {
+					log.warn("Summary refresh failed", e);
+				}
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Rebuilds every summary from the view and publishes it in the catalog.
+	 *
+	 * @return the number of summary rows written
+	 */
+	public synchronized long refresh() throws SQLException {
+		long start = System.currentTimeMillis();
+		if (!exists(CATALOG)) {
+			connUtil.executeUpdate("create table " + CATALOG + " (Grain int not null primary key, "
+					+ "TableName varchar(128) not null, SummaryRows bigint not null, RefreshedAt bigint not null)",
+					timeoutSeconds);
+		}
+		final Map<Integer, String> current = new HashMap<Integer, String>();
+		connUtil.executeQuery(CATALOG_SELECT_SQL, new RowHandler() {
+			@Override
+			public void handleRow(ResultSet rs) throws SQLException {
+				current.put(rs.getInt(1), rs.getString(2));
+			}
+		});
+		long rows = 0;
+		for (int grain : grains) {
+			rows += refresh(grain, current.get(grain));
+		}
+		log.info("Refreshed {} summary tables, {} rows in {} ms", grains.length, rows,
+				System.currentTimeMillis() - start);
+		// queries in this process use the new tables right away
+		connUtil.getQueryPlanner().load(connUtil);
+		return rows;
+	}
+
+	private long refresh(int grain, String current) throws SQLException {
+		long start = System.currentTimeMillis();
+		int generation = tableName(grain, 0).equals(current) ? 1 : 0;
+		String table = tableName(grain, generation);
+		if (exists(table)) {
+			connUtil.executeUpdate("drop table " + table, timeoutSeconds);
+		}
+
+		List<String> columns = new ArrayList<String>();
+		List<String> definitions = new ArrayList<String>();
+		List<String> expressions = new ArrayList<String>();
+		for (int d = 0; d < NAMES.length; d++) {
+			if ((grain & BITS[d]) != 0) {
+				definitions.add(COLUMNS[d]);
+				columns.add(COLUMNS[d].substring(0, COLUMNS[d].indexOf(' ')));
+				expressions.add(EXPRESSIONS[d]);
+			}
+		}
+		String keys = join(columns);
+		String groupBy = join(expressions);
+		connUtil.executeUpdate("create table " + table + " (" + join(definitions)
+				+ ", TotalTradeSpendSellOut decimal(38,2), GrossProfitSellOut decimal(38,2), PromotionRows bigint)",
+				timeoutSeconds);
+		long rows = connUtil.executeUpdate("insert into " + table + " (" + keys
+				+ ", TotalTradeSpendSellOut, GrossProfitSellOut, PromotionRows) select " + groupBy
+				+ ", sum(TotalTradeSpendSellOut), sum(GrossProfitSellOut), count(*) from " + MetricQuery.VIEW
+				+ " group by " + groupBy, timeoutSeconds);
+		connUtil.executeUpdate("create index " + table.substring(7, table.length() - 1).replace("CPG_", "IX_CPG_")
+				+ " on " + table + " (" + keys + ")", timeoutSeconds);
+
+		long refreshedAt = System.currentTimeMillis();
+		if (connUtil.executeUpdate("update " + CATALOG + " set TableName = ?, SummaryRows = ?, RefreshedAt = ?"
+				+ " where Grain = ?", timeoutSeconds, table, rows, refreshedAt, grain) == 0) {
+			connUtil.executeUpdate("insert into " + CATALOG + " (Grain, TableName, SummaryRows, RefreshedAt)"
+					+ " values (?, ?, ?, ?)", timeoutSeconds, grain, table, rows, refreshedAt);
+		}
+		log.info("Summary {} rebuilt in {}: {} rows in {} ms", grainName(grain), table, rows,
+				System.currentTimeMillis() - start);
+		return rows;
+	}
+
+	private boolean exists(String table) {
+		try {
+			connUtil.executeQuery("select 1 from " + table + " where 1 = 0", new RowHandler() {
+				@Override
+				public void handleRow(ResultSet rs) {
+				}
+			});
+			return true;
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private static String join(List<String> parts) {
+		StringBuilder joined = new StringBuilder();
+		for (String part : parts) {
+			joined.append(joined.length() == 0 ? "" : ", ").append(part);
+		}
+		return joined.toString();
+	}
+
+	/**
+	 * Refreshes the summary tables once, for a scheduled job.
+	 *
+	 * <pre>
+	 * SummaryTables
+	 * </pre>
+	 */
+	public static void main(String[] args) throws SQLException {
+		ConnectionUtil.initialize();
+		try {
+			long rows = new SummaryTables(new ConnectionUtil()).refresh();
+			System.out.println(rows + " summary rows");
+		} finally {
+			ConnectionUtil.closePool();
+		}
+	}
+}
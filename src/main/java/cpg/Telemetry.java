@@ -0,0 +1,315 @@
+package cpg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Request telemetry of the skill. Each intent gets its own latency histograms
+ * for total, database and render time, plus counters for requests, failed
+ * requests, query errors, timeouts and rejections, and cache hits and misses.
+ * Every database query is also recorded under {@code Intent=Query}.
+ *
+ * <p>
+ * Recording uses {@link LatencyHistogram} and {@link LongAdder}s and
+ * allocates nothing once an intent has been seen. Every
+ * {@code cpg.telemetry.flushMillis} (default 60 s) the next request drains
+ * the recorders and writes one line per intent in CloudWatch embedded metric
+ * format, with the dimensions {@code FunctionVersion} and {@code Intent}.
+ * Lambda turns these lines into metrics that can be graphed per version.
+ * Lines go to standard output, where Lambda expects them, or to the
+ * {@code cpg.Telemetry} logger with {@code cpg.telemetry.sink=log}.
+ * {@code cpg.telemetry.enabled=false} turns recording off.
+ */
+public final class Telemetry {
+	private static final Logger log = LoggerFactory.getLogger(Telemetry.class);
+
+	/** The name queries are recorded under. */
+	static final String QUERY = "Query";
+
+	/** CloudWatch accepts at most 100 distinct values per histogram. */
+	private static final int MAX_EMF_VALUES = 100;
+
+	private static final Telemetry shared = new Telemetry();
+
+	private final boolean enabled;
+
+	private final String namespace;
+
+	private final String functionName;
+
+	private final String functionVersion;
+
+	private final long flushMillis;
+
+	private final int maxIntents;
+
+	private final boolean logSink;
+
+	private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+	private final AtomicLong nextFlush;
+
+	Telemetry() {
+		this.enabled = SkillConfig.getBoolean("cpg.telemetry.enabled", true);
+		this.namespace = SkillConfig.get("cpg.telemetry.namespace", "CpgSkill");
+		this.functionName = env("AWS_LAMBDA_FUNCTION_NAME", "local");
+		this.functionVersion = env("AWS_LAMBDA_FUNCTION_VERSION", "$LATEST");
+		this.flushMillis = SkillConfig.getLong("cpg.telemetry.flushMillis", 60000);
+		this.maxIntents = SkillConfig.getInt("cpg.telemetry.maxIntents", 64);
+		this.logSink = "log".equals(SkillConfig.get("cpg.telemetry.sink", "stdout"));
+		this.nextFlush = new AtomicLong(System.currentTimeMillis() + flushMillis);
+	}
+
+	/**
+	 * @return the telemetry of this container, shared like the connection
+	 *         pool
+	 */
+	public static Telemetry shared() {
+		return shared;
+	}
+
+	/**
+	 * Records a finished request.
+	 *
+	 * @param name
+	 *            the intent name, or the request type for requests without
+	 *            an intent
+	 * @param deadline
+	 *            the request's deadline with its query and cache accounting
+	 * @param totalNanos
+	 *            time from receiving the request to the response
+	 * @param handlerNanos
+	 *            the part of it spent in the intent handler; less the time
+	 *            waiting for data, that is the render time
+	 * @param failed
+	 *            true if the handler threw
+	 */
+	public void recordRequest(String name, Deadline deadline, long totalNanos, long handlerNanos, boolean failed) {
+		if (!enabled) {
+			return;
+		}
+		Stats s = stats(name == null ? "None" : name);
+		s.requests.increment();
+		if (failed) {
+			s.errors.increment();
+		}
+		s.latency.recordNanos(totalNanos);
+		if (deadline.getQueries() > 0) {
+			s.dbTime.recordNanos(deadline.getDbNanos());
+		}
+		s.renderTime.recordNanos(Math.max(0, handlerNanos - deadline.getFetchNanos()));
+		add(s.queryErrors, deadline.getQueryErrors());
+		add(s.queryTimeouts, deadline.getQueryTimeouts());
+		add(s.queryRejections, deadline.getQueryRejections());
+		add(s.cacheHits, deadline.getCacheHits());
+		add(s.cacheMisses, deadline.getCacheMisses());
+	}
+
+	/**
+	 * Records a single database query.
+	 */
+	public void recordQuery(QueryResult.Status status, long nanos) {
+		if (!enabled) {
+			return;
+		}
+		Stats s = stats(QUERY);
+		s.requests.increment();
+		if (status == QueryResult.Status.REJECTED) {
+			s.queryRejections.increment();
+			return;
+		}
+		s.dbTime.recordNanos(nanos);
+		if (status == QueryResult.Status.ERROR) {
+			s.queryErrors.increment();
+		} else if (status == QueryResult.Status.TIMEOUT) {
+			s.queryTimeouts.increment();
+		}
+	}
+
+	/**
+	 * Flushes if the flush interval has passed. Called after every request,
+	 * since a Lambda container is frozen between requests and a timer thread
+	 * would not run.
+	 */
+	public void maybeFlush() {
+		long next = nextFlush.get();
+		long now = System.currentTimeMillis();
+		if (enabled && now >= next && nextFlush.compareAndSet(next, now + flushMillis)) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes and resets the metrics of every intent that saw requests since
+	 * the last flush.
+	 */
+	public synchronized void flush() {
+		long timestamp = System.currentTimeMillis();
+		for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+			String line = entry.getValue().drain(entry.getKey(), timestamp);
+			if (line == null) {
+				continue;
+			}
+			if (logSink) {
+				log.info(line);
+			} else {
+				System.out.println(line);
+			}
+		}
+	}
+
+	private Stats stats(String name) {
+		Stats s = stats.get(name);
+		if (s != null) {
+			return s;
+		}
+		if (stats.size() >= maxIntents) {
+			// keep the dimension bounded against made up intent names
+			name = "Other";
+			s = stats.get(name);
+			if (s != null) {
+				return s;
+			}
+		}
+		Stats created = new Stats();
+		s = stats.putIfAbsent(name, created);
+		return s != null ? s : created;
+	}
+
+	private static void add(LongAdder adder, int value) {
+		if (value != 0) {
+			adder.add(value);
+		}
+	}
+
+	private static String env(String name, String defaultValue) {
+		String value = System.getenv(name);
+		return value == null || value.isEmpty() ? defaultValue : value;
+	}
+
+	/**
+	 * Recorders of one intent.
+	 */
+	private final class Stats {
+
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		final LatencyHistogram dbTime = new LatencyHistogram();
+
+		final LatencyHistogram renderTime = new LatencyHistogram();
+
+		final LongAdder requests = new LongAdder();
+
+		final LongAdder errors = new LongAdder();
+
+		final LongAdder queryErrors = new LongAdder();
+
+		final LongAdder queryTimeouts = new LongAdder();
+
+		final LongAdder queryRejections = new LongAdder();
+
+		final LongAdder cacheHits = new LongAdder();
+
+		final LongAdder cacheMisses = new LongAdder();
+
+		/**
+		 * @return the EMF line, null if nothing was recorded
+		 */
+		String drain(String name, long timestamp) {
+			long requestCount = requests.sumThenReset();
+			if (requestCount == 0) {
+				return null;
+			}
+			LatencyHistogram.Snapshot[] histograms = { latency.drain(), dbTime.drain(), renderTime.drain() };
+			String[] histogramNames = { "Latency", "DbTime", "RenderTime" };
+			String[] counterNames = { "Requests", "Errors", "QueryErrors", "QueryTimeouts", "QueryRejections",
+					"CacheHits", "CacheMisses" };
+			long[] counters = { requestCount, errors.sumThenReset(), queryErrors.sumThenReset(),
+					queryTimeouts.sumThenReset(), queryRejections.sumThenReset(), cacheHits.sumThenReset(),
+					cacheMisses.sumThenReset() };
+
+			StringBuilder json = new StringBuilder(1024);
+			json.append("{\"_aws\":{\"Timestamp\":").append(timestamp).append(",\"CloudWatchMetrics\":[{\"Namespace\":\"")
+					.append(StringEscapeUtils.escapeJson(namespace))
+					.append("\",\"Dimensions\":[[\"FunctionVersion\",\"Intent\"]],\"Metrics\":[");
+			boolean first = true;
+			for (int i = 0; i < histograms.length; i++) {
+				if (histograms[i].getCount() > 0) {
+					json.append(first ? "" : ",").append("{\"Name\":\"").append(histogramNames[i])
+							.append("\",\"Unit\":\"Milliseconds\"}");
+					first = false;
+				}
+			}
+			for (String counter : counterNames) {
+				json.append(first ? "" : ",").append("{\"Name\":\"").append(counter).append("\",\"Unit\":\"Count\"}");
+				first = false;
+			}
+			json.append("]}]},\"FunctionName\":\"").append(StringEscapeUtils.escapeJson(functionName))
+					.append("\",\"FunctionVersion\":\"").append(StringEscapeUtils.escapeJson(functionVersion))
+					.append("\",\"Intent\":\"").append(StringEscapeUtils.escapeJson(name)).append('"');
+			for (int i = 0; i < histograms.length; i++) {
+				if (histograms[i].getCount() > 0) {
+					json.append(",\"").append(histogramNames[i]).append("\":");
+					appendHistogram(json, histograms[i]);
+				}
+			}
+			for (int i = 0; i < counters.length; i++) {
+				json.append(",\"").append(counterNames[i]).append("\":").append(counters[i]);
+			}
+			return json.append('}').toString();
+		}
+	}
+
+	/**
+	 * Writes a histogram as an EMF values/counts object in milliseconds,
+	 * merging neighbouring buckets while there are more than CloudWatch
+	 * accepts.
+	 */
+	static void appendHistogram(StringBuilder json, LatencyHistogram.Snapshot snapshot) {
+		List<long[]> buckets = new ArrayList<long[]>();
+		for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+			long count = snapshot.countAt(i);
+			if (count > 0) {
+				buckets.add(new long[] { LatencyHistogram.Snapshot.midpoint(i), count });
+			}
+		}
+		while (buckets.size() > MAX_EMF_VALUES) {
+			List<long[]> merged = new ArrayList<long[]>(buckets.size() / 2 + 1);
+			for (int i = 0; i < buckets.size(); i += 2) {
+				if (i + 1 == buckets.size()) {
+					merged.add(buckets.get(i));
+				} else {
+					long[] a = buckets.get(i);
+					long[] b = buckets.get(i + 1);
+					long count = a[1] + b[1];
+					merged.add(new long[] { (a[0] * a[1] + b[0] * b[1]) / count, count });
+				}
+			}
+			buckets = merged;
+		}
+
+		json.append("{\"Values\":[");
+		for (int i = 0; i < buckets.size(); i++) {
+			json.append(i == 0 ? "" : ",").append(millis(buckets.get(i)[0]));
+		}
+		json.append("],\"Counts\":[");
+		for (int i = 0; i < buckets.size(); i++) {
+			json.append(i == 0 ? "" : ",").append(buckets.get(i)[1]);
+		}
+		json.append("],\"Min\":").append(millis(snapshot.getMinMicros())).append(",\"Max\":")
+				.append(millis(snapshot.getMaxMicros())).append(",\"Sum\":").append(millis(snapshot.getSumMicros()))
+				.append(",\"Count\":").append(snapshot.getCount()).append('}');
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+}
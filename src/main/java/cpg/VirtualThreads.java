@@ -0,0 +1,85 @@
+package cpg;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual thread support for a skill that is compiled for Java 8 but may run
+ * on Java 21 or later. The factory is looked up reflectively once.
+ */
+final class VirtualThreads {
+
+	private static final Method OF_VIRTUAL;
+
+	private static final Method NAME;
+
+	private static final Method FACTORY;
+
+	private static final Method PER_TASK_EXECUTOR;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		Method perTaskExecutor = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+			perTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+		PER_TASK_EXECUTOR = perTaskExecutor;
+	}
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return true if the running JVM has virtual threads and
+	 *         {@code cpg.virtualThreads} is not false
+	 */
+	static boolean isAvailable() {
+		return OF_VIRTUAL != null && SkillConfig.getBoolean("cpg.virtualThreads", true);
+	}
+
+	/**
+	 * @return a factory of virtual threads named {@code prefix0},
+	 *         {@code prefix1}, ..., or null if they are not available
+	 */
+	static ThreadFactory factory(String prefix) {
+		if (!isAvailable()) {
+			return null;
+		}
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+			return (ThreadFactory) FACTORY.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return an executor that starts a new virtual thread named
+	 *         {@code prefix0}, {@code prefix1}, ... for every task, or null if
+	 *         they are not available
+	 */
+	static ExecutorService newThreadPerTaskExecutor(String prefix) {
+		ThreadFactory factory = factory(prefix);
+		if (factory == null) {
+			return null;
+		}
+		try {
+			return (ExecutorService) PER_TASK_EXECUTOR.invoke(null, factory);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
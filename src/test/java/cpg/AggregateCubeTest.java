@@ -0,0 +1,112 @@
+package cpg;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the metric values and sums of a small hand-built cube.
+ */
+public class AggregateCubeTest extends TestCase {
+
+	private AggregateCube cube;
+
+	@Override
+	protected void setUp() {
+		AggregateCube.Builder builder = new AggregateCube.Builder();
+		builder.add(2016, "Gatsby", "Big Bazaar", 100.0, 40.0);
+		builder.add(2016, "Gatsby", "Reliance", 50.0, 10.0);
+		builder.add(2016, "Bifesta", "Big Bazaar", 200.0, 100.0);
+		builder.add(2017, "Gatsby", "Big Bazaar", 300.0, -30.0);
+		builder.add(2017, "Musk", "Reliance", 0.0, 25.0);
+		builder.add(Integer.MIN_VALUE, null, "Reliance", 10.0, 5.0);
+		cube = builder.build(42L);
+	}
+
+	private double value(Metric metric, String year, String brand, String customer) {
+		return cube.value(metric, MetricFilter.of(year, brand, customer));
+	}
+
+	public void testDictionaries() {
+		assertEquals(6, cube.size());
+		assertEquals(42L, cube.getLoadedAt());
+		assertTrue(Arrays.equals(new int[] { 2016, 2017 }, cube.years()));
+		assertEquals(Arrays.asList("BIFESTA", "GATSBY", "MUSK"), Arrays.asList(cube.names(MetricFilter.BRAND)));
+		assertEquals(Arrays.asList("BIG BAZAAR", "RELIANCE"), Arrays.asList(cube.names(MetricFilter.CUSTOMER)));
+	}
+
+	public void testTotals() {
+		assertEquals(660.0, value(Metric.TOTAL_TRADE_SPEND, null, null, null), 0.0);
+		assertEquals(150.0, value(Metric.TOTAL_GROSS_PROFIT, null, null, null), 0.0);
+		assertEquals(150.0 / 660.0 * 100, value(Metric.TOTAL_ROI, null, null, null), 1e-9);
+	}
+
+	public void testFilters() {
+		assertEquals(350.0, value(Metric.TOTAL_TRADE_SPEND, "2016", null, null), 0.0);
+		assertEquals(450.0, value(Metric.TOTAL_TRADE_SPEND, null, "gatsby", null), 0.0);
+		assertEquals(25.0, value(Metric.TOTAL_GROSS_PROFIT, "2017", null, "reliance"), 0.0);
+		assertEquals(40.0, value(Metric.TOTAL_ROI, "2016", "Gatsby", "Big Bazaar"), 1e-9);
+		assertEquals(-10.0, value(Metric.TOTAL_ROI, "2017", "Gatsby", null), 1e-9);
+	}
+
+	public void testNullDimensionsOnlyCountInTotals() {
+		assertEquals(60.0, value(Metric.TOTAL_TRADE_SPEND, null, null, "Reliance"), 0.0);
+		assertEquals(50.0, value(Metric.TOTAL_TRADE_SPEND, "2016", null, "Reliance"), 0.0);
+	}
+
+	public void testNoMatchIsNaN() {
+		assertTrue(Double.isNaN(value(Metric.TOTAL_TRADE_SPEND, "2015", null, null)));
+		assertTrue(Double.isNaN(value(Metric.TOTAL_TRADE_SPEND, null, "Neon", null)));
+		assertTrue(Double.isNaN(value(Metric.TOTAL_GROSS_PROFIT, "2016", "Musk", null)));
+	}
+
+	public void testRoiWithoutSpendIsNaN() {
+		assertEquals(0.0, value(Metric.TOTAL_TRADE_SPEND, null, "Musk", null), 0.0);
+		assertTrue(Double.isNaN(value(Metric.TOTAL_ROI, null, "Musk", null)));
+	}
+
+	public void testSumsByBrand() {
+		double[][] sums = cube.sumsBy(MetricFilter.BRAND, MetricFilter.of("2016", null, null));
+		assertEquals(200.0, sums[0][0], 0.0);
+		assertEquals(150.0, sums[0][1], 0.0);
+		assertTrue(Double.isNaN(sums[0][2]));
+		assertEquals(100.0, sums[1][0], 0.0);
+		assertEquals(50.0, sums[1][1], 0.0);
+		assertEquals(0.0, sums[1][2], 0.0);
+	}
+
+	public void testSumsByCustomer() {
+		double[][] all = cube.sumsBy(MetricFilter.CUSTOMER, MetricFilter.ALL);
+		assertEquals(600.0, all[0][0], 0.0);
+		assertEquals(60.0, all[0][1], 0.0);
+		double[][] gatsby = cube.sumsBy(MetricFilter.CUSTOMER, MetricFilter.of(null, "Gatsby", null));
+		assertEquals(400.0, gatsby[0][0], 0.0);
+		assertEquals(50.0, gatsby[0][1], 0.0);
+	}
+
+	public void testSumsByUnknownValueMatchesNothing() {
+		double[][] sums = cube.sumsBy(MetricFilter.BRAND, MetricFilter.of(null, null, "Spencers"));
+		for (int i = 0; i < sums[0].length; i++) {
+			assertTrue(Double.isNaN(sums[0][i]));
+			assertEquals(0.0, sums[1][i], 0.0);
+		}
+	}
+
+	public void testNamesRejectsYear() {
+		try {
+			cube.names(MetricFilter.YEAR);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	public void testWithDeltasLeavesOriginal() {
+		AggregateCube changed = cube.withDeltas(new int[] { 0, 4 }, new double[] { 5.0, 20.0 },
+				new double[] { 1.0, -5.0 }, 43L);
+		assertEquals(685.0, changed.value(Metric.TOTAL_TRADE_SPEND, MetricFilter.ALL), 0.0);
+		assertEquals(146.0, changed.value(Metric.TOTAL_GROSS_PROFIT, MetricFilter.ALL), 0.0);
+		assertEquals(100.0, changed.value(Metric.TOTAL_ROI, MetricFilter.of(null, "Musk", null)), 1e-9);
+		assertEquals(43L, changed.getLoadedAt());
+		assertEquals(660.0, value(Metric.TOTAL_TRADE_SPEND, null, null, null), 0.0);
+	}
+}
@@ -0,0 +1,159 @@
+package cpg;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the circuit breaker state transitions. An open time of 0 lets the
+ * next call after a trip be the trial, so the tests do not wait.
+ */
+public class CircuitBreakerTest extends TestCase {
+
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+	/** Opens once half of the last 4 calls, and at least 2, failed. */
+	private static CircuitBreaker breaker(long openMillis) {
+		return new CircuitBreaker("test", 4, 2, 50, 100, openMillis);
+	}
+
+	private static void trip(CircuitBreaker breaker) {
+		breaker.tryAcquire().onFailure();
+		breaker.tryAcquire().onFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	public void testStaysClosedBelowFailureRate() {
+		CircuitBreaker breaker = breaker(60000);
+		breaker.tryAcquire().onSuccess(FAST);
+		breaker.tryAcquire().onSuccess(FAST);
+		breaker.tryAcquire().onFailure();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(0, breaker.getTrips());
+	}
+
+	public void testNeedsMinimumCalls() {
+		CircuitBreaker breaker = breaker(60000);
+		breaker.tryAcquire().onFailure();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	public void testSlowCallsCountAsFailures() {
+		CircuitBreaker breaker = breaker(60000);
+		breaker.tryAcquire().onSuccess(SLOW);
+		breaker.tryAcquire().onSuccess(FAST);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	public void testWindowForgetsOldFailures() {
+		CircuitBreaker breaker = breaker(60000);
+		for (int i = 0; i < 3; i++) {
+			breaker.tryAcquire().onSuccess(FAST);
+		}
+		breaker.tryAcquire().onFailure();
+		// four successes push the failure out of the window
+		for (int i = 0; i < 4; i++) {
+			breaker.tryAcquire().onSuccess(FAST);
+		}
+		breaker.tryAcquire().onFailure();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	public void testOpenRejects() {
+		CircuitBreaker breaker = breaker(60000);
+		trip(breaker);
+		assertNull(breaker.tryAcquire());
+		assertNull(breaker.tryAcquire());
+		assertEquals(2, breaker.getRejected());
+		assertEquals(1, breaker.getTrips());
+	}
+
+	public void testTrialSuccessCloses() {
+		CircuitBreaker breaker = breaker(0);
+		trip(breaker);
+		CircuitBreaker.Permit trial = breaker.tryAcquire();
+		assertNotNull(trial);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertNull("only one trial at a time", breaker.tryAcquire());
+
+		trial.onSuccess(FAST);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		// the window starts empty after closing
+		breaker.tryAcquire().onFailure();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	public void testTrialFailureOpensAgain() {
+		CircuitBreaker breaker = breaker(0);
+		trip(breaker);
+		breaker.tryAcquire().onFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(2, breaker.getTrips());
+	}
+
+	public void testSlowTrialOpensAgain() {
+		CircuitBreaker breaker = breaker(0);
+		trip(breaker);
+		breaker.tryAcquire().onSuccess(SLOW);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	public void testLateOutcomeDoesNotDecideHalfOpen() {
+		CircuitBreaker breaker = breaker(0);
+		CircuitBreaker.Permit late = breaker.tryAcquire();
+		trip(breaker);
+		CircuitBreaker.Permit trial = breaker.tryAcquire();
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+		late.onSuccess(FAST);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		late.onFailure();
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+		trial.onFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	public void testLateOutcomeIgnoredWhileOpen() {
+		CircuitBreaker breaker = breaker(60000);
+		CircuitBreaker.Permit late = breaker.tryAcquire();
+		trip(breaker);
+		late.onFailure();
+		late.onSuccess(FAST);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(1, breaker.getTrips());
+	}
+
+	public void testReleasedTrialLetsNextCallerTry() {
+		CircuitBreaker breaker = breaker(0);
+		trip(breaker);
+		CircuitBreaker.Permit trial = breaker.tryAcquire();
+		trial.release();
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+		CircuitBreaker.Permit next = breaker.tryAcquire();
+		assertNotNull(next);
+		next.onSuccess(FAST);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	public void testDecidedTrialIsIgnoredOnceClosed() {
+		CircuitBreaker breaker = breaker(0);
+		trip(breaker);
+		CircuitBreaker.Permit trial = breaker.tryAcquire();
+		trial.onSuccess(FAST);
+		trial.onFailure();
+		breaker.tryAcquire().onFailure();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	public void testRejectsEmptyWindow() {
+		try {
+			new CircuitBreaker("test", 0, 1, 50, 100, 1000);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
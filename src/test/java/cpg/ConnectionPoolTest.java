@@ -0,0 +1,195 @@
+package cpg;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests borrowing, validation, eviction and the statement cache of the pool
+ * over an embedded H2 database. The pools keep no idle connections of their
+ * own accord, so the counters only reflect what a test does.
+ */
+public class ConnectionPoolTest extends TestCase {
+
+	private ConnectionPool pool;
+
+	@Override
+	protected void setUp() throws Exception {
+		Class.forName(LocalDatabase.DRIVER);
+		System.setProperty("cpg.pool.statementCacheSize", "2");
+		System.setProperty("cpg.pool.maintenanceIntervalMillis", "600000");
+	}
+
+	@Override
+	protected void tearDown() {
+		System.clearProperty("cpg.pool.statementCacheSize");
+		System.clearProperty("cpg.pool.maintenanceIntervalMillis");
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	/**
+	 * @param validateAfterIdleMillis
+	 *            0 to validate on every borrow
+	 * @param maxLifetimeMillis
+	 *            0 to expire a connection once it is released
+	 */
+	private ConnectionPool pool(int maxSize, long validateAfterIdleMillis, long maxLifetimeMillis) {
+		pool = new ConnectionPool(LocalDatabase.memoryUrl("pool-" + getName()), LocalDatabase.USER,
+				LocalDatabase.PASSWORD, maxSize, 0, 1000, validateAfterIdleMillis, maxLifetimeMillis);
+		return pool;
+	}
+
+	public void testReusesReleasedConnection() throws SQLException {
+		pool(2, 60000, 60000);
+		PooledConnection first = pool.borrow();
+		first.release();
+		PooledConnection second = pool.borrow();
+		assertSame(first, second);
+		second.release();
+		assertEquals(1, pool.stats().getCreated());
+		assertEquals(2, pool.stats().getBorrows());
+		assertEquals(1, pool.stats().getIdle());
+	}
+
+	public void testBorrowTimesOutWhenExhausted() throws SQLException {
+		pool(1, 60000, 60000);
+		PooledConnection held = pool.borrow();
+		long start = System.currentTimeMillis();
+		try {
+			pool.borrow(50);
+			fail("borrowed beyond maxSize");
+		} catch (SQLTimeoutException expected) {
+			// the pool is exhausted
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(1, pool.stats().getBorrowTimeouts());
+		assertNull("nothing to spare", pool.tryBorrow(0));
+
+		held.release();
+		pool.borrow(50).release();
+		assertEquals(1, pool.stats().getActive() + pool.stats().getIdle());
+	}
+
+	public void testTryBorrowKeepsSpare() throws SQLException {
+		pool(2, 60000, 60000);
+		pool.borrow().release();
+		assertNull("both connections must stay free", pool.tryBorrow(2));
+		PooledConnection spare = pool.tryBorrow(1);
+		assertNotNull(spare);
+		assertNull("tryBorrow never opens a connection", pool.tryBorrow(0));
+		spare.release();
+	}
+
+	public void testValidationReplacesDeadConnection() throws SQLException {
+		pool(1, 0, 60000);
+		PooledConnection first = pool.borrow();
+		// the database closed the socket while the container was frozen
+		first.getConnection().close();
+		first.release();
+
+		PooledConnection second = pool.borrow();
+		assertTrue(first != second);
+		assertTrue(second.getConnection().isValid(1));
+		second.release();
+		assertEquals(1, pool.stats().getValidationFailures());
+		assertEquals(1, pool.stats().getDestroyed());
+		assertEquals(2, pool.stats().getCreated());
+	}
+
+	public void testBrokenConnectionIsEvicted() throws SQLException {
+		pool(1, 60000, 60000);
+		PooledConnection first = pool.borrow();
+		first.checkFailure(new SQLException("link failure", "08S01"));
+		first.release();
+		assertEquals(1, pool.stats().getDestroyed());
+		assertEquals(0, pool.stats().getIdle());
+
+		PooledConnection second = pool.borrow();
+		assertTrue(first != second);
+		second.release();
+	}
+
+	public void testOtherFailuresKeepConnection() throws SQLException {
+		pool(1, 60000, 60000);
+		PooledConnection first = pool.borrow();
+		first.checkFailure(new SQLException("syntax error", "42000"));
+		first.release();
+		assertEquals(0, pool.stats().getDestroyed());
+		assertEquals(1, pool.stats().getIdle());
+	}
+
+	public void testExpiredConnectionIsEvicted() throws SQLException {
+		pool(1, 60000, 0);
+		pool.borrow().release();
+		assertEquals(1, pool.stats().getDestroyed());
+		assertEquals(0, pool.stats().getIdle());
+	}
+
+	public void testStatementCache() throws SQLException {
+		pool(1, 60000, 60000);
+		PooledConnection pc = pool.borrow();
+		PreparedStatement one = pc.prepareStatement("select 1");
+		assertSame(one, pc.prepareStatement("select 1"));
+		PreparedStatement two = pc.prepareStatement("select 2");
+		pc.prepareStatement("select 1");
+		// a third statement evicts the least recently used, "select 2"
+		pc.prepareStatement("select 3");
+		assertEquals(2, pc.cachedStatementCount());
+		assertTrue(two.isClosed());
+		assertFalse(one.isClosed());
+		pc.release();
+
+		// the cache survives the release
+		PooledConnection again = pool.borrow();
+		assertSame(one, again.prepareStatement("select 1"));
+		again.release();
+	}
+
+	public void testLeakedStatementsAreClosed() throws SQLException {
+		pool(1, 60000, 60000);
+		PooledConnection pc = pool.borrow();
+		Statement leaked = pc.createStatement();
+		try (Statement closed = pc.createStatement()) {
+			closed.execute("select 1");
+		}
+		pc.release();
+		assertTrue(leaked.isClosed());
+		assertEquals(1, pool.stats().getLeakedStatements());
+	}
+
+	public void testDoubleReleaseIsIgnored() throws SQLException {
+		pool(1, 60000, 60000);
+		PooledConnection pc = pool.borrow();
+		pc.release();
+		pc.release();
+		assertEquals(1, pool.stats().getIdle());
+		assertEquals(0, pool.stats().getActive());
+	}
+
+	public void testClosedPoolRefusesBorrow() throws SQLException {
+		pool(1, 60000, 60000);
+		pool.borrow().release();
+		pool.close();
+		assertEquals(0, pool.stats().getIdle());
+		try {
+			pool.borrow();
+			fail("borrowed from a closed pool");
+		} catch (SQLException expected) {
+			// closed
+		}
+	}
+
+	public void testRejectsEmptyPool() {
+		try {
+			new ConnectionPool("jdbc:h2:mem:", "", "", 0, 0, 1000, 1000, 1000);
+			fail();
+		} catch (IllegalArgumentException expected) {
+			// maxSize must be at least 1
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package cpg;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests delta refreshes of the cube against the embedded H2 database of
+ * {@code cpg.local}. The test's promotions are of one brand and dated after
+ * the generated ones, so the watermark falls between them and the generated
+ * rows are settled.
+ */
+public class CubeRefresherTest extends TestCase {
+
+	private static final String BRAND = "Delta Test";
+
+	private static final MetricFilter FILTER = MetricFilter.of(null, BRAND, null);
+
+	private ConnectionUtil connUtil;
+
+	private CubeRefresher refresher;
+
+	@Override
+	protected void setUp() throws SQLException {
+		System.setProperty("cpg.local", "true");
+		System.setProperty("cpg.local.rows", "2000");
+		connUtil = new ConnectionUtil();
+		insert("2030-06-01", "Big Bazaar", 100.0, 40.0);
+		insert("2030-06-15", "Reliance", 50.0, 10.0);
+		insert("2030-01-01", "Big Bazaar", 10.0, 5.0);
+		// a window of 30 days puts the watermark at 2030-05-16
+		refresher = new CubeRefresher(connUtil, true, 30, 60 * 60 * 1000L);
+	}
+
+	@Override
+	protected void tearDown() throws SQLException {
+		execute("delete from " + MetricQuery.VIEW + " where ProdLevel4Name = ?", BRAND);
+	}
+
+	/**
+	 * Changes the view behind the skill's back, as the ETL would.
+	 */
+	private static void execute(String sql, Object... params) throws SQLException {
+		try (Connection con = DriverManager.getConnection(LocalDatabase.memoryUrl("cpg"), LocalDatabase.USER,
+				LocalDatabase.PASSWORD); PreparedStatement ps = con.prepareStatement(sql)) {
+			for (int i = 0; i < params.length; i++) {
+				ps.setObject(i + 1, params[i]);
+			}
+			ps.executeUpdate();
+		}
+	}
+
+	private void insert(String date, String customer, double spend, double profit) throws SQLException {
+		execute("insert into " + MetricQuery.VIEW + " ([PromotionStartDate], TotalTradeSpendSellOut,"
+				+ " GrossProfitSellOut, ProdLevel4Name, CustCustomerName) values (?, ?, ?, ?, ?)",
+				Date.valueOf(date), spend, profit, BRAND, customer);
+	}
+
+	private void update(String date, double spend) throws SQLException {
+		execute("update " + MetricQuery.VIEW + " set TotalTradeSpendSellOut = ?"
+				+ " where ProdLevel4Name = ? and [PromotionStartDate] = ?", spend, BRAND, Date.valueOf(date));
+	}
+
+	/**
+	 * Checks the brand's sums and the totals against a full load of the view.
+	 */
+	private void assertMatchesView(AggregateCube cube) throws SQLException {
+		AggregateCube loaded = AggregateCube.load(connUtil);
+		for (Metric metric : Metric.values()) {
+			assertEquals(metric.name(), loaded.value(metric, FILTER), cube.value(metric, FILTER), 0.001);
+			assertEquals(metric.name(), loaded.value(metric, MetricFilter.ALL), cube.value(metric, MetricFilter.ALL),
+					0.01);
+		}
+	}
+
+	public void testReconcileSetsWatermark() throws SQLException {
+		AggregateCube cube = refresher.refresh(null);
+		assertEquals(Date.valueOf("2030-05-16"), refresher.getWatermark());
+		assertEquals(160.0, cube.value(Metric.TOTAL_TRADE_SPEND, FILTER), 0.0);
+		assertMatchesView(cube);
+	}
+
+	public void testDeltaAppliesRecentChanges() throws SQLException {
+		AggregateCube cube = refresher.refresh(null);
+		update("2030-06-01", 130.0);
+		insert("2030-06-20", "Big Bazaar", 20.0, 20.0);
+
+		AggregateCube refreshed = refresher.refresh(cube);
+		assertTrue(cube != refreshed);
+		assertEquals(210.0, refreshed.value(Metric.TOTAL_TRADE_SPEND, FILTER), 0.0);
+		assertEquals(75.0, refreshed.value(Metric.TOTAL_GROSS_PROFIT, FILTER), 0.0);
+		assertEquals("the served cube is not modified", 160.0, cube.value(Metric.TOTAL_TRADE_SPEND, FILTER), 0.0);
+		assertEquals(cube.size(), refreshed.size());
+		assertMatchesView(refreshed);
+		assertTrue(refresher.toString(), refresher.toString().contains("deltaRefreshes=1, lastChangedCells=1"));
+	}
+
+	public void testDeltaWithNewCellRebuilds() throws SQLException {
+		AggregateCube cube = refresher.refresh(null);
+		insert("2030-06-10", "Delta Test Customer", 7.0, 3.0);
+
+		AggregateCube refreshed = refresher.refresh(cube);
+		assertEquals(cube.size() + 1, refreshed.size());
+		assertEquals(7.0, refreshed.value(Metric.TOTAL_TRADE_SPEND, MetricFilter.of(null, BRAND,
+				"Delta Test Customer")), 0.0);
+		assertMatchesView(refreshed);
+	}
+
+	public void testDeletedRecentRowsAreSubtracted() throws SQLException {
+		AggregateCube cube = refresher.refresh(null);
+		execute("delete from " + MetricQuery.VIEW + " where ProdLevel4Name = ? and CustCustomerName = ?",
+				BRAND, "Reliance");
+
+		AggregateCube refreshed = refresher.refresh(cube);
+		assertEquals(110.0, refreshed.value(Metric.TOTAL_TRADE_SPEND, FILTER), 0.0);
+		// the emptied cell stays with a zero sum until the next reconciliation
+		assertEquals(cube.size(), refreshed.size());
+		assertEquals(0.0, refreshed.value(Metric.TOTAL_TRADE_SPEND, MetricFilter.of(null, BRAND, "Reliance")), 0.0);
+	}
+
+	public void testSettledChangesWaitForReconciliation() throws SQLException {
+		AggregateCube cube = refresher.refresh(null);
+		update("2030-01-01", 25.0);
+
+		AggregateCube refreshed = refresher.refresh(cube);
+		assertEquals("before the watermark", 160.0, refreshed.value(Metric.TOTAL_TRADE_SPEND, FILTER), 0.0);
+
+		AggregateCube reconciled = refresher.reconcile(refreshed);
+		assertEquals(175.0, reconciled.value(Metric.TOTAL_TRADE_SPEND, FILTER), 0.0);
+		assertTrue(refresher.toString(), refresher.toString().contains("lastDrift=15.0"));
+		assertMatchesView(reconciled);
+	}
+
+	public void testForeignCubeIsReconciled() throws SQLException {
+		refresher.refresh(null);
+		AggregateCube foreign = AggregateCube.load(connUtil);
+		refresher.refresh(foreign);
+		assertTrue(refresher.toString(), refresher.toString().contains("deltaRefreshes=0"));
+		assertTrue(refresher.toString(), refresher.toString().contains("reconciliations=2"));
+	}
+}
@@ -0,0 +1,133 @@
+package cpg;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests writing a cube snapshot and mapping it back.
+ */
+public class CubeSnapshotTest extends TestCase {
+
+	private Path dir;
+
+	private Path file;
+
+	private AggregateCube cube;
+
+	@Override
+	protected void setUp() throws IOException {
+		System.setProperty("cpg.snapshot.checkIntervalMillis", "0");
+		dir = Files.createTempDirectory("cpg-snapshot");
+		file = dir.resolve("cube.snapshot");
+		AggregateCube.Builder builder = new AggregateCube.Builder();
+		builder.add(2016, "Gatsby", "Big Bazaar", 100.0, 40.0);
+		builder.add(2016, "Bifesta", "Caf\u00e9 Coffee Day", 200.5, -100.25);
+		builder.add(2017, "Gatsby", "Big Bazaar", 300.0, 30.0);
+		builder.add(Integer.MIN_VALUE, null, "Reliance", 10.0, 5.0);
+		cube = builder.build(42L);
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		System.clearProperty("cpg.snapshot.checkIntervalMillis");
+		Files.deleteIfExists(file);
+		Files.deleteIfExists(dir);
+	}
+
+	public void testRoundTrip() throws IOException {
+		CubeSnapshot.write(cube, file);
+		AggregateCube mapped = CubeSnapshot.open(file);
+
+		assertEquals(cube.size(), mapped.size());
+		assertEquals(42L, mapped.getLoadedAt());
+		assertTrue(Arrays.equals(cube.years(), mapped.years()));
+		assertEquals(Arrays.asList(cube.brands()), Arrays.asList(mapped.brands()));
+		assertEquals(Arrays.asList(cube.customers()), Arrays.asList(mapped.customers()));
+		for (int i = 0; i < cube.size(); i++) {
+			assertEquals(cube.cellYear().get(i), mapped.cellYear().get(i));
+			assertEquals(cube.cellBrand().get(i), mapped.cellBrand().get(i));
+			assertEquals(cube.cellCustomer().get(i), mapped.cellCustomer().get(i));
+			assertEquals(cube.tradeSpend().get(i), mapped.tradeSpend().get(i), 0.0);
+			assertEquals(cube.grossProfit().get(i), mapped.grossProfit().get(i), 0.0);
+		}
+		for (Metric metric : Metric.values()) {
+			for (MetricFilter filter : new MetricFilter[] { MetricFilter.ALL, MetricFilter.of("2016", null, null),
+					MetricFilter.of(null, null, "caf\u00e9 coffee day"), MetricFilter.of(null, null, "Reliance") }) {
+				assertEquals(metric + " " + filter, cube.value(metric, filter), mapped.value(metric, filter), 0.0);
+			}
+		}
+	}
+
+	public void testEmptyCube() throws IOException {
+		CubeSnapshot.write(new AggregateCube.Builder().build(7L), file);
+		AggregateCube mapped = CubeSnapshot.open(file);
+		assertEquals(0, mapped.size());
+		assertTrue(Double.isNaN(mapped.value(Metric.TOTAL_TRADE_SPEND, MetricFilter.ALL)));
+	}
+
+	public void testRewriteReplacesFile() throws IOException {
+		CubeSnapshot.write(cube, file);
+		AggregateCube.Builder builder = new AggregateCube.Builder();
+		builder.add(2018, "Neon", "Reliance", 1.0, 0.5);
+		CubeSnapshot.write(builder.build(43L), file);
+		AggregateCube mapped = CubeSnapshot.open(file);
+		assertEquals(43L, mapped.getLoadedAt());
+		assertEquals(1, mapped.size());
+		assertEquals(1.0, mapped.value(Metric.TOTAL_TRADE_SPEND, MetricFilter.ALL), 0.0);
+		assertFalse(Files.exists(dir.resolve("cube.snapshot.tmp")));
+	}
+
+	public void testCorruptBodyFailsChecksum() throws IOException {
+		CubeSnapshot.write(cube, file);
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.seek(raf.length() - 1);
+			int last = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(last ^ 0x01);
+		}
+		try {
+			CubeSnapshot.open(file);
+			fail("corrupt snapshot mapped");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().contains("checksum"));
+		}
+	}
+
+	public void testTruncatedFileIsRejected() throws IOException {
+		CubeSnapshot.write(cube, file);
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(raf.length() - 8);
+		}
+		try {
+			CubeSnapshot.open(file);
+			fail("truncated snapshot mapped");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().contains("truncated"));
+		}
+	}
+
+	public void testOpenIfChanged() throws IOException {
+		CubeSnapshot snapshot = new CubeSnapshot(file);
+		assertNull("no file yet", snapshot.openIfChanged());
+
+		CubeSnapshot.write(cube, file);
+		AggregateCube first = snapshot.openIfChanged();
+		assertNotNull(first);
+		assertEquals(cube.size(), first.size());
+		assertNull("unchanged", snapshot.openIfChanged());
+
+		Files.write(file, new byte[] { 1, 2, 3 });
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+		assertNull("invalid file is skipped", snapshot.openIfChanged());
+
+		CubeSnapshot.write(cube, file);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+		assertNotNull("a newer valid file is mapped", snapshot.openIfChanged());
+	}
+}
@@ -0,0 +1,93 @@
+package cpg;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how promotions are classified and counted into a performance report,
+ * with the default thresholds: under-performing below 100 % ROI or at a loss,
+ * over-performing from 200 %.
+ */
+public class PerformanceReportTest extends TestCase {
+
+	private final PromotionPerformanceAnalyzer analyzer = new PromotionPerformanceAnalyzer(null);
+
+	private static long[] histogram(int... buckets) {
+		long[] histogram = new long[PerformanceReport.BUCKETS];
+		for (int bucket : buckets) {
+			histogram[bucket]++;
+		}
+		return histogram;
+	}
+
+	public void testClassifies() {
+		PerformanceReport report = new PerformanceReport();
+		analyzer.classify(report, 100.0, 50.0);
+		analyzer.classify(report, 100.0, 150.0);
+		analyzer.classify(report, 100.0, 250.0);
+		assertEquals(3, report.getPromotions());
+		assertEquals(1, report.getUnderPerforming());
+		assertEquals(1, report.getOverPerforming());
+		assertTrue(Arrays.equals(histogram(2, 6, 10), report.getRoiHistogram()));
+		assertEquals(150.0, report.getTotalRoi(), 1e-9);
+		assertEquals(150, report.getMedianRoiBucket());
+	}
+
+	public void testNegativeRoiIsUnderPerformingInFirstBucket() {
+		PerformanceReport report = new PerformanceReport();
+		analyzer.classify(report, 100.0, -30.0);
+		assertEquals(1, report.getUnderPerforming());
+		assertTrue(Arrays.equals(histogram(0), report.getRoiHistogram()));
+		assertEquals(0, report.getMedianRoiBucket());
+	}
+
+	public void testZeroSpendHasNoRoi() {
+		PerformanceReport report = new PerformanceReport();
+		analyzer.classify(report, 0.0, 10.0);
+		analyzer.classify(report, 0.0, -10.0);
+		assertEquals(2, report.getPromotions());
+		assertEquals(2, report.getWithoutSpend());
+		assertEquals("only the loss under-performs", 1, report.getUnderPerforming());
+		assertEquals(0, report.getOverPerforming());
+		assertTrue(Arrays.equals(histogram(), report.getRoiHistogram()));
+		assertEquals(-1, report.getMedianRoiBucket());
+		assertTrue(Double.isNaN(report.getTotalRoi()));
+	}
+
+	public void testRoiAbove500IsInLastBucket() {
+		PerformanceReport report = new PerformanceReport();
+		analyzer.classify(report, 10.0, 80.0);
+		analyzer.classify(report, 1.0, 1000.0);
+		assertEquals(2, report.getOverPerforming());
+		assertTrue(Arrays.equals(histogram(20, 20), report.getRoiHistogram()));
+		assertEquals(500, report.getMedianRoiBucket());
+	}
+
+	public void testMerge() {
+		PerformanceReport left = new PerformanceReport();
+		PerformanceReport right = new PerformanceReport();
+		analyzer.classify(left, 100.0, 50.0);
+		analyzer.classify(right, 100.0, 250.0);
+		analyzer.classify(right, 0.0, 5.0);
+		left.merge(right);
+		assertEquals(3, left.getPromotions());
+		assertEquals(1, left.getUnderPerforming());
+		assertEquals(1, left.getOverPerforming());
+		assertEquals(1, left.getWithoutSpend());
+		assertTrue(Arrays.equals(histogram(2, 10), left.getRoiHistogram()));
+	}
+
+	public void testStatus() {
+		assertEquals(QueryResult.Status.NO_DATA, new PerformanceReport().getStatus());
+		assertEquals(QueryResult.Status.TIMEOUT, PerformanceReport.failed(QueryResult.Status.TIMEOUT).getStatus());
+	}
+
+	public void testBucketRange() {
+		assertEquals("no data", PerformanceReport.bucketRange(-1));
+		assertEquals("below 25%", PerformanceReport.bucketRange(0));
+		assertEquals("25-50%", PerformanceReport.bucketRange(25));
+		assertEquals("475-500%", PerformanceReport.bucketRange(475));
+		assertEquals("500% or more", PerformanceReport.bucketRange(500));
+	}
+}
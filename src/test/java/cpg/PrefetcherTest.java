@@ -0,0 +1,135 @@
+package cpg;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests which keys the prefetcher learns and how a prefetch stops. Queries
+ * go to a stand-in that answers without the database, and the first one
+ * can be held until the test lets it finish.
+ */
+public class PrefetcherTest extends TestCase {
+
+	private static final MetricKey SPEND = key(Metric.TOTAL_TRADE_SPEND);
+
+	private static final MetricKey PROFIT = key(Metric.TOTAL_GROSS_PROFIT);
+
+	private static final MetricKey ROI = key(Metric.TOTAL_ROI);
+
+	/** Holds the first query until released. */
+	private final CountDownLatch firstStarted = new CountDownLatch(1);
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private final AtomicInteger queries = new AtomicInteger();
+
+	private ResultCache<QueryResult> cache;
+
+	private Prefetcher prefetcher;
+
+	@Override
+	protected void setUp() {
+		System.setProperty("cpg.local", "true");
+		System.setProperty("cpg.local.rows", "2000");
+		System.setProperty("cpg.prefetch.decayAfter", "4");
+		System.setProperty("cpg.prefetch.maxKeys", "2");
+		System.setProperty("cpg.prefetch.minIntervalMillis", "0");
+		cache = new ResultCache<QueryResult>(10);
+		prefetcher = new Prefetcher(new ConnectionUtil() {
+			@Override
+			public QueryResult queryMetric(Metric metric, MetricFilter filter, Deadline deadline) {
+				if (queries.getAndIncrement() == 0) {
+					firstStarted.countDown();
+					try {
+						release.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return QueryResult.ok("1");
+			}
+		}, cache);
+	}
+
+	@Override
+	protected void tearDown() {
+		release.countDown();
+		System.clearProperty("cpg.prefetch.decayAfter");
+		System.clearProperty("cpg.prefetch.maxKeys");
+		System.clearProperty("cpg.prefetch.minIntervalMillis");
+	}
+
+	private static MetricKey key(Metric metric) {
+		return new MetricKey(metric, MetricFilter.of("2016", null, null));
+	}
+
+	private void record(MetricKey key, int times) {
+		for (int i = 0; i < times; i++) {
+			prefetcher.record(key);
+		}
+	}
+
+	private void await(long loaded, long cancelled) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (prefetcher.getLoaded() < loaded || prefetcher.getCancelled() < cancelled) {
+			assertTrue("prefetch did not finish", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	public void testWithoutLookupsLoadsTotals() {
+		assertEquals("capped to maxKeys", 2, prefetcher.candidates().size());
+		assertEquals(MetricFilter.ALL, prefetcher.candidates().get(0).getFilter());
+	}
+
+	public void testMostAskedFirst() {
+		record(ROI, 1);
+		record(SPEND, 2);
+		assertEquals(Arrays.asList(SPEND, ROI), prefetcher.candidates());
+	}
+
+	public void testFreshKeysAreSkipped() {
+		record(ROI, 1);
+		record(SPEND, 2);
+		cache.put(SPEND, QueryResult.ok("5"));
+		assertEquals(Arrays.asList(ROI), prefetcher.candidates());
+	}
+
+	public void testDecayFollowsRecentUsage() {
+		// the 4th lookup halves the counts: SPEND 3 to 1, ROI 1 to 0 and forgotten
+		record(SPEND, 3);
+		record(ROI, 1);
+		assertEquals(Arrays.asList(SPEND), prefetcher.candidates());
+
+		record(PROFIT, 2);
+		assertEquals(Arrays.asList(PROFIT, SPEND), prefetcher.candidates());
+	}
+
+	public void testLoadsCandidates() throws InterruptedException {
+		record(SPEND, 2);
+		record(ROI, 1);
+		release.countDown();
+		assertTrue(prefetcher.prefetch());
+		await(2, 0);
+		assertTrue(cache.isFresh(SPEND));
+		assertTrue(cache.isFresh(ROI));
+	}
+
+	public void testCancelStopsAfterCurrentQuery() throws InterruptedException {
+		record(SPEND, 2);
+		record(ROI, 1);
+		assertTrue(prefetcher.prefetch());
+		assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+		// a live cache miss cancels the prefetch while its first query runs
+		prefetcher.cancel();
+		release.countDown();
+		await(1, 1);
+		assertTrue(cache.isFresh(SPEND));
+		assertFalse(cache.isFresh(ROI));
+		assertEquals(1, queries.get());
+	}
+}
@@ -0,0 +1,83 @@
+package cpg;
+
+import java.sql.SQLException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests which source the planner picks over summaries built in the embedded
+ * H2 database of {@code cpg.local}. Each test starts without a catalog.
+ */
+public class QueryPlannerTest extends TestCase {
+
+	private static final long TWO_DAYS = 48 * 60 * 60 * 1000L;
+
+	private ConnectionUtil connUtil;
+
+	private QueryPlanner planner;
+
+	@Override
+	protected void setUp() throws SQLException {
+		System.setProperty("cpg.local", "true");
+		System.setProperty("cpg.local.rows", "2000");
+		connUtil = new ConnectionUtil();
+		connUtil.executeUpdate("drop table if exists " + SummaryTables.CATALOG, 10);
+		planner = new QueryPlanner(true, 60000, 60000, TWO_DAYS);
+	}
+
+	private void refresh(String grains) throws SQLException {
+		new SummaryTables(connUtil, SummaryTables.parseGrains(grains), 60).refresh();
+		planner.load(connUtil);
+	}
+
+	public void testWithoutCatalogReadsView() {
+		planner.load(connUtil);
+		assertTrue(planner.getSummaries().isEmpty());
+		assertSame(QueryPlanner.VIEW, planner.plan(MetricFilter.YEAR));
+	}
+
+	public void testPicksSmallestCoveringGrain() throws SQLException {
+		refresh("year+brand+customer,year,brand");
+		assertEquals(3, planner.getSummaries().size());
+		assertEquals(SummaryTables.tableName(MetricFilter.YEAR, 0), planner.plan(MetricFilter.YEAR).getSource());
+		assertEquals(SummaryTables.tableName(MetricFilter.BRAND, 0), planner.plan(MetricFilter.BRAND).getSource());
+		assertEquals(SummaryTables.tableName(MetricFilter.YEAR | MetricFilter.BRAND | MetricFilter.CUSTOMER, 0),
+				planner.plan(MetricFilter.YEAR | MetricFilter.BRAND).getSource());
+		assertEquals(SummaryTables.tableName(MetricFilter.YEAR, 0), planner.plan(0).getSource());
+		assertSame(QueryPlanner.VIEW, planner.plan(QueryPlanner.UNCOVERED | MetricFilter.YEAR));
+	}
+
+	public void testSummaryAnswersLikeView() throws SQLException {
+		refresh("year+brand+customer");
+		String year = connUtil.executeQuery("select min(YEAR([PromotionStartDate])) from " + MetricQuery.VIEW);
+		String brand = connUtil.executeQuery("select min(ProdLevel4Name) from " + MetricQuery.VIEW);
+		MetricFilter filter = MetricFilter.of(year, brand, null);
+		QueryPlanner.Plan summary = planner.plan(filter.mask());
+		assertTrue(summary.isSummary());
+		for (Metric metric : Metric.values()) {
+			ScalarResult fromSummary = connUtil.queryDecimal(summary.sql(metric, filter), Deadline.after(10000),
+					summary.parameters(filter).toArray());
+			ScalarResult fromView = connUtil.queryDecimal(QueryPlanner.VIEW.sql(metric, filter),
+					Deadline.after(10000), QueryPlanner.VIEW.parameters(filter).toArray());
+			assertTrue(metric.name(), fromView.isPresent());
+			assertEquals(metric.name(), 0, fromView.getDecimal().compareTo(fromSummary.getDecimal()));
+		}
+	}
+
+	public void testStaleSummaryFallsBackToView() throws SQLException {
+		refresh("year");
+		assertTrue(planner.plan(MetricFilter.YEAR).isSummary());
+		connUtil.executeUpdate("update " + SummaryTables.CATALOG + " set RefreshedAt = ?", 10,
+				System.currentTimeMillis() - TWO_DAYS - 60000);
+		planner.load(connUtil);
+		assertSame(QueryPlanner.VIEW, planner.plan(MetricFilter.YEAR));
+	}
+
+	public void testDisabledNeverReadsCatalog() throws SQLException {
+		refresh("year");
+		QueryPlanner disabled = new QueryPlanner(false, 60000, 60000, TWO_DAYS);
+		disabled.load(connUtil);
+		assertTrue(disabled.getSummaries().isEmpty());
+		assertSame(QueryPlanner.VIEW, disabled.plan(MetricFilter.YEAR));
+	}
+}
@@ -0,0 +1,250 @@
+package cpg;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests routing over embedded H2 databases standing in for read replicas.
+ * Each one maps {@code PAUSE()} to its own method below, which fails while
+ * the replica is failing, takes a second when it is asked to be slow once, and
+ * returns the replica's index. Latencies are seeded rather than measured.
+ */
+public class ReplicaRouterTest extends TestCase {
+
+	private static final int REPLICAS = 3;
+
+	static final boolean[] failing = new boolean[REPLICAS];
+
+	/** Makes the next call to this replica take a second; -1 for none. */
+	static final AtomicInteger slowOnce = new AtomicInteger(-1);
+
+	private final List<String> urls = new ArrayList<String>();
+
+	private ReplicaRouter router;
+
+	@Override
+	protected void setUp() throws Exception {
+		Class.forName(LocalDatabase.DRIVER);
+		for (int i = 0; i < REPLICAS; i++) {
+			failing[i] = false;
+			String url = LocalDatabase.memoryUrl("replica-" + i + "-" + getName());
+			try (Connection con = DriverManager.getConnection(url, LocalDatabase.USER, LocalDatabase.PASSWORD);
+					Statement stmt = con.createStatement()) {
+				stmt.execute("create alias if not exists PAUSE for \"cpg.ReplicaRouterTest.pause" + i + "\"");
+				// the first call loads the class, which would make the replica look slow
+				stmt.execute("select PAUSE()");
+			}
+			urls.add(url);
+		}
+		slowOnce.set(-1);
+		router = router(60000, 5);
+	}
+
+	/**
+	 * @param minHedgeMillis
+	 *            -1 not to hedge
+	 */
+	private ReplicaRouter router(long probeMillis, long minHedgeMillis) {
+		List<ReplicaRouter.Replica> replicas = new ArrayList<ReplicaRouter.Replica>();
+		for (int i = 0; i < REPLICAS; i++) {
+			replicas.add(new ReplicaRouter.Replica("replica-" + i,
+					new ConnectionPool(urls.get(i), LocalDatabase.USER, LocalDatabase.PASSWORD, 4, 0, 2000, 5000,
+							600000),
+					new CircuitBreaker("replica-" + i, 10, 3, 50, 10000, 60000)));
+		}
+		return new ReplicaRouter(replicas, 0.3, probeMillis, 0, minHedgeMillis, 50, 1);
+	}
+
+	@Override
+	protected void tearDown() {
+		router.close();
+	}
+
+	public static int pause0() throws InterruptedException, SQLException {
+		return pause(0);
+	}
+
+	public static int pause1() throws InterruptedException, SQLException {
+		return pause(1);
+	}
+
+	public static int pause2() throws InterruptedException, SQLException {
+		return pause(2);
+	}
+
+	private static int pause(int replica) throws InterruptedException, SQLException {
+		if (failing[replica]) {
+			throw new SQLException("replica " + replica + " is down");
+		}
+		if (slowOnce.compareAndSet(replica, -1)) {
+			Thread.sleep(1000);
+		}
+		return replica;
+	}
+
+	/**
+	 * @return the index of the replica that answered, -1 if the query failed
+	 */
+	private int pause() {
+		final int[] value = { -1 };
+		QueryResult.Status status = router.execute("select PAUSE()", 0, 1, new RowHandler() {
+			@Override
+			public void handleRow(ResultSet rs) throws SQLException {
+				value[0] = rs.getInt(1);
+			}
+		}, Deadline.after(5000));
+		return status == QueryResult.Status.OK ? value[0] : -1;
+	}
+
+	/**
+	 * Gives a replica latency samples, as if it had answered that many queries
+	 * in {@code millis} each, so that the tests do not depend on how long the
+	 * queries really take.
+	 */
+	private void seed(int replica, long millis) {
+		ReplicaRouter.Replica r = router.getReplicas().get(replica);
+		for (int i = 0; i < ReplicaRouter.MIN_SAMPLES; i++) {
+			r.record(TimeUnit.MILLISECONDS.toNanos(millis), true, 0.3, 0);
+		}
+	}
+
+	public void testPrefersFastestReplica() {
+		router.close();
+		// a hedge could answer from another replica
+		router = router(60000, -1);
+		seed(0, 1000);
+		seed(1, 1);
+		seed(2, 1000);
+		int[] answered = new int[REPLICAS];
+		for (int i = 0; i < 40; i++) {
+			answered[pause()]++;
+		}
+		// the others are not probed within a minute, and only look faster if a query takes a second
+		assertEquals(40, answered[1]);
+	}
+
+	public void testHedgesSlowQuery() {
+		seed(0, 1);
+		seed(1, 2);
+		seed(2, 2);
+		assertTrue(router.getReplicas().get(0).getPercentile95Nanos() >= 0);
+
+		slowOnce.set(0);
+		int replica = pause();
+		assertTrue("hedge answered from " + replica, replica == 1 || replica == 2);
+		assertEquals(1, router.getHedges());
+		assertEquals(1, router.getHedgesWon());
+	}
+
+	public void testTimeoutWaitsForRowInHand() throws InterruptedException {
+		seed(0, 1);
+		seed(1, 1);
+		seed(2, 1);
+		final AtomicInteger rows = new AtomicInteger();
+		final AtomicInteger inRow = new AtomicInteger();
+		QueryResult.Status status = router.execute("select X from SYSTEM_RANGE(1, 5)", 0, 0, new RowHandler() {
+			@Override
+			public void handleRow(ResultSet rs) {
+				inRow.incrementAndGet();
+				try {
+					rows.incrementAndGet();
+					// outlasts the deadline and the grace a caller gives a hedged query
+					Thread.sleep(3000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					inRow.decrementAndGet();
+				}
+			}
+		}, Deadline.after(100));
+
+		assertEquals(QueryResult.Status.TIMEOUT, status);
+		assertEquals("handler still running after the query returned", 0, inRow.get());
+		Thread.sleep(200);
+		assertEquals(1, rows.get());
+	}
+
+	public void testDoesNotHedgeStreamingQuery() {
+		seed(0, 200);
+		seed(1, 200);
+		seed(2, 200);
+		final AtomicInteger rows = new AtomicInteger();
+		QueryResult.Status status = router.execute("select X from SYSTEM_RANGE(1, 2)", 0, 0, new RowHandler() {
+			@Override
+			public void handleRow(ResultSet rs) {
+				rows.incrementAndGet();
+				try {
+					// well past the 95th percentile, but the result set is already there
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, Deadline.after(5000));
+
+		assertEquals(QueryResult.Status.OK, status);
+		assertEquals(2, rows.get());
+		assertEquals(0, router.getHedges());
+	}
+
+	public void testRetriesOnOtherReplica() {
+		failing[0] = true;
+		for (int i = 0; i < 10; i++) {
+			assertTrue(pause() > 0);
+		}
+		assertEquals(1, router.getRetries());
+		// the failure made it look slow, so it is not asked again
+		assertEquals(1, router.getReplicas().get(0).getQueries());
+	}
+
+	public void testEjectsFailingReplica() {
+		router.close();
+		// probing every replica on every query leaves the ejection to the breaker
+		router = router(0, 5);
+		failing[0] = true;
+		for (int i = 0; i < 10; i++) {
+			assertTrue(pause() > 0);
+		}
+		ReplicaRouter.Replica down = router.getReplicas().get(0);
+		assertEquals(CircuitBreaker.State.OPEN, down.getCircuitBreaker().getState());
+		assertEquals(3, down.getQueries());
+	}
+
+	public void testReplicasAnswerMetricQueries() throws SQLException {
+		for (String url : urls) {
+			LocalDatabase.start(url, 2000, new PromotionDataGenerator());
+		}
+		MetricFilter filter = MetricFilter.of("2016", null, null);
+		final BigDecimal[] value = new BigDecimal[1];
+		BigDecimal expected = null;
+		for (int i = 0; i < 20; i++) {
+			value[0] = null;
+			QueryResult.Status status = router.execute(MetricQuery.sql(Metric.TOTAL_TRADE_SPEND, filter), 0, 1,
+					new RowHandler() {
+						@Override
+						public void handleRow(ResultSet rs) throws SQLException {
+							value[0] = rs.getBigDecimal(1);
+						}
+					}, Deadline.after(5000), MetricQuery.parameters(filter).toArray());
+			assertEquals(QueryResult.Status.OK, status);
+			assertNotNull(value[0]);
+			if (expected == null) {
+				expected = value[0];
+			}
+			assertEquals(expected, value[0]);
+		}
+		for (ReplicaRouter.Replica replica : router.getReplicas()) {
+			assertTrue(replica.getName() + " unused", replica.getQueries() > 0);
+		}
+	}
+}
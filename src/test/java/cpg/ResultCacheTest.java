@@ -0,0 +1,166 @@
+package cpg;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests expiry, eviction and stale refresh of the result cache. A TTL or
+ * maximum staleness of 0 makes every entry stale or missing right away, so
+ * the tests do not depend on the clock.
+ */
+public class ResultCacheTest extends TestCase {
+
+	private static final MetricKey SPEND = key(Metric.TOTAL_TRADE_SPEND, "2016");
+
+	private static final MetricKey ROI = key(Metric.TOTAL_ROI, "2016");
+
+	@Override
+	protected void tearDown() {
+		System.clearProperty("cpg.cache.ttlMillis");
+		System.clearProperty("cpg.cache.ttlMillis.TOTAL_ROI");
+		System.clearProperty("cpg.cache.maxStaleMillis");
+	}
+
+	private static MetricKey key(Metric metric, String year) {
+		return new MetricKey(metric, MetricFilter.of(year, null, null));
+	}
+
+	/**
+	 * Loads "value N" on the N-th call.
+	 */
+	private static final class CountingLoader implements ResultCache.Loader<String> {
+
+		final AtomicInteger loads = new AtomicInteger();
+
+		@Override
+		public String load(MetricKey key) {
+			return "value " + loads.incrementAndGet();
+		}
+	}
+
+	private static void awaitRefreshes(ResultCache<String> cache, long refreshes) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (cache.stats().getRefreshes() + cache.stats().getRefreshFailures() < refreshes) {
+			assertTrue("refresh did not finish", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	public void testFreshEntryIsHit() throws Exception {
+		ResultCache<String> cache = new ResultCache<String>(10);
+		CountingLoader loader = new CountingLoader();
+		assertEquals("value 1", cache.get(SPEND, loader));
+		assertEquals("value 1", cache.get(SPEND, loader));
+		assertEquals(1, loader.loads.get());
+		assertTrue(cache.isFresh(SPEND));
+		assertEquals(1, cache.stats().getHits());
+		assertEquals(1, cache.stats().getMisses());
+	}
+
+	public void testTtlIsPerMetric() throws Exception {
+		System.setProperty("cpg.cache.ttlMillis.TOTAL_ROI", "0");
+		ResultCache<String> cache = new ResultCache<String>(10);
+		cache.put(SPEND, "spend");
+		cache.put(ROI, "roi");
+		assertTrue(cache.isFresh(SPEND));
+		assertFalse(cache.isFresh(ROI));
+
+		CountingLoader loader = new CountingLoader();
+		assertEquals("spend", cache.get(SPEND, loader));
+		assertEquals("roi", cache.get(ROI, loader));
+		awaitRefreshes(cache, 1);
+		assertEquals(1, cache.stats().getHits());
+		assertEquals(1, cache.stats().getStaleHits());
+	}
+
+	public void testStaleEntryIsReturnedAndRefreshed() throws Exception {
+		System.setProperty("cpg.cache.ttlMillis", "0");
+		ResultCache<String> cache = new ResultCache<String>(10);
+		CountingLoader loader = new CountingLoader();
+		cache.put(SPEND, "old");
+
+		assertEquals("old", cache.get(SPEND, loader));
+		awaitRefreshes(cache, 1);
+		assertEquals("value 1", cache.peek(SPEND));
+		assertEquals(1, cache.stats().getStaleHits());
+		assertEquals(0, cache.stats().getMisses());
+	}
+
+	public void testConcurrentStaleHitsQueueOneRefresh() throws Exception {
+		System.setProperty("cpg.cache.ttlMillis", "0");
+		ResultCache<String> cache = new ResultCache<String>(10);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger loads = new AtomicInteger();
+		ResultCache.Loader<String> blocking = new ResultCache.Loader<String>() {
+			@Override
+			public String load(MetricKey key) throws Exception {
+				loads.incrementAndGet();
+				release.await(5, TimeUnit.SECONDS);
+				return "new";
+			}
+		};
+		cache.put(SPEND, "old");
+
+		for (int i = 0; i < 5; i++) {
+			assertEquals("old", cache.get(SPEND, blocking));
+		}
+		release.countDown();
+		awaitRefreshes(cache, 1);
+		assertEquals(1, loads.get());
+		assertEquals("new", cache.peek(SPEND));
+	}
+
+	public void testFailedRefreshKeepsStaleValue() throws Exception {
+		System.setProperty("cpg.cache.ttlMillis", "0");
+		ResultCache<String> cache = new ResultCache<String>(10);
+		cache.put(SPEND, "old");
+
+		assertEquals("old", cache.get(SPEND, new ResultCache.Loader<String>() {
+			@Override
+			public String load(MetricKey key) throws Exception {
+				throw new Exception("database down");
+			}
+		}));
+		awaitRefreshes(cache, 1);
+		assertEquals(1, cache.stats().getRefreshFailures());
+		assertEquals("old", cache.peek(SPEND));
+	}
+
+	public void testTooStaleEntryIsReloadedOnCaller() throws Exception {
+		System.setProperty("cpg.cache.ttlMillis", "0");
+		System.setProperty("cpg.cache.maxStaleMillis", "0");
+		ResultCache<String> cache = new ResultCache<String>(10);
+		CountingLoader loader = new CountingLoader();
+		cache.put(SPEND, "old");
+
+		assertEquals("value 1", cache.get(SPEND, loader));
+		assertEquals(1, cache.stats().getMisses());
+		assertEquals(0, cache.stats().getStaleHits());
+	}
+
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		ResultCache<String> cache = new ResultCache<String>(2);
+		MetricKey y2017 = key(Metric.TOTAL_TRADE_SPEND, "2017");
+		cache.put(SPEND, "2016");
+		cache.put(ROI, "roi");
+		// reading 2016 makes ROI the least recently used
+		assertEquals("2016", cache.get(SPEND, new CountingLoader()));
+		cache.put(y2017, "2017");
+
+		assertEquals("2016", cache.peek(SPEND));
+		assertNull(cache.peek(ROI));
+		assertEquals("2017", cache.peek(y2017));
+		assertEquals(2, cache.stats().getSize());
+		assertEquals(1, cache.stats().getEvictions());
+	}
+
+	public void testNullIsNotCached() throws Exception {
+		ResultCache<String> cache = new ResultCache<String>(10);
+		cache.put(SPEND, null);
+		assertNull(cache.peek(SPEND));
+		assertEquals(0, cache.stats().getSize());
+	}
+}
@@ -0,0 +1,195 @@
+package cpg;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * Tests the shared result cache against DynamoDB Local. The build copies
+ * DynamoDB Local to {@code cpg.dynamo.local}, and the first test starts it
+ * in a separate JVM, as its Jackson, AWS SDK and Jetty versions clash with
+ * the skill's. Tests run against {@code cpg.dynamo.endpoint} instead if it
+ * is set.
+ */
+public class SharedResultCacheTest extends TestCase {
+
+	private static Process server;
+
+	private static String endpoint;
+
+	private AmazonDynamoDBClient client;
+
+	private SharedResultCache cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		client = new AmazonDynamoDBClient(new BasicAWSCredentials("local", "local"));
+		client.setEndpoint(endpoint());
+		cache = new SharedResultCache(client, "cpg-result-cache-test-" + System.nanoTime(), 60000, 100);
+		cache.createTable(5, 5);
+	}
+
+	@Override
+	protected void tearDown() {
+		client.deleteTable(cache.getTable());
+		client.shutdown();
+	}
+
+	/**
+	 * @return the endpoint of DynamoDB Local, started on first use and
+	 *         stopped when the tests exit
+	 */
+	private static synchronized String endpoint() throws Exception {
+		if (endpoint != null) {
+			return endpoint;
+		}
+		String configured = SkillConfig.get("cpg.dynamo.endpoint", null);
+		if (configured != null) {
+			return endpoint = configured;
+		}
+		File dir = new File(SkillConfig.get("cpg.dynamo.local", "target/dynamodb-local"));
+		if (!dir.isDirectory()) {
+			throw new IllegalStateException("DynamoDB Local is not in " + dir + ", run the tests with mvn");
+		}
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		server = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-Dsqlite4java.library.path=" + dir.getAbsolutePath(), "-cp",
+				dir.getAbsolutePath() + File.separator + "*",
+				"com.amazonaws.services.dynamodbv2.local.main.ServerRunner", "-inMemory", "-port",
+				String.valueOf(port)).directory(dir).redirectErrorStream(true)
+						.redirectOutput(new File(dir, "server.log")).start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				server.destroy();
+			}
+		});
+		awaitStarted("http://localhost:" + port);
+		return endpoint = "http://localhost:" + port;
+	}
+
+	private static void awaitStarted(String url) throws IOException, InterruptedException {
+		AmazonDynamoDBClient probe = new AmazonDynamoDBClient(new BasicAWSCredentials("local", "local"));
+		probe.setEndpoint(url);
+		long deadline = System.currentTimeMillis() + 60000;
+		try {
+			while (true) {
+				try {
+					probe.listTables();
+					return;
+				} catch (AmazonClientException e) {
+					if (!server.isAlive() || System.currentTimeMillis() > deadline) {
+						throw new IOException("DynamoDB Local did not start", e);
+					}
+					Thread.sleep(200);
+				}
+			}
+		} finally {
+			probe.shutdown();
+		}
+	}
+
+	private static MetricKey key(Metric metric, String year, String brand, String customer) {
+		return new MetricKey(metric, MetricFilter.of(year, brand, customer));
+	}
+
+	public void testEncodeIsCompact() {
+		assertEquals(6, SharedResultCache.encode(QueryResult.ok("1234567")).length);
+		assertEquals(1, SharedResultCache.encode(QueryResult.noData()).length);
+	}
+
+	public void testEncodeRoundTrip() {
+		for (String value : Arrays.asList("0", "1234567", "-1234567", "12.5", "-0.3", "0.0", "9223372036854775807",
+				"92233720368547758070", "1E+3", "n/a", "")) {
+			QueryResult decoded = SharedResultCache.decode(SharedResultCache.encode(QueryResult.ok(value)));
+			assertEquals(QueryResult.Status.OK, decoded.getStatus());
+			assertEquals(value, decoded.getValue());
+		}
+		assertSame(QueryResult.noData(), SharedResultCache.decode(SharedResultCache.encode(QueryResult.noData())));
+	}
+
+	public void testDecodeRejectsGarbage() {
+		try {
+			SharedResultCache.decode(new byte[] { 0, 0, (byte) 0x80 });
+			fail("truncated varint accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			SharedResultCache.decode(new byte[] { 42 });
+			fail("unknown status accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testKeysOfDifferentFiltersDiffer() {
+		assertFalse(SharedResultCache.key(key(Metric.TOTAL_TRADE_SPEND, null, "ab", null))
+				.equals(SharedResultCache.key(key(Metric.TOTAL_TRADE_SPEND, null, null, "ab"))));
+	}
+
+	public void testPutAndGet() {
+		MetricKey key = key(Metric.TOTAL_TRADE_SPEND, "2017", "pepsi", null);
+		assertNull(cache.get(key, Deadline.after(5000)));
+		assertTrue(cache.put(key, QueryResult.ok("1234567"), System.currentTimeMillis()));
+		QueryResult result = cache.get(key, Deadline.after(5000));
+		assertNotNull(result);
+		assertEquals("1234567", result.getValue());
+	}
+
+	public void testBatchGet() {
+		long now = System.currentTimeMillis();
+		MetricKey spend = key(Metric.TOTAL_TRADE_SPEND, null, null, "walmart");
+		MetricKey roi = key(Metric.TOTAL_ROI, null, null, "walmart");
+		MetricKey profit = key(Metric.TOTAL_GROSS_PROFIT, null, null, "walmart");
+		cache.put(spend, QueryResult.ok("5000"), now);
+		cache.put(roi, QueryResult.noData(), now);
+
+		Map<MetricKey, QueryResult> found = cache.getAll(Arrays.asList(spend, roi, profit), Deadline.after(5000));
+		assertEquals(2, found.size());
+		assertEquals("5000", found.get(spend).getValue());
+		assertSame(QueryResult.noData(), found.get(roi));
+		assertFalse(found.containsKey(profit));
+	}
+
+	public void testExpiredItemsAreMisses() {
+		MetricKey key = key(Metric.TOTAL_ROI, "2016", null, null);
+		cache.put(key, QueryResult.ok("1.5"), System.currentTimeMillis() - 60000);
+		assertNull(cache.get(key, Deadline.after(5000)));
+		assertTrue(cache.getAll(Arrays.asList(key), Deadline.after(5000)).isEmpty());
+	}
+
+	public void testCorruptItemsAreMisses() {
+		MetricKey badTime = key(Metric.TOTAL_ROI, "2016", "pepsi", null);
+		MetricKey badValue = key(Metric.TOTAL_ROI, "2017", "pepsi", null);
+		Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+		item.put(SharedResultCache.KEY, new AttributeValue(SharedResultCache.key(badTime)));
+		item.put(SharedResultCache.VALUE,
+				new AttributeValue().withB(ByteBuffer.wrap(SharedResultCache.encode(QueryResult.ok("1.5")))));
+		item.put(SharedResultCache.LOADED_AT, new AttributeValue("yesterday"));
+		client.putItem(cache.getTable(), item);
+		item.put(SharedResultCache.KEY, new AttributeValue(SharedResultCache.key(badValue)));
+		item.put(SharedResultCache.VALUE, new AttributeValue().withB(ByteBuffer.wrap(new byte[] { 42 })));
+		item.put(SharedResultCache.LOADED_AT,
+				new AttributeValue().withN(String.valueOf(System.currentTimeMillis())));
+		client.putItem(cache.getTable(), item);
+
+		assertNull(cache.get(badTime, Deadline.after(5000)));
+		assertNull(cache.get(badValue, Deadline.after(5000)));
+		assertTrue(cache.getAll(Arrays.asList(badTime, badValue), Deadline.after(5000)).isEmpty());
+	}
+}
@@ -0,0 +1,74 @@
+package cpg;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how slot values resolve to the names of a dictionary.
+ */
+public class SlotDictionaryTest extends TestCase {
+
+	private final SlotDictionary brands = SlotDictionary.of("Gatsby", "Bifesta", "Caesar", "Himalaya", "Neon",
+			"Kellogg's", "Marine", "Marino", "Rite Aid Corp", "Spar Hypermarket", "Spar Express");
+
+	private String resolved(String value) {
+		int id = brands.resolve(value);
+		return id == SlotDictionary.NOT_FOUND ? null : brands.name(id);
+	}
+
+	public void testOfNormalizesAndDropsDuplicates() {
+		SlotDictionary dictionary = SlotDictionary.of("gatsby", " GATSBY ", "", null, "Neon");
+		assertEquals(2, dictionary.size());
+		assertEquals("GATSBY", dictionary.name(0));
+		assertEquals("NEON", dictionary.name(1));
+	}
+
+	public void testExact() {
+		assertEquals("GATSBY", resolved("gatsby"));
+		assertEquals("RITE AID CORP", resolved(" Rite Aid Corp "));
+	}
+
+	public void testLettersAndDigitsOnly() {
+		assertEquals("KELLOGG'S", resolved("kelloggs"));
+		assertEquals("RITE AID CORP", resolved("rite-aid corp."));
+	}
+
+	public void testLeadingWords() {
+		assertEquals("RITE AID CORP", resolved("rite aid"));
+		assertNull("two names start with spar", resolved("spar"));
+	}
+
+	public void testSoundsAlike() {
+		assertEquals("CAESAR", resolved("cesar"));
+	}
+
+	public void testEditDistance() {
+		assertEquals("HIMALAYA", resolved("himalya"));
+		assertEquals("BIFESTA", resolved("bifiesta"));
+		assertEquals("NEON", resolved("neo"));
+	}
+
+	public void testTooManyEdits() {
+		assertNull(resolved("qatsbyzz"));
+		assertNull(resolved("nyx"));
+	}
+
+	public void testTieIsNotResolved() {
+		assertEquals("MARINE", resolved("marine"));
+		assertNull("marine and marino are equally close", resolved("marina"));
+	}
+
+	public void testBlankIsNotFound() {
+		assertEquals(SlotDictionary.NOT_FOUND, brands.resolve(null));
+		assertEquals(SlotDictionary.NOT_FOUND, brands.resolve(" "));
+		assertEquals(SlotDictionary.NOT_FOUND, brands.resolve("'?"));
+	}
+
+	public void testSoundex() {
+		assertEquals("C260", SlotDictionary.soundex("CESAR"));
+		assertEquals("C260", SlotDictionary.soundex("CAESAR"));
+		assertEquals("R163", SlotDictionary.soundex("ROBERT"));
+		assertEquals("A261", SlotDictionary.soundex("ASHCRAFT"));
+		assertEquals("N000", SlotDictionary.soundex("NO"));
+		assertEquals("", SlotDictionary.soundex("42"));
+	}
+}
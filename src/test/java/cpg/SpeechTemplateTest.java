@@ -0,0 +1,89 @@
+package cpg;
+
+import java.math.BigDecimal;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests placeholder rendering, escaping and optional sections of speech
+ * templates.
+ */
+public class SpeechTemplateTest extends TestCase {
+
+	public void testSsmlEscapesText() {
+		SpeechTemplate template = SpeechTemplate.ssml("<speak>{0}</speak>");
+		assertEquals("<speak>Tom &amp; Jerry&apos;s &lt;&quot;best&quot;&gt;</speak>",
+				template.render("Tom & Jerry's <\"best\">"));
+	}
+
+	public void testTextDoesNotEscape() {
+		assertEquals("Tom & Jerry's <best>", SpeechTemplate.text("{0}").render("Tom & Jerry's <best>"));
+	}
+
+	public void testSsmlArgumentIsInsertedAsIs() {
+		SpeechTemplate template = SpeechTemplate.ssml("{0} {1,ssml}");
+		assertEquals("a &amp; b <break time=\"1s\"/>", template.render("a & b", "<break time=\"1s\"/>"));
+	}
+
+	public void testCardinals() {
+		SpeechTemplate ssml = SpeechTemplate.ssml("{0,cardinal}");
+		assertEquals("<say-as interpret-as=\"cardinal\">1234567</say-as>", ssml.render(1234567L));
+		assertEquals("<say-as interpret-as=\"cardinal\">42</say-as>", ssml.render(42.0));
+		assertEquals("<say-as interpret-as=\"cardinal\">12.5</say-as>", ssml.render(12.5));
+
+		SpeechTemplate text = SpeechTemplate.text("{0,cardinal}");
+		assertEquals("12345678912", text.render(1.2345678912E10));
+		assertEquals("0.25", text.render(0.25));
+		assertEquals("-3", text.render(-3));
+		assertEquals("100000000000000000000", text.render(new BigDecimal("1E+20")));
+		assertEquals("NaN", text.render(Double.NaN));
+		assertEquals("n/a", text.render("n/a"));
+	}
+
+	public void testArgumentsByPosition() {
+		assertEquals("b a b", SpeechTemplate.text("{1} {0} {1}").render("a", "b"));
+	}
+
+	public void testMissingArgumentRendersEmpty() {
+		assertEquals("x=, y=", SpeechTemplate.text("x={0}, y={1}").render((Object) null));
+	}
+
+	public void testOptionalSections() {
+		SpeechTemplate template = SpeechTemplate.text("ROI[ for {0}][ in {1}] is {2}");
+		assertEquals("ROI for Gatsby in 2016 is 12", template.render("Gatsby", "2016", "12"));
+		assertEquals("ROI in 2016 is 12", template.render(null, "2016", "12"));
+		assertEquals("ROI for Gatsby is 12", template.render("Gatsby", "", "12"));
+		assertEquals("ROI is 12", template.render(null, null, "12"));
+	}
+
+	public void testNestedSections() {
+		SpeechTemplate template = SpeechTemplate.text("a[ b{0}[ c{1}] d]");
+		assertEquals("a b1 c2 d", template.render("1", "2"));
+		assertEquals("a", template.render("1", null));
+		assertEquals("a", template.render(null, "2"));
+	}
+
+	public void testRenderToAppends() {
+		SpeechTemplate item = SpeechTemplate.ssml("<p>{0}</p>");
+		StringBuilder out = new StringBuilder("<speak>");
+		item.renderTo(out, "A&B");
+		item.renderTo(out, "C");
+		assertEquals("<speak><p>A&amp;B</p><p>C</p>", out.toString());
+	}
+
+	public void testRenderIsRepeatable() {
+		SpeechTemplate template = SpeechTemplate.text("{0}!");
+		assertEquals("one!", template.render("one"));
+		assertEquals("two!", template.render("two"));
+	}
+
+	public void testRejectsMalformedTemplates() {
+		for (String pattern : new String[] { "{0", "0}", "[{0}", "{0}]", "{x}", "{0,bold}" }) {
+			try {
+				SpeechTemplate.text(pattern);
+				fail(pattern);
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+}
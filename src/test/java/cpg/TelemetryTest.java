@@ -0,0 +1,142 @@
+package cpg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the accuracy of the latency histogram and the EMF lines telemetry
+ * writes from it.
+ */
+public class TelemetryTest extends TestCase {
+
+	private static final Pattern INTENT = Pattern.compile("\"Intent\":\"([^\"]*)\"");
+
+	private static final Pattern REQUESTS = Pattern.compile("\"Requests\":(\\d+)");
+
+	@Override
+	protected void tearDown() {
+		System.clearProperty("cpg.telemetry.maxIntents");
+	}
+
+	private static void recordMicros(LatencyHistogram histogram, long micros) {
+		histogram.recordNanos(micros * 1000);
+	}
+
+	private static void assertWithin(long expected, long actual, double relative) {
+		assertTrue(actual + " is not within " + relative + " of " + expected,
+				Math.abs(actual - expected) <= expected * relative);
+	}
+
+	public void testBucketsCoverEveryValue() {
+		for (long micros : new long[] { 0, 1, 7, 8, 9, 15, 16, 100, 1000, 123456, 99999999, (1L << 40) - 1 }) {
+			int index = LatencyHistogram.index(micros);
+			long lower = LatencyHistogram.lowerBound(index);
+			assertTrue(micros + " below its bucket", lower <= micros);
+			assertTrue(micros + " above its bucket", micros < lower + LatencyHistogram.width(index));
+			assertTrue(micros + " in a bucket wider than 12.5 %",
+					LatencyHistogram.width(index) <= Math.max(1, lower / 8));
+		}
+	}
+
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long micros = 1; micros <= 10000; micros++) {
+			recordMicros(histogram, micros);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.drain();
+		assertEquals(10000, snapshot.getCount());
+		assertEquals(1, snapshot.getMinMicros());
+		assertEquals(10000, snapshot.getMaxMicros());
+		assertEquals(10000L * 10001 / 2, snapshot.getSumMicros());
+		// the midpoint of a bucket is at most half its width, 6.25 %, away
+		assertWithin(5000, snapshot.percentileMicros(0.5), 0.0625);
+		assertWithin(9000, snapshot.percentileMicros(0.9), 0.0625);
+		assertWithin(9900, snapshot.percentileMicros(0.99), 0.0625);
+		assertWithin(10000, snapshot.percentileMicros(1.0), 0.0625);
+	}
+
+	public void testPercentileIsCappedAtMax() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		// 1024 starts a bucket whose midpoint is 1088
+		recordMicros(histogram, 1024);
+		assertEquals(1024, histogram.drain().percentileMicros(0.99));
+	}
+
+	public void testDrainResets() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		recordMicros(histogram, 1000);
+		histogram.drain();
+		LatencyHistogram.Snapshot empty = histogram.drain();
+		assertEquals(0, empty.getCount());
+		assertEquals(0, empty.getMinMicros());
+		assertEquals(0, empty.getMaxMicros());
+		assertEquals(0, empty.percentileMicros(0.5));
+	}
+
+	public void testEmfHistogramKeepsCountsWithin100Values() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		Random random = new Random(42);
+		for (int i = 0; i < 5000; i++) {
+			recordMicros(histogram, (long) Math.exp(random.nextDouble() * 20));
+		}
+		StringBuilder json = new StringBuilder();
+		Telemetry.appendHistogram(json, histogram.drain());
+
+		Matcher values = Pattern.compile("\"Values\":\\[([^\\]]*)\\]").matcher(json);
+		Matcher counts = Pattern.compile("\"Counts\":\\[([^\\]]*)\\]").matcher(json);
+		assertTrue(json.toString(), values.find() && counts.find());
+		assertTrue(values.group(1).split(",").length <= 100);
+		long total = 0;
+		for (String count : counts.group(1).split(",")) {
+			total += Long.parseLong(count);
+		}
+		assertEquals(5000, total);
+		assertTrue(json.toString(), json.toString().endsWith(",\"Count\":5000}"));
+	}
+
+	public void testIntentsBeyondCapAreOther() {
+		System.setProperty("cpg.telemetry.maxIntents", "3");
+		Telemetry telemetry = new Telemetry();
+		for (String intent : new String[] { "A", "B", "C", "D", "E", "A" }) {
+			telemetry.recordRequest(intent, Deadline.after(1000), 1000000, 500000, false);
+		}
+
+		List<String> lines = flush(telemetry);
+		List<String> intents = new ArrayList<String>();
+		for (String line : lines) {
+			Matcher intent = INTENT.matcher(line);
+			Matcher requests = REQUESTS.matcher(line);
+			assertTrue(line, intent.find() && requests.find());
+			intents.add(intent.group(1) + "=" + requests.group(1));
+		}
+		assertEquals(4, intents.size());
+		assertTrue(intents.toString(), intents.contains("A=2"));
+		assertTrue(intents.toString(), intents.contains("Other=2"));
+		assertTrue("nothing left to flush", flush(telemetry).isEmpty());
+	}
+
+	private static List<String> flush(Telemetry telemetry) {
+		PrintStream out = System.out;
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(captured, true));
+		try {
+			telemetry.flush();
+		} finally {
+			System.setOut(out);
+		}
+		List<String> lines = new ArrayList<String>();
+		for (String line : captured.toString().split("\n")) {
+			if (!line.isEmpty()) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+}